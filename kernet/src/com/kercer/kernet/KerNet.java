@@ -49,13 +49,15 @@ public class KerNet
 		return  network;
 	}
 
-	private static KCCache newCache(Context aContext)
+	private static KCCache newCache(Context aContext, boolean aMultiProcess)
 	{
 		KCCache cache = null;
 		if (aContext != null)
 		{
 			File cacheDir = new File(aContext.getCacheDir(), DEFAULT_CACHE_DIR);
-			cache = new KCCacheDisk(cacheDir);
+			KCCacheDisk cacheDisk = new KCCacheDisk(cacheDir);
+			cacheDisk.setMultiProcess(aMultiProcess);
+			cache = cacheDisk;
 		}
 		return cache;
 	}
@@ -71,7 +73,25 @@ public class KerNet
 	 */
 	public static KCRequestQueue newRequestQueue(Context aContext, KCHttpStack aStack)
 	{
-		KCRequestQueue queue = new KCRequestQueue(newCache(aContext), newNetwork(aStack));
+		return newRequestQueue(aContext, aStack, false);
+	}
+
+	/**
+	 * Creates a default instance of the worker pool and calls {@link KCRequestQueue#start()} on it.
+	 *
+	 * @param aContext
+	 *            A {@link Context} to use for creating the cache dir.
+	 * @param aStack
+	 *            An {@link KCHttpStack} to use for the network, or null for default.
+	 * @param aMultiProcess
+	 *            True if other processes of the app use the cache dir as well, see {@link KCCacheDisk#setMultiProcess(boolean)}.
+	 * @return A started {@link KCRequestQueue} instance.
+	 * @throws IllegalStateException
+	 *             if a multi-process queue of this process still uses the cache dir, create one queue per process and share it
+	 */
+	public static KCRequestQueue newRequestQueue(Context aContext, KCHttpStack aStack, boolean aMultiProcess)
+	{
+		KCRequestQueue queue = new KCRequestQueue(newCache(aContext, aMultiProcess), newNetwork(aStack));
 		queue.start();
 
 		return queue;
@@ -100,7 +120,7 @@ public class KerNet
 	 */
 	public static KCRequestRunner newRequestRunner(Context aContext, KCHttpStack aStack)
 	{
-		KCRequestRunner requestRunner = new KCRequestRunner(newCache(aContext), newNetwork(aStack));
+		KCRequestRunner requestRunner = new KCRequestRunner(newCache(aContext, false), newNetwork(aStack));
 		return requestRunner;
 	}
 
@@ -0,0 +1,47 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.error.KCAuthFailureError;
+import com.kercer.kernet.http.error.KCParseError;
+
+import java.util.List;
+
+/**
+ * Encodes the requests a {@link KCRequestBatcher} collected into the body of one batch request, and splits the response of the batch endpoint
+ * back into one response per request. Codecs are called from several threads and must not keep state between calls.
+ */
+public interface KCBatchCodec
+{
+	/**
+	 * Returns the content type of the batch request body.
+	 *
+	 * @return body content type
+	 */
+	public String getBodyContentType();
+
+	/**
+	 * Encodes requests into the body of a batch request.
+	 *
+	 * @param aRequests
+	 *            The requests of the batch
+	 * @param aHeaders
+	 *            The headers to send with each request: its own headers and the validators of its cache entry
+	 * @return the body of the batch request
+	 * @throws KCAuthFailureError
+	 *             if the headers or body of a request are unavailable
+	 */
+	public byte[] encode(List<KCHttpRequest<?>> aRequests, List<KCHeaderGroup> aHeaders) throws KCAuthFailureError;
+
+	/**
+	 * Splits the response of the batch endpoint.
+	 *
+	 * @param aResponse
+	 *            The successful response of the batch request
+	 * @param aRequests
+	 *            The requests of the batch, in the order they were encoded
+	 * @return a list of the size of aRequests, holding the response of each request, or null for the requests the endpoint didn't answer
+	 * @throws KCParseError
+	 *             if the response can't be read
+	 */
+	public List<KCHttpResponse> decode(KCHttpResponse aResponse, List<KCHttpRequest<?>> aRequests) throws KCParseError;
+}
@@ -0,0 +1,156 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+import com.kercer.kernet.http.base.KCReasonPhraseCatalog;
+import com.kercer.kernet.http.base.KCStatusLine;
+import com.kercer.kernet.http.error.KCAuthFailureError;
+import com.kercer.kernet.http.error.KCParseError;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A {@link KCBatchCodec} for JSON batch endpoints, for text responses such as JSON APIs.
+ *
+ * <p>
+ * The batch request is <code>{"requests": [{"method": "GET", "url": "/item/1", "headers": {"Accept": "application/json"}}]}</code>: the URL is
+ * the path and query of the request, which shares the origin of the endpoint; a request with a body has a "body" string too. The endpoint answers
+ * <code>{"responses": [{"status": 200, "headers": {"Cache-Control": "max-age=60"}, "body": "..."}]}</code>, in the order of the requests. A
+ * null or missing response sends its request on its own.
+ * </p>
+ */
+public class KCBatchCodecJson implements KCBatchCodec
+{
+	private static final String CHARSET = "UTF-8";
+
+	private static final String[] METHOD_NAMES = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "TRACE", "PATCH" };
+
+	@Override
+	public String getBodyContentType()
+	{
+		return "application/json; charset=" + CHARSET;
+	}
+
+	@Override
+	public byte[] encode(List<KCHttpRequest<?>> aRequests, List<KCHeaderGroup> aHeaders) throws KCAuthFailureError
+	{
+		try
+		{
+			JSONArray requests = new JSONArray();
+			for (int i = 0; i < aRequests.size(); i++)
+			{
+				KCHttpRequest<?> request = aRequests.get(i);
+				JSONObject item = new JSONObject();
+				int method = request.getMethod();
+				item.put("method", method >= 0 && method < METHOD_NAMES.length ? METHOD_NAMES[method] : "GET");
+				item.put("url", pathOf(request.getUrl()));
+
+				JSONObject headers = new JSONObject();
+				for (KCHeader header : aHeaders.get(i).getAllHeaders())
+				{
+					headers.put(header.getName(), header.getValue());
+				}
+				item.put("headers", headers);
+
+				byte[] body = request.getBody();
+				if (body != null)
+				{
+					item.put("body", new String(body, CHARSET));
+				}
+				requests.put(item);
+			}
+
+			JSONObject batch = new JSONObject();
+			batch.put("requests", requests);
+			return batch.toString().getBytes(CHARSET);
+		}
+		catch (JSONException e)
+		{
+			throw new IllegalArgumentException("Can't encode batch", e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public List<KCHttpResponse> decode(KCHttpResponse aResponse, List<KCHttpRequest<?>> aRequests) throws KCParseError
+	{
+		try
+		{
+			String json = new String(aResponse.getContent(), KCHttpHeaderParser.parseCharset(aResponse.getHeaderGroup(), CHARSET));
+			JSONArray items = new JSONObject(json).getJSONArray("responses");
+			List<KCHttpResponse> responses = new ArrayList<KCHttpResponse>(aRequests.size());
+			for (int i = 0; i < aRequests.size(); i++)
+			{
+				JSONObject item = i < items.length() ? items.optJSONObject(i) : null;
+				responses.add(item != null ? toResponse(item) : null);
+			}
+			return responses;
+		}
+		catch (JSONException e)
+		{
+			throw new KCParseError(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new KCParseError(e);
+		}
+	}
+
+	private static KCHttpResponse toResponse(JSONObject aItem) throws JSONException, UnsupportedEncodingException
+	{
+		int status = aItem.getInt("status");
+		KCStatusLine statusLine = new KCStatusLine(new KCProtocolVersion("HTTP", 1, 1), status, KCReasonPhraseCatalog.INSTANCE.getReason(status, null));
+		KCHttpResponse response = new KCHttpResponse(statusLine);
+
+		JSONObject headers = aItem.optJSONObject("headers");
+		if (headers != null)
+		{
+			Iterator<?> names = headers.keys();
+			while (names.hasNext())
+			{
+				String name = names.next().toString();
+				response.addHeader(name, headers.getString(name));
+			}
+		}
+
+		KCHttpContent content = new KCHttpContent();
+		content.setContent(aItem.isNull("body") ? new byte[0] : aItem.getString("body").getBytes(CHARSET));
+		response.setContent(content);
+		return response;
+	}
+
+	/**
+	 * Returns the path and query of a URL.
+	 */
+	private static String pathOf(String aUrl)
+	{
+		try
+		{
+			URI uri = new URI(aUrl);
+			String path = uri.getRawPath();
+			if (path == null || path.length() == 0)
+			{
+				path = "/";
+			}
+			return uri.getRawQuery() != null ? path + "?" + uri.getRawQuery() : path;
+		}
+		catch (URISyntaxException e)
+		{
+			return aUrl;
+		}
+	}
+}
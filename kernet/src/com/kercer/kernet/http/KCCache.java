@@ -96,6 +96,21 @@ public interface KCCache
 		/** Immutable response headers as received from server; must be non-null. */
 		public KCHeaderGroup responseHeaders = KCHeaderGroup.emptyHeaderGroup();
 
+		/** Tags to remove related entries together, or null. See {@link KCHttpRequest#setCacheTags(String...)}. */
+		public String[] tags;
+
+		/**
+		 * The request headers named by the Vary response header, or null if the response has none. A request with other values for them does
+		 * not get this entry. See {@link KCHttpHeaderParser#varyMatches(KCHeaderGroup, KCHeaderGroup, KCHeaderGroup)}.
+		 */
+		public KCHeaderGroup varyHeaders;
+
+		/**
+		 * How long after {@link #ttl} the entry may still be delivered if the network fails, in milliseconds: the longer of its stale-if-error
+		 * directive and the {@link KCHttpRequest#getMaxStaleOnErrorMs()} of the request caching it. The cache keeps the entry that long.
+		 */
+		public long staleIfErrorMs;
+
 		/** True if the entry is expired. */
 		public boolean isExpired()
 		{
@@ -0,0 +1,59 @@
+package com.kercer.kernet.http;
+
+import java.util.Locale;
+
+/**
+ * Classes of cached content, by Content-Type, which a {@link KCCacheDisk} can give their own quota so that one class can't evict another.
+ *
+ * The ordinals are stored in cache files: constants may only be appended.
+ */
+public enum KCCacheContentClass
+{
+	/** API responses and other text: JSON, XML, JavaScript, text/*. */
+	API,
+
+	/** image/* */
+	IMAGE,
+
+	/** audio/*, video/* and other binary downloads. */
+	MEDIA,
+
+	/** Responses without a Content-Type, or of another type. */
+	OTHER;
+
+	/**
+	 * Classifies a Content-Type header value.
+	 *
+	 * @param aContentType
+	 *            the header value, may be null
+	 * @return the content class
+	 */
+	public static KCCacheContentClass fromContentType(String aContentType)
+	{
+		if (aContentType == null)
+		{
+			return OTHER;
+		}
+		String type = aContentType.toLowerCase(Locale.US);
+		int parameters = type.indexOf(';');
+		if (parameters >= 0)
+		{
+			type = type.substring(0, parameters);
+		}
+		type = type.trim();
+
+		if (type.startsWith("image/"))
+		{
+			return IMAGE;
+		}
+		if (type.startsWith("video/") || type.startsWith("audio/") || type.equals("application/octet-stream"))
+		{
+			return MEDIA;
+		}
+		if (type.startsWith("text/") || type.endsWith("json") || type.endsWith("xml") || type.endsWith("javascript"))
+		{
+			return API;
+		}
+		return OTHER;
+	}
+}
@@ -16,54 +16,80 @@
 
 package com.kercer.kernet.http;
 
-import android.os.SystemClock;
-
 import com.kercer.kercore.debug.KCLog;
-import com.kercer.kercore.util.KCUtilText;
-import com.kercer.kernet.http.base.KCHeader;
-import com.kercer.kernet.http.base.KCHeaderGroup;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.EOFException;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified directory. The default disk usage size is 5MB, but is
- * configurable.
+ * configurable. Entries are evicted by a {@link KCCacheEvictionPolicy}, least recently used first by default.
+ *
+ * <p>
+ * Small entries are packed into append-only segment files, see {@link KCCacheSegments}, so tens of thousands of small responses don't cost a file
+ * each. Larger entries are files holding their header followed by their data, named by the MD5 of their key and spread over 256 subdirectories.
+ * {@link #updateMetadata(String, KCEntry)} writes the new header of a file entry to a small sidecar file next to it, which takes precedence over the
+ * header in the entry file, so revalidated entries don't rewrite their data. A packed entry has no sidecar: its revalidation appends a whole new
+ * record, data included, of at most 16 KB.
+ * </p>
+ *
+ * <p>
+ * Processes sharing a cache directory, e.g. the UI process and a sync service, must enable {@link #setMultiProcess(boolean)}, so they see each
+ * other's entries and evictions.
+ * </p>
+ *
+ * <p>
+ * The cache lock guards its package-private collaborators: the {@link KCCacheIndex} of the entries, the {@link KCCacheFiles} and
+ * {@link KCCacheSegments} holding them, the {@link KCCacheLoader} indexing the entry files, the {@link KCCacheJanitor} evicting entries, the
+ * {@link KCCacheJournalSync} of a multi-process cache and the {@link KCCacheTrash} of a cleared one.
+ * </p>
  */
-public class KCCacheDisk implements KCCache
+public class KCCacheDisk implements KCCacheMetadataUpdatable
 {
+	/** Default maximum disk usage in bytes. */
+	private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
-	/** Map of the Key, CacheHeader pairs */
-	private final Map<String, KCCacheHeader> mEntries = new LinkedHashMap<String, KCCacheHeader>(16, .75f, true);
+	/** Maximum data length of the entries packed into segments, larger entries get a file. */
+	private static final int MAX_SEGMENT_ENTRY_SIZE = 16 * 1024;
 
-	/** Total amount of space currently used by the cache in bytes. */
-	private long mTotalSize = 0;
+	/** Largest data length {@link #get(String)} returns, larger entries are read with {@link #getStream(String)}. */
+	private static final long MAX_DATA_LENGTH = Integer.MAX_VALUE - 8;
+
+	/** Size of the buffer copying streamed data. */
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	/** Suffix of the name of the journal of a multi-process cache, next to the root directory so clearing the cache doesn't move it. */
+	private static final String JOURNAL_SUFFIX = ".journal";
 
 	/** The root directory to use for the cache. */
 	private final File mRootDirectory;
 
-	/** The maximum size of the cache in bytes. */
-	private final int mMaxCacheSizeInBytes;
+	/** The entry files and their sidecars. */
+	private final KCCacheFiles mFiles;
 
-	/** Default maximum disk usage in bytes. */
-	private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+	/** The segment files holding the small entries. */
+	private final KCCacheSegments mSegments;
+
+	/** The headers of the entries, guarded by the cache lock like all the collaborators below. */
+	private final KCCacheIndex mIndex;
+
+	/** The journal shared with the other processes using the directory, if any. */
+	private final KCCacheJournalSync mJournal = new KCCacheJournalSync();
 
-	/** High water mark percentage for the cache */
-	private static final float HYSTERESIS_FACTOR = 0.8f;
+	/** Evicts entries and compacts segments in the background. */
+	private final KCCacheJanitor mJanitor;
 
-	/** Magic number for current version of cache file format. */
-	private static final int CACHE_MAGIC = 0x20150306;
+	/** Indexes the entry files in the background. */
+	private final KCCacheLoader mLoader;
 
 	/**
 	 * Constructs an instance of the DiskBasedCache at the specified directory.
@@ -72,11 +98,30 @@ public class KCCacheDisk implements KCCache
 	 *            The root directory of the cache.
 	 * @param maxCacheSizeInBytes
 	 *            The maximum size of the cache in bytes.
+	 * @param evictionPolicy
+	 *            The policy choosing the entries to evict, e.g. {@link KCCacheEvictionTinyLfu}. Not shared with other caches.
 	 */
-	public KCCacheDisk(File rootDirectory, int maxCacheSizeInBytes)
+	public KCCacheDisk(File rootDirectory, long maxCacheSizeInBytes, KCCacheEvictionPolicy evictionPolicy)
 	{
 		mRootDirectory = rootDirectory;
-		mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+		mFiles = new KCCacheFiles(rootDirectory);
+		mSegments = new KCCacheSegments(rootDirectory);
+		mIndex = new KCCacheIndex(mSegments, maxCacheSizeInBytes, evictionPolicy);
+		mJanitor = new KCCacheJanitor(this, mIndex, mSegments, mFiles, mJournal);
+		mLoader = new KCCacheLoader(this, mIndex, mSegments, mFiles, mJournal, mJanitor);
+	}
+
+	/**
+	 * Constructs an instance of the DiskBasedCache at the specified directory, evicting the least recently used entries.
+	 *
+	 * @param rootDirectory
+	 *            The root directory of the cache.
+	 * @param maxCacheSizeInBytes
+	 *            The maximum size of the cache in bytes.
+	 */
+	public KCCacheDisk(File rootDirectory, long maxCacheSizeInBytes)
+	{
+		this(rootDirectory, maxCacheSizeInBytes, new KCCacheEvictionLru());
 	}
 
 	/**
@@ -91,44 +136,169 @@ public class KCCacheDisk implements KCCache
 	}
 
 	/**
-	 * Clears the cache. Deletes all cached files from disk.
+	 * Gives a content class its own quota, so its entries neither evict nor are evicted by the entries of other classes, e.g. to keep large media
+	 * from evicting small API responses. The entries of the class don't count toward the maximum size of the cache. Must be called before
+	 * {@link #initialize()}.
+	 *
+	 * @param contentClass
+	 *            The content class.
+	 * @param maxSizeInBytes
+	 *            The maximum size of the entries of the class in bytes.
+	 * @param evictionPolicy
+	 *            The policy choosing the entries of the class to evict. Not shared with other caches or classes.
+	 */
+	public synchronized void setContentClassQuota(KCCacheContentClass contentClass, long maxSizeInBytes, KCCacheEvictionPolicy evictionPolicy)
+	{
+		if (!mIndex.isEmpty())
+		{
+			throw new IllegalStateException("Quotas must be set before the cache is initialized");
+		}
+		mIndex.setClassPool(contentClass, maxSizeInBytes, evictionPolicy);
+	}
+
+	/**
+	 * Gives a content class its own quota, evicting its least recently used entries. See
+	 * {@link #setContentClassQuota(KCCacheContentClass, long, KCCacheEvictionPolicy)}.
 	 */
-	@Override
-	public synchronized void clear()
+	public void setContentClassQuota(KCCacheContentClass contentClass, long maxSizeInBytes)
 	{
-		File[] files = mRootDirectory.listFiles();
-		if (files != null)
+		setContentClassQuota(contentClass, maxSizeInBytes, new KCCacheEvictionLru());
+	}
+
+	/**
+	 * Shares the cache directory with other processes, each with its own cache on the directory. Writes and evictions are serialized across the
+	 * processes by a lock on a journal file next to the directory, and recorded in it; each process replays the records of the others before using
+	 * its index, so all processes see the same entries and account the same size. Accesses are not shared, each process evicts by the accesses it
+	 * saw. All entries get their own file, and entries packed into segments by a single-process cache are dropped. Must be called before
+	 * {@link #initialize()}, by every process using the directory. A process can't open two caches on the directory.
+	 *
+	 * @param multiProcess
+	 *            True to share the directory with other processes.
+	 * @throws IllegalStateException
+	 *             if another cache of this process shares the directory
+	 */
+	public synchronized void setMultiProcess(boolean multiProcess)
+	{
+		if (!mIndex.isEmpty())
 		{
-			for (File file : files)
+			throw new IllegalStateException("Multi-process mode must be set before the cache is initialized");
+		}
+		if (multiProcess)
+		{
+			if (!mJournal.isShared())
 			{
-				file.delete();
+				mJournal.setJournal(KCCacheJournal.forFile(new File(mRootDirectory.getAbsoluteFile().getParentFile(), mRootDirectory.getName()
+						+ JOURNAL_SUFFIX)), mLoader);
 			}
 		}
-		mEntries.clear();
-		mTotalSize = 0;
+		else
+		{
+			mJournal.setJournal(null, null);
+		}
+	}
+
+	/**
+	 * @return the total size of the entries in bytes.
+	 */
+	public synchronized long getSize()
+	{
+		mJournal.sync();
+		return mIndex.getTotalSize();
+	}
+
+	/**
+	 * @return the total size of the entries of a content class in bytes.
+	 */
+	public synchronized long getSize(KCCacheContentClass contentClass)
+	{
+		mJournal.sync();
+		return mIndex.getSize(contentClass);
+	}
+
+	/**
+	 * Clears the cache. Moves the root directory to the trash and starts over with an empty one, so clearing is quick however large the cache;
+	 * the files are deleted on a background thread. Deletes the files in place if the directory can't be moved.
+	 */
+	@Override
+	public synchronized void clear()
+	{
+		mJournal.lock();
+		try
+		{
+			KCCacheTrash.clear(mRootDirectory);
+			clearIndex();
+			mJournal.recordClear();
+		}
+		catch (IOException e)
+		{
+			KCLog.e("Failed to journal clearing the cache: %s", e.toString());
+		}
+		finally
+		{
+			mJournal.unlock();
+		}
 		KCLog.d("Cache cleared.");
 	}
 
 	/**
-	 * Returns the cache entry with the specified key if it exists, null otherwise.
+	 * Empties the index, e.g. after the files were cleared. Called with the cache lock held.
+	 */
+	void clearIndex()
+	{
+		mSegments.forget();
+		mIndex.clear();
+	}
+
+	/**
+	 * Returns the cache entry with the specified key if it exists, null otherwise. Also null if the data of the entry is too large for a byte array,
+	 * see {@link #getStream(String)}.
 	 */
 	@Override
 	public synchronized KCEntry get(String key)
 	{
-		KCCacheHeader entry = mEntries.get(key);
+		mJournal.sync();
+		KCCacheHeader entry = mLoader.lookup(key);
+		mIndex.onAccess(key, entry);
 		// if the entry does not exist, return.
 		if (entry == null)
 		{
 			return null;
 		}
 
-		File file = getFileForKey(key);
+		if (entry.segment >= 0)
+		{
+			try
+			{
+				return entry.toCacheEntry(mSegments.readData(entry));
+			}
+			catch (IOException e)
+			{
+				KCLog.d("%s: %s", key, e.toString());
+				remove(key);
+				return null;
+			}
+		}
+
+		File file = mFiles.getFileForKey(key);
 		CountingInputStream cis = null;
 		try
 		{
 			cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-			KCCacheHeader.readHeader(cis); // eat header
-			byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
+			KCCacheHeader storedEntry = KCCacheHeader.readHeader(cis);
+			if (!key.equals(storedEntry.key))
+			{
+				// The file belongs to another key with the same file name, a miss.
+				KCLog.d("%s: found key=%s for key=%s", file.getAbsolutePath(), storedEntry.key, key);
+				mIndex.remove(key);
+				return null;
+			}
+			long length = file.length() - cis.bytesRead;
+			if (length > MAX_DATA_LENGTH)
+			{
+				KCLog.d("%s: %d bytes, too large to get", file.getAbsolutePath(), length);
+				return null;
+			}
+			byte[] data = KCCacheStreams.streamToBytes(cis, (int) length);
 			return entry.toCacheEntry(data);
 		}
 		catch (IOException e)
@@ -154,75 +324,69 @@ public class KCCacheDisk implements KCCache
 	}
 
 	/**
-	 * Initializes the DiskBasedCache by scanning for all files currently in the specified root directory. Creates the root directory if necessary.
+	 * Initializes the DiskBasedCache by scanning the segments currently in the specified root directory, and starts a background loader indexing
+	 * the entry files. Creates the root directory if necessary. Until the loader is done, the files of keys missing from the index are looked up
+	 * directly, so the cache can be used right away.
 	 */
 	@Override
 	public synchronized void initialize()
 	{
+		if (mJournal.open())
+		{
+			dropSegments();
+		}
 		if (!mRootDirectory.exists())
 		{
 			if (!mRootDirectory.mkdirs())
 			{
 				KCLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
 			}
+			// The process may have died between moving the directory to the trash and creating it again.
+			KCCacheTrash.emptyLeftovers(mRootDirectory);
 			return;
 		}
-
-		File[] files = mRootDirectory.listFiles();
-		if (files == null)
+		if (mLoader.isLoading())
 		{
 			return;
 		}
-		for (File file : files)
-		{
-			BufferedInputStream fis = null;
-			try
-			{
-				fis = new BufferedInputStream(new FileInputStream(file));
-
-				long fileLength = file.length();
 
-				pruneIfNeeded((int) fileLength);
+		mLoader.loadSegments();
+		// Left over by a clear() which couldn't complete.
+		KCCacheTrash.emptyLeftovers(mRootDirectory);
+		mLoader.start();
+	}
 
-				if (fileLength < mMaxCacheSizeInBytes)
-				{
-					KCCacheHeader entry = KCCacheHeader.readHeader(fis);
-					entry.size = fileLength;
-					putEntry(entry.key, entry);
-				}
-				else
-				{
-					file.delete();
-				}
-			}
-			catch (Exception e)
-			{
-				if (file != null)
-				{
-					file.delete();
-				}
-			}
-			catch (OutOfMemoryError outOfMemoryError)
+	/**
+	 * Drops the segments of a multi-process cache, which can't be shared. Called with the cache lock held.
+	 */
+	private void dropSegments()
+	{
+		mJournal.lock();
+		try
+		{
+			File segments = new File(mRootDirectory, KCCacheSegments.DIRECTORY);
+			if (segments.exists())
 			{
-				if (file != null)
-				{
-					file.delete();
-				}
-			}
-			finally
-			{
-				try
-				{
-					if (fis != null)
-					{
-						fis.close();
-					}
-				}
-				catch (IOException ignored)
-				{
-				}
+				mSegments.forget();
+				KCCacheTrash.deleteContents(segments);
+				segments.delete();
 			}
 		}
+		finally
+		{
+			mJournal.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the entry files have been indexed, e.g. before reading the size of the cache.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public synchronized void awaitLoaded() throws InterruptedException
+	{
+		mLoader.await();
 	}
 
 	/**
@@ -244,321 +408,444 @@ public class KCCacheDisk implements KCCache
 			{
 				entry.ttl = 0;
 			}
-			put(key, entry);
+			updateMetadata(key, entry);
 		}
 
 	}
 
 	/**
-	 * Puts the entry with the specified key into the cache.
+	 * Puts the entry with the specified key into the cache, appending it to a segment if it is small and writing it to its own file otherwise.
 	 */
 	@Override
 	public synchronized void put(String key, KCEntry entry)
 	{
-		pruneIfNeeded(entry.data.length);
-		File file = getFileForKey(key);
+		mJournal.lock();
 		try
 		{
-			BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
+			mJanitor.waitForEviction(key);
 			KCCacheHeader e = new KCCacheHeader(key, entry);
-			boolean success = e.writeHeader(fos);
-			if (!success)
+			KCCacheHeader oldEntry = mLoader.lookup(key);
+			// Segments are not shared between processes.
+			if (entry.data.length <= MAX_SEGMENT_ENTRY_SIZE && !mJournal.isShared())
+			{
+				try
+				{
+					mSegments.appendEntry(e, entry.data);
+				}
+				catch (IOException ex)
+				{
+					KCLog.d("Failed to append cache entry for key=%s: %s", key, ex.toString());
+					return;
+				}
+				if (oldEntry != null && oldEntry.segment < 0)
+				{
+					mFiles.getMetadataFileForKey(key).delete();
+					mFiles.getFileForKey(key).delete();
+				}
+				mIndex.put(key, e);
+				mJanitor.scheduleIfNeeded();
+			}
+			else if (mFiles.writeFile(mFiles.getFileForKey(key), e, entry.data))
 			{
-				fos.close();
-				KCLog.d("Failed to write header for %s", file.getAbsolutePath());
-				throw new IOException();
+				mFiles.getMetadataFileForKey(key).delete();
+				// Counted like the loader and the other processes count it.
+				e.size = mFiles.getFileForKey(key).length();
+				mIndex.put(key, e);
+				mJournal.record(key, false);
+				if (oldEntry != null && oldEntry.segment >= 0)
+				{
+					appendTombstone(key);
+				}
+				mJanitor.scheduleIfNeeded();
 			}
-			fos.write(entry.data);
-			fos.close();
-			putEntry(key, e);
-			return;
-		}
-		catch (IOException e)
-		{
 		}
-		boolean deleted = file.delete();
-		if (!deleted)
+		finally
 		{
-			KCLog.d("Could not clean up file %s", file.getAbsolutePath());
+			mJournal.unlock();
 		}
 	}
 
 	/**
-	 * Removes the specified key from the cache if it exists.
+	 * Replaces the header of the entry with the specified key by writing it to the sidecar file of the entry, or by appending a new record for an
+	 * entry in a segment. Falls back to {@link #put(String, KCEntry)} if the entry is not in the cache anymore.
 	 */
 	@Override
-	public synchronized void remove(String key)
+	public synchronized void updateMetadata(String key, KCEntry entry)
 	{
-		boolean deleted = getFileForKey(key).delete();
-		removeEntry(key);
-		if (!deleted)
+		mJournal.lock();
+		try
 		{
-			KCLog.d("Could not delete cache entry for key=%s, filename=%s", key, getFilenameForKey(key));
+			KCCacheHeader oldHeader = mLoader.lookup(key);
+			if (oldHeader == null)
+			{
+				if (entry.data != null)
+				{
+					put(key, entry);
+				}
+				return;
+			}
+
+			KCCacheHeader header = new KCCacheHeader(key, entry);
+			if (header.tags == null)
+			{
+				header.tags = oldHeader.tags;
+			}
+			if (oldHeader.segment >= 0)
+			{
+				try
+				{
+					mSegments.appendEntry(header, entry.data != null ? entry.data : mSegments.readData(oldHeader));
+					mIndex.put(key, header);
+				}
+				catch (IOException e)
+				{
+					KCLog.d("Failed to update cache entry for key=%s: %s", key, e.toString());
+					remove(key);
+				}
+				return;
+			}
+
+			header.size = oldHeader.size;
+			if (mFiles.writeFile(mFiles.getMetadataFileForKey(key), header, null))
+			{
+				mIndex.put(key, header);
+				mJournal.record(key, false);
+				return;
+			}
+			// Without the sidecar the entry file still has a consistent, older header. Drop the entry rather than keep metadata that won't survive a
+			// restart.
+			remove(key);
+		}
+		finally
+		{
+			mJournal.unlock();
 		}
 	}
 
 	/**
-	 * Creates a pseudo-unique filename for the specified cache key.
+	 * Puts an entry whose data is read from a stream, for data too large to hold in memory, e.g. media of several gigabytes. The data is written to
+	 * a temporary file without holding the cache lock, then the file is renamed into place. The entry always gets its own file.
 	 *
 	 * @param key
-	 *            The key to generate a file name for.
-	 * @return A pseudo-unique filename.
+	 *            The key to identify the entry by.
+	 * @param entry
+	 *            The metadata of the entry, its data is ignored.
+	 * @param data
+	 *            The data, read to its end but not closed.
+	 * @return true if the entry was stored
 	 */
-	private String getFilenameForKey(String key)
+	public boolean put(String key, KCEntry entry, InputStream data)
 	{
-		int firstHalfLength = key.length() / 2;
-		String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-		localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-		return localFilename;
-	}
+		KCCacheHeader e = new KCCacheHeader(key, entry);
+		File file = mFiles.getFileForKey(key);
+		// Unique per writing thread, so concurrent writes of the key don't share it.
+		File tempFile = new File(file.getPath() + "." + Thread.currentThread().getId() + KCCacheFiles.TEMP_SUFFIX);
+		BufferedOutputStream fos = null;
+		try
+		{
+			File directory = file.getParentFile();
+			if (!directory.exists() && !directory.mkdirs())
+			{
+				throw new IOException("Unable to create cache dir " + directory.getAbsolutePath());
+			}
+			fos = new BufferedOutputStream(new FileOutputStream(tempFile), STREAM_BUFFER_SIZE);
+			if (!e.writeHeader(fos))
+			{
+				throw new IOException("Failed to write header for " + file.getAbsolutePath());
+			}
+			byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+			int count;
+			while ((count = data.read(buffer)) != -1)
+			{
+				fos.write(buffer, 0, count);
+			}
+			fos.close();
+			fos = null;
 
-	/**
-	 * Returns a file object for the given cache key.
-	 */
-	public File getFileForKey(String key)
-	{
-		return new File(mRootDirectory, getFilenameForKey(key));
+			synchronized (this)
+			{
+				mJournal.lock();
+				try
+				{
+					mJanitor.waitForEviction(key);
+					KCCacheHeader oldEntry = mLoader.lookup(key);
+					if (!tempFile.renameTo(file))
+					{
+						throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+					}
+					mFiles.getMetadataFileForKey(key).delete();
+					e.size = file.length();
+					mIndex.put(key, e);
+					mJournal.record(key, false);
+					if (oldEntry != null && oldEntry.segment >= 0)
+					{
+						appendTombstone(key);
+					}
+					mJanitor.scheduleIfNeeded();
+				}
+				finally
+				{
+					mJournal.unlock();
+				}
+			}
+			return true;
+		}
+		catch (IOException ex)
+		{
+			KCLog.d("Failed to put cache entry for key=%s: %s", key, ex.toString());
+		}
+		finally
+		{
+			if (fos != null)
+			{
+				try
+				{
+					fos.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+		tempFile.delete();
+		return false;
 	}
 
 	/**
-	 * Prunes the cache to fit the amount of bytes specified.
+	 * Returns the entry with the specified key with its data as a stream, for entries too large for {@link #get(String)}.
 	 *
-	 * @param neededSpace
-	 *            The amount of bytes we are trying to fit into the cache.
+	 * @return the entry, or null if there is none. The caller must close its stream.
 	 */
-	private void pruneIfNeeded(int neededSpace)
+	public synchronized KCStreamedEntry getStream(String key)
 	{
-		if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes)
-		{
-			return;
-		}
-		if (KCLog.DEBUG)
+		mJournal.sync();
+		KCCacheHeader entry = mLoader.lookup(key);
+		mIndex.onAccess(key, entry);
+		if (entry == null)
 		{
-			KCLog.v("Pruning old cache entries.");
+			return null;
 		}
 
-		long before = mTotalSize;
-		int prunedFiles = 0;
-		long startTime = SystemClock.elapsedRealtime();
-
-		Iterator<Map.Entry<String, KCCacheHeader>> iterator = mEntries.entrySet().iterator();
-		while (iterator.hasNext())
+		if (entry.segment >= 0)
 		{
-			Map.Entry<String, KCCacheHeader> entry = iterator.next();
-			KCCacheHeader e = entry.getValue();
-			boolean deleted = getFileForKey(e.key).delete();
-			if (deleted)
+			try
 			{
-				mTotalSize -= e.size;
+				byte[] data = mSegments.readData(entry);
+				return new KCStreamedEntry(entry.toCacheEntry(null), data != null ? data.length : 0, new ByteArrayInputStream(data != null ? data
+						: new byte[0]));
 			}
-			else
+			catch (IOException e)
 			{
-				KCLog.d("Could not delete cache entry for key=%s, filename=%s", e.key, getFilenameForKey(e.key));
+				KCLog.d("%s: %s", key, e.toString());
+				remove(key);
+				return null;
 			}
-			iterator.remove();
-			prunedFiles++;
+		}
 
-			if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR)
+		// Opened with the lock held, the stream keeps reading the file even if the entry is replaced or evicted meanwhile.
+		File file = mFiles.getFileForKey(key);
+		CountingInputStream cis = null;
+		try
+		{
+			cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE));
+			KCCacheHeader storedEntry = KCCacheHeader.readHeader(cis);
+			if (!key.equals(storedEntry.key))
 			{
-				break;
+				KCLog.d("%s: found key=%s for key=%s", file.getAbsolutePath(), storedEntry.key, key);
+				mIndex.remove(key);
+				cis.close();
+				return null;
 			}
+			return new KCStreamedEntry(entry.toCacheEntry(null), file.length() - cis.bytesRead, cis);
 		}
-
-		if (KCLog.DEBUG)
+		catch (IOException e)
 		{
-			KCLog.v("pruned %d files, %d bytes, %d ms", prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+			KCLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+			if (cis != null)
+			{
+				try
+				{
+					cis.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+			remove(key);
+			return null;
 		}
 	}
 
 	/**
-	 * Puts the entry with the specified key into the cache.
-	 *
-	 * @param key
-	 *            The key to identify the entry by.
-	 * @param entry
-	 *            The entry to cache.
+	 * Removes the specified key from the cache if it exists.
 	 */
-	private void putEntry(String key, KCCacheHeader entry)
+	@Override
+	public synchronized void remove(String key)
 	{
-		if (!mEntries.containsKey(key))
+		mJournal.lock();
+		try
 		{
-			mTotalSize += entry.size;
+			KCCacheHeader entry = mLoader.lookup(key);
+			if (entry != null && entry.segment >= 0)
+			{
+				mIndex.remove(key);
+				appendTombstone(key);
+				mJanitor.scheduleIfNeeded();
+				return;
+			}
+			mFiles.getMetadataFileForKey(key).delete();
+			boolean deleted = mFiles.getFileForKey(key).delete();
+			mIndex.remove(key);
+			mJournal.record(key, true);
+			if (!deleted)
+			{
+				KCLog.d("Could not delete cache entry for key=%s, filename=%s", key, KCCacheFiles.getFilenameForKey(key));
+			}
 		}
-		else
+		finally
 		{
-			KCCacheHeader oldEntry = mEntries.get(key);
-			mTotalSize += (entry.size - oldEntry.size);
+			mJournal.unlock();
 		}
-		mEntries.put(key, entry);
 	}
 
 	/**
-	 * Removes the entry identified by 'key' from the cache.
+	 * Removes the entries whose keys start with a prefix, e.g. all the cached responses of a host or an API path. Waits for the loader to index the
+	 * entry files first, see {@link #initialize()}. Uses a sorted index of the keys, without scanning the cache.
+	 *
+	 * @param prefix
+	 *            The prefix of the keys.
+	 * @return the number of entries removed
 	 */
-	private void removeEntry(String key)
+	public int removeByPrefix(String prefix)
 	{
-		KCCacheHeader entry = mEntries.get(key);
-		if (entry != null)
+		List<String> keys;
+		synchronized (this)
 		{
-			mTotalSize -= entry.size;
-			mEntries.remove(key);
+			awaitLoadedUninterruptibly();
+			mJournal.sync();
+			keys = mIndex.getKeysWithPrefix(prefix);
 		}
+		return removeAll(keys);
 	}
 
 	/**
-	 * Reads the contents of an InputStream into a byte[].
-	 * */
-	private static byte[] streamToBytes(InputStream in, int length) throws IOException
+	 * Removes the entries with a tag, e.g. all the cached responses of a user account. Waits for the loader to index the entry files first, see
+	 * {@link #initialize()}. Uses an index of the keys by tag, without scanning the cache.
+	 *
+	 * @param tag
+	 *            The tag, see {@link KCEntry#tags}.
+	 * @return the number of entries removed
+	 */
+	public int removeByTag(String tag)
 	{
-		if (length <= 0) return null;
+		List<String> keys;
+		synchronized (this)
+		{
+			awaitLoadedUninterruptibly();
+			mJournal.sync();
+			keys = mIndex.getKeysWithTag(tag);
+		}
+		return removeAll(keys);
+	}
 
-		byte[] bytes = new byte[length];
-		int count;
-		int pos = 0;
-		while (pos < length && ((count = in.read(bytes, pos, length - pos)) != -1))
+	/**
+	 * Removes entries like the janitor evicts them: from the index under the cache lock, then their files without it.
+	 */
+	private int removeAll(List<String> keys)
+	{
+		List<String> fileKeys = new ArrayList<String>();
+		int removed = 0;
+		synchronized (this)
 		{
-			pos += count;
+			mJournal.lock();
+			try
+			{
+				for (String key : keys)
+				{
+					if (mIndex.containsKey(key))
+					{
+						mJanitor.evictEntry(key, fileKeys);
+						removed++;
+					}
+				}
+			}
+			finally
+			{
+				mJournal.unlock();
+			}
 		}
-		if (pos != length)
+		mFiles.deleteFiles(fileKeys);
+		synchronized (this)
 		{
-			throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
+			mJanitor.finishEviction(fileKeys);
+			mJanitor.scheduleIfNeeded();
 		}
-		return bytes;
+		return removed;
 	}
 
 	/**
-	 * Handles holding onto the cache headers for an entry.
+	 * Waits for the loader with the cache lock held, going on with the entries indexed so far if interrupted.
 	 */
-	// Visible for testing.
-	static class KCCacheHeader
+	private void awaitLoadedUninterruptibly()
 	{
-		/**
-		 * The size of the data identified by this CacheHeader. (This is not serialized to disk.
-		 */
-		public long size;
-
-		/** The key that identifies the cache entry. */
-		public String key;
-
-		/** ETag for cache coherence. */
-		public String etag;
-
-		/** Date of this response as reported by the server. */
-		public long serverDate;
-
-		/** The last modified date for the requested object. */
-		public long lastModified;
-
-		/** TTL for this record. */
-		public long ttl;
-
-		/** Soft TTL for this record. */
-		public long softTtl;
-
-		/** Headers from the response resulting in this cache entry. */
-		KCHeaderGroup responseHeaders;
-
-		private KCCacheHeader()
+		try
 		{
+			awaitLoaded();
 		}
-
-		/**
-		 * Instantiates a new CacheHeader object
-		 *
-		 * @param key
-		 *            The key that identifies the cache entry
-		 * @param entry
-		 *            The cache entry.
-		 */
-		public KCCacheHeader(String key, KCEntry entry)
+		catch (InterruptedException e)
 		{
-			this.key = key;
-			this.size = entry.data.length;
-			this.etag = entry.etag;
-			this.serverDate = entry.serverDate;
-			this.lastModified = entry.lastModified;
-			this.ttl = entry.ttl;
-			this.softTtl = entry.softTtl;
-			this.responseHeaders = entry.responseHeaders;
+			Thread.currentThread().interrupt();
 		}
+	}
 
-		/**
-		 * Reads the header off of an InputStream and returns a CacheHeader object.
-		 *
-		 * @param is
-		 *            The InputStream to read from.
-		 * @throws IOException
-		 */
-		public static KCCacheHeader readHeader(InputStream is) throws IOException
+	/**
+	 * Appends a tombstone for an entry removed from a segment, so it isn't found again by {@link #initialize()}. Called with the cache lock held.
+	 */
+	void appendTombstone(String key)
+	{
+		try
 		{
-			KCCacheHeader entry = new KCCacheHeader();
-			int magic = readInt(is);
-			if (magic != CACHE_MAGIC)
-			{
-				// don't bother deleting, it'll get pruned eventually
-				throw new IOException();
-			}
-			entry.key = readString(is);
-			entry.etag = readString(is);
-			if (entry.etag.equals(""))
-			{
-				entry.etag = null;
-			}
-			entry.serverDate = readLong(is);
-			entry.lastModified = readLong(is);
-			entry.ttl = readLong(is);
-			entry.softTtl = readLong(is);
-			entry.responseHeaders = readStringStringMap(is);
-
-			return entry;
+			mSegments.appendTombstone(key);
 		}
-
-		/**
-		 * Creates a cache entry for the specified data.
-		 */
-		public KCEntry toCacheEntry(byte[] data)
+		catch (IOException e)
 		{
-			KCEntry e = new KCEntry();
-			e.data = data;
-			e.etag = etag;
-			e.serverDate = serverDate;
-			e.lastModified = lastModified;
-			e.ttl = ttl;
-			e.softTtl = softTtl;
-			e.responseHeaders = responseHeaders;
-			return e;
+			KCLog.d("Failed to append tombstone for key=%s: %s", key, e.toString());
 		}
+	}
+
+	/**
+	 * Returns a file object for the given cache key, in the subdirectory named by the first two characters of its file name.
+	 */
+	public File getFileForKey(String key)
+	{
+		return mFiles.getFileForKey(key);
+	}
+
+	/**
+	 * An entry returned by {@link KCCacheDisk#getStream(String)}, its data as a stream.
+	 */
+	public static class KCStreamedEntry
+	{
+		/** The metadata of the entry, without data. */
+		public final KCEntry entry;
+
+		/** The length of the data in bytes. */
+		public final long length;
 
-		/**
-		 * Writes the contents of this CacheHeader to the specified OutputStream.
-		 */
-		public boolean writeHeader(OutputStream os)
+		/** The data. Must be closed. */
+		public final InputStream data;
+
+		KCStreamedEntry(KCEntry entry, long length, InputStream data)
 		{
-			try
-			{
-				writeInt(os, CACHE_MAGIC);
-				writeString(os, key);
-				writeString(os, etag == null ? "" : etag);
-				writeLong(os, serverDate);
-				writeLong(os, lastModified);
-				writeLong(os, ttl);
-				writeLong(os, softTtl);
-				writeStringStringMap(responseHeaders, os);
-				os.flush();
-				return true;
-			}
-			catch (IOException e)
-			{
-				KCLog.d("%s", e.toString());
-				return false;
-			}
+			this.entry = entry;
+			this.length = length;
+			this.data = data;
 		}
-
 	}
 
 	private static class CountingInputStream extends FilterInputStream
 	{
-		private int bytesRead = 0;
+		private long bytesRead = 0;
 
 		private CountingInputStream(InputStream in)
 		{
@@ -587,117 +874,4 @@ public class KCCacheDisk implements KCCache
 			return result;
 		}
 	}
-
-	/*
-	 * Homebrewed simple serialization system used for reading and writing cache headers on disk. Once upon a time, this used the standard Java
-	 * Object{Input,Output}Stream, but the default implementation relies heavily on reflection (even for standard types) and generates a ton of
-	 * garbage.
-	 */
-
-	/**
-	 * Simple wrapper around {@link InputStream#read()} that throws EOFException instead of returning -1.
-	 */
-	private static int read(InputStream is) throws IOException
-	{
-		int b = is.read();
-		if (b == -1)
-		{
-			throw new EOFException();
-		}
-		return b;
-	}
-
-	static void writeInt(OutputStream os, int n) throws IOException
-	{
-		os.write((n >> 0) & 0xff);
-		os.write((n >> 8) & 0xff);
-		os.write((n >> 16) & 0xff);
-		os.write((n >> 24) & 0xff);
-	}
-
-	static int readInt(InputStream is) throws IOException
-	{
-		int n = 0;
-		n |= (read(is) << 0);
-		n |= (read(is) << 8);
-		n |= (read(is) << 16);
-		n |= (read(is) << 24);
-		return n;
-	}
-
-	static void writeLong(OutputStream os, long n) throws IOException
-	{
-		os.write((byte) (n >>> 0));
-		os.write((byte) (n >>> 8));
-		os.write((byte) (n >>> 16));
-		os.write((byte) (n >>> 24));
-		os.write((byte) (n >>> 32));
-		os.write((byte) (n >>> 40));
-		os.write((byte) (n >>> 48));
-		os.write((byte) (n >>> 56));
-	}
-
-	static long readLong(InputStream is) throws IOException
-	{
-		long n = 0;
-		n |= ((read(is) & 0xFFL) << 0);
-		n |= ((read(is) & 0xFFL) << 8);
-		n |= ((read(is) & 0xFFL) << 16);
-		n |= ((read(is) & 0xFFL) << 24);
-		n |= ((read(is) & 0xFFL) << 32);
-		n |= ((read(is) & 0xFFL) << 40);
-		n |= ((read(is) & 0xFFL) << 48);
-		n |= ((read(is) & 0xFFL) << 56);
-		return n;
-	}
-
-	static void writeString(OutputStream os, String s) throws IOException
-	{
-		byte[] b = s.getBytes("UTF-8");
-		writeLong(os, b.length);
-		os.write(b, 0, b.length);
-	}
-
-	static String readString(InputStream is) throws IOException
-	{
-		int n = (int) readLong(is);
-		byte[] b = streamToBytes(is, n);
-		if (b == null) return "";
-		return new String(b, "UTF-8");
-	}
-
-	static void writeStringStringMap(KCHeaderGroup headerGroup, OutputStream os) throws IOException
-	{
-		if (headerGroup != null)
-		{
-			KCHeader[] headers = headerGroup.getAllHeaders();
-			writeInt(os, headers.length);
-			for (KCHeader entry : headers)
-			{
-				writeString(os, entry.getName());
-				writeString(os, entry.getValue());
-			}
-		}
-		else
-		{
-			writeInt(os, 0);
-		}
-	}
-
-	static KCHeaderGroup readStringStringMap(InputStream is) throws IOException
-	{
-		int size = readInt(is);
-		KCHeaderGroup result = (size == 0) ? KCHeaderGroup.emptyHeaderGroup() : new KCHeaderGroup();
-		for (int i = 0; i < size; i++)
-		{
-			String key = readString(is).intern();
-			String value = readString(is).intern();
-			if (!KCUtilText.isEmpty(key))
-			{
-				result.addHeader(new KCHeader(key, value));
-			}
-		}
-		return result;
-	}
-
 }
@@ -0,0 +1,50 @@
+package com.kercer.kernet.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used entry. The default policy of {@link KCCacheDisk}.
+ */
+public class KCCacheEvictionLru implements KCCacheEvictionPolicy
+{
+	/** Tracked keys from the least to the most recently used, with their sizes. */
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, .75f, true);
+
+	@Override
+	public void setMaximumSize(long aMaxSize)
+	{
+	}
+
+	@Override
+	public void onAccess(String aKey)
+	{
+		// Moves the key to the most recently used end.
+		mEntries.get(aKey);
+	}
+
+	@Override
+	public void onInsert(String aKey, long aSize)
+	{
+		mEntries.put(aKey, aSize);
+	}
+
+	@Override
+	public void onRemove(String aKey)
+	{
+		mEntries.remove(aKey);
+	}
+
+	@Override
+	public String nextVictim()
+	{
+		Iterator<String> iterator = mEntries.keySet().iterator();
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	@Override
+	public void clear()
+	{
+		mEntries.clear();
+	}
+}
@@ -0,0 +1,56 @@
+package com.kercer.kernet.http;
+
+/**
+ * Decides which entries a size bounded cache evicts.
+ *
+ * The cache reports lookups, insertions and removals; when it exceeds its size it asks for victims with {@link #nextVictim()} and removes them,
+ * reporting each removal back. Policies are not thread safe, the cache calls them with its lock held.
+ */
+public interface KCCacheEvictionPolicy
+{
+	/**
+	 * Sets the maximum total size of the entries, in bytes. Called by the cache before any other method.
+	 *
+	 * @param aMaxSize
+	 *            maximum size in bytes
+	 */
+	public void setMaximumSize(long aMaxSize);
+
+	/**
+	 * Records a lookup of a key, whether or not the cache holds an entry for it.
+	 *
+	 * @param aKey
+	 *            Cache key
+	 */
+	public void onAccess(String aKey);
+
+	/**
+	 * Records a new or replaced entry.
+	 *
+	 * @param aKey
+	 *            Cache key
+	 * @param aSize
+	 *            size of the entry in bytes
+	 */
+	public void onInsert(String aKey, long aSize);
+
+	/**
+	 * Records the removal of an entry, evicted or not.
+	 *
+	 * @param aKey
+	 *            Cache key
+	 */
+	public void onRemove(String aKey);
+
+	/**
+	 * Returns the key of the entry to evict next. The entry stays tracked until {@link #onRemove(String)} is called for it.
+	 *
+	 * @return the key, or null if no entry is tracked
+	 */
+	public String nextVictim();
+
+	/**
+	 * Forgets all entries.
+	 */
+	public void clear();
+}
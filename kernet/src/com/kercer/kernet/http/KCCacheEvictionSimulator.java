@@ -0,0 +1,155 @@
+package com.kercer.kernet.http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+
+/**
+ * Replays cache access traces against a {@link KCCacheEvictionPolicy}, to compare the hit ratios of policies on a recorded workload without
+ * touching the disk.
+ *
+ * A trace has one lookup per line: the cache key and the size of its entry in bytes, separated by whitespace. Missing entries are inserted after
+ * the lookup, as the request queue does once the response arrives, and victims are evicted until the cache fits its maximum size.
+ */
+public class KCCacheEvictionSimulator
+{
+	private final KCCacheEvictionPolicy mPolicy;
+	private final long mMaxSize;
+
+	/** Simulated entries and their sizes. */
+	private final HashMap<String, Long> mEntries = new HashMap<String, Long>();
+	private long mTotalSize = 0;
+
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+	private long mHitBytes = 0;
+	private long mMissBytes = 0;
+
+	/**
+	 * Creates a simulator of an empty cache.
+	 *
+	 * @param aPolicy
+	 *            The policy to evaluate, not shared with a real cache
+	 * @param aMaxSize
+	 *            Maximum size of the simulated cache in bytes
+	 */
+	public KCCacheEvictionSimulator(KCCacheEvictionPolicy aPolicy, long aMaxSize)
+	{
+		mPolicy = aPolicy;
+		mMaxSize = aMaxSize;
+		mPolicy.setMaximumSize(aMaxSize);
+	}
+
+	/**
+	 * Simulates a lookup.
+	 *
+	 * @param aKey
+	 *            Cache key
+	 * @param aSize
+	 *            size of the entry in bytes
+	 * @return true on a hit
+	 */
+	public boolean access(String aKey, long aSize)
+	{
+		mPolicy.onAccess(aKey);
+		if (mEntries.containsKey(aKey))
+		{
+			mHitCount++;
+			mHitBytes += aSize;
+			return true;
+		}
+
+		mMissCount++;
+		mMissBytes += aSize;
+		mEntries.put(aKey, aSize);
+		mTotalSize += aSize;
+		mPolicy.onInsert(aKey, aSize);
+		while (mTotalSize > mMaxSize)
+		{
+			String victim = mPolicy.nextVictim();
+			if (victim == null)
+			{
+				break;
+			}
+			Long size = mEntries.remove(victim);
+			if (size != null)
+			{
+				mTotalSize -= size;
+			}
+			mPolicy.onRemove(victim);
+		}
+		return false;
+	}
+
+	/**
+	 * Replays a trace.
+	 *
+	 * @param aTrace
+	 *            The trace, one "key size" line per lookup; blank lines and lines starting with '#' are skipped
+	 * @return the number of lookups replayed
+	 * @throws IOException
+	 *             if the trace can't be read or a line is malformed
+	 */
+	public int replay(Reader aTrace) throws IOException
+	{
+		BufferedReader reader = aTrace instanceof BufferedReader ? (BufferedReader) aTrace : new BufferedReader(aTrace);
+		int count = 0;
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#')
+			{
+				continue;
+			}
+			int separator = line.lastIndexOf(' ');
+			if (separator < 0)
+			{
+				separator = line.lastIndexOf('\t');
+			}
+			if (separator < 0)
+			{
+				throw new IOException("Malformed trace line: " + line);
+			}
+			try
+			{
+				access(line.substring(0, separator).trim(), Long.parseLong(line.substring(separator + 1)));
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Malformed trace line: " + line);
+			}
+			count++;
+		}
+		return count;
+	}
+
+	public long getHitCount()
+	{
+		return mHitCount;
+	}
+
+	public long getMissCount()
+	{
+		return mMissCount;
+	}
+
+	/**
+	 * @return the ratio of lookups which hit, 0 if there were none.
+	 */
+	public double getHitRatio()
+	{
+		long lookups = mHitCount + mMissCount;
+		return lookups == 0 ? 0 : (double) mHitCount / lookups;
+	}
+
+	/**
+	 * @return the ratio of bytes served from the cache, 0 if there were no lookups.
+	 */
+	public double getByteHitRatio()
+	{
+		long bytes = mHitBytes + mMissBytes;
+		return bytes == 0 ? 0 : (double) mHitBytes / bytes;
+	}
+}
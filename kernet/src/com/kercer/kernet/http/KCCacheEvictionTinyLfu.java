@@ -0,0 +1,317 @@
+package com.kercer.kernet.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A W-TinyLFU eviction policy: evicts by recency, but only lets new entries displace established ones which are used less frequently.
+ *
+ * New entries go to a small LRU window. Entries leaving the window are candidates for the main region, a segmented LRU of a probation and a
+ * protected segment; entries used again while on probation are protected. A candidate is only admitted if a frequency sketch of recent lookups
+ * estimates it more popular than the entry it would displace, so a burst of one-off entries, e.g. images seen once while scrolling, is evicted
+ * from the window without flushing the popular entries of the main region. Admission is size aware: a candidate larger than its victim must also be
+ * more popular per byte.
+ */
+public class KCCacheEvictionTinyLfu implements KCCacheEvictionPolicy
+{
+	/** Share of the maximum size given to the window. */
+	private static final float WINDOW_FRACTION = 0.01f;
+
+	/** Share of the main region given to the protected segment. */
+	private static final float PROTECTED_FRACTION = 0.8f;
+
+	/** Default number of entries the frequency sketch is sized for. */
+	private static final int DEFAULT_EXPECTED_ENTRIES = 1024;
+
+	private final KCFrequencySketch mSketch;
+
+	/** The segments, from the least to the most recently used, with the sizes of their entries. */
+	private final LinkedHashMap<String, Long> mWindow = new LinkedHashMap<String, Long>(16, .75f, true);
+	private final LinkedHashMap<String, Long> mProbation = new LinkedHashMap<String, Long>(16, .75f, true);
+	private final LinkedHashMap<String, Long> mProtected = new LinkedHashMap<String, Long>(16, .75f, true);
+
+	private long mWindowSize = 0;
+	private long mProbationSize = 0;
+	private long mProtectedSize = 0;
+
+	private long mMaxWindowSize = 0;
+	private long mMaxMainSize = 0;
+	private long mMaxProtectedSize = 0;
+
+	/**
+	 * Creates the policy.
+	 *
+	 * @param aExpectedEntries
+	 *            Number of entries the cache is expected to hold, sizes the frequency sketch
+	 */
+	public KCCacheEvictionTinyLfu(int aExpectedEntries)
+	{
+		mSketch = new KCFrequencySketch(aExpectedEntries);
+	}
+
+	/**
+	 * Creates the policy for about 1024 entries.
+	 */
+	public KCCacheEvictionTinyLfu()
+	{
+		this(DEFAULT_EXPECTED_ENTRIES);
+	}
+
+	@Override
+	public void setMaximumSize(long aMaxSize)
+	{
+		mMaxWindowSize = Math.max(1, (long) (aMaxSize * WINDOW_FRACTION));
+		mMaxMainSize = Math.max(0, aMaxSize - mMaxWindowSize);
+		mMaxProtectedSize = (long) (mMaxMainSize * PROTECTED_FRACTION);
+	}
+
+	@Override
+	public void onAccess(String aKey)
+	{
+		mSketch.increment(aKey);
+
+		if (mWindow.get(aKey) != null || mProtected.get(aKey) != null)
+		{
+			// Access ordered, the lookup made the entry the most recently used of its segment.
+			return;
+		}
+
+		Long size = mProbation.remove(aKey);
+		if (size != null)
+		{
+			mProbationSize -= size;
+			mProtected.put(aKey, size);
+			mProtectedSize += size;
+
+			// Demote the least recently used protected entries to make room.
+			Iterator<Map.Entry<String, Long>> iterator = mProtected.entrySet().iterator();
+			while (mProtectedSize > mMaxProtectedSize && iterator.hasNext())
+			{
+				Map.Entry<String, Long> demoted = iterator.next();
+				if (demoted.getKey().equals(aKey))
+				{
+					break;
+				}
+				iterator.remove();
+				mProtectedSize -= demoted.getValue();
+				mProbation.put(demoted.getKey(), demoted.getValue());
+				mProbationSize += demoted.getValue();
+			}
+		}
+	}
+
+	@Override
+	public void onInsert(String aKey, long aSize)
+	{
+		Long oldSize;
+		if ((oldSize = mWindow.get(aKey)) != null)
+		{
+			mWindow.put(aKey, aSize);
+			mWindowSize += aSize - oldSize;
+		}
+		else if ((oldSize = mProbation.get(aKey)) != null)
+		{
+			mProbation.put(aKey, aSize);
+			mProbationSize += aSize - oldSize;
+		}
+		else if ((oldSize = mProtected.get(aKey)) != null)
+		{
+			mProtected.put(aKey, aSize);
+			mProtectedSize += aSize - oldSize;
+		}
+		else
+		{
+			mWindow.put(aKey, aSize);
+			mWindowSize += aSize;
+		}
+	}
+
+	@Override
+	public void onRemove(String aKey)
+	{
+		Long size;
+		if ((size = mWindow.remove(aKey)) != null)
+		{
+			mWindowSize -= size;
+		}
+		else if ((size = mProbation.remove(aKey)) != null)
+		{
+			mProbationSize -= size;
+		}
+		else if ((size = mProtected.remove(aKey)) != null)
+		{
+			mProtectedSize -= size;
+		}
+	}
+
+	@Override
+	public String nextVictim()
+	{
+		// Move the candidates leaving the window to the main region, or reject them.
+		while (mWindowSize > mMaxWindowSize && !mWindow.isEmpty())
+		{
+			Map.Entry<String, Long> candidate = mWindow.entrySet().iterator().next();
+			String candidateKey = candidate.getKey();
+			long candidateSize = candidate.getValue();
+
+			Map.Entry<String, Long> victim = mainVictim();
+			if (victim != null && mProbationSize + mProtectedSize + candidateSize > mMaxMainSize
+					&& !admit(candidateKey, candidateSize, victim.getKey(), victim.getValue()))
+			{
+				return candidateKey;
+			}
+
+			mWindow.remove(candidateKey);
+			mWindowSize -= candidateSize;
+			mProbation.put(candidateKey, candidateSize);
+			mProbationSize += candidateSize;
+			if (victim != null && mProbationSize + mProtectedSize > mMaxMainSize)
+			{
+				return victim.getKey();
+			}
+		}
+
+		Map.Entry<String, Long> victim = mainVictim();
+		if (victim != null)
+		{
+			return victim.getKey();
+		}
+		return mWindow.isEmpty() ? null : mWindow.keySet().iterator().next();
+	}
+
+	@Override
+	public void clear()
+	{
+		mWindow.clear();
+		mProbation.clear();
+		mProtected.clear();
+		mWindowSize = 0;
+		mProbationSize = 0;
+		mProtectedSize = 0;
+		mSketch.clear();
+	}
+
+	/**
+	 * Returns the least recently used entry of the main region, preferring the probation segment.
+	 */
+	private Map.Entry<String, Long> mainVictim()
+	{
+		if (!mProbation.isEmpty())
+		{
+			return mProbation.entrySet().iterator().next();
+		}
+		if (!mProtected.isEmpty())
+		{
+			return mProtected.entrySet().iterator().next();
+		}
+		return null;
+	}
+
+	/**
+	 * Decides whether a candidate displaces a victim: it must be used more frequently, and if it is larger, also more frequently per byte.
+	 */
+	private boolean admit(String aCandidateKey, long aCandidateSize, String aVictimKey, long aVictimSize)
+	{
+		int candidateFrequency = mSketch.frequency(aCandidateKey);
+		int victimFrequency = mSketch.frequency(aVictimKey);
+		if (candidateFrequency <= victimFrequency)
+		{
+			return false;
+		}
+		return aCandidateSize <= aVictimSize || (double) candidateFrequency / aCandidateSize > (double) victimFrequency / Math.max(1, aVictimSize);
+	}
+
+	/**
+	 * A count-min sketch estimating how often keys were looked up recently, with 4 bit counters which are halved periodically so old popularity
+	 * fades.
+	 */
+	static class KCFrequencySketch
+	{
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+		/** DEPTH rows of counters. */
+		private final byte[] mTable;
+		private final int mWidthMask;
+
+		/** Number of increments after which the counters are halved. */
+		private final int mSampleSize;
+		private int mAdditions = 0;
+
+		KCFrequencySketch(int aExpectedEntries)
+		{
+			int width = 16;
+			while (width < aExpectedEntries)
+			{
+				width <<= 1;
+			}
+			mTable = new byte[DEPTH * width];
+			mWidthMask = width - 1;
+			mSampleSize = 10 * width;
+		}
+
+		int frequency(String aKey)
+		{
+			int hash = spread(aKey.hashCode());
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < DEPTH; i++)
+			{
+				frequency = Math.min(frequency, mTable[index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		void increment(String aKey)
+		{
+			int hash = spread(aKey.hashCode());
+			boolean added = false;
+			for (int i = 0; i < DEPTH; i++)
+			{
+				int index = index(hash, i);
+				if (mTable[index] < MAX_COUNT)
+				{
+					mTable[index]++;
+					added = true;
+				}
+			}
+			if (added && ++mAdditions >= mSampleSize)
+			{
+				reset();
+			}
+		}
+
+		void clear()
+		{
+			for (int i = 0; i < mTable.length; i++)
+			{
+				mTable[i] = 0;
+			}
+			mAdditions = 0;
+		}
+
+		private void reset()
+		{
+			for (int i = 0; i < mTable.length; i++)
+			{
+				mTable[i] = (byte) (mTable[i] >>> 1);
+			}
+			mAdditions /= 2;
+		}
+
+		private int index(int aHash, int aRow)
+		{
+			int h = aHash * SEEDS[aRow];
+			h ^= h >>> 16;
+			return aRow * (mWidthMask + 1) + (h & mWidthMask);
+		}
+
+		private static int spread(int aHash)
+		{
+			aHash ^= aHash >>> 16;
+			aHash *= 0x45d9f3b;
+			return aHash ^ (aHash >>> 16);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * The entry files of a {@link KCCacheDisk}: where the file of a key lives, and the sidecar files holding the updated headers of entries, which take
+ * precedence over the header in the entry file. Files are written to a temporary file renamed into place, so a crash never leaves a partially
+ * written one.
+ */
+class KCCacheFiles
+{
+	/** Suffix of the sidecar files holding updated headers. */
+	static final String METADATA_SUFFIX = ".meta";
+
+	/** Suffix of the files being written, renamed once complete. */
+	static final String TEMP_SUFFIX = ".tmp";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/** The root directory of the cache. */
+	private final File mRootDirectory;
+
+	KCCacheFiles(File aRootDirectory)
+	{
+		mRootDirectory = aRootDirectory;
+	}
+
+	File getRootDirectory()
+	{
+		return mRootDirectory;
+	}
+
+	/**
+	 * Creates a unique filename for the specified cache key, the hex MD5 of the key.
+	 *
+	 * @param key
+	 *            The key to generate a file name for.
+	 * @return A unique filename.
+	 */
+	static String getFilenameForKey(String key)
+	{
+		byte[] digest;
+		try
+		{
+			digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+		char[] filename = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++)
+		{
+			filename[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+			filename[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+		}
+		return new String(filename);
+	}
+
+	/**
+	 * Returns a file object for the given cache key, in the subdirectory named by the first two characters of its file name.
+	 */
+	File getFileForKey(String key)
+	{
+		String filename = getFilenameForKey(key);
+		return new File(new File(mRootDirectory, filename.substring(0, 2)), filename);
+	}
+
+	/**
+	 * Returns the sidecar file holding the updated header for the given cache key.
+	 */
+	File getMetadataFileForKey(String key)
+	{
+		return new File(getFileForKey(key).getPath() + METADATA_SUFFIX);
+	}
+
+	/**
+	 * Returns the entry file of older versions for the given cache key, stored directly in the root directory.
+	 */
+	File getLegacyFileForKey(String key)
+	{
+		return new File(mRootDirectory, getLegacyFilenameForKey(key));
+	}
+
+	/**
+	 * Creates the file name of the entry files of older versions, stored directly in the root directory.
+	 */
+	private static String getLegacyFilenameForKey(String key)
+	{
+		int firstHalfLength = key.length() / 2;
+		String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
+		localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
+		return localFilename;
+	}
+
+	/**
+	 * Writes a header and optional data to a temporary file and renames it over the given file, so a crash never leaves a partially written file.
+	 *
+	 * @return true if the file was written
+	 */
+	boolean writeFile(File file, KCCacheHeader header, byte[] data)
+	{
+		File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+		BufferedOutputStream fos = null;
+		try
+		{
+			File directory = file.getParentFile();
+			if (!directory.exists() && !directory.mkdirs())
+			{
+				KCLog.d("Unable to create cache dir %s", directory.getAbsolutePath());
+				return false;
+			}
+			fos = new BufferedOutputStream(new FileOutputStream(tempFile));
+			if (!header.writeHeader(fos))
+			{
+				KCLog.d("Failed to write header for %s", file.getAbsolutePath());
+				throw new IOException();
+			}
+			if (data != null)
+			{
+				fos.write(data);
+			}
+			fos.close();
+			fos = null;
+			if (tempFile.renameTo(file))
+			{
+				return true;
+			}
+			KCLog.d("Could not rename %s", tempFile.getAbsolutePath());
+		}
+		catch (IOException e)
+		{
+		}
+		finally
+		{
+			if (fos != null)
+			{
+				try
+				{
+					fos.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+		if (!tempFile.delete())
+		{
+			KCLog.d("Could not clean up file %s", tempFile.getAbsolutePath());
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the sidecar header of an entry.
+	 *
+	 * @return the header, or null if there is no valid sidecar for the key
+	 */
+	static KCCacheHeader readMetadata(File file, String key)
+	{
+		if (!file.exists())
+		{
+			return null;
+		}
+		BufferedInputStream fis = null;
+		try
+		{
+			fis = new BufferedInputStream(new FileInputStream(file));
+			KCCacheHeader header = KCCacheHeader.readHeader(fis);
+			if (key.equals(header.key))
+			{
+				return header;
+			}
+		}
+		catch (IOException e)
+		{
+		}
+		finally
+		{
+			if (fis != null)
+			{
+				try
+				{
+					fis.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * Deletes the files of entries removed from the index. Called without the cache lock.
+	 */
+	void deleteFiles(List<String> keys)
+	{
+		for (String key : keys)
+		{
+			getMetadataFileForKey(key).delete();
+			if (!getFileForKey(key).delete())
+			{
+				KCLog.d("Could not delete cache entry for key=%s, filename=%s", key, getFilenameForKey(key));
+			}
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kercore.debug.KCLog;
+import com.kercer.kercore.util.KCUtilText;
+import com.kercer.kernet.http.KCCache.KCEntry;
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Handles holding onto the cache headers for an entry of a {@link KCCacheDisk}, and their format on disk.
+ */
+class KCCacheHeader
+{
+	/** Magic number for current version of cache file format. */
+	private static final int CACHE_MAGIC = 0x20150307;
+
+	/** Magic number for the first version of the cache file format, still read. */
+	private static final int CACHE_MAGIC_V1 = 0x20150306;
+
+	/** Flag of a header followed by the CRC32 of its fields. */
+	private static final int HEADER_FLAG_CRC = 0x01;
+
+	/** Flag of a header followed by the tags of the entry. */
+	private static final int HEADER_FLAG_TAGS = 0x02;
+
+	/** Flag of a header followed by the vary headers of the entry. */
+	private static final int HEADER_FLAG_VARY = 0x04;
+
+	/** Flag of a header followed by the stale-if-error window of the entry. */
+	private static final int HEADER_FLAG_STALE_IF_ERROR = 0x08;
+
+	/** Bits of the header flags holding the ordinal of the content class plus one, 0 if unknown. */
+	private static final int HEADER_FLAGS_CONTENT_CLASS_SHIFT = 4;
+
+	/**
+	 * The size of the data identified by this CacheHeader: the length of the entry file, or of the record of an entry in a segment. (This is not
+	 * serialized to disk.
+	 */
+	public long size;
+
+	/** The segment holding the entry, or -1 if the entry has its own file. (This is not serialized to disk. */
+	int segment = -1;
+
+	/** The offset of the record of the entry in its segment. (This is not serialized to disk. */
+	long offset;
+
+	/** The key that identifies the cache entry. */
+	public String key;
+
+	/** ETag for cache coherence. */
+	public String etag;
+
+	/** Date of this response as reported by the server. */
+	public long serverDate;
+
+	/** The last modified date for the requested object. */
+	public long lastModified;
+
+	/** TTL for this record. */
+	public long ttl;
+
+	/** Soft TTL for this record. */
+	public long softTtl;
+
+	/** Headers from the response resulting in this cache entry, or null while they are encoded. */
+	KCHeaderGroup responseHeaders;
+
+	/** Encoded headers read from disk. Decoded for each {@link #toCacheEntry(byte[])}, keeping the index compact. */
+	byte[] encodedResponseHeaders;
+
+	/** Tags of the entry, or null. */
+	String[] tags;
+
+	/** Request headers the response varies on, or null. */
+	KCHeaderGroup varyHeaders;
+
+	/** How long after the TTL the entry may be delivered if the network fails, see {@link KCEntry#staleIfErrorMs}. */
+	long staleIfErrorMs;
+
+	/** The class of the content, by its Content-Type, or null until needed if the header doesn't store it. */
+	private KCCacheContentClass contentClass;
+
+	private KCCacheHeader()
+	{
+	}
+
+	/**
+	 * Instantiates a new CacheHeader object
+	 *
+	 * @param key
+	 *            The key that identifies the cache entry
+	 * @param entry
+	 *            The cache entry.
+	 */
+	public KCCacheHeader(String key, KCEntry entry)
+	{
+		this.key = key;
+		this.size = entry.data != null ? entry.data.length : 0;
+		this.etag = entry.etag;
+		this.serverDate = entry.serverDate;
+		this.lastModified = entry.lastModified;
+		this.ttl = entry.ttl;
+		this.softTtl = entry.softTtl;
+		this.responseHeaders = entry.responseHeaders;
+		this.tags = entry.tags;
+		this.varyHeaders = entry.varyHeaders;
+		this.staleIfErrorMs = entry.staleIfErrorMs;
+	}
+
+	/**
+	 * Reads the header off of an InputStream and returns a CacheHeader object. Headers of the first version of the format are read too. The
+	 * response headers are left encoded until they are needed.
+	 *
+	 * @param is
+	 *            The InputStream to read from.
+	 * @throws IOException
+	 */
+	public static KCCacheHeader readHeader(InputStream is) throws IOException
+	{
+		int magic = KCCacheStreams.readInt(is);
+		if (magic == CACHE_MAGIC_V1)
+		{
+			return readHeaderV1(is);
+		}
+		if (magic != CACHE_MAGIC)
+		{
+			// don't bother deleting, it'll get pruned eventually
+			throw new IOException();
+		}
+
+		KCCacheHeader entry = new KCCacheHeader();
+		int flags = KCCacheStreams.read(is);
+		CRC32 crc = new CRC32();
+		InputStream fields = (flags & HEADER_FLAG_CRC) != 0 ? new CheckedInputStream(is, crc) : is;
+		entry.key = KCCacheStreams.readVarintString(fields);
+		entry.etag = KCCacheStreams.readVarintString(fields);
+		if (entry.etag.equals(""))
+		{
+			entry.etag = null;
+		}
+		entry.serverDate = KCCacheStreams.readVarint(fields);
+		entry.lastModified = KCCacheStreams.readVarint(fields);
+		entry.ttl = KCCacheStreams.readVarint(fields);
+		entry.softTtl = KCCacheStreams.readVarint(fields);
+		int contentClass = flags >>> HEADER_FLAGS_CONTENT_CLASS_SHIFT;
+		if (contentClass > 0 && contentClass <= KCCacheContentClass.values().length)
+		{
+			entry.contentClass = KCCacheContentClass.values()[contentClass - 1];
+		}
+		entry.encodedResponseHeaders = KCCacheStreams.streamToBytes(fields, (int) KCCacheStreams.readVarint(fields));
+		if (entry.encodedResponseHeaders == null)
+		{
+			entry.responseHeaders = KCHeaderGroup.emptyHeaderGroup();
+		}
+		if ((flags & HEADER_FLAG_TAGS) != 0)
+		{
+			entry.tags = new String[(int) KCCacheStreams.readVarint(fields)];
+			for (int i = 0; i < entry.tags.length; i++)
+			{
+				entry.tags[i] = KCCacheStreams.readVarintString(fields);
+			}
+		}
+		if ((flags & HEADER_FLAG_VARY) != 0)
+		{
+			entry.varyHeaders = decodeHeaders(fields);
+		}
+		if ((flags & HEADER_FLAG_STALE_IF_ERROR) != 0)
+		{
+			entry.staleIfErrorMs = KCCacheStreams.readVarint(fields);
+		}
+		if ((flags & HEADER_FLAG_CRC) != 0 && KCCacheStreams.readInt(is) != (int) crc.getValue())
+		{
+			throw new IOException("Bad header checksum");
+		}
+		return entry;
+	}
+
+	private static KCCacheHeader readHeaderV1(InputStream is) throws IOException
+	{
+		KCCacheHeader entry = new KCCacheHeader();
+		entry.key = KCCacheStreams.readString(is);
+		entry.etag = KCCacheStreams.readString(is);
+		if (entry.etag.equals(""))
+		{
+			entry.etag = null;
+		}
+		entry.serverDate = KCCacheStreams.readLong(is);
+		entry.lastModified = KCCacheStreams.readLong(is);
+		entry.ttl = KCCacheStreams.readLong(is);
+		entry.softTtl = KCCacheStreams.readLong(is);
+		entry.responseHeaders = readStringStringMap(is);
+
+		return entry;
+	}
+
+	/**
+	 * Creates a cache entry for the specified data.
+	 */
+	public KCEntry toCacheEntry(byte[] data)
+	{
+		KCEntry e = new KCEntry();
+		e.data = data;
+		e.etag = etag;
+		e.serverDate = serverDate;
+		e.lastModified = lastModified;
+		e.ttl = ttl;
+		e.softTtl = softTtl;
+		e.responseHeaders = getResponseHeaders();
+		e.tags = tags;
+		e.varyHeaders = varyHeaders;
+		e.staleIfErrorMs = staleIfErrorMs;
+		return e;
+	}
+
+	/**
+	 * Returns the response headers, decoding them if needed.
+	 */
+	KCHeaderGroup getResponseHeaders()
+	{
+		if (responseHeaders != null)
+		{
+			return responseHeaders;
+		}
+		try
+		{
+			return decodeHeaders(new ByteArrayInputStream(encodedResponseHeaders));
+		}
+		catch (IOException e)
+		{
+			// The checksum was verified when reading, this is not expected.
+			KCLog.d("Could not decode headers of key=%s: %s", key, e.toString());
+			return KCHeaderGroup.emptyHeaderGroup();
+		}
+	}
+
+	/**
+	 * Returns the class of the content, by the Content-Type of the response.
+	 */
+	KCCacheContentClass getContentClass()
+	{
+		if (contentClass == null)
+		{
+			contentClass = KCCacheContentClass.fromContentType(getResponseHeaders().get("Content-Type"));
+		}
+		return contentClass;
+	}
+
+	/**
+	 * Writes the contents of this CacheHeader to the specified OutputStream, followed by a checksum.
+	 */
+	public boolean writeHeader(OutputStream os)
+	{
+		return writeHeader(os, true);
+	}
+
+	/**
+	 * Writes the contents of this CacheHeader to the specified OutputStream.
+	 *
+	 * @param checksum
+	 *            Whether to follow the header with a checksum, unneeded when the header is part of a record which has its own
+	 */
+	boolean writeHeader(OutputStream os, boolean checksum)
+	{
+		try
+		{
+			ByteArrayOutputStream fields = new ByteArrayOutputStream(256);
+			KCCacheStreams.writeVarintString(fields, key);
+			KCCacheStreams.writeVarintString(fields, etag == null ? "" : etag);
+			KCCacheStreams.writeVarint(fields, serverDate);
+			KCCacheStreams.writeVarint(fields, lastModified);
+			KCCacheStreams.writeVarint(fields, ttl);
+			KCCacheStreams.writeVarint(fields, softTtl);
+			byte[] headers = encodedResponseHeaders != null ? encodedResponseHeaders : encodeHeaders(responseHeaders);
+			KCCacheStreams.writeVarint(fields, headers.length);
+			fields.write(headers);
+			boolean tagged = tags != null && tags.length > 0;
+			if (tagged)
+			{
+				KCCacheStreams.writeVarint(fields, tags.length);
+				for (String tag : tags)
+				{
+					KCCacheStreams.writeVarintString(fields, tag);
+				}
+			}
+			if (varyHeaders != null)
+			{
+				fields.write(encodeHeaders(varyHeaders));
+			}
+			if (staleIfErrorMs > 0)
+			{
+				KCCacheStreams.writeVarint(fields, staleIfErrorMs);
+			}
+
+			byte[] bytes = fields.toByteArray();
+			KCCacheStreams.writeInt(os, CACHE_MAGIC);
+			int flags = (getContentClass().ordinal() + 1) << HEADER_FLAGS_CONTENT_CLASS_SHIFT | (tagged ? HEADER_FLAG_TAGS : 0)
+					| (varyHeaders != null ? HEADER_FLAG_VARY : 0) | (staleIfErrorMs > 0 ? HEADER_FLAG_STALE_IF_ERROR : 0);
+			os.write(checksum ? flags | HEADER_FLAG_CRC : flags);
+			os.write(bytes);
+			if (checksum)
+			{
+				CRC32 crc = new CRC32();
+				crc.update(bytes, 0, bytes.length);
+				KCCacheStreams.writeInt(os, (int) crc.getValue());
+			}
+			os.flush();
+			return true;
+		}
+		catch (IOException e)
+		{
+			KCLog.d("%s", e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Encodes response headers: their count, then each name and value as a token, see {@link #writeToken(OutputStream, String, int)}.
+	 */
+	static byte[] encodeHeaders(KCHeaderGroup headerGroup) throws IOException
+	{
+		KCHeader[] headers = headerGroup != null ? headerGroup.getAllHeaders() : new KCHeader[0];
+		ByteArrayOutputStream os = new ByteArrayOutputStream(32 * headers.length + 1);
+		KCCacheStreams.writeVarint(os, headers.length);
+		for (KCHeader header : headers)
+		{
+			writeToken(os, header.getName(), KCCacheHeaderDictionary.indexOfName(header.getName()));
+			writeToken(os, header.getValue(), KCCacheHeaderDictionary.indexOfValue(header.getValue()));
+		}
+		return os.toByteArray();
+	}
+
+	static KCHeaderGroup decodeHeaders(InputStream is) throws IOException
+	{
+		int size = (int) KCCacheStreams.readVarint(is);
+		KCHeaderGroup result = (size == 0) ? KCHeaderGroup.emptyHeaderGroup() : new KCHeaderGroup();
+		for (int i = 0; i < size; i++)
+		{
+			long nameToken = KCCacheStreams.readVarint(is);
+			String key = (nameToken & 1) != 0 ? KCCacheHeaderDictionary.name((int) (nameToken >>> 1)) : readToken(is, nameToken).intern();
+			long valueToken = KCCacheStreams.readVarint(is);
+			String value = (valueToken & 1) != 0 ? KCCacheHeaderDictionary.value((int) (valueToken >>> 1)) : readToken(is, valueToken).intern();
+			if (key == null || value == null)
+			{
+				throw new IOException("Unknown dictionary index");
+			}
+			if (!KCUtilText.isEmpty(key))
+			{
+				result.addHeader(new KCHeader(key, value));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a dictionary index as an odd varint, or a string as the even varint of its length followed by its UTF-8 bytes.
+	 */
+	private static void writeToken(OutputStream os, String s, int dictionaryIndex) throws IOException
+	{
+		if (dictionaryIndex >= 0)
+		{
+			KCCacheStreams.writeVarint(os, ((long) dictionaryIndex << 1) | 1);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		KCCacheStreams.writeVarint(os, (long) b.length << 1);
+		os.write(b, 0, b.length);
+	}
+
+	private static String readToken(InputStream is, long token) throws IOException
+	{
+		byte[] b = KCCacheStreams.streamToBytes(is, (int) (token >>> 1));
+		if (b == null) return "";
+		return new String(b, "UTF-8");
+	}
+
+	static KCHeaderGroup readStringStringMap(InputStream is) throws IOException
+	{
+		int size = KCCacheStreams.readInt(is);
+		KCHeaderGroup result = (size == 0) ? KCHeaderGroup.emptyHeaderGroup() : new KCHeaderGroup();
+		for (int i = 0; i < size; i++)
+		{
+			String key = KCCacheStreams.readString(is).intern();
+			String value = KCCacheStreams.readString(is).intern();
+			if (!KCUtilText.isEmpty(key))
+			{
+				result.addHeader(new KCHeader(key, value));
+			}
+		}
+		return result;
+	}
+}
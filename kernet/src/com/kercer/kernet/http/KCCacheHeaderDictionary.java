@@ -0,0 +1,83 @@
+package com.kercer.kernet.http;
+
+import java.util.HashMap;
+
+/**
+ * The static dictionary of common response header names and values used by the cache file format, so they are stored as a one byte index instead
+ * of their text.
+ *
+ * The dictionary is part of the file format: entries may only be appended, never reordered or removed, or existing cache files would decode to the
+ * wrong headers. Lookups are exact, a name or value differing in case from its dictionary entry is stored as text.
+ */
+final class KCCacheHeaderDictionary
+{
+	private static final String[] NAMES = { "Accept-Ranges", "Access-Control-Allow-Credentials", "Access-Control-Allow-Headers",
+			"Access-Control-Allow-Methods", "Access-Control-Allow-Origin", "Access-Control-Expose-Headers", "Age", "Cache-Control", "Connection",
+			"Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length", "Content-Range", "Content-Type", "Date", "ETag", "Expires",
+			"Keep-Alive", "Last-Modified", "Link", "Location", "Pragma", "Server", "Set-Cookie", "Strict-Transport-Security", "Transfer-Encoding",
+			"Vary", "Via", "X-Cache", "X-Content-Type-Options", "X-Frame-Options", "X-Powered-By", "X-Request-Id", "X-XSS-Protection",
+			"X-Android-Received-Millis", "X-Android-Response-Source", "X-Android-Selected-Protocol", "X-Android-Sent-Millis", "accept-ranges",
+			"access-control-allow-origin", "age", "cache-control", "content-encoding", "content-length", "content-type", "date", "etag", "expires",
+			"last-modified", "server", "set-cookie", "strict-transport-security", "vary", "via", "x-cache", "x-content-type-options",
+			"x-frame-options", "x-request-id", "x-xss-protection" };
+
+	private static final String[] VALUES = { "*", "0", "1; mode=block", "Accept-Encoding", "Apache", "CACHE 200", "CONDITIONAL_CACHE 200",
+			"CONDITIONAL_CACHE 304", "DENY", "HIT", "MISS", "NETWORK 200", "Origin", "SAMEORIGIN", "application/javascript", "application/json",
+			"application/json; charset=utf-8", "application/json;charset=UTF-8", "application/json;charset=utf-8", "application/octet-stream",
+			"application/xml", "br", "bytes", "chunked", "close", "cloudflare", "deflate", "gzip", "h2", "http/1.1", "image/gif", "image/jpeg",
+			"image/png", "image/svg+xml", "image/webp", "keep-alive", "max-age=0", "max-age=31536000", "max-age=31536000; includeSubDomains",
+			"must-revalidate", "nginx", "no-cache", "no-cache, no-store, must-revalidate", "no-store", "none", "nosniff", "private", "public",
+			"text/css", "text/html", "text/html; charset=UTF-8", "text/html; charset=utf-8", "text/javascript", "text/plain",
+			"text/plain; charset=utf-8", "true", "video/mp4" };
+
+	private static final HashMap<String, Integer> sNameIndexes = indexes(NAMES);
+	private static final HashMap<String, Integer> sValueIndexes = indexes(VALUES);
+
+	private KCCacheHeaderDictionary()
+	{
+	}
+
+	/**
+	 * @return the index of a header name, or -1 if it is not in the dictionary
+	 */
+	static int indexOfName(String aName)
+	{
+		Integer index = sNameIndexes.get(aName);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * @return the index of a header value, or -1 if it is not in the dictionary
+	 */
+	static int indexOfValue(String aValue)
+	{
+		Integer index = sValueIndexes.get(aValue);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * @return the header name at an index, or null if the index is out of range
+	 */
+	static String name(int aIndex)
+	{
+		return aIndex >= 0 && aIndex < NAMES.length ? NAMES[aIndex] : null;
+	}
+
+	/**
+	 * @return the header value at an index, or null if the index is out of range
+	 */
+	static String value(int aIndex)
+	{
+		return aIndex >= 0 && aIndex < VALUES.length ? VALUES[aIndex] : null;
+	}
+
+	private static HashMap<String, Integer> indexes(String[] aStrings)
+	{
+		HashMap<String, Integer> indexes = new HashMap<String, Integer>(aStrings.length * 2);
+		for (int i = 0; i < aStrings.length; i++)
+		{
+			indexes.put(aStrings[i], i);
+		}
+		return indexes;
+	}
+}
@@ -0,0 +1,338 @@
+package com.kercer.kernet.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The in-memory index of a {@link KCCacheDisk}: the headers of the entries by key, in access order, the keys in order and by tag, and the pools
+ * accounting the size of the entries against their quotas. Not thread safe; the cache calls it with its lock held.
+ */
+class KCCacheIndex
+{
+	/** Low water mark percentage for the cache, eviction stops below it. The high water mark is the maximum size. */
+	private static final float HYSTERESIS_FACTOR = 0.8f;
+
+	/** Map of the Key, CacheHeader pairs */
+	private final Map<String, KCCacheHeader> mEntries = new LinkedHashMap<String, KCCacheHeader>(16, .75f, true);
+
+	/** Total amount of space currently used by the cache in bytes, all pools included. */
+	private long mTotalSize = 0;
+
+	/** Keys in order, to find the keys with a prefix. */
+	private final TreeSet<String> mSortedKeys = new TreeSet<String>();
+
+	/** Keys by tag, see {@link KCCache.KCEntry#tags}. */
+	private final Map<String, Set<String>> mTaggedKeys = new HashMap<String, Set<String>>();
+
+	/** The entries of the content classes without a quota, bounded by the maximum size of the cache. */
+	private final KCCachePool mSharedPool;
+
+	/** The pools of the content classes with a quota, by ordinal; null for the classes sharing {@link #mSharedPool}. */
+	private final KCCachePool[] mClassPools = new KCCachePool[KCCacheContentClass.values().length];
+
+	/** The segment files, whose superseded and removed records are released. */
+	private final KCCacheSegments mSegments;
+
+	KCCacheIndex(KCCacheSegments aSegments, long aMaxSize, KCCacheEvictionPolicy aEvictionPolicy)
+	{
+		mSegments = aSegments;
+		mSharedPool = new KCCachePool(aMaxSize, aEvictionPolicy);
+	}
+
+	/**
+	 * Gives a content class its own pool.
+	 */
+	void setClassPool(KCCacheContentClass contentClass, long maxSize, KCCacheEvictionPolicy evictionPolicy)
+	{
+		mClassPools[contentClass.ordinal()] = new KCCachePool(maxSize, evictionPolicy);
+	}
+
+	KCCacheHeader get(String key)
+	{
+		return mEntries.get(key);
+	}
+
+	boolean containsKey(String key)
+	{
+		return mEntries.containsKey(key);
+	}
+
+	boolean isEmpty()
+	{
+		return mEntries.isEmpty();
+	}
+
+	int size()
+	{
+		return mEntries.size();
+	}
+
+	Collection<KCCacheHeader> values()
+	{
+		return mEntries.values();
+	}
+
+	/**
+	 * @return the total size of the entries in bytes.
+	 */
+	long getTotalSize()
+	{
+		return mTotalSize;
+	}
+
+	/**
+	 * @return the total size of the entries of a content class in bytes.
+	 */
+	long getSize(KCCacheContentClass contentClass)
+	{
+		long size = 0;
+		for (KCCacheHeader entry : mEntries.values())
+		{
+			if (entry.getContentClass() == contentClass)
+			{
+				size += entry.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Tells the eviction policy of an entry that it was looked up, whether it was found or not.
+	 *
+	 * @param entry
+	 *            The entry, or null on a miss.
+	 */
+	void onAccess(String key, KCCacheHeader entry)
+	{
+		(entry != null ? poolOf(entry) : mSharedPool).evictionPolicy.onAccess(key);
+	}
+
+	/**
+	 * Returns the keys starting with a prefix, without scanning the index.
+	 */
+	List<String> getKeysWithPrefix(String prefix)
+	{
+		List<String> keys = new ArrayList<String>();
+		for (String key : mSortedKeys.tailSet(prefix))
+		{
+			if (!key.startsWith(prefix))
+			{
+				break;
+			}
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the keys of the entries with a tag, without scanning the index.
+	 */
+	List<String> getKeysWithTag(String tag)
+	{
+		Set<String> taggedKeys = mTaggedKeys.get(tag);
+		return taggedKeys != null ? new ArrayList<String>(taggedKeys) : new ArrayList<String>();
+	}
+
+	/**
+	 * Puts the entry with the specified key into the cache.
+	 *
+	 * @param key
+	 *            The key to identify the entry by.
+	 * @param entry
+	 *            The entry to cache.
+	 */
+	void put(String key, KCCacheHeader entry)
+	{
+		KCCachePool pool = poolOf(entry);
+		if (!mEntries.containsKey(key))
+		{
+			mTotalSize += entry.size;
+			mSortedKeys.add(key);
+		}
+		else
+		{
+			KCCacheHeader oldEntry = mEntries.get(key);
+			mTotalSize += (entry.size - oldEntry.size);
+			untag(key, oldEntry.tags);
+			KCCachePool oldPool = poolOf(oldEntry);
+			oldPool.size -= oldEntry.size;
+			if (oldPool != pool)
+			{
+				oldPool.evictionPolicy.onRemove(key);
+			}
+			if (oldEntry.segment >= 0)
+			{
+				mSegments.release(oldEntry);
+			}
+		}
+		mEntries.put(key, entry);
+		tag(key, entry.tags);
+		pool.size += entry.size;
+		pool.evictionPolicy.onInsert(key, entry.size);
+	}
+
+	/**
+	 * Removes the entry identified by 'key' from the cache.
+	 */
+	void remove(String key)
+	{
+		KCCacheHeader entry = mEntries.get(key);
+		if (entry != null)
+		{
+			mTotalSize -= entry.size;
+			if (entry.segment >= 0)
+			{
+				mSegments.release(entry);
+			}
+			mEntries.remove(key);
+			mSortedKeys.remove(key);
+			untag(key, entry.tags);
+			KCCachePool pool = poolOf(entry);
+			pool.size -= entry.size;
+			pool.evictionPolicy.onRemove(key);
+		}
+	}
+
+	/**
+	 * Empties the index, e.g. after the files were cleared.
+	 */
+	void clear()
+	{
+		mEntries.clear();
+		mSortedKeys.clear();
+		mTaggedKeys.clear();
+		mSharedPool.clear();
+		for (KCCachePool pool : mClassPools)
+		{
+			if (pool != null)
+			{
+				pool.clear();
+			}
+		}
+		mTotalSize = 0;
+	}
+
+	private void tag(String key, String[] tags)
+	{
+		for (int i = 0; tags != null && i < tags.length; i++)
+		{
+			Set<String> keys = mTaggedKeys.get(tags[i]);
+			if (keys == null)
+			{
+				keys = new HashSet<String>();
+				mTaggedKeys.put(tags[i], keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	private void untag(String key, String[] tags)
+	{
+		for (int i = 0; tags != null && i < tags.length; i++)
+		{
+			Set<String> keys = mTaggedKeys.get(tags[i]);
+			if (keys != null && keys.remove(key) && keys.isEmpty())
+			{
+				mTaggedKeys.remove(tags[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the pool of an entry, by its content class.
+	 */
+	KCCachePool poolOf(KCCacheHeader entry)
+	{
+		KCCachePool pool = mClassPools[entry.getContentClass().ordinal()];
+		return pool != null ? pool : mSharedPool;
+	}
+
+	/**
+	 * @return true if the shared pool or the pool of a content class exceeds its maximum size.
+	 */
+	boolean isOverQuota()
+	{
+		if (mSharedPool.size > mSharedPool.maxSize)
+		{
+			return true;
+		}
+		for (KCCachePool pool : mClassPools)
+		{
+			if (pool != null && pool.size > pool.maxSize)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a pool above its low water mark, or null.
+	 */
+	KCCachePool findPoolToEvict()
+	{
+		if (mSharedPool.size > mSharedPool.maxSize * HYSTERESIS_FACTOR)
+		{
+			return mSharedPool;
+		}
+		for (KCCachePool pool : mClassPools)
+		{
+			if (pool != null && pool.size > pool.maxSize * HYSTERESIS_FACTOR)
+			{
+				return pool;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the keys of the hard-expired entries without validators, past their stale-if-error window. Entries with an ETag or Last-Modified date
+	 * are kept, as they can still be revalidated with a cheap conditional request, and entries within the window, as they can still be delivered
+	 * if the network fails or to a {@link KCHttpRequest.CachePolicy#CACHE_ONLY} request.
+	 */
+	List<String> findExpiredKeys()
+	{
+		long now = System.currentTimeMillis();
+		List<String> expiredKeys = new ArrayList<String>();
+		for (KCCacheHeader header : mEntries.values())
+		{
+			if (now - header.ttl > header.staleIfErrorMs && header.etag == null && header.lastModified == 0)
+			{
+				expiredKeys.add(header.key);
+			}
+		}
+		return expiredKeys;
+	}
+
+	/**
+	 * Entries sharing a maximum size and an eviction policy. Guarded by the cache lock.
+	 */
+	static class KCCachePool
+	{
+		final long maxSize;
+		final KCCacheEvictionPolicy evictionPolicy;
+
+		/** Total size of the entries in bytes. */
+		long size;
+
+		KCCachePool(long maxSize, KCCacheEvictionPolicy evictionPolicy)
+		{
+			this.maxSize = maxSize;
+			this.evictionPolicy = evictionPolicy;
+			this.evictionPolicy.setMaximumSize(maxSize);
+		}
+
+		void clear()
+		{
+			evictionPolicy.clear();
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package com.kercer.kernet.http;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evicts the entries of a {@link KCCacheDisk} and compacts its segments on a background thread, so writes don't wait for them. Takes the cache
+ * lock for small batches of entries at a time.
+ */
+class KCCacheJanitor
+{
+	/** Number of entries the janitor evicts per batch, between which it releases the cache lock. */
+	private static final int EVICTION_BATCH_SIZE = 16;
+
+	/** Minimum interval between purges of hard-expired entries. */
+	private static final long EXPIRED_PURGE_INTERVAL_MS = 5 * 60 * 1000;
+
+	/** The cache, whose lock guards the index. */
+	private final KCCacheDisk mCache;
+
+	private final KCCacheIndex mIndex;
+	private final KCCacheSegments mSegments;
+	private final KCCacheFiles mFiles;
+	private final KCCacheJournalSync mJournal;
+
+	/** Keys of the entries whose files the janitor is deleting. Writes of these keys wait for the deletion. */
+	private final Set<String> mEvictingKeys = new HashSet<String>();
+
+	/** The janitor thread evicting entries in the background, or null if it isn't running. */
+	private Thread mThread;
+
+	/** Time of the last purge of hard-expired entries. */
+	private long mLastExpiredPurgeMs = 0;
+
+	KCCacheJanitor(KCCacheDisk aCache, KCCacheIndex aIndex, KCCacheSegments aSegments, KCCacheFiles aFiles, KCCacheJournalSync aJournal)
+	{
+		mCache = aCache;
+		mIndex = aIndex;
+		mSegments = aSegments;
+		mFiles = aFiles;
+		mJournal = aJournal;
+	}
+
+	/**
+	 * Waits while the janitor deletes the files of an evicted entry, so a new entry for the key isn't deleted with them. Called with the cache lock
+	 * held; deletions are short, as the janitor deletes in small batches.
+	 */
+	void waitForEviction(String key)
+	{
+		while (mEvictingKeys.contains(key))
+		{
+			try
+			{
+				mCache.wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts the janitor if the cache exceeds its maximum size, hard-expired entries are due to be purged or a segment is due to be compacted.
+	 * Called with the cache lock held.
+	 */
+	void scheduleIfNeeded()
+	{
+		if (mThread != null)
+		{
+			return;
+		}
+		if (!mIndex.isOverQuota() && SystemClock.elapsedRealtime() - mLastExpiredPurgeMs < EXPIRED_PURGE_INTERVAL_MS
+				&& mSegments.findCompactionCandidate() == -1)
+		{
+			return;
+		}
+		mThread = new Thread("KCCacheDisk-janitor")
+		{
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				evict();
+				boolean compacted = compact();
+				synchronized (mCache)
+				{
+					mThread = null;
+					// Entries may have been put meanwhile. After a failed compaction, wait for the next put rather than retry right away.
+					if (compacted)
+					{
+						scheduleIfNeeded();
+					}
+				}
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Runs on the janitor thread. Purges the hard-expired entries which can't be revalidated, then evicts the entries chosen by the eviction
+	 * policies until each pool is below its low water mark. Entries are removed from the index in batches under the cache lock, their files are deleted without it;
+	 * entries in segments get a tombstone.
+	 */
+	private void evict()
+	{
+		long startTime = SystemClock.elapsedRealtime();
+		int evictedEntries = 0;
+		List<String> batch = new ArrayList<String>(EVICTION_BATCH_SIZE);
+
+		List<String> expiredKeys = null;
+		synchronized (mCache)
+		{
+			if (startTime - mLastExpiredPurgeMs >= EXPIRED_PURGE_INTERVAL_MS)
+			{
+				mLastExpiredPurgeMs = startTime;
+				expiredKeys = mIndex.findExpiredKeys();
+			}
+		}
+
+		while (true)
+		{
+			batch.clear();
+			int selected = 0;
+			synchronized (mCache)
+			{
+				mJournal.lock();
+				try
+				{
+					if (expiredKeys != null)
+					{
+						for (int i = expiredKeys.size() - 1; i >= 0 && selected < EVICTION_BATCH_SIZE; i--)
+						{
+							String key = expiredKeys.remove(i);
+							if (mIndex.containsKey(key))
+							{
+								evictEntry(key, batch);
+								selected++;
+							}
+						}
+					}
+					// Once the expired keys are used up, fill the batch by size: they may all have been removed meanwhile, which mustn't end the pass.
+					if (expiredKeys == null || expiredKeys.isEmpty())
+					{
+						KCCacheIndex.KCCachePool pool;
+						String victim;
+						while (selected < EVICTION_BATCH_SIZE && (pool = mIndex.findPoolToEvict()) != null && (victim = pool.evictionPolicy.nextVictim()) != null)
+						{
+							if (mIndex.containsKey(victim))
+							{
+								evictEntry(victim, batch);
+								selected++;
+							}
+							else
+							{
+								pool.evictionPolicy.onRemove(victim);
+							}
+						}
+					}
+
+					if (selected == 0)
+					{
+						break;
+					}
+				}
+				finally
+				{
+					mJournal.unlock();
+				}
+			}
+
+			mFiles.deleteFiles(batch);
+			evictedEntries += selected;
+
+			synchronized (mCache)
+			{
+				finishEviction(batch);
+			}
+		}
+
+		if (KCLog.DEBUG)
+		{
+			KCLog.v("evicted %d entries, %d ms", evictedEntries, SystemClock.elapsedRealtime() - startTime);
+		}
+	}
+
+	/**
+	 * Removes an entry from the index. Appends a tombstone for an entry in a segment, or adds the key of a file entry to the keys whose files are
+	 * to be deleted. The files of a multi-process cache are deleted right away, before another process can write the key. Called with the cache
+	 * lock held, and the journal lock of a multi-process cache.
+	 */
+	void evictEntry(String key, List<String> fileKeys)
+	{
+		KCCacheHeader entry = mIndex.get(key);
+		mIndex.remove(key);
+		if (entry.segment >= 0)
+		{
+			mCache.appendTombstone(key);
+		}
+		else if (mJournal.isShared())
+		{
+			mFiles.getMetadataFileForKey(key).delete();
+			mFiles.getFileForKey(key).delete();
+			mJournal.record(key, true);
+		}
+		else
+		{
+			fileKeys.add(key);
+			mEvictingKeys.add(key);
+		}
+	}
+
+	/**
+	 * Lets the writes of evicted keys whose files were deleted go on. Called with the cache lock held.
+	 */
+	void finishEviction(List<String> fileKeys)
+	{
+		mEvictingKeys.removeAll(fileKeys);
+		mCache.notifyAll();
+	}
+
+	/**
+	 * Runs on the janitor thread. Compacts the sealed segments which are mostly superseded or removed records: reads the records of the segment
+	 * without the cache lock, copies the live records and the tombstones still needed to the active segment in batches under the lock, then deletes
+	 * the segment.
+	 *
+	 * @return true if there is no segment left to compact, false if a compaction failed
+	 */
+	private boolean compact()
+	{
+		while (true)
+		{
+			int segment;
+			synchronized (mCache)
+			{
+				segment = mSegments.findCompactionCandidate();
+			}
+			if (segment == -1)
+			{
+				return true;
+			}
+
+			long startTime = SystemClock.elapsedRealtime();
+			List<KCCacheSegments.KCSegmentRecord> records;
+			try
+			{
+				records = mSegments.readRecords(segment);
+			}
+			catch (IOException e)
+			{
+				KCLog.d("Failed to read segment %d: %s", segment, e.toString());
+				return false;
+			}
+
+			int movedRecords = 0;
+			for (int i = 0; i < records.size(); i += EVICTION_BATCH_SIZE)
+			{
+				synchronized (mCache)
+				{
+					try
+					{
+						for (int j = i; j < records.size() && j < i + EVICTION_BATCH_SIZE; j++)
+						{
+							KCCacheSegments.KCSegmentRecord record = records.get(j);
+							KCCacheHeader entry = mIndex.get(record.key);
+							if (record.tombstone)
+							{
+								// A tombstone is still needed unless a newer record of the key supersedes the records it removes.
+								if (entry == null || entry.segment < 0)
+								{
+									mSegments.moveTombstone(record, segment);
+								}
+							}
+							else if (entry != null && entry.segment == segment && entry.offset == record.offset)
+							{
+								mSegments.moveEntry(record, entry);
+								movedRecords++;
+							}
+						}
+					}
+					catch (IOException e)
+					{
+						KCLog.d("Failed to compact segment %d: %s", segment, e.toString());
+						return false;
+					}
+				}
+			}
+
+			synchronized (mCache)
+			{
+				for (KCCacheHeader entry : mIndex.values())
+				{
+					if (entry.segment == segment)
+					{
+						KCLog.d("Segment %d still holds key=%s", segment, entry.key);
+						return false;
+					}
+				}
+				mSegments.delete(segment);
+			}
+
+			if (KCLog.DEBUG)
+			{
+				KCLog.v("compacted segment %d, moved %d of %d records, %d ms", segment, movedRecords, records.size(), SystemClock.elapsedRealtime()
+						- startTime);
+			}
+		}
+	}
+}
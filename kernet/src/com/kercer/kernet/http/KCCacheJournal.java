@@ -0,0 +1,387 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A journal shared by the processes using the same {@link KCCacheDisk} directory, see {@link KCCacheDisk#setMultiProcess(boolean)}. Each process
+ * appends a record for every entry it puts or removes and for clearing the cache, and replays the records the other processes appended since it
+ * last read the journal, so the indexes of all processes hold the same entries.
+ *
+ * <p>
+ * The journal starts with an int magic and a long generation, followed by records: the int length and CRC32 of the payload, then the payload, a
+ * type byte followed by the UTF-8 key. A record torn by a crash fails its CRC; it ends the replay, and the next append overwrites it. Appends are
+ * made holding an exclusive lock on the journal file, which also serializes the writes of the processes to the cache directory. When the journal
+ * grows beyond its maximum size, it is truncated and gets a new generation; processes which see a new generation reload their index from the cache
+ * directory.
+ * </p>
+ *
+ * <p>
+ * Not thread safe; the cache calls it with its lock held. File locks are held per process, so a process can't open two caches on the same
+ * directory: {@link #forFile(File)} refuses a second journal for a file.
+ * </p>
+ */
+class KCCacheJournal
+{
+	/** Magic number of the journal. */
+	private static final int JOURNAL_MAGIC = 0x4b434a31;
+
+	/** Size of the magic and the generation. */
+	private static final int HEADER_SIZE = 12;
+
+	/** Size of the length and CRC preceding a payload. */
+	private static final int RECORD_OVERHEAD = 8;
+
+	/** Size above which the journal is truncated. */
+	private static final long MAX_JOURNAL_SIZE = 1024 * 1024;
+
+	/** Record types. */
+	private static final byte TYPE_PUT = 1;
+	private static final byte TYPE_REMOVE = 2;
+	private static final byte TYPE_CLEAR = 3;
+
+	/** Receives the records appended by the other processes. */
+	interface KCJournalVisitor
+	{
+		/** Called when an entry was put or its metadata updated. */
+		void onPut(String aKey);
+
+		/** Called when an entry was removed or evicted. */
+		void onRemove(String aKey);
+
+		/** Called when the cache was cleared. */
+		void onClear();
+
+		/** Called when the records since the last read were dropped, the whole index must be reloaded. */
+		void onReset();
+	}
+
+	/** The journals of this process by path, to refuse a second one for a file. Weak, a cache no longer used doesn't keep its directory. */
+	private static final HashMap<String, WeakReference<KCCacheJournal>> sJournals = new HashMap<String, WeakReference<KCCacheJournal>>();
+
+	private final File mFile;
+	private RandomAccessFile mJournal;
+
+	/** The lock held on the journal file, or null. */
+	private FileLock mLock;
+
+	/** Number of nested {@link #lock()} calls. */
+	private int mLockCount = 0;
+
+	/** Generation of the journal when it was last read. */
+	private long mGeneration;
+
+	/** Offset up to which the journal was read. */
+	private long mOffset;
+
+	private KCCacheJournal(File aFile)
+	{
+		mFile = aFile;
+	}
+
+	/**
+	 * Returns a new journal for a file, unless another cache of this process uses it.
+	 *
+	 * @throws IllegalStateException
+	 *             if the file has a journal in this process, which was not closed
+	 */
+	static KCCacheJournal forFile(File aFile)
+	{
+		String path = aFile.getAbsolutePath();
+		synchronized (sJournals)
+		{
+			WeakReference<KCCacheJournal> reference = sJournals.get(path);
+			if (reference != null && reference.get() != null)
+			{
+				throw new IllegalStateException("Another cache of this process shares " + path + ", a process can only open one");
+			}
+			KCCacheJournal journal = new KCCacheJournal(aFile);
+			sJournals.put(path, new WeakReference<KCCacheJournal>(journal));
+			return journal;
+		}
+	}
+
+	/**
+	 * Opens the journal, creating it if needed. Records appended before are not replayed, the cache reads the entries from its directory.
+	 */
+	void open() throws IOException
+	{
+		if (mJournal != null)
+		{
+			return;
+		}
+		mJournal = new RandomAccessFile(mFile, "rw");
+		try
+		{
+			lock();
+			if (mJournal.length() < HEADER_SIZE || readGeneration() == -1)
+			{
+				writeHeader(System.currentTimeMillis());
+			}
+			mGeneration = readGeneration();
+			mOffset = mJournal.length();
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	/**
+	 * Takes the exclusive lock on the journal file, waiting for the other processes to release it. Nested calls only count. A call which fails is
+	 * counted too, so each call is matched by an {@link #unlock()}.
+	 */
+	void lock() throws IOException
+	{
+		if (mLockCount++ == 0)
+		{
+			try
+			{
+				mLock = mJournal.getChannel().lock();
+			}
+			catch (OverlappingFileLockException e)
+			{
+				// Locked by other code of this process, which forFile() can't see.
+				throw new IOException("Journal locked elsewhere in this process: " + mFile.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Releases the lock taken by the matching {@link #lock()}.
+	 */
+	void unlock()
+	{
+		if (mLockCount == 0 || --mLockCount > 0 || mLock == null)
+		{
+			return;
+		}
+		try
+		{
+			mLock.release();
+		}
+		catch (IOException e)
+		{
+			KCLog.d("Failed to release lock of %s: %s", mFile.getAbsolutePath(), e.toString());
+		}
+		mLock = null;
+	}
+
+	/**
+	 * Replays the records the other processes appended since the last read. Doesn't need the lock: a record being appended fails its CRC and is
+	 * read next time.
+	 */
+	void read(KCJournalVisitor aVisitor) throws IOException
+	{
+		long generation = readGeneration();
+		if (generation != mGeneration)
+		{
+			if (generation == -1)
+			{
+				// Being created or truncated by another process, read it next time.
+				return;
+			}
+			mGeneration = generation;
+			mOffset = HEADER_SIZE;
+			aVisitor.onReset();
+		}
+
+		long length = mJournal.length();
+		if (length <= mOffset)
+		{
+			return;
+		}
+		byte[] bytes = new byte[(int) (length - mOffset)];
+		mJournal.seek(mOffset);
+		mJournal.readFully(bytes);
+		if (readGeneration() != mGeneration)
+		{
+			// Truncated while reading, the bytes may not be records; reset next time.
+			return;
+		}
+
+		int pos = 0;
+		while (pos + RECORD_OVERHEAD <= bytes.length)
+		{
+			int payloadLength = getInt(bytes, pos);
+			if (payloadLength < 1 || pos + RECORD_OVERHEAD + payloadLength > bytes.length)
+			{
+				break;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes, pos + RECORD_OVERHEAD, payloadLength);
+			if ((int) crc.getValue() != getInt(bytes, pos + 4))
+			{
+				break;
+			}
+			byte type = bytes[pos + RECORD_OVERHEAD];
+			String key = new String(bytes, pos + RECORD_OVERHEAD + 1, payloadLength - 1, "UTF-8");
+			pos += RECORD_OVERHEAD + payloadLength;
+			mOffset += RECORD_OVERHEAD + payloadLength;
+
+			if (type == TYPE_PUT)
+			{
+				aVisitor.onPut(key);
+			}
+			else if (type == TYPE_REMOVE)
+			{
+				aVisitor.onRemove(key);
+			}
+			else if (type == TYPE_CLEAR)
+			{
+				aVisitor.onClear();
+			}
+		}
+	}
+
+	void appendPut(String aKey, KCJournalVisitor aVisitor) throws IOException
+	{
+		append(TYPE_PUT, aKey, aVisitor);
+	}
+
+	void appendRemove(String aKey, KCJournalVisitor aVisitor) throws IOException
+	{
+		append(TYPE_REMOVE, aKey, aVisitor);
+	}
+
+	void appendClear(KCJournalVisitor aVisitor) throws IOException
+	{
+		append(TYPE_CLEAR, "", aVisitor);
+	}
+
+	/**
+	 * Appends a record. Called holding the lock. The records of the other processes are replayed first, so the record goes right after the last
+	 * one of the journal: only a torn record is overwritten, and the journal is only truncated when it grew too large once every record was
+	 * applied.
+	 *
+	 * @param aVisitor
+	 *            Applies the records of the other processes
+	 */
+	private void append(byte aType, String aKey, KCJournalVisitor aVisitor) throws IOException
+	{
+		if (mLock == null)
+		{
+			throw new IOException("Journal not locked");
+		}
+		read(aVisitor);
+		if (readGeneration() != mGeneration)
+		{
+			// The header was torn by a crash: no process can read the records any longer, start over.
+			writeHeader(Math.max(System.currentTimeMillis(), mGeneration + 1));
+			mGeneration = readGeneration();
+			mOffset = HEADER_SIZE;
+			aVisitor.onReset();
+		}
+		if (mOffset > MAX_JOURNAL_SIZE)
+		{
+			writeHeader(Math.max(System.currentTimeMillis(), mGeneration + 1));
+			mGeneration = readGeneration();
+			mOffset = HEADER_SIZE;
+		}
+
+		byte[] key = toBytes(aKey);
+		byte[] record = new byte[RECORD_OVERHEAD + 1 + key.length];
+		record[RECORD_OVERHEAD] = aType;
+		System.arraycopy(key, 0, record, RECORD_OVERHEAD + 1, key.length);
+		CRC32 crc = new CRC32();
+		crc.update(record, RECORD_OVERHEAD, record.length - RECORD_OVERHEAD);
+		putInt(record, 0, record.length - RECORD_OVERHEAD);
+		putInt(record, 4, (int) crc.getValue());
+
+		mJournal.setLength(mOffset);
+		mJournal.seek(mOffset);
+		mJournal.write(record);
+		mOffset += record.length;
+	}
+
+	/**
+	 * Closes the journal, and lets another cache of this process use the file.
+	 */
+	void close()
+	{
+		synchronized (sJournals)
+		{
+			WeakReference<KCCacheJournal> reference = sJournals.get(mFile.getAbsolutePath());
+			if (reference != null && reference.get() == this)
+			{
+				sJournals.remove(mFile.getAbsolutePath());
+			}
+		}
+		if (mJournal == null)
+		{
+			return;
+		}
+		try
+		{
+			mJournal.close();
+		}
+		catch (IOException ignored)
+		{
+		}
+		mJournal = null;
+		mLock = null;
+		mLockCount = 0;
+	}
+
+	/**
+	 * @return the generation of the journal, or -1 if it has no valid header
+	 */
+	private long readGeneration() throws IOException
+	{
+		if (mJournal.length() < HEADER_SIZE)
+		{
+			return -1;
+		}
+		mJournal.seek(0);
+		if (mJournal.readInt() != JOURNAL_MAGIC)
+		{
+			return -1;
+		}
+		return mJournal.readLong();
+	}
+
+	/**
+	 * Starts the journal over with a new generation, dropping its records.
+	 */
+	private void writeHeader(long aGeneration) throws IOException
+	{
+		mJournal.setLength(0);
+		mJournal.seek(0);
+		mJournal.writeInt(JOURNAL_MAGIC);
+		mJournal.writeLong(aGeneration);
+	}
+
+	private static byte[] toBytes(String aKey)
+	{
+		try
+		{
+			return aKey.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void putInt(byte[] aBytes, int aOffset, int aValue)
+	{
+		aBytes[aOffset] = (byte) aValue;
+		aBytes[aOffset + 1] = (byte) (aValue >> 8);
+		aBytes[aOffset + 2] = (byte) (aValue >> 16);
+		aBytes[aOffset + 3] = (byte) (aValue >> 24);
+	}
+
+	private static int getInt(byte[] aBytes, int aOffset)
+	{
+		return (aBytes[aOffset] & 0xff) | (aBytes[aOffset + 1] & 0xff) << 8 | (aBytes[aOffset + 2] & 0xff) << 16 | (aBytes[aOffset + 3] & 0xff) << 24;
+	}
+}
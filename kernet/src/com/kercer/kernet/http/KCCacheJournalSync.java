@@ -0,0 +1,154 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.io.IOException;
+
+/**
+ * Keeps the index of a {@link KCCacheDisk} in sync with the journal it shares with other processes, see
+ * {@link KCCacheDisk#setMultiProcess(boolean)}. Does nothing for a cache used by a single process. Called with the cache lock held.
+ */
+class KCCacheJournalSync
+{
+	/** The journal shared with the other processes using the directory, or null if the cache is used by a single process. */
+	private KCCacheJournal mJournal;
+
+	/** Applies the records the other processes appended to the journal. */
+	private KCCacheJournal.KCJournalVisitor mVisitor;
+
+	/**
+	 * Shares the cache with other processes through a journal, or stops sharing it.
+	 *
+	 * @param journal
+	 *            The journal, or null for a cache used by a single process.
+	 * @param visitor
+	 *            Applies the records of the other processes to the index.
+	 */
+	void setJournal(KCCacheJournal journal, KCCacheJournal.KCJournalVisitor visitor)
+	{
+		if (mJournal != null && mJournal != journal)
+		{
+			mJournal.close();
+		}
+		mJournal = journal;
+		mVisitor = visitor;
+	}
+
+	/**
+	 * @return true if the cache is shared with other processes
+	 */
+	boolean isShared()
+	{
+		return mJournal != null;
+	}
+
+	/**
+	 * Opens the journal of a multi-process cache. Falls back to a single-process cache if the journal can't be opened.
+	 *
+	 * @return true if the cache is shared with other processes
+	 */
+	boolean open()
+	{
+		if (mJournal == null)
+		{
+			return false;
+		}
+		try
+		{
+			mJournal.open();
+			return true;
+		}
+		catch (IOException e)
+		{
+			KCLog.e("Unable to open cache journal, using the cache in a single process: %s", e.toString());
+			mJournal.close();
+			mJournal = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Applies the journal records of the other processes to the index of a multi-process cache.
+	 */
+	void sync()
+	{
+		if (mJournal == null)
+		{
+			return;
+		}
+		try
+		{
+			mJournal.read(mVisitor);
+		}
+		catch (IOException e)
+		{
+			KCLog.d("Failed to read cache journal: %s", e.toString());
+		}
+	}
+
+	/**
+	 * Takes the journal lock of a multi-process cache before changing entries, waiting for the other processes, and applies their records. Must be
+	 * matched by {@link #unlock()}.
+	 */
+	void lock()
+	{
+		if (mJournal == null)
+		{
+			return;
+		}
+		try
+		{
+			mJournal.lock();
+		}
+		catch (IOException e)
+		{
+			KCLog.e("Failed to lock cache journal: %s", e.toString());
+		}
+		sync();
+	}
+
+	void unlock()
+	{
+		if (mJournal != null)
+		{
+			mJournal.unlock();
+		}
+	}
+
+	/**
+	 * Records an entry put or removed in the journal of a multi-process cache. Called with the journal lock held.
+	 */
+	void record(String key, boolean removed)
+	{
+		if (mJournal == null)
+		{
+			return;
+		}
+		try
+		{
+			if (removed)
+			{
+				mJournal.appendRemove(key, mVisitor);
+			}
+			else
+			{
+				mJournal.appendPut(key, mVisitor);
+			}
+		}
+		catch (IOException e)
+		{
+			KCLog.e("Failed to journal key=%s: %s", key, e.toString());
+		}
+	}
+
+	/**
+	 * Records clearing the cache in the journal of a multi-process cache. Called with the journal lock held.
+	 */
+	void recordClear() throws IOException
+	{
+		if (mJournal != null)
+		{
+			mJournal.appendClear(mVisitor);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.error.KCAuthFailureError;
+import com.kercer.kernet.uri.KCNameValuePair;
+import com.kercer.kernet.uri.KCURI;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds the cache keys of the requests of a {@link KCRequestQueue}, so equivalent URLs share a cache entry.
+ *
+ * URLs are canonicalized with {@link KCURI}: the scheme and host are lower-cased, default ports and the fragment are dropped, the query
+ * parameters are sorted by name and ignored parameters, e.g. the tracking parameters appended to links, are removed. Parameters of the same name
+ * keep their order. URLs which can't be parsed are used as they are. Cacheable POSTs are keyed by their body as well.
+ *
+ * Configure the builder before adding requests to the queue.
+ */
+public class KCCacheKeyBuilder
+{
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final Comparator<KCNameValuePair> PARAM_NAME_ORDER = new Comparator<KCNameValuePair>()
+	{
+		@Override
+		public int compare(KCNameValuePair aLhs, KCNameValuePair aRhs)
+		{
+			if (aLhs.mKey == null)
+			{
+				return aRhs.mKey == null ? 0 : -1;
+			}
+			return aRhs.mKey == null ? 1 : aLhs.mKey.compareTo(aRhs.mKey);
+		}
+	};
+
+	/** Names of the ignored query parameters. */
+	private final List<String> mIgnoredParams = new ArrayList<String>();
+
+	/** Prefixes of the names of the ignored query parameters. */
+	private final List<String> mIgnoredParamPrefixes = new ArrayList<String>();
+
+	private boolean mSortQuery = true;
+
+	/**
+	 * Ignores query parameters in cache keys. A name ending with '*' ignores all parameters starting with the rest of it, e.g. "utm_*".
+	 *
+	 * @param aNames
+	 *            parameter names
+	 * @return This builder to allow for chaining.
+	 */
+	public KCCacheKeyBuilder ignoreParams(String... aNames)
+	{
+		for (String name : aNames)
+		{
+			if (name.endsWith("*"))
+			{
+				mIgnoredParamPrefixes.add(name.substring(0, name.length() - 1));
+			}
+			else
+			{
+				mIgnoredParams.add(name);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Sets whether query parameters are sorted by name; true by default. Disable it for servers which depend on the order of different
+	 * parameters.
+	 *
+	 * @param aSortQuery
+	 *            sort query parameters
+	 * @return This builder to allow for chaining.
+	 */
+	public KCCacheKeyBuilder setSortQuery(boolean aSortQuery)
+	{
+		mSortQuery = aSortQuery;
+		return this;
+	}
+
+	/**
+	 * Returns the cache key of a request: its canonical URL, and for a cacheable POST its method and body hash as well, see
+	 * {@link KCHttpRequest#setCacheablePost(boolean)}.
+	 *
+	 * @param aRequest
+	 *            the request
+	 * @return cache key
+	 * @throws KCAuthFailureError
+	 *             if the body of a cacheable POST is unavailable
+	 */
+	public String buildCacheKey(KCHttpRequest<?> aRequest) throws KCAuthFailureError
+	{
+		String url = canonicalize(aRequest.getUrl());
+		return aRequest.isCacheablePost() ? buildPostCacheKey(aRequest, url) : url;
+	}
+
+	/**
+	 * Returns the cache key of a cacheable POST, "POST", the URL and the hex SHA-256 of the content type and body separated by spaces. The body is
+	 * read once and kept for sending, see {@link KCHttpRequest#getRequestBody()}.
+	 */
+	static String buildPostCacheKey(KCHttpRequest<?> aRequest, String aUrl) throws KCAuthFailureError
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+			String contentType = aRequest.getBodyContentType();
+			if (contentType != null)
+			{
+				digest.update(contentType.getBytes("UTF-8"));
+			}
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+		digest.update((byte) 0);
+		byte[] body = aRequest.getRequestBody();
+		if (body != null)
+		{
+			digest.update(body);
+		}
+
+		byte[] hash = digest.digest();
+		StringBuilder key = new StringBuilder(aUrl.length() + 6 + hash.length * 2);
+		key.append("POST ").append(aUrl).append(' ');
+		for (byte b : hash)
+		{
+			key.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Canonicalizes a URL.
+	 *
+	 * @param aUrl
+	 *            the URL
+	 * @return the canonical URL, or the URL itself if it is not an absolute URL
+	 */
+	public String canonicalize(String aUrl)
+	{
+		if (aUrl == null)
+		{
+			return null;
+		}
+
+		KCURI uri;
+		try
+		{
+			uri = KCURI.parse(aUrl);
+		}
+		catch (URISyntaxException e)
+		{
+			return aUrl;
+		}
+		if (uri.isRelative())
+		{
+			return aUrl;
+		}
+
+		List<KCNameValuePair> queries = uri.getQueries();
+		for (int i = queries.size() - 1; i >= 0; i--)
+		{
+			if (isIgnored(queries.get(i).mKey))
+			{
+				queries.remove(i);
+			}
+		}
+		if (mSortQuery)
+		{
+			// Stable, so parameters of the same name keep their order.
+			Collections.sort(queries, PARAM_NAME_ORDER);
+		}
+		uri.withFragment(null);
+		return uri.toString();
+	}
+
+	private boolean isIgnored(String aName)
+	{
+		if (aName == null)
+		{
+			return false;
+		}
+		if (mIgnoredParams.contains(aName))
+		{
+			return true;
+		}
+		for (int i = 0, size = mIgnoredParamPrefixes.size(); i < size; i++)
+		{
+			if (aName.startsWith(mIgnoredParamPrefixes.get(i)))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
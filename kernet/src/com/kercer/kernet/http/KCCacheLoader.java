@@ -0,0 +1,391 @@
+package com.kercer.kernet.http;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Indexes the entries of a {@link KCCacheDisk}: scans the segments when the cache is initialized, then indexes the entry files on a background
+ * thread. Until it is done, the files of keys missing from the index are looked up directly, so the cache can be used right away. Also applies the
+ * records other processes appended to the journal of a multi-process cache, reading the files they wrote.
+ */
+class KCCacheLoader implements KCCacheJournal.KCJournalVisitor
+{
+	/** Age under which the temporary files of a multi-process cache are not deleted by the loader, they may be written by another process. */
+	private static final long SHARED_TEMP_FILE_GRACE_MS = 60 * 1000;
+
+	/** The cache, whose lock guards the index. */
+	private final KCCacheDisk mCache;
+
+	private final KCCacheIndex mIndex;
+	private final KCCacheSegments mSegments;
+	private final KCCacheFiles mFiles;
+	private final KCCacheJournalSync mJournal;
+	private final KCCacheJanitor mJanitor;
+
+	/** Whether the loader is indexing the entry files. Until it is done, keys missing from the index are probed on disk. */
+	private boolean mLoading = false;
+
+	/** Whether the loader has to index the entry files again when it is done, as the index was reset meanwhile. */
+	private boolean mReloadRequested = false;
+
+	KCCacheLoader(KCCacheDisk aCache, KCCacheIndex aIndex, KCCacheSegments aSegments, KCCacheFiles aFiles, KCCacheJournalSync aJournal,
+			KCCacheJanitor aJanitor)
+	{
+		mCache = aCache;
+		mIndex = aIndex;
+		mSegments = aSegments;
+		mFiles = aFiles;
+		mJournal = aJournal;
+		mJanitor = aJanitor;
+	}
+
+	/**
+	 * @return true while the entry files are being indexed. Called with the cache lock held.
+	 */
+	boolean isLoading()
+	{
+		return mLoading;
+	}
+
+	/**
+	 * Indexes the entries of the segments. Called with the cache lock held.
+	 */
+	void loadSegments()
+	{
+		mSegments.scan(new KCCacheSegments.KCSegmentVisitor()
+		{
+			@Override
+			public void onEntry(KCCacheHeader header)
+			{
+				mIndex.put(header.key, header);
+			}
+
+			@Override
+			public void onTombstone(String key)
+			{
+				mIndex.remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Starts the loader indexing the entry files, unless it is running. Called with the cache lock held.
+	 */
+	void start()
+	{
+		if (mLoading)
+		{
+			return;
+		}
+		mLoading = true;
+		final long loadStartTime = System.currentTimeMillis();
+		Thread loader = new Thread("KCCacheDisk-loader")
+		{
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				loadFiles(loadStartTime);
+			}
+		};
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Runs on the loader thread. Indexes the entry files one by one, each under the cache lock, and moves the entry files of older versions,
+	 * stored directly in the root directory, to their subdirectory.
+	 *
+	 * @param loadStartTime
+	 *            Time the loader was started. Older temporary files were left over by writes which didn't complete, newer ones may be written.
+	 */
+	private void loadFiles(long loadStartTime)
+	{
+		long startTime = SystemClock.elapsedRealtime();
+		File[] files = mFiles.getRootDirectory().listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+		{
+			File file = files[i];
+			if (file.isDirectory())
+			{
+				if (!file.getName().equals(KCCacheSegments.DIRECTORY))
+				{
+					loadDirectory(file, loadStartTime);
+				}
+				continue;
+			}
+			synchronized (mCache)
+			{
+				if (file.getName().endsWith(KCCacheFiles.TEMP_SUFFIX))
+				{
+					file.delete();
+				}
+				else if (!file.getName().endsWith(KCCacheFiles.METADATA_SUFFIX) && file.exists())
+				{
+					migrateFile(file);
+				}
+			}
+		}
+
+		int loadedEntries;
+		synchronized (mCache)
+		{
+			// Sidecars of old entry files were moved with them, delete those left.
+			files = mFiles.getRootDirectory().listFiles();
+			for (int i = 0; files != null && i < files.length; i++)
+			{
+				if (files[i].isFile())
+				{
+					files[i].delete();
+				}
+			}
+
+			mLoading = false;
+			if (mReloadRequested)
+			{
+				mReloadRequested = false;
+				mCache.clearIndex();
+				start();
+				return;
+			}
+			loadedEntries = mIndex.size();
+			mCache.notifyAll();
+			// Entries beyond the maximum size are evicted in the background, not while the dispatcher waits.
+			mJanitor.scheduleIfNeeded();
+		}
+
+		if (KCLog.DEBUG)
+		{
+			KCLog.v("loaded %d entries, %d ms", loadedEntries, SystemClock.elapsedRealtime() - startTime);
+		}
+	}
+
+	/**
+	 * Indexes the entry files of one of the subdirectories, taking the cache lock for each file.
+	 */
+	private void loadDirectory(File directory, long loadStartTime)
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			synchronized (mCache)
+			{
+				if (file.getName().endsWith(KCCacheFiles.TEMP_SUFFIX))
+				{
+					// Left over by a write which didn't complete, unless it is being written, maybe by another process.
+					if (file.lastModified() < loadStartTime - (mJournal.isShared() ? SHARED_TEMP_FILE_GRACE_MS : 0))
+					{
+						file.delete();
+					}
+				}
+				else if (file.getName().endsWith(KCCacheFiles.METADATA_SUFFIX))
+				{
+					// Sidecars are read with their entry file, delete those left without one.
+					String name = file.getName();
+					if (!new File(directory, name.substring(0, name.length() - KCCacheFiles.METADATA_SUFFIX.length())).exists())
+					{
+						file.delete();
+					}
+				}
+				else if (file.exists())
+				{
+					initializeFile(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the index entry of a key. While the loader is indexing the entry files, looks for a file of the key not indexed yet. Called with the
+	 * cache lock held.
+	 */
+	KCCacheHeader lookup(String key)
+	{
+		KCCacheHeader entry = mIndex.get(key);
+		if (entry == null && mLoading)
+		{
+			File file = mFiles.getFileForKey(key);
+			if (file.exists())
+			{
+				initializeFile(file);
+			}
+			else
+			{
+				File legacyFile = mFiles.getLegacyFileForKey(key);
+				if (legacyFile.exists())
+				{
+					migrateFile(legacyFile);
+				}
+			}
+			entry = mIndex.get(key);
+		}
+		return entry;
+	}
+
+	/**
+	 * Reads the header of an entry file and adds the entry. Deletes the file if it can't be read, is too large or is not where its key belongs.
+	 * Called with the cache lock held.
+	 */
+	void initializeFile(File file)
+	{
+		BufferedInputStream fis = null;
+		try
+		{
+			fis = new BufferedInputStream(new FileInputStream(file));
+
+			long fileLength = file.length();
+
+			KCCacheHeader entry = KCCacheHeader.readHeader(fis);
+			if (!file.equals(mFiles.getFileForKey(entry.key)))
+			{
+				throw new IOException("Misplaced entry for key=" + entry.key);
+			}
+			KCCacheHeader updatedEntry = KCCacheFiles.readMetadata(mFiles.getMetadataFileForKey(entry.key), entry.key);
+			if (updatedEntry != null)
+			{
+				entry = updatedEntry;
+			}
+			if (fileLength < mIndex.poolOf(entry).maxSize)
+			{
+				entry.size = fileLength;
+				KCCacheHeader oldEntry = mIndex.get(entry.key);
+				mIndex.put(entry.key, entry);
+				if (oldEntry != null && oldEntry.segment >= 0)
+				{
+					// The file was written after the record, but the tombstone of the record wasn't.
+					mCache.appendTombstone(entry.key);
+				}
+				return;
+			}
+		}
+		catch (Exception e)
+		{
+		}
+		catch (OutOfMemoryError outOfMemoryError)
+		{
+		}
+		finally
+		{
+			try
+			{
+				if (fis != null)
+				{
+					fis.close();
+				}
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+		file.delete();
+		new File(file.getPath() + KCCacheFiles.METADATA_SUFFIX).delete();
+	}
+
+	/**
+	 * Moves an entry file of an older version, stored directly in the root directory, and its sidecar to the subdirectory of its key. Called with
+	 * the cache lock held.
+	 */
+	private void migrateFile(File file)
+	{
+		File metadataFile = new File(file.getPath() + KCCacheFiles.METADATA_SUFFIX);
+		BufferedInputStream fis = null;
+		String key = null;
+		try
+		{
+			fis = new BufferedInputStream(new FileInputStream(file));
+			key = KCCacheHeader.readHeader(fis).key;
+		}
+		catch (IOException e)
+		{
+		}
+		finally
+		{
+			try
+			{
+				if (fis != null)
+				{
+					fis.close();
+				}
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+
+		File newFile = key != null ? mFiles.getFileForKey(key) : null;
+		if (newFile == null || (!newFile.getParentFile().exists() && !newFile.getParentFile().mkdirs()) || !file.renameTo(newFile))
+		{
+			file.delete();
+			metadataFile.delete();
+			return;
+		}
+		if (metadataFile.exists() && !metadataFile.renameTo(mFiles.getMetadataFileForKey(key)))
+		{
+			metadataFile.delete();
+		}
+		initializeFile(newFile);
+	}
+
+	/**
+	 * Waits until the entry files have been indexed. Called with the cache lock held.
+	 */
+	void await() throws InterruptedException
+	{
+		while (mLoading)
+		{
+			mCache.wait();
+		}
+	}
+
+	@Override
+	public void onPut(String key)
+	{
+		File file = mFiles.getFileForKey(key);
+		if (file.exists())
+		{
+			initializeFile(file);
+		}
+		if (!file.exists())
+		{
+			mIndex.remove(key);
+		}
+	}
+
+	@Override
+	public void onRemove(String key)
+	{
+		mIndex.remove(key);
+	}
+
+	@Override
+	public void onClear()
+	{
+		mCache.clearIndex();
+	}
+
+	@Override
+	public void onReset()
+	{
+		mCache.clearIndex();
+		if (mLoading)
+		{
+			// The loader may have passed entries which are now dropped.
+			mReloadRequested = true;
+		}
+		else
+		{
+			start();
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package com.kercer.kernet.http;
+
+/**
+ * A {@link KCCache} which can replace the metadata of an entry without writing its data again. The queue uses it when a revalidation returns 304
+ * Not Modified, and puts the whole entry into caches that don't implement it.
+ */
+public interface KCCacheMetadataUpdatable extends KCCache
+{
+	/**
+	 * Replaces the metadata of an entry, keeping its data.
+	 *
+	 * @param key
+	 *            Cache key
+	 * @param entry
+	 *            The entry with its new metadata; its data must be the cached data
+	 */
+	public void updateMetadata(String key, KCEntry entry);
+}
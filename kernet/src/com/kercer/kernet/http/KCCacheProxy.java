@@ -0,0 +1,963 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kercore.debug.KCLog;
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCHttpStatus;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+import com.kercer.kernet.http.base.KCReasonPhraseCatalog;
+import com.kercer.kernet.http.base.KCStatusLine;
+import com.kercer.kernet.http.error.KCNetError;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A caching HTTP proxy on the loopback interface for media players, which load their streams themselves. Give a player
+ * {@link #getProxyUrl(String)} instead of the origin URL: the proxy serves the requested bytes from a {@link KCCacheSparse}, fetches the missing
+ * ones from the origin with a {@link KCNetwork} chunk by chunk, and reads ahead of the playback position in the background, so playing a stream
+ * again or seeking back doesn't download it again. The cache keeps the received bytes under its maximum size, evicting the least recently used
+ * streams.
+ *
+ * <p>
+ * Proxy URLs keep the path of the origin URL, "http://127.0.0.1:port/token/scheme/host/path?query", so relative URLs in playlists, e.g. the
+ * segments of an HLS playlist, resolve to proxy URLs as well. GET and HEAD requests with at most one byte range are supported; other ranges are
+ * answered with the whole stream. The origin must report the length of the streams.
+ * </p>
+ *
+ * <p>
+ * Other apps on the device can connect to the loopback interface too. The token is random and changes with each {@link #start()}, requests
+ * without it are refused, so only the holders of proxy URLs can fetch through the proxy. {@link #setAllowedHosts(String...)} restricts the
+ * origins further.
+ * </p>
+ */
+public class KCCacheProxy
+{
+	/** Default number of bytes fetched from the origin at once. */
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+	/** Default number of bytes read ahead of the playback position. */
+	public static final int DEFAULT_READ_AHEAD_BYTES = 2 * 1024 * 1024;
+
+	/** Timeout of reading a request from a player. */
+	private static final int SOCKET_TIMEOUT_MS = 30 * 1000;
+
+	/** Longest request line or header line accepted. */
+	private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	/** Longest request head accepted, the request line and header lines together. */
+	private static final int MAX_HEAD_LENGTH = 32 * 1024;
+
+	/** Number of random bytes of the token of the proxy URLs. */
+	private static final int TOKEN_BYTES = 16;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/** The proxy has nothing to deliver the headers of the origin responses to. */
+	private static final KCDeliveryResponse NO_DELIVERY = new KCDeliveryResponse()
+	{
+		@Override
+		public void postHeaders(KCHttpRequest<?> aRequest, KCStatusLine aStatusLine, KCHeaderGroup aHeaderGroup)
+		{
+		}
+	};
+
+	/** A request for a range of a stream from the origin. */
+	private static class KCProxyRequest extends KCHttpRequest<Void>
+	{
+		KCProxyRequest(String aUrl, long aStart, long aEnd, String aIfRange)
+		{
+			super(Method.GET, aUrl);
+			setShouldCache(false);
+			setFetchRange(aStart, aEnd, aIfRange);
+		}
+	}
+
+	private final KCNetwork mNetwork;
+	private final KCCacheSparse mCache;
+	private volatile KCCacheKeyBuilder mCacheKeyBuilder;
+
+	/** The hosts of the origins streams may be fetched from, or null for any. */
+	private volatile Set<String> mAllowedHosts;
+
+	/** The first path segment of the proxy URLs since the last start, or null before it. */
+	private volatile String mToken;
+
+	private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile int mReadAheadBytes = DEFAULT_READ_AHEAD_BYTES;
+
+	private ServerSocket mServerSocket;
+	private Thread mAcceptor;
+	private ExecutorService mConnectionService;
+	private ExecutorService mReadAheadService;
+
+	/** Connections being served. Guarded by itself. */
+	private final HashSet<Socket> mSockets = new HashSet<Socket>();
+
+	/** Held while fetching the missing bytes of a stream, by key, so reading ahead and serving don't fetch the same bytes. */
+	private final HashMap<String, Object> mFetchLocks = new HashMap<String, Object>();
+
+	/** First and last byte still to read ahead, by the key of the streams being read ahead. Guarded by itself. */
+	private final HashMap<String, long[]> mReadAheadWindows = new HashMap<String, long[]>();
+
+	private final AtomicLong mServedBytes = new AtomicLong();
+	private final AtomicLong mFetchedBytes = new AtomicLong();
+
+	/**
+	 * Creates a proxy. Call {@link #start()} to accept players.
+	 *
+	 * @param aNetwork
+	 *            The network to fetch from the origin with
+	 * @param aCache
+	 *            The cache of the received bytes, initialized
+	 */
+	public KCCacheProxy(KCNetwork aNetwork, KCCacheSparse aCache)
+	{
+		mNetwork = aNetwork;
+		mCache = aCache;
+	}
+
+	/**
+	 * Sets the number of bytes fetched from the origin at once; the first bytes of a response are sent after the first chunk arrived.
+	 *
+	 * @param aChunkSize
+	 *            chunk size in bytes
+	 */
+	public void setChunkSize(int aChunkSize)
+	{
+		if (aChunkSize <= 0)
+		{
+			throw new IllegalArgumentException("Chunk size must be positive: " + aChunkSize);
+		}
+		mChunkSize = aChunkSize;
+	}
+
+	/**
+	 * Sets the number of bytes read ahead of the playback position, 0 to only fetch what players request.
+	 *
+	 * @param aReadAheadBytes
+	 *            read-ahead in bytes
+	 */
+	public void setReadAheadBytes(int aReadAheadBytes)
+	{
+		mReadAheadBytes = Math.max(0, aReadAheadBytes);
+	}
+
+	/**
+	 * Sets the builder of the cache keys of the streams, e.g. to ignore the signature parameters of CDN URLs. By default, or with null, the URLs
+	 * are used as they are, like the keys of a {@link KCRequestQueue} without a builder.
+	 *
+	 * @param aCacheKeyBuilder
+	 *            cache key builder, or null
+	 */
+	public void setCacheKeyBuilder(KCCacheKeyBuilder aCacheKeyBuilder)
+	{
+		mCacheKeyBuilder = aCacheKeyBuilder;
+	}
+
+	/**
+	 * Restricts the origins streams are fetched from to the given hosts and their subdomains, e.g. the hosts of a CDN. Requests for other origins
+	 * are refused. By default, or with null, any origin is allowed.
+	 *
+	 * @param aHosts
+	 *            host names, or null
+	 */
+	public void setAllowedHosts(String... aHosts)
+	{
+		if (aHosts == null)
+		{
+			mAllowedHosts = null;
+			return;
+		}
+		Set<String> hosts = new HashSet<String>();
+		for (String host : aHosts)
+		{
+			hosts.add(host.toLowerCase(Locale.US));
+		}
+		mAllowedHosts = hosts;
+	}
+
+	/**
+	 * Starts accepting players on a free port of the loopback interface, with a new token in the proxy URLs.
+	 *
+	 * @throws IOException
+	 *             if no port could be bound
+	 */
+	public synchronized void start() throws IOException
+	{
+		if (mServerSocket != null)
+		{
+			return;
+		}
+		mServerSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+		mToken = newToken();
+		mConnectionService = Executors.newCachedThreadPool();
+		// One stream read ahead at a time, leaving the bandwidth to what players wait for.
+		mReadAheadService = Executors.newSingleThreadExecutor();
+
+		final ServerSocket serverSocket = mServerSocket;
+		mAcceptor = new Thread("KCCacheProxy")
+		{
+			@Override
+			public void run()
+			{
+				acceptLoop(serverSocket);
+			}
+		};
+		mAcceptor.setDaemon(true);
+		mAcceptor.start();
+	}
+
+	/**
+	 * Stops accepting players and closes the connections being served. Fetches in progress complete.
+	 */
+	public synchronized void stop()
+	{
+		if (mServerSocket == null)
+		{
+			return;
+		}
+		try
+		{
+			mServerSocket.close();
+		}
+		catch (IOException e)
+		{
+			KCLog.d("Could not close proxy socket: %s", e.toString());
+		}
+		mConnectionService.shutdownNow();
+		mReadAheadService.shutdownNow();
+		synchronized (mSockets)
+		{
+			for (Socket socket : mSockets)
+			{
+				closeSocket(socket);
+			}
+			mSockets.clear();
+		}
+		synchronized (mReadAheadWindows)
+		{
+			mReadAheadWindows.clear();
+		}
+		mServerSocket = null;
+		mAcceptor = null;
+	}
+
+	/**
+	 * Returns the port the proxy accepts players on, or -1 if it is not started.
+	 */
+	public synchronized int getPort()
+	{
+		return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+	}
+
+	/**
+	 * Returns the URL to give a player to play a stream through the proxy.
+	 *
+	 * @param aUrl
+	 *            The origin URL of the stream
+	 * @return the proxy URL, or the origin URL if the proxy is not started or the URL is not an absolute HTTP URL
+	 */
+	public String getProxyUrl(String aUrl)
+	{
+		int port = getPort();
+		int schemeEnd = aUrl.indexOf("://");
+		if (port < 0 || schemeEnd <= 0)
+		{
+			return aUrl;
+		}
+		String scheme = aUrl.substring(0, schemeEnd).toLowerCase();
+		if (!scheme.equals("http") && !scheme.equals("https"))
+		{
+			return aUrl;
+		}
+		String rest = aUrl.substring(schemeEnd + 3);
+		int fragment = rest.indexOf('#');
+		if (fragment >= 0)
+		{
+			rest = rest.substring(0, fragment);
+		}
+		return "http://127.0.0.1:" + port + "/" + mToken + "/" + scheme + "/" + rest;
+	}
+
+	/**
+	 * Returns the number of bytes sent to players.
+	 */
+	public long getServedBytes()
+	{
+		return mServedBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes received from the origin, including those read ahead.
+	 */
+	public long getFetchedBytes()
+	{
+		return mFetchedBytes.get();
+	}
+
+	/**
+	 * Returns the origin URL of the target of a proxy request, or null if it is not a proxy URL.
+	 */
+	static String getOriginUrl(String aTarget)
+	{
+		if (aTarget == null || !aTarget.startsWith("/"))
+		{
+			return null;
+		}
+		int schemeEnd = aTarget.indexOf('/', 1);
+		if (schemeEnd < 0)
+		{
+			return null;
+		}
+		String scheme = aTarget.substring(1, schemeEnd);
+		if (!scheme.equals("http") && !scheme.equals("https"))
+		{
+			return null;
+		}
+		return scheme + "://" + aTarget.substring(schemeEnd + 1);
+	}
+
+	/**
+	 * Returns the target of a proxy request without its token, or null if it doesn't start with the token. The token is compared in constant
+	 * time, so its characters can't be guessed one by one.
+	 */
+	static String removeToken(String aTarget, String aToken)
+	{
+		if (aTarget == null || aToken == null || !aTarget.startsWith("/"))
+		{
+			return null;
+		}
+		int tokenEnd = aTarget.indexOf('/', 1);
+		if (tokenEnd < 0)
+		{
+			return null;
+		}
+		String token = aTarget.substring(1, tokenEnd);
+		int diff = token.length() ^ aToken.length();
+		for (int i = 0; i < token.length() && i < aToken.length(); i++)
+		{
+			diff |= token.charAt(i) ^ aToken.charAt(i);
+		}
+		return diff == 0 ? aTarget.substring(tokenEnd) : null;
+	}
+
+	/**
+	 * Returns the lower-case host of an absolute URL, without user info and port, or null if it has none.
+	 */
+	static String getHost(String aUrl)
+	{
+		int schemeEnd = aUrl.indexOf("://");
+		if (schemeEnd < 0)
+		{
+			return null;
+		}
+		int authorityStart = schemeEnd + 3;
+		int authorityEnd = aUrl.length();
+		for (int i = authorityStart; i < aUrl.length(); i++)
+		{
+			char c = aUrl.charAt(i);
+			if (c == '/' || c == '?' || c == '#' || c == '\\')
+			{
+				authorityEnd = i;
+				break;
+			}
+		}
+		String host = aUrl.substring(authorityStart, authorityEnd);
+		host = host.substring(host.lastIndexOf('@') + 1);
+		if (host.startsWith("["))
+		{
+			int bracket = host.indexOf(']');
+			host = bracket > 0 ? host.substring(0, bracket + 1) : host;
+		}
+		else if (host.indexOf(':') >= 0)
+		{
+			host = host.substring(0, host.indexOf(':'));
+		}
+		return host.length() > 0 ? host.toLowerCase(Locale.US) : null;
+	}
+
+	/**
+	 * Returns true if streams may be fetched from the origin of a URL, see {@link #setAllowedHosts(String...)}.
+	 */
+	private boolean isAllowed(String aUrl)
+	{
+		Set<String> allowedHosts = mAllowedHosts;
+		if (allowedHosts == null)
+		{
+			return true;
+		}
+		String host = getHost(aUrl);
+		if (host == null)
+		{
+			return false;
+		}
+		for (String allowed : allowedHosts)
+		{
+			if (host.equals(allowed) || host.endsWith("." + allowed))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses a Range header value with a single range, "bytes=first-" or "bytes=first-last".
+	 *
+	 * @return first byte and last byte or -1, or null if the value is missing or not supported
+	 */
+	static long[] parseRange(String aValue)
+	{
+		if (aValue == null || !aValue.startsWith("bytes=") || aValue.indexOf(',') >= 0)
+		{
+			return null;
+		}
+		int dash = aValue.indexOf('-');
+		if (dash <= 6)
+		{
+			// No range or a suffix range, whose stream length is not known yet.
+			return null;
+		}
+		try
+		{
+			long first = Long.parseLong(aValue.substring(6, dash).trim());
+			String lastValue = aValue.substring(dash + 1).trim();
+			long last = lastValue.length() == 0 ? -1 : Long.parseLong(lastValue);
+			if (first < 0 || (last >= 0 && last < first))
+			{
+				return null;
+			}
+			return new long[] { first, last };
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	private void acceptLoop(ServerSocket aServerSocket)
+	{
+		while (!aServerSocket.isClosed())
+		{
+			final Socket socket;
+			try
+			{
+				socket = aServerSocket.accept();
+			}
+			catch (IOException e)
+			{
+				// Closed by stop().
+				break;
+			}
+			try
+			{
+				mConnectionService.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handleConnection(socket);
+					}
+				});
+			}
+			catch (RuntimeException e)
+			{
+				// Rejected after stop().
+				closeSocket(socket);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Serves one request of a player, then closes the connection.
+	 */
+	private void handleConnection(Socket aSocket)
+	{
+		synchronized (mSockets)
+		{
+			mSockets.add(aSocket);
+		}
+		try
+		{
+			aSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
+			InputStream in = new BufferedInputStream(aSocket.getInputStream());
+			OutputStream out = new BufferedOutputStream(aSocket.getOutputStream(), 16 * 1024);
+
+			String requestLine = readLine(in);
+			if (requestLine == null)
+			{
+				return;
+			}
+			String range = null;
+			int headLength = requestLine.length();
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0)
+			{
+				headLength += line.length();
+				if (headLength > MAX_HEAD_LENGTH)
+				{
+					throw new IOException("Request head too long");
+				}
+				int colon = line.indexOf(':');
+				if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range"))
+				{
+					range = line.substring(colon + 1).trim();
+				}
+			}
+
+			String[] parts = requestLine.split(" ");
+			String target = parts.length >= 2 ? removeToken(parts[1], mToken) : null;
+			String url = target != null ? getOriginUrl(target) : null;
+			if (target == null)
+			{
+				KCLog.d("Proxy refused a request without its token");
+				writeHead(out, KCHttpStatus.HTTP_FORBIDDEN, new ArrayList<KCHeader>());
+			}
+			else if (url == null)
+			{
+				writeHead(out, KCHttpStatus.HTTP_NOT_FOUND, new ArrayList<KCHeader>());
+			}
+			else if (!isAllowed(url))
+			{
+				KCLog.d("Proxy refused a request for %s, not an allowed host", url);
+				writeHead(out, KCHttpStatus.HTTP_FORBIDDEN, new ArrayList<KCHeader>());
+			}
+			else if (!parts[0].equals("GET") && !parts[0].equals("HEAD"))
+			{
+				writeHead(out, KCHttpStatus.HTTP_METHOD_NOT_ALLOWED, new ArrayList<KCHeader>());
+			}
+			else
+			{
+				serve(url, parseRange(range), parts[0].equals("HEAD"), out);
+			}
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			// Players close connections to seek, nothing to do.
+			KCLog.v("Proxy connection closed: %s", e.toString());
+		}
+		finally
+		{
+			synchronized (mSockets)
+			{
+				mSockets.remove(aSocket);
+			}
+			closeSocket(aSocket);
+		}
+	}
+
+	/**
+	 * Sends a range of a stream, or the whole stream if aRange is null, chunk by chunk.
+	 */
+	private void serve(String aUrl, long[] aRange, boolean aHeadOnly, OutputStream aOut) throws IOException
+	{
+		KCCacheKeyBuilder cacheKeyBuilder = mCacheKeyBuilder;
+		String key = cacheKeyBuilder != null ? cacheKeyBuilder.canonicalize(aUrl) : aUrl;
+		long start = aRange != null ? aRange[0] : 0;
+		long end = aRange != null ? aRange[1] : -1;
+
+		KCHttpResponse first;
+		try
+		{
+			first = readRange(key, aUrl, start, chunkEnd(start, end));
+		}
+		catch (KCNetError e)
+		{
+			// Pass the status of the origin on, e.g. 416 for a range beyond the stream.
+			int status = e.networkResponse != null ? e.networkResponse.getStatusCode() : 0;
+			if (status < 400 || status >= 600)
+			{
+				status = KCHttpStatus.HTTP_BAD_GATEWAY;
+			}
+			KCLog.d("Proxy could not fetch %s: %s", aUrl, e.toString());
+			writeHead(aOut, status, new ArrayList<KCHeader>());
+			return;
+		}
+		KCHeaderGroup firstHeaders = first.getHeaderGroup();
+		long[] contentRange = KCCacheSparse.parseContentRange(firstHeaders.get("Content-Range"));
+		if (contentRange == null || contentRange[2] < 0)
+		{
+			KCLog.d("Proxy can't serve %s of unknown length", aUrl);
+			writeHead(aOut, KCHttpStatus.HTTP_BAD_GATEWAY, new ArrayList<KCHeader>());
+			return;
+		}
+		long length = contentRange[2];
+		end = end < 0 ? length - 1 : Math.min(end, length - 1);
+
+		List<KCHeader> headers = new ArrayList<KCHeader>();
+		copyHeader(firstHeaders, "Content-Type", headers);
+		copyHeader(firstHeaders, "ETag", headers);
+		copyHeader(firstHeaders, "Last-Modified", headers);
+		headers.add(new KCHeader("Accept-Ranges", "bytes"));
+		headers.add(new KCHeader("Content-Length", String.valueOf(end - start + 1)));
+		if (aRange != null)
+		{
+			headers.add(new KCHeader("Content-Range", "bytes " + start + "-" + end + "/" + length));
+		}
+		writeHead(aOut, aRange != null ? KCHttpStatus.HTTP_PARTIAL_CONTENT : KCHttpStatus.HTTP_OK, headers);
+		if (aHeadOnly)
+		{
+			return;
+		}
+
+		String etag = firstHeaders.get("ETag");
+		KCHttpResponse response = first;
+		long pos = start;
+		while (true)
+		{
+			byte[] data = response.getContent();
+			aOut.write(data);
+			mServedBytes.addAndGet(data.length);
+			pos += data.length;
+			// Past the end of the range too, players request the next range next.
+			readAhead(key, aUrl, pos, length - 1);
+			if (pos > end)
+			{
+				break;
+			}
+
+			try
+			{
+				response = readRange(key, aUrl, pos, chunkEnd(pos, end));
+			}
+			catch (KCNetError e)
+			{
+				throw new IOException("Could not fetch " + aUrl + ": " + e.toString());
+			}
+			String chunkEtag = response.getHeaderGroup().get("ETag");
+			if (etag != null && !etag.equals(chunkEtag))
+			{
+				// The stream changed while playing, the player has to request it again.
+				throw new IOException("Stream changed: " + aUrl);
+			}
+		}
+	}
+
+	private long chunkEnd(long aStart, long aEnd)
+	{
+		long chunkEnd = aStart + mChunkSize - 1;
+		return aEnd >= 0 ? Math.min(chunkEnd, aEnd) : chunkEnd;
+	}
+
+	/**
+	 * Returns a range of a stream from the cache, fetching the missing bytes first.
+	 *
+	 * @return a 206 response with the range, shorter at the end of the stream
+	 * @throws KCNetError
+	 *             if the range could not be fetched
+	 */
+	private KCHttpResponse readRange(String aKey, String aUrl, long aStart, long aEnd) throws KCNetError
+	{
+		KCHttpResponse uncached = fetchMissing(aKey, aUrl, aStart, aEnd);
+		KCHttpResponse response = mCache.getResponse(aKey, aStart, aEnd);
+		if (response != null)
+		{
+			return response;
+		}
+
+		// Not cacheable, or evicted meanwhile: serve it from a response.
+		response = uncached != null ? toRange(uncached, aStart, aEnd) : null;
+		if (response == null)
+		{
+			KCHttpResponse fetched = mNetwork.performRequest(new KCProxyRequest(aUrl, aStart, aEnd, null), NO_DELIVERY);
+			mFetchedBytes.addAndGet(fetched.getContent() != null ? fetched.getContent().length : 0);
+			response = toRange(fetched, aStart, aEnd);
+		}
+		if (response == null)
+		{
+			throw new KCNetError("Unexpected response for a range of " + aUrl);
+		}
+		return response;
+	}
+
+	/**
+	 * Fetches the bytes of a range missing from the cache and stores them.
+	 *
+	 * @return the last response if it could not be stored, or null
+	 */
+	private KCHttpResponse fetchMissing(String aKey, String aUrl, long aStart, long aEnd) throws KCNetError
+	{
+		Object lock;
+		synchronized (mFetchLocks)
+		{
+			lock = mFetchLocks.get(aKey);
+			if (lock == null)
+			{
+				lock = new Object();
+				mFetchLocks.put(aKey, lock);
+			}
+		}
+
+		synchronized (lock)
+		{
+			for (long[] range : mCache.getMissingRanges(aKey, aStart, aEnd))
+			{
+				KCHttpResponse response = mNetwork.performRequest(new KCProxyRequest(aUrl, range[0], range[1], mCache.getValidator(aKey)),
+						NO_DELIVERY);
+				mFetchedBytes.addAndGet(response.getContent() != null ? response.getContent().length : 0);
+				if (!mCache.put(aKey, response))
+				{
+					return response;
+				}
+				if (response.getStatusCode() == KCHttpStatus.HTTP_OK)
+				{
+					// The whole stream.
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a 206 response with the part of a response in a range, or null if the response doesn't cover its start.
+	 */
+	private static KCHttpResponse toRange(KCHttpResponse aResponse, long aStart, long aEnd)
+	{
+		byte[] data = aResponse.getContent();
+		if (data == null)
+		{
+			return null;
+		}
+		long offset;
+		long length;
+		if (aResponse.getStatusCode() == KCHttpStatus.HTTP_PARTIAL_CONTENT)
+		{
+			long[] contentRange = KCCacheSparse.parseContentRange(aResponse.getHeaderGroup().get("Content-Range"));
+			if (contentRange == null)
+			{
+				return null;
+			}
+			offset = contentRange[0];
+			length = contentRange[2];
+		}
+		else if (aResponse.getStatusCode() == KCHttpStatus.HTTP_OK)
+		{
+			offset = 0;
+			length = data.length;
+		}
+		else
+		{
+			return null;
+		}
+
+		long last = Math.min(aEnd < 0 ? Long.MAX_VALUE : aEnd, offset + data.length - 1);
+		if (aStart < offset || aStart > last)
+		{
+			return null;
+		}
+		byte[] part = new byte[(int) (last - aStart + 1)];
+		System.arraycopy(data, (int) (aStart - offset), part, 0, part.length);
+
+		KCHttpResponse response = new KCHttpResponse(new KCStatusLine(new KCProtocolVersion("HTTP", 1, 1), KCHttpStatus.HTTP_PARTIAL_CONTENT,
+				"proxy response"));
+		copyHeader(aResponse.getHeaderGroup(), "Content-Type", response);
+		copyHeader(aResponse.getHeaderGroup(), "ETag", response);
+		copyHeader(aResponse.getHeaderGroup(), "Last-Modified", response);
+		response.addHeader(new KCHeader("Content-Range", "bytes " + aStart + "-" + last + "/" + (length >= 0 ? length : "*")));
+		KCHttpContent content = new KCHttpContent();
+		content.setContent(part);
+		response.setContent(content);
+		return response;
+	}
+
+	/**
+	 * Reads ahead of the playback position of a stream in the background. A stream being read ahead moves its window to the new position.
+	 */
+	private void readAhead(final String aKey, final String aUrl, long aPos, long aEnd)
+	{
+		int readAheadBytes = mReadAheadBytes;
+		if (readAheadBytes <= 0 || aPos > aEnd)
+		{
+			return;
+		}
+		long windowEnd = Math.min(aPos + readAheadBytes - 1, aEnd);
+		synchronized (mReadAheadWindows)
+		{
+			long[] window = mReadAheadWindows.get(aKey);
+			if (window != null)
+			{
+				window[0] = aPos;
+				window[1] = windowEnd;
+				return;
+			}
+			mReadAheadWindows.put(aKey, new long[] { aPos, windowEnd });
+		}
+
+		try
+		{
+			mReadAheadService.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					readAheadLoop(aKey, aUrl);
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// Rejected after stop().
+			synchronized (mReadAheadWindows)
+			{
+				mReadAheadWindows.remove(aKey);
+			}
+		}
+	}
+
+	private void readAheadLoop(String aKey, String aUrl)
+	{
+		while (!Thread.currentThread().isInterrupted())
+		{
+			long pos;
+			long end;
+			synchronized (mReadAheadWindows)
+			{
+				long[] window = mReadAheadWindows.get(aKey);
+				if (window == null || window[0] > window[1])
+				{
+					mReadAheadWindows.remove(aKey);
+					return;
+				}
+				pos = window[0];
+				end = chunkEnd(pos, window[1]);
+			}
+
+			try
+			{
+				fetchMissing(aKey, aUrl, pos, end);
+			}
+			catch (KCNetError e)
+			{
+				KCLog.d("Proxy could not read ahead %s: %s", aUrl, e.toString());
+				synchronized (mReadAheadWindows)
+				{
+					mReadAheadWindows.remove(aKey);
+				}
+				return;
+			}
+
+			synchronized (mReadAheadWindows)
+			{
+				long[] window = mReadAheadWindows.get(aKey);
+				if (window != null && window[0] == pos)
+				{
+					window[0] = end + 1;
+				}
+			}
+		}
+		synchronized (mReadAheadWindows)
+		{
+			mReadAheadWindows.remove(aKey);
+		}
+	}
+
+	private static void copyHeader(KCHeaderGroup aHeaders, String aName, List<KCHeader> aTo)
+	{
+		String value = aHeaders.get(aName);
+		if (value != null)
+		{
+			aTo.add(new KCHeader(aName, value));
+		}
+	}
+
+	private static void copyHeader(KCHeaderGroup aHeaders, String aName, KCHttpResponse aTo)
+	{
+		String value = aHeaders.get(aName);
+		if (value != null)
+		{
+			aTo.addHeader(new KCHeader(aName, value));
+		}
+	}
+
+	private static void writeHead(OutputStream aOut, int aStatus, List<KCHeader> aHeaders) throws IOException
+	{
+		String reason = KCReasonPhraseCatalog.INSTANCE.getReason(aStatus, null);
+		StringBuilder head = new StringBuilder(256);
+		head.append("HTTP/1.1 ").append(aStatus).append(' ').append(reason != null ? reason : "").append("\r\n");
+		for (KCHeader header : aHeaders)
+		{
+			head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		if (aStatus >= 300)
+		{
+			head.append("Content-Length: 0\r\n");
+		}
+		head.append("Connection: close\r\n\r\n");
+		aOut.write(head.toString().getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * Reads a line of a request head, without its line terminator.
+	 *
+	 * @return the line, or null at the end of the stream
+	 */
+	private static String readLine(InputStream aIn) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = aIn.read()) >= 0)
+		{
+			if (b == '\n')
+			{
+				String value = line.toString("ISO-8859-1");
+				return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+			}
+			if (line.size() >= MAX_LINE_LENGTH)
+			{
+				throw new IOException("Request line too long");
+			}
+			line.write(b);
+		}
+		return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+	}
+
+	/**
+	 * Returns a random token for the proxy URLs, in hex.
+	 */
+	private static String newToken()
+	{
+		byte[] bytes = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		char[] token = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			token[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			token[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(token);
+	}
+
+	private static void closeSocket(Socket aSocket)
+	{
+		try
+		{
+			aSocket.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing to do.
+		}
+	}
+}
@@ -1,9 +1,12 @@
 package com.kercer.kernet.http;
 
+import com.kercer.kernet.http.base.KCCacheControl;
 import com.kercer.kernet.http.base.KCHttpContent;
 import com.kercer.kernet.http.base.KCHttpStatus;
 import com.kercer.kernet.http.base.KCProtocolVersion;
 import com.kercer.kernet.http.base.KCStatusLine;
+import com.kercer.kernet.http.error.KCAuthFailureError;
+import com.kercer.kernet.http.error.KCCacheMissError;
 
 import java.util.concurrent.BlockingQueue;
 
@@ -47,18 +50,45 @@ public class KCCacheRunner
                 return false;
             }
 
+            KCHttpRequest.CachePolicy cachePolicy = request.getCachePolicy();
+            if (cachePolicy == KCHttpRequest.CachePolicy.NETWORK_ONLY)
+            {
+                request.addMarker("cache-skip-network-only");
+                mNetworkQueue.put(request);
+                return false;
+            }
+
             // Attempt to retrieve this item from cache.
             KCCache.KCEntry entry = mCache.get(request.getCacheKey());
+            if (entry != null && !varyMatches(entry, request))
+            {
+                // A variant for other request headers, the response will replace it.
+                request.addMarker("cache-vary-mismatch");
+                entry = null;
+            }
+            KCRequestQueue requestQueue = request.getRequestQueue();
+            KCParsedResultCache parsedResultCache = requestQueue != null ? requestQueue.getParsedResultCache() : null;
             if (entry == null)
             {
                 request.addMarker("cache-miss");
+                // The entry was removed, by key, tag or prefix, evicted or cleared: its parsed results are of no use any more.
+                if (parsedResultCache != null)
+                {
+                    parsedResultCache.remove(request.getCacheKey());
+                }
+                if (cachePolicy == KCHttpRequest.CachePolicy.CACHE_ONLY)
+                {
+                    // Nothing to deliver and not allowed to ask the network.
+                    mDelivery.postError(request, new KCCacheMissError("No cached response for " + request.getCacheKey()));
+                    return false;
+                }
                 // Cache miss; send off to the network dispatcher.
                 mNetworkQueue.put(request);
                 return false;
             }
 
-            // If it is completely expired, just send it to the network.
-            if (entry.isExpired())
+            // If it is completely expired, just send it to the network, unless the policy delivers it anyway.
+            if (entry.isExpired() && cachePolicy == KCHttpRequest.CachePolicy.DEFAULT)
             {
                 request.addMarker("cache-hit-expired");
                 request.setCacheEntry(entry);
@@ -66,32 +96,68 @@ public class KCCacheRunner
                 return false;
             }
 
+            if (request.isPrefetch())
+            {
+                // Nobody reads a prefetch; a fresh entry is all it wants, a soft-expired one is refreshed without parsing it.
+                if (!entry.refreshNeeded())
+                {
+                    request.finish("prefetch-cache-hit");
+                    return false;
+                }
+                request.addMarker("prefetch-cache-refresh");
+                request.setCacheEntry(entry);
+                mNetworkQueue.put(request);
+                return false;
+            }
+
             // We have a cache hit; parse its data for delivery back to the request.
             request.addMarker("cache-hit");
+            KCPrefetcher prefetcher = requestQueue != null ? requestQueue.getPrefetcher() : null;
+            if (prefetcher != null)
+            {
+                prefetcher.onCacheHit(request.getCacheKey());
+            }
 
-            KCStatusLine responseStatus = new KCStatusLine(new KCProtocolVersion("HTTP", 1, 1), KCHttpStatus.HTTP_OK, "cache response");
-            KCHttpResponse networkResponse = new KCHttpResponse(responseStatus);
-            KCHttpContent httpEntity = new KCHttpContent();
-            httpEntity.setContent(entry.data);
-            networkResponse.setHeaders(entry.responseHeaders.getAllHeaders());
-            networkResponse.setContent(httpEntity);
+            KCHttpResponse networkResponse = responseForCacheEntry(entry);
 
             KCHttpResult<?> result = KCHttpResult.empty();
             KCHttpResponseParser httpResponseParser = request.getResponseParser();
-            if (httpResponseParser != null)
+            KCHttpResult<?> parsedResult = null;
+            if (parsedResultCache != null && httpResponseParser != null)
+            {
+                parsedResult = parsedResultCache.get(request.getCacheKey(), entry, httpResponseParser);
+            }
+            if (parsedResult != null)
             {
+                result = parsedResult;
+                request.addMarker("cache-hit-parsed-result");
+            }
+            else if (httpResponseParser != null)
+            {
+                long parseStartNanos = System.nanoTime();
                 result = httpResponseParser.parseHttpResponse(networkResponse);
+                if (parsedResultCache != null)
+                {
+                    parsedResultCache.put(request.getCacheKey(), entry, httpResponseParser, result, System.nanoTime() - parseStartNanos);
+                }
             }
             request.addMarker("cache-hit-parsed");
 
-            if (!entry.refreshNeeded())
+            boolean refresh = (cachePolicy == KCHttpRequest.CachePolicy.CACHE_THEN_NETWORK && !isFreshImmutable(entry))
+                    || (cachePolicy == KCHttpRequest.CachePolicy.DEFAULT && entry.refreshNeeded());
+            if (!refresh)
             {
-                // Completely unexpired cache hit. Just deliver the response.
+                // Completely unexpired cache hit, or cache only. Just deliver the response, to the waiting duplicates as well unless it
+                // is expired and only good enough for this request.
+                if (requestQueue != null && !entry.isExpired())
+                {
+                    requestQueue.deliverToWaitingRequests(request, networkResponse, result);
+                }
                 mDelivery.postResponse(request, networkResponse,  result);
             }
             else
             {
-                // Soft-expired cache hit. We can deliver the cached response,
+                // Soft-expired cache hit, or cache then network. We can deliver the cached response,
                 // but we need to also send the request to the network for
                 // refreshing.
                 request.addMarker("cache-hit-refresh-needed");
@@ -126,4 +192,45 @@ public class KCCacheRunner
 
         return true;
     }
+
+    /**
+     * Returns whether the request has the values of the headers the response of the entry varies on.
+     */
+    static boolean varyMatches(KCCache.KCEntry entry, KCHttpRequest<?> request)
+    {
+        try
+        {
+            return KCHttpHeaderParser.varyMatches(entry.responseHeaders, entry.varyHeaders, request.getHeaders());
+        }
+        catch (KCAuthFailureError e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the entry is fresh and its response marked immutable, so refreshing it could only return the same response.
+     */
+    private static boolean isFreshImmutable(KCCache.KCEntry entry)
+    {
+        return !entry.refreshNeeded() && KCCacheControl.parse(entry.responseHeaders.get("Cache-Control")).immutable;
+    }
+
+    /**
+     * Builds the response delivered for a cache entry.
+     *
+     * @param entry
+     *            the cache entry
+     * @return a 200 response with the headers and data of the entry
+     */
+    static KCHttpResponse responseForCacheEntry(KCCache.KCEntry entry)
+    {
+        KCStatusLine responseStatus = new KCStatusLine(new KCProtocolVersion("HTTP", 1, 1), KCHttpStatus.HTTP_OK, "cache response");
+        KCHttpResponse response = new KCHttpResponse(responseStatus);
+        KCHttpContent httpEntity = new KCHttpContent();
+        httpEntity.setContent(entry.data);
+        response.setHeaders(entry.responseHeaders.getAllHeaders());
+        response.setContent(httpEntity);
+        return response;
+    }
 }
@@ -0,0 +1,549 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment files packing the small entries of a {@link KCCacheDisk}, so they don't each cost a file.
+ *
+ * <p>
+ * A segment is a sequence of records: an int magic, the int length and CRC32 of the payload, then the payload. The payload of an entry record is
+ * its cache header followed by its data; the payload of a tombstone is the key of a removed entry. When segments are scanned in order, later
+ * records of a key supersede earlier ones and a tombstone removes it. Records torn by a crash fail their CRC and end the scan of their segment.
+ * </p>
+ *
+ * <p>
+ * Records are never rewritten. Superseded records are released, and sealed segments which became mostly garbage are compacted: their live records
+ * are appended to the active segment and the segment file is deleted. Not thread safe; the cache calls it with its lock held.
+ * </p>
+ */
+class KCCacheSegments
+{
+	/** Name of the directory of the segment files. */
+	static final String DIRECTORY = "segments";
+
+	/** Magic numbers of entry and tombstone records. */
+	private static final int ENTRY_MAGIC = 0x4b435345;
+	private static final int TOMBSTONE_MAGIC = 0x4b435354;
+
+	/** Size of the magic, length and CRC preceding a payload. */
+	static final int RECORD_OVERHEAD = 12;
+
+	/** Size above which the active segment is sealed and a new one started. */
+	private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Share of live bytes under which a sealed segment is compacted. */
+	private static final float COMPACTION_THRESHOLD = 0.5f;
+
+	/** Receives the records of the segments while scanning. */
+	interface KCSegmentVisitor
+	{
+		/** Called for an entry record; the header has its location set. */
+		void onEntry(KCCacheHeader aHeader);
+
+		/** Called for a tombstone. */
+		void onTombstone(String aKey);
+	}
+
+	/** A segment file and its bookkeeping. */
+	private static class KCSegment
+	{
+		final int id;
+		final File file;
+		long length;
+
+		/** Length of the entry records which haven't been superseded or removed. */
+		long liveBytes;
+
+		KCSegment(int aId, File aFile, long aLength)
+		{
+			id = aId;
+			file = aFile;
+			length = aLength;
+		}
+	}
+
+	private final File mDirectory;
+
+	/** Segments by id, the active one last. */
+	private final TreeMap<Integer, KCSegment> mSegments = new TreeMap<Integer, KCSegment>();
+
+	/** The segment appended to, or null before the first append. */
+	private KCSegment mActive;
+	private RandomAccessFile mActiveFile;
+
+	/** Id of the next segment. Never reused, not even after {@link #forget()}, so a stale location can't point into a new segment. */
+	private int mNextId = 1;
+
+	KCCacheSegments(File aRootDirectory)
+	{
+		mDirectory = new File(aRootDirectory, DIRECTORY);
+	}
+
+	/**
+	 * Scans the segment files in order, reporting their records. Truncates the torn tail of a segment.
+	 */
+	void scan(KCSegmentVisitor aVisitor)
+	{
+		close();
+		mSegments.clear();
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			try
+			{
+				int id = Integer.parseInt(file.getName());
+				mSegments.put(id, new KCSegment(id, file, file.length()));
+				mNextId = Math.max(mNextId, id + 1);
+			}
+			catch (NumberFormatException e)
+			{
+				// Not a segment, e.g. a temporary file of a compaction.
+				file.delete();
+			}
+		}
+
+		for (KCSegment segment : mSegments.values())
+		{
+			long validLength = scanSegment(segment, aVisitor);
+			if (validLength < segment.length)
+			{
+				KCLog.d("Truncating segment %s from %d to %d bytes", segment.file.getName(), segment.length, validLength);
+				truncate(segment.file, validLength);
+				segment.length = validLength;
+			}
+		}
+	}
+
+	private long scanSegment(KCSegment aSegment, KCSegmentVisitor aVisitor)
+	{
+		InputStream is = null;
+		long offset = 0;
+		try
+		{
+			is = new BufferedInputStream(new FileInputStream(aSegment.file));
+			while (offset < aSegment.length)
+			{
+				int magic;
+				try
+				{
+					magic = KCCacheStreams.readInt(is);
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				int payloadLength = KCCacheStreams.readInt(is);
+				int crc = KCCacheStreams.readInt(is);
+				if ((magic != ENTRY_MAGIC && magic != TOMBSTONE_MAGIC) || payloadLength < 0 || offset + RECORD_OVERHEAD + payloadLength > aSegment.length)
+				{
+					break;
+				}
+				byte[] payload = new byte[payloadLength];
+				readFully(is, payload);
+				if (crc != crc(payload))
+				{
+					break;
+				}
+
+				int recordLength = RECORD_OVERHEAD + payloadLength;
+				if (magic == ENTRY_MAGIC)
+				{
+					KCCacheHeader header = KCCacheHeader.readHeader(new ByteArrayInputStream(payload));
+					header.segment = aSegment.id;
+					header.offset = offset;
+					header.size = recordLength;
+					aSegment.liveBytes += recordLength;
+					aVisitor.onEntry(header);
+				}
+				else
+				{
+					aVisitor.onTombstone(KCCacheStreams.readString(new ByteArrayInputStream(payload)));
+				}
+				offset += recordLength;
+			}
+		}
+		catch (IOException e)
+		{
+			KCLog.d("%s: %s", aSegment.file.getAbsolutePath(), e.toString());
+		}
+		finally
+		{
+			closeQuietly(is);
+		}
+		return offset;
+	}
+
+	/**
+	 * Appends an entry record and sets the location of the header: its segment, offset and record size.
+	 */
+	void appendEntry(KCCacheHeader aHeader, byte[] aData) throws IOException
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(256 + (aData != null ? aData.length : 0));
+		if (!aHeader.writeHeader(payload, false))
+		{
+			throw new IOException("Failed to write header for " + aHeader.key);
+		}
+		if (aData != null)
+		{
+			payload.write(aData);
+		}
+		byte[] bytes = payload.toByteArray();
+		long offset = append(ENTRY_MAGIC, bytes);
+		aHeader.segment = mActive.id;
+		aHeader.offset = offset;
+		aHeader.size = RECORD_OVERHEAD + bytes.length;
+		mActive.liveBytes += aHeader.size;
+	}
+
+	/**
+	 * Appends a tombstone removing the entry records of a key in earlier segments.
+	 */
+	void appendTombstone(String aKey) throws IOException
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+		KCCacheStreams.writeString(payload, aKey);
+		append(TOMBSTONE_MAGIC, payload.toByteArray());
+	}
+
+	private long append(int aMagic, byte[] aPayload) throws IOException
+	{
+		if (mActive == null || mActive.length >= MAX_SEGMENT_SIZE)
+		{
+			startSegment();
+		}
+		byte[] record = new byte[RECORD_OVERHEAD + aPayload.length];
+		putInt(record, 0, aMagic);
+		putInt(record, 4, aPayload.length);
+		putInt(record, 8, crc(aPayload));
+		System.arraycopy(aPayload, 0, record, RECORD_OVERHEAD, aPayload.length);
+
+		long offset = mActive.length;
+		mActiveFile.seek(offset);
+		mActiveFile.write(record);
+		mActive.length += record.length;
+		return offset;
+	}
+
+	private void startSegment() throws IOException
+	{
+		close();
+		if (!mDirectory.exists() && !mDirectory.mkdirs())
+		{
+			throw new IOException("Unable to create " + mDirectory.getAbsolutePath());
+		}
+		int id = mNextId++;
+		KCSegment segment = new KCSegment(id, new File(mDirectory, String.valueOf(id)), 0);
+		mActiveFile = new RandomAccessFile(segment.file, "rw");
+		mActiveFile.setLength(0);
+		mSegments.put(id, segment);
+		mActive = segment;
+	}
+
+	/**
+	 * Reads the data of an entry record.
+	 *
+	 * @return the data, or null if the entry has none
+	 * @throws IOException
+	 *             if the record can't be read or doesn't hold the entry
+	 */
+	byte[] readData(KCCacheHeader aHeader) throws IOException
+	{
+		byte[] payload = readPayload(aHeader.segment, aHeader.offset, ENTRY_MAGIC);
+		ByteArrayInputStream is = new ByteArrayInputStream(payload);
+		KCCacheHeader stored = KCCacheHeader.readHeader(is);
+		if (!aHeader.key.equals(stored.key))
+		{
+			throw new IOException("Record of " + stored.key + " found for " + aHeader.key);
+		}
+		int length = is.available();
+		if (length == 0)
+		{
+			return null;
+		}
+		byte[] data = new byte[length];
+		readFully(is, data);
+		return data;
+	}
+
+	private byte[] readPayload(int aSegment, long aOffset, int aMagic) throws IOException
+	{
+		KCSegment segment = mSegments.get(aSegment);
+		if (segment == null)
+		{
+			throw new IOException("No segment " + aSegment);
+		}
+		RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+		try
+		{
+			file.seek(aOffset);
+			byte[] recordHeader = new byte[RECORD_OVERHEAD];
+			file.readFully(recordHeader);
+			int payloadLength = getInt(recordHeader, 4);
+			if (getInt(recordHeader, 0) != aMagic || payloadLength < 0 || aOffset + RECORD_OVERHEAD + payloadLength > segment.length)
+			{
+				throw new IOException("Bad record at " + aOffset + " of segment " + aSegment);
+			}
+			byte[] payload = new byte[payloadLength];
+			file.readFully(payload);
+			if (getInt(recordHeader, 8) != crc(payload))
+			{
+				throw new IOException("Bad CRC at " + aOffset + " of segment " + aSegment);
+			}
+			return payload;
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Releases an entry record which was superseded or removed.
+	 */
+	void release(KCCacheHeader aHeader)
+	{
+		KCSegment segment = mSegments.get(aHeader.segment);
+		if (segment != null)
+		{
+			segment.liveBytes -= aHeader.size;
+		}
+	}
+
+	/**
+	 * Returns the id of a sealed segment worth compacting.
+	 *
+	 * @return the id, or -1 if there is none
+	 */
+	int findCompactionCandidate()
+	{
+		for (KCSegment segment : mSegments.values())
+		{
+			if (segment != mActive && (segment.length == 0 || segment.liveBytes < segment.length * COMPACTION_THRESHOLD))
+			{
+				return segment.id;
+			}
+		}
+		return -1;
+	}
+
+	/** A record read for compaction. */
+	static class KCSegmentRecord
+	{
+		long offset;
+		String key;
+		boolean tombstone;
+		byte[] payload;
+	}
+
+	/**
+	 * Reads the records of a sealed segment. The segment is immutable, so this may run without the cache lock.
+	 */
+	List<KCSegmentRecord> readRecords(int aSegment) throws IOException
+	{
+		File file = new File(mDirectory, String.valueOf(aSegment));
+		List<KCSegmentRecord> records = new ArrayList<KCSegmentRecord>();
+		InputStream is = new BufferedInputStream(new FileInputStream(file));
+		try
+		{
+			long offset = 0;
+			long length = file.length();
+			while (offset < length)
+			{
+				int magic = KCCacheStreams.readInt(is);
+				int payloadLength = KCCacheStreams.readInt(is);
+				int crc = KCCacheStreams.readInt(is);
+				// Checked before allocating, a corrupt length mustn't allocate up to 2GB.
+				if ((magic != ENTRY_MAGIC && magic != TOMBSTONE_MAGIC) || payloadLength < 0 || offset + RECORD_OVERHEAD + payloadLength > length)
+				{
+					throw new IOException("Bad record at " + offset + " of segment " + aSegment);
+				}
+				byte[] payload = new byte[payloadLength];
+				readFully(is, payload);
+				if (crc != crc(payload))
+				{
+					throw new IOException("Bad CRC at " + offset + " of segment " + aSegment);
+				}
+				KCSegmentRecord record = new KCSegmentRecord();
+				record.offset = offset;
+				record.tombstone = magic == TOMBSTONE_MAGIC;
+				record.key = record.tombstone ? KCCacheStreams.readString(new ByteArrayInputStream(payload))
+						: KCCacheHeader.readHeader(new ByteArrayInputStream(payload)).key;
+				record.payload = payload;
+				records.add(record);
+				offset += RECORD_OVERHEAD + payloadLength;
+			}
+		}
+		finally
+		{
+			closeQuietly(is);
+		}
+		return records;
+	}
+
+	/**
+	 * Copies a live entry record of a segment being compacted to the active segment and updates the location of its header.
+	 */
+	void moveEntry(KCSegmentRecord aRecord, KCCacheHeader aHeader) throws IOException
+	{
+		release(aHeader);
+		long offset = append(ENTRY_MAGIC, aRecord.payload);
+		aHeader.segment = mActive.id;
+		aHeader.offset = offset;
+		aHeader.size = RECORD_OVERHEAD + aRecord.payload.length;
+		mActive.liveBytes += aHeader.size;
+	}
+
+	/**
+	 * Copies a tombstone of a segment being compacted to the active segment, if older segments may still hold records it removes.
+	 */
+	void moveTombstone(KCSegmentRecord aRecord, int aSegment) throws IOException
+	{
+		if (mSegments.firstKey() < aSegment)
+		{
+			append(TOMBSTONE_MAGIC, aRecord.payload);
+		}
+	}
+
+	/**
+	 * Deletes a compacted segment.
+	 */
+	void delete(int aSegment)
+	{
+		KCSegment segment = mSegments.remove(aSegment);
+		if (segment != null && !segment.file.delete())
+		{
+			KCLog.d("Could not delete segment %s", segment.file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return the total length of the segment files in bytes.
+	 */
+	long getTotalLength()
+	{
+		long length = 0;
+		for (KCSegment segment : mSegments.values())
+		{
+			length += segment.length;
+		}
+		return length;
+	}
+
+	/**
+	 * Forgets all segments without deleting them, e.g. after their directory was moved away.
+	 */
+	void forget()
+	{
+		close();
+		mSegments.clear();
+	}
+
+	private void close()
+	{
+		if (mActiveFile != null)
+		{
+			try
+			{
+				mActiveFile.close();
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+		mActiveFile = null;
+		mActive = null;
+	}
+
+	private static void truncate(File aFile, long aLength)
+	{
+		RandomAccessFile file = null;
+		try
+		{
+			file = new RandomAccessFile(aFile, "rw");
+			file.setLength(aLength);
+		}
+		catch (IOException e)
+		{
+			KCLog.d("%s: %s", aFile.getAbsolutePath(), e.toString());
+		}
+		finally
+		{
+			if (file != null)
+			{
+				try
+				{
+					file.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+	}
+
+	private static int crc(byte[] aBytes)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(aBytes, 0, aBytes.length);
+		return (int) crc.getValue();
+	}
+
+	private static void putInt(byte[] aBytes, int aOffset, int aValue)
+	{
+		aBytes[aOffset] = (byte) aValue;
+		aBytes[aOffset + 1] = (byte) (aValue >> 8);
+		aBytes[aOffset + 2] = (byte) (aValue >> 16);
+		aBytes[aOffset + 3] = (byte) (aValue >> 24);
+	}
+
+	private static int getInt(byte[] aBytes, int aOffset)
+	{
+		return (aBytes[aOffset] & 0xff) | (aBytes[aOffset + 1] & 0xff) << 8 | (aBytes[aOffset + 2] & 0xff) << 16 | (aBytes[aOffset + 3] & 0xff) << 24;
+	}
+
+	private static void readFully(InputStream aIs, byte[] aBytes) throws IOException
+	{
+		int pos = 0;
+		while (pos < aBytes.length)
+		{
+			int count = aIs.read(aBytes, pos, aBytes.length - pos);
+			if (count == -1)
+			{
+				throw new EOFException();
+			}
+			pos += count;
+		}
+	}
+
+	private static void closeQuietly(InputStream aIs)
+	{
+		if (aIs != null)
+		{
+			try
+			{
+				aIs.close();
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+	}
+}
@@ -0,0 +1,653 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kercore.debug.KCLog;
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCHttpDate;
+import com.kercer.kernet.http.base.KCHttpStatus;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+import com.kercer.kernet.http.base.KCStatusLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A cache of the byte ranges received for resources, e.g. the parts of a video a preview played, serving range requests of the
+ * {@link KCRequestQueue} which cover received ranges without the network. See {@link KCHttpRequest#setRange(long, long)}.
+ *
+ * <p>
+ * Each resource has a directory named by the MD5 of its key, holding a data file with the received bytes at their offsets in the resource, sparse
+ * on file systems which support it, and a meta file with its validators, response headers and received ranges. Overlapping and adjacent ranges
+ * are merged. When a response shows the resource changed, by its ETag, Last-Modified or length, the ranges received before are dropped.
+ * </p>
+ *
+ * <p>
+ * The received bytes of all resources are kept under a maximum size, evicting the least recently used resources.
+ * </p>
+ */
+public class KCCacheSparse
+{
+	/** Magic number of the meta files. */
+	private static final int SPARSE_MAGIC = 0x4b435350;
+
+	/** Names of the files of a resource. */
+	private static final String META_FILE = "meta";
+	private static final String DATA_FILE = "data";
+
+	/** The metadata and received ranges of a resource. */
+	private static class KCSparseEntry
+	{
+		String key;
+		String etag;
+		long lastModified;
+
+		/** Length of the resource, or -1 if unknown. */
+		long length = -1;
+
+		KCHeaderGroup responseHeaders = KCHeaderGroup.emptyHeaderGroup();
+
+		/** Received ranges, by start offset to end offset exclusive. Never overlapping nor adjacent. */
+		final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+		/** Number of received bytes. */
+		long size;
+	}
+
+	/** The root directory to use for the cache. */
+	private final File mRootDirectory;
+
+	/** The maximum number of received bytes. */
+	private final long mMaxSizeInBytes;
+
+	/** Number of received bytes of all resources. */
+	private long mTotalSize = 0;
+
+	/** Resources by key, in access order. */
+	private final LinkedHashMap<String, KCSparseEntry> mEntries = new LinkedHashMap<String, KCSparseEntry>(16, .75f, true);
+
+	/**
+	 * Constructs an instance of the KCCacheSparse at the specified directory.
+	 *
+	 * @param rootDirectory
+	 *            The root directory of the cache, not shared with another cache.
+	 * @param maxSizeInBytes
+	 *            The maximum number of received bytes of all resources.
+	 */
+	public KCCacheSparse(File rootDirectory, long maxSizeInBytes)
+	{
+		mRootDirectory = rootDirectory;
+		mMaxSizeInBytes = maxSizeInBytes;
+	}
+
+	/**
+	 * Reads the meta files of the resources. Call it on a worker thread before using the cache.
+	 */
+	public synchronized void initialize()
+	{
+		mEntries.clear();
+		mTotalSize = 0;
+		if (!mRootDirectory.exists())
+		{
+			if (!mRootDirectory.mkdirs())
+			{
+				KCLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+			}
+			return;
+		}
+
+		File[] directories = mRootDirectory.listFiles();
+		if (directories == null)
+		{
+			return;
+		}
+		// Least recently written first, the order of the index.
+		final long[] modified = new long[directories.length];
+		Integer[] order = new Integer[directories.length];
+		for (int i = 0; i < directories.length; i++)
+		{
+			modified[i] = new File(directories[i], META_FILE).lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer aLhs, Integer aRhs)
+			{
+				return modified[aLhs] < modified[aRhs] ? -1 : (modified[aLhs] == modified[aRhs] ? 0 : 1);
+			}
+		});
+
+		for (Integer i : order)
+		{
+			File directory = directories[i];
+			KCSparseEntry entry = readMeta(directory);
+			if (entry == null || !directory.getName().equals(KCCacheFiles.getFilenameForKey(entry.key)))
+			{
+				deleteDirectory(directory);
+				continue;
+			}
+			mEntries.put(entry.key, entry);
+			mTotalSize += entry.size;
+		}
+	}
+
+	/**
+	 * Returns the parts of a range which haven't been received.
+	 *
+	 * @param key
+	 *            The key of the resource
+	 * @param start
+	 *            First byte of the range
+	 * @param end
+	 *            Last byte of the range, inclusive, or -1 for the end of the resource
+	 * @return the missing ranges as pairs of first and last byte, the last -1 for the end of a resource of unknown length; empty if the range is
+	 *         cached
+	 */
+	public synchronized List<long[]> getMissingRanges(String key, long start, long end)
+	{
+		List<long[]> missing = new ArrayList<long[]>();
+		KCSparseEntry entry = mEntries.get(key);
+		if (entry == null)
+		{
+			missing.add(new long[] { start, end });
+			return missing;
+		}
+		if (entry.length >= 0)
+		{
+			if (start >= entry.length)
+			{
+				// Not satisfiable, let the server answer.
+				missing.add(new long[] { start, end });
+				return missing;
+			}
+			end = end < 0 ? entry.length - 1 : Math.min(end, entry.length - 1);
+		}
+
+		long pos = start;
+		Long floor = entry.ranges.floorKey(start);
+		for (Map.Entry<Long, Long> range : entry.ranges.tailMap(floor != null ? floor : start).entrySet())
+		{
+			if (end >= 0 && pos > end)
+			{
+				break;
+			}
+			long rangeStart = range.getKey();
+			long rangeEnd = range.getValue();
+			if (rangeEnd <= pos)
+			{
+				continue;
+			}
+			if (rangeStart > pos)
+			{
+				missing.add(new long[] { pos, end >= 0 ? Math.min(rangeStart - 1, end) : rangeStart - 1 });
+			}
+			pos = rangeEnd;
+		}
+		if (end < 0 || pos <= end)
+		{
+			missing.add(new long[] { pos, end });
+		}
+		return missing;
+	}
+
+	/**
+	 * Returns the validator of a resource for an If-Range header, so a range is only received if the resource didn't change since its other
+	 * ranges were: its strong ETag, or else its Last-Modified date.
+	 *
+	 * @param key
+	 *            The key of the resource
+	 * @return the validator, or null if there is none
+	 */
+	public synchronized String getValidator(String key)
+	{
+		KCSparseEntry entry = mEntries.get(key);
+		if (entry == null || entry.ranges.isEmpty())
+		{
+			return null;
+		}
+		if (entry.etag != null && !entry.etag.startsWith("W/"))
+		{
+			return entry.etag;
+		}
+		return entry.lastModified > 0 ? KCHttpDate.format(entry.lastModified) : null;
+	}
+
+	/**
+	 * Stores the content of a 206 response, or of a 200 response as the whole resource.
+	 *
+	 * @param key
+	 *            The key of the resource
+	 * @param response
+	 *            The response
+	 * @return true if the content was stored
+	 */
+	public synchronized boolean put(String key, KCHttpResponse response)
+	{
+		byte[] data = response.getContent();
+		if (data == null)
+		{
+			return false;
+		}
+		KCHeaderGroup headers = response.getHeaderGroup();
+		long offset;
+		long length;
+		if (response.getStatusCode() == KCHttpStatus.HTTP_PARTIAL_CONTENT)
+		{
+			long[] contentRange = parseContentRange(headers.get("Content-Range"));
+			if (contentRange == null || contentRange[1] - contentRange[0] + 1 != data.length)
+			{
+				return false;
+			}
+			offset = contentRange[0];
+			length = contentRange[2];
+		}
+		else if (response.getStatusCode() == KCHttpStatus.HTTP_OK)
+		{
+			offset = 0;
+			length = data.length;
+		}
+		else
+		{
+			return false;
+		}
+
+		String etag = headers.get("ETag");
+		String lastModifiedValue = headers.get("Last-Modified");
+		long lastModified = lastModifiedValue != null ? KCHttpHeaderParser.parseDateAsEpoch(lastModifiedValue) : 0;
+
+		KCSparseEntry entry = mEntries.get(key);
+		File directory = new File(mRootDirectory, KCCacheFiles.getFilenameForKey(key));
+		if (entry != null && isChanged(entry, etag, lastModified, length))
+		{
+			KCLog.d("Resource of key=%s changed, dropping %d received bytes", key, entry.size);
+			removeEntry(key, directory);
+			entry = null;
+		}
+		if (entry == null)
+		{
+			entry = new KCSparseEntry();
+			entry.key = key;
+			mEntries.put(key, entry);
+		}
+		if (etag != null)
+		{
+			entry.etag = etag;
+		}
+		if (lastModified > 0)
+		{
+			entry.lastModified = lastModified;
+		}
+		if (length >= 0)
+		{
+			entry.length = length;
+		}
+		entry.responseHeaders = entityHeaders(headers);
+
+		try
+		{
+			if (!directory.exists() && !directory.mkdirs())
+			{
+				throw new IOException("Unable to create " + directory);
+			}
+			// The data first, so the ranges of the meta file are always there.
+			RandomAccessFile file = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+			try
+			{
+				file.seek(offset);
+				file.write(data);
+			}
+			finally
+			{
+				file.close();
+			}
+			long oldSize = entry.size;
+			addRange(entry, offset, offset + data.length);
+			writeMeta(directory, entry);
+			mTotalSize += entry.size - oldSize;
+		}
+		catch (IOException e)
+		{
+			KCLog.d("Could not store range of key=%s: %s", key, e.toString());
+			removeEntry(key, directory);
+			return false;
+		}
+
+		trimToSize();
+		return mEntries.containsKey(key);
+	}
+
+	/**
+	 * Returns a cached range as a 206 response.
+	 *
+	 * @param key
+	 *            The key of the resource
+	 * @param start
+	 *            First byte of the range
+	 * @param end
+	 *            Last byte of the range, inclusive, or -1 for the end of the resource
+	 * @return the response, or null unless the whole range was received
+	 */
+	public synchronized KCHttpResponse getResponse(String key, long start, long end)
+	{
+		KCSparseEntry entry = mEntries.get(key);
+		if (entry == null || (end < 0 && entry.length < 0))
+		{
+			return null;
+		}
+		if (entry.length >= 0)
+		{
+			end = end < 0 ? entry.length - 1 : Math.min(end, entry.length - 1);
+		}
+		Map.Entry<Long, Long> range = entry.ranges.floorEntry(start);
+		if (start > end || range == null || range.getValue() <= end || end - start + 1 > Integer.MAX_VALUE)
+		{
+			return null;
+		}
+
+		byte[] data = new byte[(int) (end - start + 1)];
+		File directory = new File(mRootDirectory, KCCacheFiles.getFilenameForKey(key));
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(new File(directory, DATA_FILE), "r");
+			try
+			{
+				file.seek(start);
+				file.readFully(data);
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+		catch (IOException e)
+		{
+			KCLog.d("Could not read range of key=%s: %s", key, e.toString());
+			removeEntry(key, directory);
+			return null;
+		}
+
+		KCHttpResponse response = new KCHttpResponse(new KCStatusLine(new KCProtocolVersion("HTTP", 1, 1), KCHttpStatus.HTTP_PARTIAL_CONTENT,
+				"cache response"));
+		response.setHeaders(entry.responseHeaders.getAllHeaders());
+		response.addHeader(new KCHeader("Content-Range", "bytes " + start + "-" + end + "/" + (entry.length >= 0 ? entry.length : "*")));
+		response.addHeader(new KCHeader("Content-Length", String.valueOf(data.length)));
+		KCHttpContent content = new KCHttpContent();
+		content.setContent(data);
+		response.setContent(content);
+		return response;
+	}
+
+	/**
+	 * Removes the received ranges of a resource.
+	 */
+	public synchronized void remove(String key)
+	{
+		removeEntry(key, new File(mRootDirectory, KCCacheFiles.getFilenameForKey(key)));
+	}
+
+	/**
+	 * Removes the received ranges of all resources.
+	 */
+	public synchronized void clear()
+	{
+		File[] directories = mRootDirectory.listFiles();
+		if (directories != null)
+		{
+			for (File directory : directories)
+			{
+				deleteDirectory(directory);
+			}
+		}
+		mEntries.clear();
+		mTotalSize = 0;
+	}
+
+	/**
+	 * Returns the number of received bytes of all resources.
+	 */
+	public synchronized long getSize()
+	{
+		return mTotalSize;
+	}
+
+	/**
+	 * Parses a Content-Range header value, "bytes first-last/length" with length "*" if unknown.
+	 *
+	 * @return first byte, last byte and length or -1, or null if the value is malformed
+	 */
+	static long[] parseContentRange(String value)
+	{
+		if (value == null || !value.startsWith("bytes "))
+		{
+			return null;
+		}
+		int dash = value.indexOf('-');
+		int slash = value.indexOf('/');
+		if (dash < 0 || slash < dash)
+		{
+			return null;
+		}
+		try
+		{
+			long first = Long.parseLong(value.substring(6, dash).trim());
+			long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+			String lengthValue = value.substring(slash + 1).trim();
+			long length = lengthValue.equals("*") ? -1 : Long.parseLong(lengthValue);
+			if (first < 0 || last < first || (length >= 0 && last >= length))
+			{
+				return null;
+			}
+			return new long[] { first, last, length };
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	private static boolean isChanged(KCSparseEntry entry, String etag, long lastModified, long length)
+	{
+		return (etag != null && entry.etag != null && !etag.equals(entry.etag))
+				|| (lastModified > 0 && entry.lastModified > 0 && lastModified != entry.lastModified)
+				|| (length >= 0 && entry.length >= 0 && length != entry.length);
+	}
+
+	/**
+	 * Returns the headers describing the resource rather than the range of a response.
+	 */
+	private static KCHeaderGroup entityHeaders(KCHeaderGroup headers)
+	{
+		KCHeaderGroup entityHeaders = new KCHeaderGroup();
+		for (KCHeader header : headers.getAllHeaders())
+		{
+			String name = header.getName();
+			if (name != null && !name.equalsIgnoreCase("Content-Range") && !name.equalsIgnoreCase("Content-Length")
+					&& !name.equalsIgnoreCase("Transfer-Encoding"))
+			{
+				entityHeaders.addHeader(header);
+			}
+		}
+		return entityHeaders;
+	}
+
+	/**
+	 * Adds a received range, merging it with the ranges it overlaps or adjoins.
+	 */
+	private static void addRange(KCSparseEntry entry, long start, long end)
+	{
+		Map.Entry<Long, Long> before = entry.ranges.floorEntry(start);
+		if (before != null && before.getValue() >= start)
+		{
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Iterator<Map.Entry<Long, Long>> it = entry.ranges.tailMap(start).entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<Long, Long> range = it.next();
+			if (range.getKey() > end)
+			{
+				break;
+			}
+			end = Math.max(end, range.getValue());
+			entry.size -= range.getValue() - range.getKey();
+			it.remove();
+		}
+		entry.ranges.put(start, end);
+		entry.size += end - start;
+	}
+
+	private void removeEntry(String key, File directory)
+	{
+		KCSparseEntry entry = mEntries.remove(key);
+		if (entry != null)
+		{
+			mTotalSize -= entry.size;
+		}
+		deleteDirectory(directory);
+	}
+
+	/**
+	 * Evicts the least recently used resources until the received bytes fit the maximum size.
+	 */
+	private void trimToSize()
+	{
+		Iterator<Map.Entry<String, KCSparseEntry>> it = mEntries.entrySet().iterator();
+		while (mTotalSize > mMaxSizeInBytes && it.hasNext())
+		{
+			KCSparseEntry entry = it.next().getValue();
+			it.remove();
+			mTotalSize -= entry.size;
+			deleteDirectory(new File(mRootDirectory, KCCacheFiles.getFilenameForKey(entry.key)));
+			if (KCLog.DEBUG)
+			{
+				KCLog.v("Evicted %d received bytes of key=%s", entry.size, entry.key);
+			}
+		}
+	}
+
+	private static void writeMeta(File directory, KCSparseEntry entry) throws IOException
+	{
+		File temp = new File(directory, META_FILE + ".tmp");
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(temp));
+		try
+		{
+			KCCacheStreams.writeInt(os, SPARSE_MAGIC);
+			KCCacheStreams.writeVarintString(os, entry.key);
+			KCCacheStreams.writeVarintString(os, entry.etag != null ? entry.etag : "");
+			KCCacheStreams.writeVarint(os, entry.lastModified);
+			KCCacheStreams.writeVarint(os, entry.length + 1);
+			byte[] headers = KCCacheHeader.encodeHeaders(entry.responseHeaders);
+			KCCacheStreams.writeVarint(os, headers.length);
+			os.write(headers);
+			KCCacheStreams.writeVarint(os, entry.ranges.size());
+			for (Map.Entry<Long, Long> range : entry.ranges.entrySet())
+			{
+				KCCacheStreams.writeVarint(os, range.getKey());
+				KCCacheStreams.writeVarint(os, range.getValue() - range.getKey());
+			}
+		}
+		finally
+		{
+			os.close();
+		}
+		if (!temp.renameTo(new File(directory, META_FILE)))
+		{
+			throw new IOException("Unable to rename " + temp);
+		}
+	}
+
+	/**
+	 * Reads the meta file of a resource, keeping only the ranges within its data file.
+	 *
+	 * @return the entry, or null if the meta file is missing or corrupt
+	 */
+	private static KCSparseEntry readMeta(File directory)
+	{
+		File metaFile = new File(directory, META_FILE);
+		long dataLength = new File(directory, DATA_FILE).length();
+		InputStream is = null;
+		try
+		{
+			is = new BufferedInputStream(new FileInputStream(metaFile));
+			if (KCCacheStreams.readInt(is) != SPARSE_MAGIC)
+			{
+				return null;
+			}
+			KCSparseEntry entry = new KCSparseEntry();
+			entry.key = KCCacheStreams.readVarintString(is);
+			entry.etag = KCCacheStreams.readVarintString(is);
+			if (entry.etag.equals(""))
+			{
+				entry.etag = null;
+			}
+			entry.lastModified = KCCacheStreams.readVarint(is);
+			entry.length = KCCacheStreams.readVarint(is) - 1;
+			byte[] headers = KCCacheStreams.streamToBytes(is, (int) KCCacheStreams.readVarint(is));
+			if (headers == null)
+			{
+				return null;
+			}
+			entry.responseHeaders = KCCacheHeader.decodeHeaders(new ByteArrayInputStream(headers));
+			long count = KCCacheStreams.readVarint(is);
+			for (long i = 0; i < count; i++)
+			{
+				long start = KCCacheStreams.readVarint(is);
+				long end = start + KCCacheStreams.readVarint(is);
+				if (end <= dataLength)
+				{
+					entry.ranges.put(start, end);
+					entry.size += end - start;
+				}
+			}
+			return entry;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+	}
+
+	private static void deleteDirectory(File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+}
@@ -0,0 +1,153 @@
+package com.kercer.kernet.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Homebrewed simple serialization system used for reading and writing cache headers on disk. Once upon a time, this used the standard Java
+ * Object{Input,Output}Stream, but the default implementation relies heavily on reflection (even for standard types) and generates a ton of
+ * garbage.
+ */
+final class KCCacheStreams
+{
+	private KCCacheStreams()
+	{
+	}
+
+	/**
+	 * Reads the contents of an InputStream into a byte[].
+	 * */
+	static byte[] streamToBytes(InputStream in, int length) throws IOException
+	{
+		if (length <= 0) return null;
+
+		byte[] bytes = new byte[length];
+		int count;
+		int pos = 0;
+		while (pos < length && ((count = in.read(bytes, pos, length - pos)) != -1))
+		{
+			pos += count;
+		}
+		if (pos != length)
+		{
+			throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Simple wrapper around {@link InputStream#read()} that throws EOFException instead of returning -1.
+	 */
+	static int read(InputStream is) throws IOException
+	{
+		int b = is.read();
+		if (b == -1)
+		{
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	static void writeInt(OutputStream os, int n) throws IOException
+	{
+		os.write((n >> 0) & 0xff);
+		os.write((n >> 8) & 0xff);
+		os.write((n >> 16) & 0xff);
+		os.write((n >> 24) & 0xff);
+	}
+
+	static int readInt(InputStream is) throws IOException
+	{
+		int n = 0;
+		n |= (read(is) << 0);
+		n |= (read(is) << 8);
+		n |= (read(is) << 16);
+		n |= (read(is) << 24);
+		return n;
+	}
+
+	static void writeLong(OutputStream os, long n) throws IOException
+	{
+		os.write((byte) (n >>> 0));
+		os.write((byte) (n >>> 8));
+		os.write((byte) (n >>> 16));
+		os.write((byte) (n >>> 24));
+		os.write((byte) (n >>> 32));
+		os.write((byte) (n >>> 40));
+		os.write((byte) (n >>> 48));
+		os.write((byte) (n >>> 56));
+	}
+
+	static long readLong(InputStream is) throws IOException
+	{
+		long n = 0;
+		n |= ((read(is) & 0xFFL) << 0);
+		n |= ((read(is) & 0xFFL) << 8);
+		n |= ((read(is) & 0xFFL) << 16);
+		n |= ((read(is) & 0xFFL) << 24);
+		n |= ((read(is) & 0xFFL) << 32);
+		n |= ((read(is) & 0xFFL) << 40);
+		n |= ((read(is) & 0xFFL) << 48);
+		n |= ((read(is) & 0xFFL) << 56);
+		return n;
+	}
+
+	static void writeString(OutputStream os, String s) throws IOException
+	{
+		byte[] b = s.getBytes("UTF-8");
+		writeLong(os, b.length);
+		os.write(b, 0, b.length);
+	}
+
+	static String readString(InputStream is) throws IOException
+	{
+		int n = (int) readLong(is);
+		byte[] b = streamToBytes(is, n);
+		if (b == null) return "";
+		return new String(b, "UTF-8");
+	}
+
+	/**
+	 * Writes an unsigned LEB128 varint: 7 bits per byte, least significant first, the high bit set on all bytes but the last.
+	 */
+	static void writeVarint(OutputStream os, long n) throws IOException
+	{
+		while ((n & ~0x7fL) != 0)
+		{
+			os.write((int) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		os.write((int) n);
+	}
+
+	static long readVarint(InputStream is) throws IOException
+	{
+		long n = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = read(is);
+			n |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return n;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static void writeVarintString(OutputStream os, String s) throws IOException
+	{
+		byte[] b = s.getBytes("UTF-8");
+		writeVarint(os, b.length);
+		os.write(b, 0, b.length);
+	}
+
+	static String readVarintString(InputStream is) throws IOException
+	{
+		byte[] b = streamToBytes(is, (int) readVarint(is));
+		if (b == null) return "";
+		return new String(b, "UTF-8");
+	}
+}
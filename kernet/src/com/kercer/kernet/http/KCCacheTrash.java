@@ -0,0 +1,111 @@
+package com.kercer.kernet.http;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.io.File;
+import java.io.FileFilter;
+
+/**
+ * Clears the directory of a {@link KCCacheDisk} by moving it to the trash next to it and starting over with an empty one, so clearing is quick
+ * however large the cache; the trash is emptied on a background thread.
+ */
+final class KCCacheTrash
+{
+	/** Infix of the name of the directories a cleared cache is moved to before being deleted, next to the root directory. */
+	private static final String TRASH_INFIX = ".trash-";
+
+	private KCCacheTrash()
+	{
+	}
+
+	/**
+	 * Moves a root directory to the trash, or deletes its contents if it can't be moved. Called with the cache lock held.
+	 */
+	static void clear(File rootDirectory)
+	{
+		File trash = new File(rootDirectory.getAbsoluteFile().getParentFile(), rootDirectory.getName() + TRASH_INFIX + System.currentTimeMillis());
+		if (rootDirectory.renameTo(trash))
+		{
+			if (!rootDirectory.mkdirs())
+			{
+				KCLog.e("Unable to create cache dir %s", rootDirectory.getAbsolutePath());
+			}
+			deleteInBackground(new File[] { trash });
+		}
+		else
+		{
+			KCLog.d("Could not move %s to the trash", rootDirectory.getAbsolutePath());
+			deleteContents(rootDirectory);
+		}
+	}
+
+	/**
+	 * Empties the trash left over by a clear which couldn't complete, in the background.
+	 */
+	static void emptyLeftovers(File rootDirectory)
+	{
+		final String trashPrefix = rootDirectory.getName() + TRASH_INFIX;
+		File[] trash = rootDirectory.getAbsoluteFile().getParentFile().listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(File file)
+			{
+				return file.getName().startsWith(trashPrefix);
+			}
+		});
+		if (trash != null && trash.length > 0)
+		{
+			deleteInBackground(trash);
+		}
+	}
+
+	/**
+	 * Deletes directories on a low priority background thread.
+	 */
+	static void deleteInBackground(final File[] directories)
+	{
+		Thread deleter = new Thread("KCCacheDisk-trash")
+		{
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+				long startTime = SystemClock.elapsedRealtime();
+				for (File directory : directories)
+				{
+					deleteContents(directory);
+					directory.delete();
+				}
+				if (KCLog.DEBUG)
+				{
+					KCLog.v("emptied trash, %d ms", SystemClock.elapsedRealtime() - startTime);
+				}
+			}
+		};
+		deleter.setDaemon(true);
+		deleter.start();
+	}
+
+	/**
+	 * Deletes the contents of a directory, recursively.
+	 */
+	static void deleteContents(File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				deleteContents(file);
+			}
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package com.kercer.kernet.http;
+
+import android.os.Process;
+
+import com.kercer.kercore.debug.KCLog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link KCCache} writing behind another cache, so dispatchers don't wait for cache writes before delivering their responses.
+ *
+ * {@link #put(String, KCEntry)} queues the entry and returns; a background thread writes the queued entries to the wrapped cache in order. Reads of
+ * a queued key are served from the queue. When the data of the queued entries exceeds the byte budget, writers wait for the queue to drain, so a
+ * burst of large responses can't exhaust the memory. Metadata updates are small and written directly, unless an entry is queued for the key.
+ */
+public class KCCacheWriteBehind implements KCCacheMetadataUpdatable
+{
+	/** Default byte budget of the queued entries. */
+	public static final int DEFAULT_MAX_PENDING_BYTES = 1024 * 1024;
+
+	/** The cache written to. */
+	private final KCCache mCache;
+
+	/** Maximum data length of the queued entries in bytes. */
+	private final int mMaxPendingBytes;
+
+	/** Entries waiting to be written, by key, in the order they were queued. Guarded by itself. */
+	private final LinkedHashMap<String, KCEntry> mPending = new LinkedHashMap<String, KCEntry>();
+
+	/** Data length of the queued entries in bytes. */
+	private long mPendingBytes = 0;
+
+	/**
+	 * Held while writing to the wrapped cache, so removals can't overtake a write in progress. Taken before the lock of {@link #mPending} when both
+	 * are needed.
+	 */
+	private final Object mWriteLock = new Object();
+
+	/** The writer thread, started with the first queued entry. */
+	private Thread mWriter;
+
+	/** Number of writes which had to wait for the queue to drain. */
+	private long mBackPressureCount = 0;
+
+	/**
+	 * Creates a write-behind cache.
+	 *
+	 * @param aCache
+	 *            The cache to write to
+	 * @param aMaxPendingBytes
+	 *            Maximum data length of the queued entries in bytes
+	 */
+	public KCCacheWriteBehind(KCCache aCache, int aMaxPendingBytes)
+	{
+		mCache = aCache;
+		mMaxPendingBytes = aMaxPendingBytes;
+	}
+
+	/**
+	 * Creates a write-behind cache with a byte budget of 1 MB.
+	 *
+	 * @param aCache
+	 *            The cache to write to
+	 */
+	public KCCacheWriteBehind(KCCache aCache)
+	{
+		this(aCache, DEFAULT_MAX_PENDING_BYTES);
+	}
+
+	@Override
+	public KCEntry get(String key)
+	{
+		synchronized (mPending)
+		{
+			KCEntry entry = mPending.get(key);
+			if (entry != null)
+			{
+				return entry;
+			}
+		}
+		return mCache.get(key);
+	}
+
+	@Override
+	public void put(String key, KCEntry entry)
+	{
+		enqueue(key, entry);
+	}
+
+	@Override
+	public void updateMetadata(String key, KCEntry entry)
+	{
+		// The entry carries the cached data, so a queued update is written like a put; the metadata is written directly only when nothing else
+		// is queued for the key.
+		if (!writeMetadata(key, entry))
+		{
+			enqueue(key, entry);
+		}
+	}
+
+	@Override
+	public void initialize()
+	{
+		mCache.initialize();
+	}
+
+	@Override
+	public void invalidate(String key, boolean fullExpire)
+	{
+		synchronized (mPending)
+		{
+			KCEntry entry = mPending.get(key);
+			if (entry != null)
+			{
+				KCEntry invalidated = copy(entry);
+				invalidated.softTtl = 0;
+				if (fullExpire)
+				{
+					invalidated.ttl = 0;
+				}
+				mPending.put(key, invalidated);
+				return;
+			}
+		}
+		synchronized (mWriteLock)
+		{
+			mCache.invalidate(key, fullExpire);
+		}
+	}
+
+	@Override
+	public void remove(String key)
+	{
+		synchronized (mPending)
+		{
+			KCEntry entry = mPending.remove(key);
+			if (entry != null)
+			{
+				release(entry);
+			}
+		}
+		synchronized (mWriteLock)
+		{
+			mCache.remove(key);
+		}
+	}
+
+	/**
+	 * Removes the queued entries with a tag, then the written ones if the wrapped cache is a {@link KCCacheDisk}.
+	 *
+	 * @param tag
+	 *            The tag, see {@link KCEntry#tags}.
+	 * @return the number of entries removed
+	 */
+	public int removeByTag(String tag)
+	{
+		int removed = 0;
+		synchronized (mPending)
+		{
+			for (Iterator<KCEntry> it = mPending.values().iterator(); it.hasNext();)
+			{
+				KCEntry entry = it.next();
+				if (hasTag(entry, tag))
+				{
+					it.remove();
+					release(entry);
+					removed++;
+				}
+			}
+		}
+		if (mCache instanceof KCCacheDisk)
+		{
+			synchronized (mWriteLock)
+			{
+				removed += ((KCCacheDisk) mCache).removeByTag(tag);
+			}
+		}
+		return removed;
+	}
+
+	@Override
+	public void clear()
+	{
+		synchronized (mPending)
+		{
+			mPending.clear();
+			mPendingBytes = 0;
+			mPending.notifyAll();
+		}
+		synchronized (mWriteLock)
+		{
+			mCache.clear();
+		}
+	}
+
+	/**
+	 * Waits until the queued entries have been written.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void flush() throws InterruptedException
+	{
+		synchronized (mPending)
+		{
+			while (!mPending.isEmpty())
+			{
+				mPending.wait();
+			}
+		}
+	}
+
+	/**
+	 * @return the data length of the entries waiting to be written, in bytes.
+	 */
+	public long getPendingBytes()
+	{
+		synchronized (mPending)
+		{
+			return mPendingBytes;
+		}
+	}
+
+	/**
+	 * @return the number of writes which waited for the queue to drain because the byte budget was exceeded.
+	 */
+	public long getBackPressureCount()
+	{
+		synchronized (mPending)
+		{
+			return mBackPressureCount;
+		}
+	}
+
+	private void enqueue(String key, KCEntry entry)
+	{
+		int size = sizeOf(entry);
+		synchronized (mPending)
+		{
+			// Back-pressure: wait for the writer, unless the queue is empty and the entry would never fit.
+			if (mPendingBytes > 0 && mPendingBytes + size > mMaxPendingBytes)
+			{
+				mBackPressureCount++;
+				try
+				{
+					while (mPendingBytes > 0 && mPendingBytes + size > mMaxPendingBytes)
+					{
+						mPending.wait();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					// Queue anyway rather than lose the write, the dispatcher will notice the interruption.
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			KCEntry replaced = mPending.put(key, entry);
+			if (replaced != null)
+			{
+				release(replaced);
+			}
+			mPendingBytes += size;
+			startWriterIfNeeded();
+			mPending.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes a metadata update directly, it is small and doesn't need to be queued. A wrapped cache which can't update metadata gets the whole
+	 * entry.
+	 *
+	 * @return false if an entry is queued for the key, the update must be queued after it
+	 */
+	private boolean writeMetadata(String key, KCEntry entry)
+	{
+		synchronized (mWriteLock)
+		{
+			synchronized (mPending)
+			{
+				if (mPending.containsKey(key))
+				{
+					return false;
+				}
+			}
+			if (mCache instanceof KCCacheMetadataUpdatable)
+			{
+				((KCCacheMetadataUpdatable) mCache).updateMetadata(key, entry);
+			}
+			else
+			{
+				mCache.put(key, entry);
+			}
+		}
+		return true;
+	}
+
+	private void startWriterIfNeeded()
+	{
+		if (mWriter != null)
+		{
+			return;
+		}
+		mWriter = new Thread("KCCacheWriteBehind")
+		{
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				writeLoop();
+			}
+		};
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	private void writeLoop()
+	{
+		while (true)
+		{
+			String key;
+			KCEntry entry;
+			synchronized (mPending)
+			{
+				while (mPending.isEmpty())
+				{
+					try
+					{
+						mPending.wait();
+					}
+					catch (InterruptedException e)
+					{
+						// Keep writing, losing queued entries would be worse.
+					}
+				}
+				// Leave the entry queued while writing, so reads keep finding it.
+				Iterator<Map.Entry<String, KCEntry>> iterator = mPending.entrySet().iterator();
+				Map.Entry<String, KCEntry> next = iterator.next();
+				key = next.getKey();
+				entry = next.getValue();
+			}
+
+			synchronized (mWriteLock)
+			{
+				// A removal or replacement between choosing the entry and taking the lock wins: a removed entry must not be written back, a
+				// replaced one is written when its replacement comes up.
+				synchronized (mPending)
+				{
+					if (mPending.get(key) != entry)
+					{
+						continue;
+					}
+				}
+				try
+				{
+					mCache.put(key, entry);
+				}
+				catch (RuntimeException e)
+				{
+					KCLog.e("Unhandled exception %s writing cache entry %s", e.toString(), key);
+				}
+			}
+
+			synchronized (mPending)
+			{
+				// Unless it was replaced or removed meanwhile, the entry is written.
+				if (mPending.get(key) == entry)
+				{
+					mPending.remove(key);
+					release(entry);
+				}
+				mPending.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Accounts for an entry leaving the queue. Called with the lock of {@link #mPending} held.
+	 */
+	private void release(KCEntry entry)
+	{
+		mPendingBytes -= sizeOf(entry);
+		mPending.notifyAll();
+	}
+
+	private static boolean hasTag(KCEntry entry, String tag)
+	{
+		for (int i = 0; entry.tags != null && i < entry.tags.length; i++)
+		{
+			if (entry.tags[i].equals(tag))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int sizeOf(KCEntry entry)
+	{
+		return entry.data != null ? entry.data.length : 0;
+	}
+
+	private static KCEntry copy(KCEntry entry)
+	{
+		KCEntry copy = new KCEntry();
+		copy.data = entry.data;
+		copy.etag = entry.etag;
+		copy.serverDate = entry.serverDate;
+		copy.lastModified = entry.lastModified;
+		copy.ttl = entry.ttl;
+		copy.softTtl = entry.softTtl;
+		copy.responseHeaders = entry.responseHeaders;
+		copy.tags = entry.tags;
+		copy.varyHeaders = entry.varyHeaders;
+		copy.staleIfErrorMs = entry.staleIfErrorMs;
+		return copy;
+	}
+}
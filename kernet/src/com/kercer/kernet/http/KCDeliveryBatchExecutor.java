@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kercer.kernet.http;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link Executor} that coalesces tasks into batches, so many deliveries completing together cost a single message on the target thread.
+ *
+ * Tasks run in the order they were executed. Tasks executed while a batch is running are run by the next batch.
+ */
+public class KCDeliveryBatchExecutor implements Executor
+{
+	/** Default batch interval, one frame at 60 fps. */
+	public static final long DEFAULT_BATCH_INTERVAL_MS = 16;
+
+	/** Runs the batches when there is no handler. */
+	private final Executor mTarget;
+
+	/** Runs the batches at interval boundaries, or null. */
+	private final Handler mHandler;
+
+	/** Batch interval in milliseconds when running on {@link #mHandler}. */
+	private final long mIntervalMs;
+
+	/** Tasks waiting for the next batch. */
+	private ArrayList<Runnable> mPending = new ArrayList<Runnable>();
+
+	/** Whether a batch has been scheduled and not yet started. */
+	private boolean mScheduled = false;
+
+	/** Number of batches run, i.e. messages posted to the target. */
+	private long mBatchCount = 0;
+
+	/** Number of tasks run. */
+	private long mTaskCount = 0;
+
+	private final Runnable mBatch = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			runBatch();
+		}
+	};
+
+	/**
+	 * Creates an executor posting one batch per interval to the given handler. Batches are aligned to interval boundaries of
+	 * {@link SystemClock#uptimeMillis()}, so with the default interval they follow the display frames.
+	 *
+	 * @param aHandler
+	 *            {@link Handler} to run the batches on
+	 * @param aIntervalMs
+	 *            batch interval in milliseconds
+	 */
+	public KCDeliveryBatchExecutor(Handler aHandler, long aIntervalMs)
+	{
+		if (aIntervalMs <= 0)
+		{
+			throw new IllegalArgumentException("Batch interval must be positive");
+		}
+		mTarget = null;
+		mHandler = aHandler;
+		mIntervalMs = aIntervalMs;
+	}
+
+	/**
+	 * Creates an executor handing each batch to the given executor; tasks executed before the batch starts running join it. Mockable version for
+	 * testing.
+	 *
+	 * @param aTarget
+	 *            For running the batches
+	 */
+	public KCDeliveryBatchExecutor(Executor aTarget)
+	{
+		mTarget = aTarget;
+		mHandler = null;
+		mIntervalMs = 0;
+	}
+
+	@Override
+	public void execute(Runnable aCommand)
+	{
+		synchronized (this)
+		{
+			mPending.add(aCommand);
+			if (mScheduled)
+			{
+				return;
+			}
+			mScheduled = true;
+		}
+
+		if (mHandler != null)
+		{
+			long now = SystemClock.uptimeMillis();
+			mHandler.postAtTime(mBatch, (now / mIntervalMs + 1) * mIntervalMs);
+		}
+		else
+		{
+			mTarget.execute(mBatch);
+		}
+	}
+
+	private void runBatch()
+	{
+		ArrayList<Runnable> batch;
+		synchronized (this)
+		{
+			batch = mPending;
+			mPending = new ArrayList<Runnable>();
+			mScheduled = false;
+			mBatchCount++;
+			mTaskCount += batch.size();
+		}
+
+		for (int i = 0, size = batch.size(); i < size; i++)
+		{
+			batch.get(i).run();
+		}
+	}
+
+	/**
+	 * @return the number of batches run so far, i.e. the number of messages posted to the target thread.
+	 */
+	public synchronized long getBatchCount()
+	{
+		return mBatchCount;
+	}
+
+	/**
+	 * @return the number of tasks run so far.
+	 */
+	public synchronized long getTaskCount()
+	{
+		return mTaskCount;
+	}
+}
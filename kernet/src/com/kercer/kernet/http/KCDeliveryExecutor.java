@@ -21,6 +21,7 @@ import android.os.Handler;
 import com.kercer.kernet.http.base.KCHeaderGroup;
 import com.kercer.kernet.http.base.KCStatusLine;
 import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpHeaderListener;
 
 import java.util.concurrent.Executor;
 
@@ -29,6 +30,19 @@ import java.util.concurrent.Executor;
  */
 public class KCDeliveryExecutor implements KCDelivery
 {
+	/**
+	 * Runs delivery tasks right away on the posting thread, i.e. the cache or network dispatcher. Use it with
+	 * {@link KCHttpRequest#setDeliveryExecutor(Executor)} for background consumers which don't need the main thread.
+	 */
+	public static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
 	/** Used for posting responses, typically to the main thread. */
 	private final Executor mExecutor;
 
@@ -51,6 +65,20 @@ public class KCDeliveryExecutor implements KCDelivery
 		};
 	}
 
+	/**
+	 * Creates a new response delivery interface which coalesces deliveries into one handler message per batch interval, instead of one message per
+	 * callback. Deliveries keep their order.
+	 *
+	 * @param handler
+	 *            {@link Handler} to post responses on
+	 * @param aBatchIntervalMs
+	 *            batch interval in milliseconds, e.g. {@link KCDeliveryBatchExecutor#DEFAULT_BATCH_INTERVAL_MS} for one batch per frame
+	 */
+	public KCDeliveryExecutor(final Handler handler, long aBatchIntervalMs)
+	{
+		mExecutor = new KCDeliveryBatchExecutor(handler, aBatchIntervalMs);
+	}
+
 	/**
 	 * Creates a new response delivery interface, mockable version for testing.
 	 * 
@@ -65,7 +93,12 @@ public class KCDeliveryExecutor implements KCDelivery
 	@Override
 	public void postHeaders(final KCHttpRequest<?> aRequest,final KCStatusLine aStatusLine,final KCHeaderGroup aHeaderGroup)
 	{
-		mExecutor.execute(new Runnable() {
+		// Nobody listens to the headers, don't bother posting them.
+		if (!(aRequest.getListener() instanceof KCHttpHeaderListener))
+		{
+			return;
+		}
+		executorFor(aRequest).execute(new Runnable() {
 			@Override
 			public void run() {
 				aRequest.notifyHeaders(aStatusLine, aHeaderGroup);
@@ -85,7 +118,7 @@ public class KCDeliveryExecutor implements KCDelivery
 	{
 		aRequest.markDelivered();
 		aRequest.addMarker("post-response");
-		mExecutor.execute(new ResponseDeliveryRunnable(aRequest, aResponse, aResult, aRunnable));
+		executorFor(aRequest).execute(new ResponseDeliveryRunnable(aRequest, aResponse, aResult, aRunnable));
 	}
 
 	@Override
@@ -93,7 +126,16 @@ public class KCDeliveryExecutor implements KCDelivery
 	{
 		aRequest.addMarker("post-error");
 		KCHttpResult<?> result = KCHttpResult.error(aError);
-		mExecutor.execute(new ResponseDeliveryRunnable(aRequest, null, result, null));
+		executorFor(aRequest).execute(new ResponseDeliveryRunnable(aRequest, null, result, null));
+	}
+
+	/**
+	 * Returns the executor to deliver the given request on, its own one if it has any.
+	 */
+	private Executor executorFor(KCHttpRequest<?> aRequest)
+	{
+		Executor executor = aRequest.getDeliveryExecutor();
+		return executor != null ? executor : mExecutor;
 	}
 
 	/**
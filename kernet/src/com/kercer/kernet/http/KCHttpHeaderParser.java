@@ -16,15 +16,28 @@
 
 package com.kercer.kernet.http;
 
-import com.kercer.kercore.util.KCUtilDate;
+import com.kercer.kernet.http.base.KCCacheControl;
+import com.kercer.kernet.http.base.KCHeader;
 import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCHttpDate;
 import com.kercer.kernet.http.base.KCHttpDefine;
 
+import java.util.ArrayList;
+
 /**
  * Utility methods for parsing HTTP headers.
  */
 public class KCHttpHeaderParser
 {
+	/** Reused by {@link #parseCacheHeaders(KCHttpResponse)} on each network thread, so parsing allocates nothing but the entry. */
+	private static final ThreadLocal<KCCacheControl> CACHE_CONTROL = new ThreadLocal<KCCacheControl>()
+	{
+		@Override
+		protected KCCacheControl initialValue()
+		{
+			return new KCCacheControl();
+		}
+	};
 
 	/**
 	 * Extracts a {@link KCCache.KCEntry} from a {@link KCHttpResponse}.
@@ -46,6 +59,7 @@ public class KCHttpHeaderParser
 		long finalExpire = 0;
 		long maxAge = 0;
 		long staleWhileRevalidate = 0;
+		long staleIfError = 0;
 		boolean hasCacheControl = false;
 		boolean mustRevalidate = false;
 
@@ -62,39 +76,25 @@ public class KCHttpHeaderParser
 		if (headerValue != null)
 		{
 			hasCacheControl = true;
-			String[] tokens = headerValue.split(",");
-			for (int i = 0; i < tokens.length; i++)
+			// s-maxage only applies to shared caches; immutable is read when a fresh entry is hit, see KCCacheRunner.
+			KCCacheControl cacheControl = CACHE_CONTROL.get().set(headerValue);
+			if (cacheControl.noCache || cacheControl.noStore)
 			{
-				String token = tokens[i].trim();
-				if (token.equals("no-cache") || token.equals("no-store"))
-				{
-					return null;
-				}
-				else if (token.startsWith("max-age="))
-				{
-					try
-					{
-						maxAge = Long.parseLong(token.substring(8));
-					}
-					catch (Exception e)
-					{
-					}
-				}
-				else if (token.startsWith("stale-while-revalidate="))
-				{
-					try
-					{
-						staleWhileRevalidate = Long.parseLong(token.substring(23));
-					}
-					catch (Exception e)
-					{
-					}
-				}
-				else if (token.equals("must-revalidate") || token.equals("proxy-revalidate"))
-				{
-					mustRevalidate = true;
-				}
+				return null;
 			}
+			if (cacheControl.maxAge != KCCacheControl.UNSET)
+			{
+				maxAge = cacheControl.maxAge;
+			}
+			if (cacheControl.staleWhileRevalidate != KCCacheControl.UNSET)
+			{
+				staleWhileRevalidate = cacheControl.staleWhileRevalidate;
+			}
+			if (cacheControl.staleIfError != KCCacheControl.UNSET)
+			{
+				staleIfError = cacheControl.staleIfError;
+			}
+			mustRevalidate = cacheControl.mustRevalidate || cacheControl.proxyRevalidate;
 		}
 
 		headerValue = headers.get("Expires");
@@ -133,17 +133,146 @@ public class KCHttpHeaderParser
 		entry.serverDate = serverDate;
 		entry.lastModified = lastModified;
 		entry.responseHeaders = headers;
+		entry.staleIfErrorMs = staleIfError * 1000;
 
 		return entry;
 	}
 
 	/**
-	 * Parse date in RFC1123 format, and return its value as epoch
+	 * Merges the headers of a 304 Not Modified response into the headers of the stored response, as RFC 7234 section 4.3.4 updates them: each
+	 * header name of the 304 replaces the stored headers of that name. The headers describing the stored body are kept, some servers send a
+	 * Content-Length of 0 with their 304s.
+	 *
+	 * @param storedHeaders
+	 *            The headers of the stored response, not modified
+	 * @param notModifiedHeaders
+	 *            The headers of the 304 response
+	 * @return the merged headers
+	 */
+	public static KCHeaderGroup mergeNotModifiedHeaders(KCHeaderGroup storedHeaders, KCHeaderGroup notModifiedHeaders)
+	{
+		KCHeaderGroup merged = storedHeaders.copy();
+		KCHeader[] headers = notModifiedHeaders.getAllHeaders();
+		ArrayList<KCHeader> updates = new ArrayList<KCHeader>(headers.length);
+		for (KCHeader header : headers)
+		{
+			String name = header.getName();
+			if (!"Content-Length".equalsIgnoreCase(name) && !"Content-Type".equalsIgnoreCase(name) && !"Content-Encoding".equalsIgnoreCase(name)
+					&& !"Transfer-Encoding".equalsIgnoreCase(name))
+			{
+				updates.add(header);
+			}
+		}
+		merged.updateHeaders(updates.toArray(new KCHeader[updates.size()]));
+		return merged;
+	}
+
+	/**
+	 * Extracts the request headers a response varies on, to store with its cache entry.
+	 *
+	 * @param responseHeaders
+	 *            The headers of the response
+	 * @param requestHeaders
+	 *            The headers of the request
+	 * @return the request headers named by the Vary header of the response, or null if the response has no Vary header
+	 */
+	public static KCHeaderGroup parseVaryHeaders(KCHeaderGroup responseHeaders, KCHeaderGroup requestHeaders)
+	{
+		String[] names = parseVaryNames(responseHeaders);
+		if (names == null)
+		{
+			return null;
+		}
+
+		KCHeaderGroup varyHeaders = new KCHeaderGroup(names.length);
+		for (String name : names)
+		{
+			KCHeader header = requestHeaders.getCondensedHeader(name);
+			if (header != null)
+			{
+				varyHeaders.addHeader(new KCHeader(name, header.getValue()));
+			}
+		}
+		return varyHeaders;
+	}
+
+	/**
+	 * Returns whether a response, stored for a request with the given vary headers, may be used for another request.
+	 *
+	 * @param responseHeaders
+	 *            The headers of the response
+	 * @param varyHeaders
+	 *            The headers the response varies on as returned by {@link #parseVaryHeaders(KCHeaderGroup, KCHeaderGroup)}, null if unknown
+	 * @param requestHeaders
+	 *            The headers of the other request
+	 * @return true if the response has no Vary header or the other request has the same values for all the headers it names
+	 */
+	public static boolean varyMatches(KCHeaderGroup responseHeaders, KCHeaderGroup varyHeaders, KCHeaderGroup requestHeaders)
+	{
+		String[] names = parseVaryNames(responseHeaders);
+		if (names == null)
+		{
+			return true;
+		}
+		if (varyHeaders == null)
+		{
+			return false;
+		}
+
+		for (String name : names)
+		{
+			if (name.equals("*"))
+			{
+				return false;
+			}
+			KCHeader stored = varyHeaders.getFirstHeader(name);
+			KCHeader header = requestHeaders.getCondensedHeader(name);
+			if (stored == null ? header != null : header == null || !stored.getValue().equals(header.getValue()))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the header names listed by the Vary headers, or null if there are none.
+	 */
+	private static String[] parseVaryNames(KCHeaderGroup responseHeaders)
+	{
+		KCHeader[] varyHeaders = responseHeaders.getHeaders("Vary");
+		if (varyHeaders.length == 0)
+		{
+			return null;
+		}
+
+		ArrayList<String> names = new ArrayList<String>();
+		for (KCHeader varyHeader : varyHeaders)
+		{
+			String value = varyHeader.getValue();
+			if (value == null)
+			{
+				continue;
+			}
+			for (String name : value.split(","))
+			{
+				name = name.trim();
+				if (name.length() > 0)
+				{
+					names.add(name);
+				}
+			}
+		}
+		return names.isEmpty() ? null : names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Parse date in RFC1123 format, and return its value as epoch, or 0 if it can't be parsed
 	 */
 	public static long parseDateAsEpoch(String dateStr)
 	{
 		// Parse date in RFC1123 format if this header contains one
-		return KCUtilDate.parseDate(dateStr).getTime();
+		return KCHttpDate.parse(dateStr);
 	}
 
 	/**
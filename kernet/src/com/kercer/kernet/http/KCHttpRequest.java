@@ -39,6 +39,7 @@ import com.kercer.kernet.http.listener.KCHttpProgressListener;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Base class for all network requests.
@@ -102,6 +103,51 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 	/** Whether or not a response has been delivered for this request yet. */
 	private boolean mResponseDelivered = false;
 
+	/** Whether this request was a waiting duplicate served with the result of the request in flight. */
+	private boolean mResultShared = false;
+
+	/** Whether this request must be sent on its own rather than in a batch. */
+	private boolean mUnbatched = false;
+
+	/** The response split from the batch this request was sent in, performed instead of the network by the next dispatcher, or null. */
+	private KCHttpResponse mBatchResponse;
+
+	/** Whether identical concurrent requests may share a single network exchange when not cached. */
+	private boolean mSingleFlight = false;
+
+	/** Key of the single-flight group this request joined in its queue, or null. */
+	private String mSingleFlightKey;
+
+	/** Tags of the cache entry of the response, or null. */
+	private String[] mCacheTags;
+
+	/** The cache key built by the request queue, or null until needed. */
+	private volatile String mCacheKey;
+
+	/** Whether this POST is a read query whose response is cached, keyed by its body. */
+	private boolean mCacheablePost = false;
+
+	/** The body of a cacheable POST, read once to hash it into the cache key and send it. */
+	private byte[] mRequestBody;
+	private boolean mRequestBodyRead = false;
+
+	/** Tags of the cache entries removed when this request succeeds. */
+	private String[] mInvalidatedCacheTags;
+
+	/** First and last byte of the requested range, or -1 if the whole resource, respectively its end, is requested. */
+	private long mRangeStart = -1;
+	private long mRangeEnd = -1;
+
+	/** Range and If-Range headers of the network exchange in progress, set while fetching the missing parts of a range. */
+	private String mFetchRange;
+	private String mFetchIfRange;
+
+	/** How the cache is used for this request. */
+	private CachePolicy mCachePolicy = CachePolicy.DEFAULT;
+
+	/** How long after its hard expiry the cached response may be delivered if the network fails, in milliseconds. */
+	private long mMaxStaleOnErrorMs = 0;
+
 	/** The retry policy for this request. */
 	private KCRetryPolicy mRetryPolicy;
 
@@ -118,6 +164,9 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 
 	protected KCHttpResponseParser mResponseParser;
 
+	/** Executor to deliver this request's callbacks on, or null for the delivery's default. */
+	private Executor mDeliveryExecutor;
+
 	/**
 	 * Flag to define whether the protocol will automatically follow redirects
 	 * or not. The default value is {@code true}.
@@ -283,6 +332,14 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 		return this;
 	}
 
+	/**
+	 * @return the request queue this request is associated with, or null.
+	 */
+	KCRequestQueue getRequestQueue()
+	{
+		return mRequestQueue;
+	}
+
 	/**
 	 * Sets the sequence number of this request. Used by {@link KCRequestQueue}.
 	 *
@@ -319,12 +376,33 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 	}
 
 	/**
-	 * Returns the cache key for this request. By default, this is the URL.
+	 * Returns the cache key for this request. By default, this is the URL, canonicalized by the {@link KCCacheKeyBuilder} of the request queue if
+	 * it has one.
 	 * @return cache key
 	 */
 	public String getCacheKey()
 	{
-		return getUrl();
+		String cacheKey = mCacheKey;
+		if (cacheKey == null)
+		{
+			KCCacheKeyBuilder cacheKeyBuilder = mRequestQueue != null ? mRequestQueue.getCacheKeyBuilder() : null;
+			if (cacheKeyBuilder == null && !isCacheablePost())
+			{
+				return getUrl();
+			}
+			try
+			{
+				cacheKey = cacheKeyBuilder != null ? cacheKeyBuilder.buildCacheKey(this) : KCCacheKeyBuilder.buildPostCacheKey(this, getUrl());
+			}
+			catch (KCAuthFailureError e)
+			{
+				// The body can't be hashed, the request goes to the network uncached.
+				mCacheablePost = false;
+				cacheKey = getUrl();
+			}
+			mCacheKey = cacheKey;
+		}
+		return cacheKey;
 	}
 
 	/**
@@ -452,6 +530,27 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 		return null;
 	}
 
+	/**
+	 * Returns the body to send. The body of a cacheable POST is read with {@link #getBody()} once, for its cache key, and kept for sending.
+	 *
+	 * @return body bytes
+	 * @throws KCAuthFailureError
+	 *             in the event of auth failure
+	 */
+	byte[] getRequestBody() throws KCAuthFailureError
+	{
+		if (!isCacheablePost())
+		{
+			return getBody();
+		}
+		if (!mRequestBodyRead)
+		{
+			mRequestBody = getBody();
+			mRequestBodyRead = true;
+		}
+		return mRequestBody;
+	}
+
 	/**
 	 * Converts <code>params</code> into an application/x-www-form-urlencoded encoded string.
 	 */
@@ -487,13 +586,284 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 	}
 
 	/**
-	 * Returns true if responses to this request should be cached.
+	 * Returns true if responses to this request should be cached. Responses to PUT, DELETE and PATCH requests, and to POST requests which are not
+	 * {@link #setCacheablePost(boolean) cacheable}, are never cached. Responses to range requests are cached by the {@link KCCacheSparse} of the
+	 * request queue instead, see {@link #setRange(long, long)}.
 	 *
 	 * @return should cache
 	 */
 	public final boolean shouldCache()
 	{
-		return mShouldCache;
+		if (mRangeStart >= 0)
+		{
+			return false;
+		}
+		switch (mMethod)
+		{
+		case Method.POST:
+			return mShouldCache && mCacheablePost;
+		case Method.PUT:
+		case Method.DELETE:
+		case Method.PATCH:
+			return false;
+		default:
+			return mShouldCache;
+		}
+	}
+
+	/**
+	 * Set whether this POST request is a read query, e.g. a GraphQL query, whose response is cached like the response to a GET. The cache key is
+	 * the method, URL and a hash of the body, so POSTs to the same URL with different bodies are cached apart. The body is read once, when the
+	 * request is added to the queue.
+	 *
+	 * @param cacheablePost cacheable POST
+	 * @return This Request object to allow for chaining.
+	 */
+	public final KCHttpRequest<?> setCacheablePost(boolean cacheablePost)
+	{
+		mCacheablePost = cacheablePost;
+		return this;
+	}
+
+	/**
+	 * Returns true if this is a POST request whose response is cached, keyed by its body.
+	 *
+	 * @return cacheable POST
+	 */
+	public final boolean isCacheablePost()
+	{
+		return mCacheablePost && mMethod == Method.POST;
+	}
+
+	/**
+	 * Requests a byte range of the resource, e.g. the beginning of a video for its preview. The response is a 206 with the bytes of the range,
+	 * or a 200 with the whole resource if the server doesn't support ranges. If the request queue has a {@link KCCacheSparse}, the parts of the
+	 * range which were received before are read from it and only the missing ones are fetched.
+	 *
+	 * @param start first byte, from 0
+	 * @param end last byte, inclusive, or -1 for the end of the resource
+	 * @return This Request object to allow for chaining.
+	 */
+	public final KCHttpRequest<?> setRange(long start, long end)
+	{
+		if (start < 0 || (end >= 0 && end < start))
+		{
+			throw new IllegalArgumentException("Invalid range " + start + "-" + end);
+		}
+		mRangeStart = start;
+		mRangeEnd = end;
+		return this;
+	}
+
+	/**
+	 * Returns the first byte of the requested range, or -1 if this is not a range request.
+	 *
+	 * @return range start
+	 */
+	public final long getRangeStart()
+	{
+		return mRangeStart;
+	}
+
+	/**
+	 * Returns the last byte of the requested range, inclusive, or -1 for the end of the resource.
+	 *
+	 * @return range end
+	 */
+	public final long getRangeEnd()
+	{
+		return mRangeEnd;
+	}
+
+	/**
+	 * Sets the range of the next network exchange, a missing part of the requested range.
+	 *
+	 * @param start first byte, or -1 to go back to the requested range
+	 * @param end last byte, inclusive, or -1 for the end of the resource
+	 * @param ifRange validator the resource must still match for a 206, or null
+	 */
+	void setFetchRange(long start, long end, String ifRange)
+	{
+		mFetchRange = start >= 0 ? formatRange(start, end) : null;
+		mFetchIfRange = start >= 0 ? ifRange : null;
+	}
+
+	/**
+	 * Returns the value of the Range header of the next network exchange, or null.
+	 */
+	String getRangeHeader()
+	{
+		if (mFetchRange != null)
+		{
+			return mFetchRange;
+		}
+		return mRangeStart >= 0 ? formatRange(mRangeStart, mRangeEnd) : null;
+	}
+
+	/**
+	 * Returns the value of the If-Range header of the next network exchange, or null.
+	 */
+	String getIfRangeHeader()
+	{
+		return mFetchIfRange;
+	}
+
+	private static String formatRange(long start, long end)
+	{
+		return "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : "");
+	}
+
+	/**
+	 * Set the tags of the cache entries to remove when this request succeeds, e.g. for a mutation the tags of the queries whose responses it
+	 * changes. See {@link #setCacheTags(String...)} and {@link KCRequestQueue#invalidateCacheTags(String...)}.
+	 *
+	 * @param invalidatedCacheTags cache tags
+	 * @return This Request object to allow for chaining.
+	 */
+	public final KCHttpRequest<?> setInvalidatedCacheTags(String... invalidatedCacheTags)
+	{
+		mInvalidatedCacheTags = invalidatedCacheTags;
+		return this;
+	}
+
+	/**
+	 * Returns the tags of the cache entries to remove when this request succeeds, or null.
+	 *
+	 * @return invalidated cache tags
+	 */
+	public final String[] getInvalidatedCacheTags()
+	{
+		return mInvalidatedCacheTags;
+	}
+
+	/**
+	 * Set whether identical concurrent requests share a single network exchange. Applies to GET, HEAD and OPTIONS requests which are not cached:
+	 * while one of them is in flight, requests with the same method, URL and single-flight headers of the queue wait for its response instead of
+	 * going to the network. See {@link KCRequestQueue#setSingleFlightHeaders(String...)}.
+	 *
+	 * @param singleFlight single flight
+	 * @return This Request object to allow for chaining.
+	 */
+	public final KCHttpRequest<?> setSingleFlight(boolean singleFlight)
+	{
+		mSingleFlight = singleFlight;
+		return this;
+	}
+
+	/**
+	 * Returns true if identical concurrent requests may share a single network exchange with this one.
+	 *
+	 * @return single flight
+	 */
+	public final boolean isSingleFlight()
+	{
+		return mSingleFlight;
+	}
+
+	/**
+	 * Set the tags of the cache entry of the response, e.g. the account it belongs to, so related entries can be removed together with
+	 * {@link KCCacheDisk#removeByTag(String)}.
+	 *
+	 * @param cacheTags cache tags
+	 * @return This Request object to allow for chaining.
+	 */
+	public final KCHttpRequest<?> setCacheTags(String... cacheTags)
+	{
+		mCacheTags = cacheTags;
+		return this;
+	}
+
+	/**
+	 * Returns the tags of the cache entry of the response, or null.
+	 *
+	 * @return cache tags
+	 */
+	public final String[] getCacheTags()
+	{
+		return mCacheTags;
+	}
+
+	/**
+	 * Sets the key of the single-flight group this request joined. Used by {@link KCRequestQueue}.
+	 */
+	void setSingleFlightKey(String singleFlightKey)
+	{
+		mSingleFlightKey = singleFlightKey;
+	}
+
+	/**
+	 * @return the key of the single-flight group this request joined, or null.
+	 */
+	String getSingleFlightKey()
+	{
+		return mSingleFlightKey;
+	}
+
+	/**
+	 * Set how the cache is used for this request. Only applies to requests which {@link #shouldCache()}.
+	 *
+	 * @param cachePolicy cache policy
+	 * @return This Request object to allow for chaining.
+	 */
+	public final KCHttpRequest<?> setCachePolicy(CachePolicy cachePolicy)
+	{
+		mCachePolicy = cachePolicy != null ? cachePolicy : CachePolicy.DEFAULT;
+		return this;
+	}
+
+	/**
+	 * Returns how the cache is used for this request; {@link CachePolicy#DEFAULT} by default.
+	 *
+	 * @return cache policy
+	 */
+	public final CachePolicy getCachePolicy()
+	{
+		return mCachePolicy;
+	}
+
+	/**
+	 * Set how long after its hard expiry the cached response may still be delivered when the network request fails with a network error, a
+	 * timeout or a server error, instead of the error. A stale-if-error directive in the Cache-Control of the cached response allows the same,
+	 * the longer of the two windows applies.
+	 *
+	 * @param maxStaleOnErrorMs window in milliseconds, 0 to only honor stale-if-error
+	 * @return This Request object to allow for chaining.
+	 */
+	public final KCHttpRequest<?> setMaxStaleOnErrorMs(long maxStaleOnErrorMs)
+	{
+		mMaxStaleOnErrorMs = maxStaleOnErrorMs;
+		return this;
+	}
+
+	/**
+	 * Returns how long after its hard expiry the cached response may be delivered if the network fails, in milliseconds.
+	 *
+	 * @return max stale window on error
+	 */
+	public final long getMaxStaleOnErrorMs()
+	{
+		return mMaxStaleOnErrorMs;
+	}
+
+	/**
+	 * Cache policies of a request.
+	 */
+	public enum CachePolicy
+	{
+		/** Deliver fresh cached responses, refresh soft-expired ones after delivering them and fetch expired ones from the network. */
+		DEFAULT,
+
+		/** Always fetch from the network without reading the cache. The response is still written to the cache. */
+		NETWORK_ONLY,
+
+		/** Only deliver the cached response, however old, or a {@link com.kercer.kernet.http.error.KCCacheMissError} without one. */
+		CACHE_ONLY,
+
+		/**
+		 * Deliver the cached response, however old, as intermediate response and then fetch from the network, unless the response is fresh and
+		 * marked Cache-Control: immutable.
+		 */
+		CACHE_THEN_NETWORK
 	}
 
 	/**
@@ -547,6 +917,68 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 		return mResponseDelivered;
 	}
 
+	/**
+	 * Mark this request as served with the shared result of a duplicate request in flight. Used by {@link KCRequestQueue}.
+	 */
+	void markResultShared()
+	{
+		mResultShared = true;
+	}
+
+	/**
+	 * @return Returns true if this request was served with the shared result of a duplicate request.
+	 */
+	boolean isResultShared()
+	{
+		return mResultShared;
+	}
+
+	/**
+	 * Mark this request as sent on its own, never in a batch. Used by {@link KCRequestBatcher}.
+	 */
+	void markUnbatched()
+	{
+		mUnbatched = true;
+	}
+
+	/**
+	 * @return Returns true if this request must be sent on its own.
+	 */
+	boolean isUnbatched()
+	{
+		return mUnbatched;
+	}
+
+	/**
+	 * Sets the response split from the batch this request was sent in, before the request goes back to the network queue. Used by
+	 * {@link KCRequestBatcher}.
+	 */
+	void setBatchResponse(KCHttpResponse batchResponse)
+	{
+		mBatchResponse = batchResponse;
+	}
+
+	/**
+	 * Returns the response split from the batch this request was sent in and forgets it, so a retry goes to the network.
+	 *
+	 * @return the response, or null if the request must go to the network
+	 */
+	KCHttpResponse takeBatchResponse()
+	{
+		KCHttpResponse batchResponse = mBatchResponse;
+		mBatchResponse = null;
+		return batchResponse;
+	}
+
+	/**
+	 * @return Returns true if this request only fills the cache for a {@link KCPrefetcher}, it isn't counted as traffic and its fresh cache hits
+	 *         are not parsed.
+	 */
+	boolean isPrefetch()
+	{
+		return false;
+	}
+
 
 	public void setResponseParser(KCHttpResponseParser aResponseParser)
 	{
@@ -561,6 +993,28 @@ public abstract class KCHttpRequest<T> implements Comparable<KCHttpRequest<T>>
 
 
 
+	/**
+	 * Sets the executor the headers, response and error of this request are delivered on, instead of the default of the delivery, usually the main
+	 * thread. {@link KCDeliveryExecutor#DIRECT} delivers on the dispatcher thread, which saves background consumers two thread hops.
+	 *
+	 * @param aExecutor
+	 *            executor to deliver on, or null for the default
+	 * @return This Request object to allow for chaining.
+	 */
+	public KCHttpRequest<?> setDeliveryExecutor(Executor aExecutor)
+	{
+		mDeliveryExecutor = aExecutor;
+		return this;
+	}
+
+	/**
+	 * @return the executor this request is delivered on, or null for the default of the delivery.
+	 */
+	public Executor getDeliveryExecutor()
+	{
+		return mDeliveryExecutor;
+	}
+
 	/**
 	 * Returns whether this connection follows redirects.
 	 *
@@ -0,0 +1,12 @@
+package com.kercer.kernet.http;
+
+/**
+ * Marks a {@link KCHttpResponseParser} whose parsed results are immutable and do not depend on the request they were parsed for.
+ *
+ * When several requests for the same cache key are queued while one of them is in flight, the {@link KCRequestQueue} delivers the
+ * {@link KCHttpResult} of that request to the waiting duplicates with a parser of the same class, instead of having each of them read the cache
+ * entry and parse it again.
+ */
+public interface KCHttpResultShareable
+{
+}
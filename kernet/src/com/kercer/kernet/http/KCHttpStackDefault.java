@@ -395,6 +395,14 @@ public class KCHttpStackDefault implements KCHttpStack
 
 		final int contentLength = connection.getContentLength();
 
+		if (inputStream == null)
+		{
+			// An error response without a body, e.g. a 416.
+			entity.setContent(new byte[0]);
+			entity.setContentLength(0);
+			return entity;
+		}
+
 		try
 		{
 			byte[] content = KCUtilIO.inputStreamToBytes(mPool, inputStream, contentLength, new KCUtilIO.KCCopyListener() {
@@ -468,7 +476,7 @@ public class KCHttpStackDefault implements KCHttpStack
 			// This is the deprecated way that needs to be handled for backwards compatibility.
 			// If the request's post body is null, then the assumption is that the request is
 			// GET. Otherwise, it is assumed that the request is a POST.
-			byte[] postBody = request.getBody();
+			byte[] postBody = request.getRequestBody();
 			if (postBody != null)
 			{
 				// Prepare output. There is no need to set Content-Length explicitly,
@@ -521,7 +529,7 @@ public class KCHttpStackDefault implements KCHttpStack
 
 	private static void addBodyIfExists(HttpURLConnection connection, KCHttpRequest<?> request) throws IOException, KCAuthFailureError
 	{
-		byte[] body = request.getBody();
+		byte[] body = request.getRequestBody();
 		if (body != null)
 		{
 			connection.setDoOutput(true);
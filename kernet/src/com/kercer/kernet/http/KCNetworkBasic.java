@@ -20,10 +20,10 @@ import android.os.SystemClock;
 
 import com.kercer.kercore.debug.KCLog;
 import com.kercer.kernet.http.KCCache.KCEntry;
-import com.kercer.kercore.util.KCUtilDate;
 import com.kercer.kernet.http.base.KCHeader;
 import com.kercer.kernet.http.base.KCHeaderGroup;
 import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCHttpDate;
 import com.kercer.kernet.http.base.KCHttpStatus;
 import com.kercer.kernet.http.base.KCProtocolVersion;
 import com.kercer.kernet.http.base.KCStatusLine;
@@ -39,7 +39,6 @@ import org.apache.http.conn.ConnectTimeoutException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
-import java.util.Date;
 
 
 /**
@@ -77,6 +76,7 @@ public class KCNetworkBasic implements KCNetwork
 				// Gather headers.
 				KCHeaderGroup additionalHeaders = new KCHeaderGroup();
 				addCacheHeaders(additionalHeaders, request.getCacheEntry());
+				addRangeHeaders(additionalHeaders, request);
 				httpResponse = mHttpStack.performRequest(request, additionalHeaders, aDelivery);
 				int statusCode = httpResponse.getStatusCode();
 
@@ -97,7 +97,7 @@ public class KCNetworkBasic implements KCNetwork
 					// have to use the header fields from the cache entry plus
 					// the new ones from the response.
 					// http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
-					entry.responseHeaders.addHeaders(responseHeaders.getAllHeaders());
+					entry.responseHeaders = KCHttpHeaderParser.mergeNotModifiedHeaders(entry.responseHeaders, responseHeaders);
 
 					httpResponse.setNotModified(true);
 					httpResponse.setNetworkTimeMs(SystemClock.elapsedRealtime() - requestStart);
@@ -230,7 +230,7 @@ public class KCNetworkBasic implements KCNetwork
 		request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
 	}
 
-	private void addCacheHeaders(KCHeaderGroup headers, KCEntry entry)
+	static void addCacheHeaders(KCHeaderGroup headers, KCEntry entry)
 	{
 		// If there's no cache entry, we're done.
 		if (entry == null)
@@ -245,8 +245,22 @@ public class KCNetworkBasic implements KCNetwork
 
 		if (entry.lastModified > 0)
 		{
-			Date refTime = new Date(entry.lastModified);
-			headers.addHeader(new KCHeader("If-Modified-Since", KCUtilDate.formatDate(refTime)));
+			headers.addHeader(new KCHeader("If-Modified-Since", KCHttpDate.format(entry.lastModified)));
+		}
+	}
+
+	private void addRangeHeaders(KCHeaderGroup headers, KCHttpRequest<?> request)
+	{
+		String range = request.getRangeHeader();
+		if (range == null)
+		{
+			return;
+		}
+		headers.addHeader(new KCHeader("Range", range));
+		String ifRange = request.getIfRangeHeader();
+		if (ifRange != null)
+		{
+			headers.addHeader(new KCHeader("If-Range", ifRange));
 		}
 	}
 
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kercer.kernet.http;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The priority queue of requests going out to the network.
+ *
+ * Behaves like a {@link java.util.concurrent.PriorityBlockingQueue}, but additionally lets a dispatcher wait for a request of at least a given
+ * {@link KCHttpRequest.Priority} with {@link #take(KCHttpRequest.Priority)}. Dispatchers reserved for latency-critical requests use it so they are
+ * never occupied by low priority work.
+ */
+public class KCNetworkQueue extends AbstractQueue<KCHttpRequest<?>> implements BlockingQueue<KCHttpRequest<?>>
+{
+	private final ReentrantLock mLock = new ReentrantLock();
+
+	/** Signalled whenever a request is added. */
+	private final Condition mNotEmpty = mLock.newCondition();
+
+	/** Requests sorted by {@link KCHttpRequest#compareTo(KCHttpRequest)}, the highest priority first. */
+	private final PriorityQueue<KCHttpRequest<?>> mQueue = new PriorityQueue<KCHttpRequest<?>>();
+
+	/**
+	 * Retrieves and removes the head of the queue, waiting until a request of at least the given priority is at the head.
+	 *
+	 * @param aMinPriority
+	 *            the lowest priority the caller is willing to process, or null for any
+	 * @return the head of the queue
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public KCHttpRequest<?> take(KCHttpRequest.Priority aMinPriority) throws InterruptedException
+	{
+		final ReentrantLock lock = mLock;
+		lock.lockInterruptibly();
+		try
+		{
+			KCHttpRequest<?> head;
+			while ((head = mQueue.peek()) == null || !accepts(head, aMinPriority))
+			{
+				mNotEmpty.await();
+			}
+			return mQueue.poll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private static boolean accepts(KCHttpRequest<?> aRequest, KCHttpRequest.Priority aMinPriority)
+	{
+		return aMinPriority == null || aRequest.getPriority().ordinal() >= aMinPriority.ordinal();
+	}
+
+	@Override
+	public KCHttpRequest<?> take() throws InterruptedException
+	{
+		return take(null);
+	}
+
+	@Override
+	public boolean offer(KCHttpRequest<?> aRequest)
+	{
+		if (aRequest == null)
+		{
+			throw new NullPointerException();
+		}
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try
+		{
+			mQueue.offer(aRequest);
+			// Dispatchers wait on different priority thresholds, wake all of them.
+			mNotEmpty.signalAll();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(KCHttpRequest<?> aRequest)
+	{
+		offer(aRequest);
+	}
+
+	@Override
+	public boolean offer(KCHttpRequest<?> aRequest, long aTimeout, TimeUnit aUnit)
+	{
+		return offer(aRequest);
+	}
+
+	@Override
+	public KCHttpRequest<?> poll()
+	{
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try
+		{
+			return mQueue.poll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public KCHttpRequest<?> poll(long aTimeout, TimeUnit aUnit) throws InterruptedException
+	{
+		long nanos = aUnit.toNanos(aTimeout);
+		final ReentrantLock lock = mLock;
+		lock.lockInterruptibly();
+		try
+		{
+			while (mQueue.isEmpty() && nanos > 0)
+			{
+				nanos = mNotEmpty.awaitNanos(nanos);
+			}
+			return mQueue.poll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public KCHttpRequest<?> peek()
+	{
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try
+		{
+			return mQueue.peek();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try
+		{
+			return mQueue.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity()
+	{
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean remove(Object aObject)
+	{
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try
+		{
+			return mQueue.remove(aObject);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super KCHttpRequest<?>> aCollection)
+	{
+		return drainTo(aCollection, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super KCHttpRequest<?>> aCollection, int aMaxElements)
+	{
+		if (aCollection == this)
+		{
+			throw new IllegalArgumentException();
+		}
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try
+		{
+			int n = 0;
+			KCHttpRequest<?> request;
+			while (n < aMaxElements && (request = mQueue.poll()) != null)
+			{
+				aCollection.add(request);
+				n++;
+			}
+			return n;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the queued requests, in no particular order.
+	 */
+	@Override
+	public Iterator<KCHttpRequest<?>> iterator()
+	{
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try
+		{
+			return new ArrayList<KCHttpRequest<?>>(mQueue).iterator();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -36,6 +36,12 @@ public class KCNetworkThread extends Thread
 
 	private KCRequestRunner mRequestRunner;
 
+	/** Lowest priority this dispatcher processes, or null for any. */
+	private final KCHttpRequest.Priority mMinPriority;
+
+	/** The {@link Process} priority this dispatcher runs with. */
+	private final int mThreadPriority;
+
 	/**
 	 * Creates a new network dispatcher thread. You must call {@link #start()} in order to begin processing.
 	 *
@@ -51,6 +57,34 @@ public class KCNetworkThread extends Thread
 	public KCNetworkThread(BlockingQueue<KCHttpRequest<?>> queue, KCNetwork network, KCCache cache, KCDelivery delivery)
 	{
 		mQueue = queue;
+		mMinPriority = null;
+		mThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+
+		mRequestRunner = new KCRequestRunner(cache, network, delivery);
+	}
+
+	/**
+	 * Creates a network dispatcher thread reserved for requests of at least the given priority. You must call {@link #start()} in order to begin
+	 * processing.
+	 *
+	 * @param queue
+	 *            Queue of incoming requests for triage
+	 * @param network
+	 *            Network interface to use for performing requests
+	 * @param cache
+	 *            Cache interface to use for writing responses to cache
+	 * @param delivery
+	 *            Delivery interface to use for posting responses
+	 * @param aMinPriority
+	 *            Lowest request priority this dispatcher takes from the queue, or null for any
+	 * @param aThreadPriority
+	 *            {@link Process} thread priority to run with
+	 */
+	public KCNetworkThread(KCNetworkQueue queue, KCNetwork network, KCCache cache, KCDelivery delivery, KCHttpRequest.Priority aMinPriority, int aThreadPriority)
+	{
+		mQueue = queue;
+		mMinPriority = aMinPriority;
+		mThreadPriority = aThreadPriority;
 
 		mRequestRunner = new KCRequestRunner(cache, network, delivery);
 	}
@@ -67,14 +101,21 @@ public class KCNetworkThread extends Thread
 	@Override
 	public void run()
 	{
-		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		Process.setThreadPriority(mThreadPriority);
 		while (true)
 		{
 			KCHttpRequest<?> request;
 			try
 			{
-				// Take a request from the queue.
-				request = mQueue.take();
+				// Take a request from the queue, reserved dispatchers only take the ones they are reserved for.
+				if (mMinPriority != null && mQueue instanceof KCNetworkQueue)
+				{
+					request = ((KCNetworkQueue) mQueue).take(mMinPriority);
+				}
+				else
+				{
+					request = mQueue.take();
+				}
 			}
 			catch (InterruptedException e)
 			{
@@ -86,6 +127,13 @@ public class KCNetworkThread extends Thread
 				continue;
 			}
 
+			// Requests collected into a batch are served when the batch completes.
+			KCRequestBatcher batcher = request.getRequestQueue() != null ? request.getRequestQueue().getBatcher() : null;
+			if (batcher != null && batcher.offer(request))
+			{
+				continue;
+			}
+
 			KCHttpResponse httpResponse = mRequestRunner.start(request);
 			if (httpResponse == null)
 			{
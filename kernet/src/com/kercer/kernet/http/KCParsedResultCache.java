@@ -0,0 +1,242 @@
+package com.kercer.kernet.http;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * An in-memory cache of parsed results, so a cache hit does not parse the same cache entry again.
+ *
+ * Results are keyed by cache key and parser class. Each one remembers the version of the cache entry it was parsed from (ETag, dates, TTLs and
+ * data length); a result is only returned for an entry of the same version, so an entry replaced by {@link KCCache#put(String, KCCache.KCEntry)}
+ * or changed by {@link KCCache#invalidate(String, boolean)} is parsed again. Only results of {@link KCHttpResultShareable} parsers are cached, as
+ * they are handed to every request hitting the entry. The least recently used results are evicted when the data length of their entries, used as
+ * their weight, exceeds the maximum weight.
+ */
+public class KCParsedResultCache
+{
+	/** Default maximum weight in bytes. */
+	public static final int DEFAULT_MAX_WEIGHT_IN_BYTES = 1024 * 1024;
+
+	/** Results in access order, by parser class name and cache key. */
+	private final LinkedHashMap<String, KCParsedResult> mResults = new LinkedHashMap<String, KCParsedResult>(16, .75f, true);
+
+	/** Class names of the parsers results were stored for, usually a handful, so removing the results of an entry takes a lookup per parser. */
+	private final Set<String> mParserNames = new HashSet<String>();
+
+	/** Maximum total weight in bytes. */
+	private final int mMaxWeightInBytes;
+
+	/** Total weight of the results in bytes. */
+	private long mTotalWeight = 0;
+
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+
+	/** Parse time of the results returned by hits, in nanoseconds. */
+	private long mParseTimeSavedNanos = 0;
+
+	/**
+	 * Constructs an instance of the KCParsedResultCache.
+	 *
+	 * @param aMaxWeightInBytes
+	 *            The maximum total data length of the entries whose results are cached.
+	 */
+	public KCParsedResultCache(int aMaxWeightInBytes)
+	{
+		mMaxWeightInBytes = aMaxWeightInBytes;
+	}
+
+	/**
+	 * Constructs an instance of the KCParsedResultCache with a default maximum weight of 1 MB.
+	 */
+	public KCParsedResultCache()
+	{
+		this(DEFAULT_MAX_WEIGHT_IN_BYTES);
+	}
+
+	/**
+	 * Returns the result parsed from a cache entry.
+	 *
+	 * @param aCacheKey
+	 *            Cache key of the entry
+	 * @param aEntry
+	 *            The cache entry
+	 * @param aParser
+	 *            The parser of the request
+	 * @return a new result with the parsed value and the given entry, or null if there is no result for this version of the entry
+	 */
+	public synchronized KCHttpResult<?> get(String aCacheKey, KCCache.KCEntry aEntry, KCHttpResponseParser aParser)
+	{
+		if (!(aParser instanceof KCHttpResultShareable))
+		{
+			return null;
+		}
+		String key = key(aCacheKey, aParser.getClass().getName());
+		KCParsedResult parsedResult = mResults.get(key);
+		if (parsedResult == null)
+		{
+			mMissCount++;
+			return null;
+		}
+		if (!parsedResult.isVersionOf(aEntry))
+		{
+			mMissCount++;
+			removeResult(key);
+			return null;
+		}
+		mHitCount++;
+		mParseTimeSavedNanos += parsedResult.parseTimeNanos;
+		return KCHttpResult.success(parsedResult.value, aEntry);
+	}
+
+	/**
+	 * Stores the result parsed from a cache entry. Does nothing unless the parser is {@link KCHttpResultShareable} and the result successful.
+	 *
+	 * @param aCacheKey
+	 *            Cache key of the entry
+	 * @param aEntry
+	 *            The cache entry, as stored in the cache
+	 * @param aParser
+	 *            The parser of the request
+	 * @param aResult
+	 *            The parsed result
+	 * @param aParseTimeNanos
+	 *            Time spent parsing, in nanoseconds
+	 */
+	public synchronized void put(String aCacheKey, KCCache.KCEntry aEntry, KCHttpResponseParser aParser, KCHttpResult<?> aResult, long aParseTimeNanos)
+	{
+		if (!(aParser instanceof KCHttpResultShareable) || aEntry == null || aResult == null || !aResult.isSuccess() || aResult.result == null)
+		{
+			return;
+		}
+		int weight = aEntry.data != null ? aEntry.data.length : 0;
+		if (weight > mMaxWeightInBytes)
+		{
+			return;
+		}
+		String parserName = aParser.getClass().getName();
+		String key = key(aCacheKey, parserName);
+		mParserNames.add(parserName);
+		removeResult(key);
+		mResults.put(key, new KCParsedResult(aEntry, aResult.result, aParseTimeNanos));
+		mTotalWeight += weight;
+		trimToWeight();
+	}
+
+	/**
+	 * Removes the results parsed from an entry, by any parser. The cache dispatcher calls it when the entry is missing from the cache, i.e. was
+	 * removed, evicted or cleared.
+	 *
+	 * @param aCacheKey
+	 *            Cache key of the entry
+	 */
+	public synchronized void remove(String aCacheKey)
+	{
+		for (String parserName : mParserNames)
+		{
+			removeResult(key(aCacheKey, parserName));
+		}
+	}
+
+	/**
+	 * Removes all results.
+	 */
+	public synchronized void clear()
+	{
+		mResults.clear();
+		mParserNames.clear();
+		mTotalWeight = 0;
+	}
+
+	/**
+	 * @return the number of lookups which returned a result.
+	 */
+	public synchronized long getHitCount()
+	{
+		return mHitCount;
+	}
+
+	/**
+	 * @return the number of lookups of shareable parsers which found no result for the entry.
+	 */
+	public synchronized long getMissCount()
+	{
+		return mMissCount;
+	}
+
+	/**
+	 * @return the ratio of lookups which returned a result, 0 if there were none.
+	 */
+	public synchronized float getHitRatio()
+	{
+		long lookups = mHitCount + mMissCount;
+		return lookups == 0 ? 0 : (float) mHitCount / lookups;
+	}
+
+	/**
+	 * @return the time the results returned by hits originally took to parse, in milliseconds.
+	 */
+	public synchronized long getParseTimeSavedMs()
+	{
+		return mParseTimeSavedNanos / 1000000;
+	}
+
+	private void removeResult(String aKey)
+	{
+		KCParsedResult removed = mResults.remove(aKey);
+		if (removed != null)
+		{
+			mTotalWeight -= removed.weight;
+		}
+	}
+
+	private void trimToWeight()
+	{
+		Iterator<KCParsedResult> iterator = mResults.values().iterator();
+		while (mTotalWeight > mMaxWeightInBytes && iterator.hasNext())
+		{
+			mTotalWeight -= iterator.next().weight;
+			iterator.remove();
+		}
+	}
+
+	private static String key(String aCacheKey, String aParserName)
+	{
+		return new StringBuilder(aParserName.length() + 1 + aCacheKey.length()).append(aParserName).append(' ').append(aCacheKey).toString();
+	}
+
+	/**
+	 * A parsed value and the version of the cache entry it was parsed from.
+	 */
+	private static class KCParsedResult
+	{
+		final Object value;
+		final String etag;
+		final long serverDate;
+		final long lastModified;
+		final long ttl;
+		final long softTtl;
+		final int weight;
+		final long parseTimeNanos;
+
+		KCParsedResult(KCCache.KCEntry aEntry, Object aValue, long aParseTimeNanos)
+		{
+			value = aValue;
+			etag = aEntry.etag;
+			serverDate = aEntry.serverDate;
+			lastModified = aEntry.lastModified;
+			ttl = aEntry.ttl;
+			softTtl = aEntry.softTtl;
+			weight = aEntry.data != null ? aEntry.data.length : 0;
+			parseTimeNanos = aParseTimeNanos;
+		}
+
+		boolean isVersionOf(KCCache.KCEntry aEntry)
+		{
+			return ttl == aEntry.ttl && softTtl == aEntry.softTtl && serverDate == aEntry.serverDate && lastModified == aEntry.lastModified
+					&& weight == (aEntry.data != null ? aEntry.data.length : 0) && (etag == null ? aEntry.etag == null : etag.equals(aEntry.etag));
+		}
+	}
+}
@@ -0,0 +1,602 @@
+package com.kercer.kernet.http;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.kercer.kercore.debug.KCLog;
+import com.kercer.kernet.http.error.KCNetError;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills the cache of a {@link KCRequestQueue} with the responses the application expects to need soon, without competing with its traffic.
+ *
+ * <p>
+ * {@link #prefetch(String, long)} takes a hint: a URL and the time its response is expected to be used. Hints are fetched earliest use first, one
+ * at a time by default, once the queue has had no other request for the idle delay and the bandwidth measured on its responses is at least the
+ * minimum, if any. Hints whose use time has passed are dropped, the application fetched them itself. A hint is skipped when a request with its
+ * cache key is in flight or when it was prefetched and is still fresh; the cache dispatcher finishes prefetches with a fresh cache entry without
+ * reading further.
+ * </p>
+ *
+ * <p>
+ * Prefetches are {@link KCHttpRequest.Priority#LOW} requests which only write the cache: responses are not parsed beyond their cache headers and
+ * are not posted to the main thread. When the requests of the application in flight reach the cancel threshold, the prefetches in flight are
+ * canceled and their hints queued again, unless requests of the application are already waiting for them. A response already on its way when
+ * its prefetch is canceled is still written to the cache and counted, and its hint is then skipped as fresh.
+ * </p>
+ *
+ * <p>
+ * The hit rate, {@link #getHitRate()}, is the share of prefetched entries later served from the cache to a request of the application.
+ * </p>
+ */
+public class KCPrefetcher
+{
+	/** Default time the queue must be idle before prefetching, in milliseconds. */
+	public static final long DEFAULT_IDLE_DELAY_MS = 1000;
+
+	/** Default number of requests of the application in flight which cancels the prefetches in flight. */
+	public static final int DEFAULT_CANCEL_THRESHOLD = 2;
+
+	/** Default number of hints kept. */
+	public static final int DEFAULT_MAX_HINTS = 64;
+
+	/** Responses smaller than this are dominated by latency and not used to measure the bandwidth. */
+	private static final int MIN_BANDWIDTH_SAMPLE_BYTES = 16 * 1024;
+
+	/** Number of prefetched keys remembered for the hit rate. */
+	private static final int MAX_PREFETCHED_KEYS = 256;
+
+	/** A URL to prefetch. */
+	private static class KCPrefetchHint
+	{
+		final String mUrl;
+		long mUseTime;
+
+		KCPrefetchHint(String aUrl, long aUseTime)
+		{
+			mUrl = aUrl;
+			mUseTime = aUseTime;
+		}
+	}
+
+	/** Writes the response of a hint to the cache, without a listener nor a trip to the main thread. */
+	private class KCPrefetchRequest extends KCHttpRequest<Void>
+	{
+		final KCPrefetchHint mHint;
+
+		/** Soft TTL of the cache entry written, or 0. */
+		volatile long mSoftTtl;
+
+		KCPrefetchRequest(KCPrefetchHint aHint)
+		{
+			super(Method.GET, aHint.mUrl);
+			mHint = aHint;
+			setDeliveryExecutor(KCDeliveryExecutor.DIRECT);
+			setResponseParser(new KCHttpResponseParser()
+			{
+				@Override
+				public KCHttpResult<Void> parseHttpResponse(KCHttpResponse aResponse)
+				{
+					KCCache.KCEntry entry = KCHttpHeaderParser.parseCacheHeaders(aResponse);
+					mSoftTtl = entry != null ? entry.softTtl : 0;
+					return KCHttpResult.success(null, entry);
+				}
+
+				@Override
+				public KCNetError parseHttpError(KCNetError aError)
+				{
+					return aError;
+				}
+			});
+		}
+
+		@Override
+		public Priority getPriority()
+		{
+			return Priority.LOW;
+		}
+
+		@Override
+		boolean isPrefetch()
+		{
+			return true;
+		}
+
+		@Override
+		protected void notifyError(KCNetError aError)
+		{
+			if (KCLog.DEBUG)
+			{
+				KCLog.v("Prefetch of %s failed: %s", getUrl(), aError.toString());
+			}
+		}
+	}
+
+	private final KCRequestQueue mQueue;
+
+	/** Guards the state below, notified when it changes. */
+	private final Object mLock = new Object();
+
+	/** Hints to fetch, by use time. */
+	private final ArrayList<KCPrefetchHint> mHints = new ArrayList<KCPrefetchHint>();
+
+	/** Prefetches added to the queue and not finished. */
+	private final ArrayList<KCPrefetchRequest> mPrefetches = new ArrayList<KCPrefetchRequest>();
+
+	/** Soft TTLs of the entries prefetched and not used yet, by cache key. */
+	private final LinkedHashMap<String, Long> mPrefetchedKeys = new LinkedHashMap<String, Long>()
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> aEldest)
+		{
+			return size() > MAX_PREFETCHED_KEYS;
+		}
+	};
+
+	/** Requests of the application in flight. */
+	private int mActiveRequestCount = 0;
+
+	/** When the last request of the application was added or finished, in {@link SystemClock#elapsedRealtime()} time. */
+	private long mLastActivityTime = 0;
+
+	/** Measured bandwidth in bytes per second, or -1. */
+	private long mBandwidth = -1;
+
+	private long mIdleDelayMs = DEFAULT_IDLE_DELAY_MS;
+	private long mMinBandwidth = 0;
+	private int mCancelThreshold = DEFAULT_CANCEL_THRESHOLD;
+	private int mMaxPrefetches = 1;
+	private int mMaxHints = DEFAULT_MAX_HINTS;
+
+	private long mPrefetchedCount = 0;
+	private long mHitCount = 0;
+
+	/** The scheduler thread, started with the first hint. */
+	private Thread mScheduler;
+
+	/**
+	 * Creates the prefetcher of a queue. A queue has at most one, the last one created.
+	 *
+	 * @param aQueue
+	 *            The queue to prefetch with
+	 */
+	public KCPrefetcher(KCRequestQueue aQueue)
+	{
+		mQueue = aQueue;
+		aQueue.setPrefetcher(this);
+	}
+
+	/**
+	 * Hints that the response at the URL is expected to be used at the given time.
+	 *
+	 * @param aUrl
+	 *            URL of a GET request
+	 * @param aUseTime
+	 *            When the response is expected to be used, in {@link System#currentTimeMillis()} time
+	 */
+	public void prefetch(String aUrl, long aUseTime)
+	{
+		if (aUrl == null || aUseTime <= System.currentTimeMillis())
+		{
+			return;
+		}
+		synchronized (mLock)
+		{
+			for (int i = 0; i < mHints.size(); i++)
+			{
+				KCPrefetchHint hint = mHints.get(i);
+				if (hint.mUrl.equals(aUrl))
+				{
+					if (hint.mUseTime <= aUseTime)
+					{
+						return;
+					}
+					mHints.remove(i);
+					break;
+				}
+			}
+			addHint(new KCPrefetchHint(aUrl, aUseTime));
+			startSchedulerIfNeeded();
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Hints that the response at the URL will be used, at an unknown time after the hints with a use time.
+	 *
+	 * @param aUrl
+	 *            URL of a GET request
+	 */
+	public void prefetch(String aUrl)
+	{
+		prefetch(aUrl, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Drops the hints and cancels the prefetches in flight.
+	 */
+	public void clear()
+	{
+		synchronized (mLock)
+		{
+			mHints.clear();
+			for (KCPrefetchRequest request : mPrefetches)
+			{
+				request.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Sets how long the queue must have had no request of the application before prefetching.
+	 *
+	 * @param aIdleDelayMs
+	 *            Idle delay in milliseconds
+	 */
+	public void setIdleDelay(long aIdleDelayMs)
+	{
+		synchronized (mLock)
+		{
+			mIdleDelayMs = aIdleDelayMs;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets the bandwidth below which hints wait. Until a response large enough to measure it was received, the bandwidth is unknown and doesn't
+	 * hold hints back.
+	 *
+	 * @param aBytesPerSecond
+	 *            Minimum bandwidth in bytes per second, 0 to ignore it
+	 */
+	public void setMinBandwidth(long aBytesPerSecond)
+	{
+		synchronized (mLock)
+		{
+			mMinBandwidth = aBytesPerSecond;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets the number of requests of the application in flight which cancels the prefetches in flight.
+	 *
+	 * @param aCount
+	 *            Cancel threshold, at least 1
+	 */
+	public void setCancelThreshold(int aCount)
+	{
+		if (aCount < 1)
+		{
+			throw new IllegalArgumentException("Cancel threshold must be at least 1");
+		}
+		synchronized (mLock)
+		{
+			mCancelThreshold = aCount;
+		}
+	}
+
+	/**
+	 * Sets how many prefetches may be in flight at once.
+	 *
+	 * @param aCount
+	 *            Maximum number of prefetches in flight, at least 1
+	 */
+	public void setMaxPrefetches(int aCount)
+	{
+		if (aCount < 1)
+		{
+			throw new IllegalArgumentException("At least one prefetch must be allowed");
+		}
+		synchronized (mLock)
+		{
+			mMaxPrefetches = aCount;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets how many hints are kept; beyond, the hints used last are dropped.
+	 *
+	 * @param aCount
+	 *            Maximum number of hints
+	 */
+	public void setMaxHints(int aCount)
+	{
+		synchronized (mLock)
+		{
+			mMaxHints = aCount;
+			while (mHints.size() > mMaxHints)
+			{
+				mHints.remove(mHints.size() - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return the bandwidth measured on the responses of the queue in bytes per second, or -1 if unknown
+	 */
+	public long getBandwidthEstimate()
+	{
+		synchronized (mLock)
+		{
+			return mBandwidth;
+		}
+	}
+
+	/**
+	 * @return the number of hints waiting
+	 */
+	public int getHintCount()
+	{
+		synchronized (mLock)
+		{
+			return mHints.size();
+		}
+	}
+
+	/**
+	 * @return the number of responses prefetched into the cache
+	 */
+	public long getPrefetchedCount()
+	{
+		synchronized (mLock)
+		{
+			return mPrefetchedCount;
+		}
+	}
+
+	/**
+	 * @return the number of prefetched responses later served from the cache to a request of the application
+	 */
+	public long getHitCount()
+	{
+		synchronized (mLock)
+		{
+			return mHitCount;
+		}
+	}
+
+	/**
+	 * @return the share of prefetched responses later served from the cache, between 0 and 1
+	 */
+	public float getHitRate()
+	{
+		synchronized (mLock)
+		{
+			return mPrefetchedCount > 0 ? (float) mHitCount / mPrefetchedCount : 0;
+		}
+	}
+
+	/**
+	 * Called by the queue when a request is added. Requests of the application delay the prefetches, and cancel the ones in flight when they
+	 * reach the threshold.
+	 */
+	void onRequestAdded(KCHttpRequest<?> aRequest)
+	{
+		if (aRequest.isPrefetch())
+		{
+			return;
+		}
+		List<KCPrefetchRequest> prefetches;
+		synchronized (mLock)
+		{
+			mActiveRequestCount++;
+			mLastActivityTime = SystemClock.elapsedRealtime();
+			if (mActiveRequestCount < mCancelThreshold || mPrefetches.isEmpty())
+			{
+				return;
+			}
+			prefetches = new ArrayList<KCPrefetchRequest>(mPrefetches);
+		}
+
+		for (KCPrefetchRequest request : prefetches)
+		{
+			// The application already waits for this response, it is no longer a prefetch. The request being added is staged behind the prefetch
+			// right after this.
+			String cacheKey = request.getCacheKey();
+			if (request.isCanceled() || mQueue.hasWaitingRequests(cacheKey) || (aRequest.shouldCache() && cacheKey.equals(aRequest.getCacheKey())))
+			{
+				continue;
+			}
+			request.cancel();
+			request.addMarker("prefetch-canceled-by-traffic");
+			synchronized (mLock)
+			{
+				addHint(request.mHint);
+			}
+		}
+	}
+
+	/**
+	 * Called by the queue when a request finished.
+	 */
+	void onRequestFinished(KCHttpRequest<?> aRequest)
+	{
+		synchronized (mLock)
+		{
+			if (aRequest instanceof KCPrefetchRequest)
+			{
+				mPrefetches.remove(aRequest);
+				// Counted once finished rather than delivered: a prefetch canceled after its response arrived has written it to the cache too.
+				onPrefetched((KCPrefetchRequest) aRequest);
+			}
+			else
+			{
+				mActiveRequestCount = Math.max(mActiveRequestCount - 1, 0);
+				mLastActivityTime = SystemClock.elapsedRealtime();
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Called by the cache dispatcher when a request of the application is served from the cache.
+	 */
+	void onCacheHit(String aCacheKey)
+	{
+		synchronized (mLock)
+		{
+			if (mPrefetchedKeys.remove(aCacheKey) != null)
+			{
+				mHitCount++;
+			}
+		}
+	}
+
+	/**
+	 * Called by the network dispatchers with each response, to measure the bandwidth.
+	 */
+	void onNetworkResponse(KCHttpResponse aResponse)
+	{
+		byte[] content = aResponse.getContent();
+		long timeMs = aResponse.getNetworkTimeMs();
+		if (content == null || content.length < MIN_BANDWIDTH_SAMPLE_BYTES || timeMs <= 0)
+		{
+			return;
+		}
+		long sample = content.length * 1000L / timeMs;
+		synchronized (mLock)
+		{
+			// Moving average, so a single slow or fast response doesn't swing it.
+			mBandwidth = mBandwidth < 0 ? sample : (mBandwidth * 3 + sample) / 4;
+			mLock.notifyAll();
+		}
+	}
+
+	private void onPrefetched(KCPrefetchRequest aRequest)
+	{
+		if (aRequest.mSoftTtl <= 0)
+		{
+			// Not fetched or not cacheable, nothing was written.
+			return;
+		}
+		synchronized (mLock)
+		{
+			mPrefetchedCount++;
+			mPrefetchedKeys.remove(aRequest.getCacheKey());
+			mPrefetchedKeys.put(aRequest.getCacheKey(), aRequest.mSoftTtl);
+		}
+	}
+
+	/**
+	 * Inserts a hint by use time, dropping the hint used last if there are too many. Called with the lock held.
+	 */
+	private void addHint(KCPrefetchHint aHint)
+	{
+		int index = mHints.size();
+		while (index > 0 && mHints.get(index - 1).mUseTime > aHint.mUseTime)
+		{
+			index--;
+		}
+		mHints.add(index, aHint);
+		while (mHints.size() > mMaxHints)
+		{
+			mHints.remove(mHints.size() - 1);
+		}
+	}
+
+	private void startSchedulerIfNeeded()
+	{
+		if (mScheduler != null)
+		{
+			return;
+		}
+		mScheduler = new Thread("KCPrefetcher")
+		{
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				scheduleLoop();
+			}
+		};
+		mScheduler.setDaemon(true);
+		mScheduler.start();
+	}
+
+	private void scheduleLoop()
+	{
+		while (true)
+		{
+			KCPrefetchHint hint;
+			synchronized (mLock)
+			{
+				long delay = getDelay();
+				if (delay != 0)
+				{
+					try
+					{
+						mLock.wait(delay > 0 ? delay : 0);
+					}
+					catch (InterruptedException e)
+					{
+						// Keep scheduling, the hints are still wanted.
+					}
+					continue;
+				}
+				hint = mHints.remove(0);
+			}
+
+			KCPrefetchRequest request = new KCPrefetchRequest(hint);
+			request.setRequestQueue(mQueue);
+			String cacheKey = request.getCacheKey();
+			if (isFresh(cacheKey) || mQueue.isInFlight(cacheKey))
+			{
+				continue;
+			}
+			synchronized (mLock)
+			{
+				mPrefetches.add(request);
+			}
+			if (KCLog.DEBUG)
+			{
+				KCLog.v("Prefetching %s", hint.mUrl);
+			}
+			mQueue.add(request);
+		}
+	}
+
+	/**
+	 * Returns 0 if a hint can be fetched now, else how long to wait for it in milliseconds, or -1 to wait for a change. Drops the hints whose
+	 * use time has passed. Called with the lock held.
+	 */
+	private long getDelay()
+	{
+		long now = System.currentTimeMillis();
+		while (!mHints.isEmpty() && mHints.get(0).mUseTime <= now)
+		{
+			mHints.remove(0);
+		}
+		if (mHints.isEmpty() || mPrefetches.size() >= mMaxPrefetches || mActiveRequestCount > 0)
+		{
+			return -1;
+		}
+		if (mMinBandwidth > 0 && mBandwidth >= 0 && mBandwidth < mMinBandwidth)
+		{
+			return -1;
+		}
+		long idleTime = SystemClock.elapsedRealtime() - mLastActivityTime;
+		if (mLastActivityTime > 0 && idleTime < mIdleDelayMs)
+		{
+			return mIdleDelayMs - idleTime;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if the entry of the key was prefetched and doesn't need a refresh yet.
+	 */
+	private boolean isFresh(String aCacheKey)
+	{
+		synchronized (mLock)
+		{
+			Long softTtl = mPrefetchedKeys.get(aCacheKey);
+			return softTtl != null && softTtl > System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,543 @@
+package com.kercer.kernet.http;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.kercer.kercore.debug.KCLog;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCHttpStatus;
+import com.kercer.kernet.http.error.KCAuthFailureError;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.error.KCParseError;
+import com.kercer.kernet.http.error.KCServerError;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the small requests of a {@link KCRequestQueue} to a batch endpoint several at a time, so they share one round trip.
+ *
+ * <p>
+ * The network dispatchers hand the compatible requests to the batcher instead of performing them: by default the GET requests without a range to
+ * the origin of the endpoint, see {@link #setBatchFilter(KCRequestQueue.KCRequestFilter)}. The requests collected within the window, or as soon
+ * as there are enough for a batch, are encoded by the {@link KCBatchCodec} into one POST to the endpoint, which goes through the queue like any
+ * request. The codec splits the response of the endpoint when the batch request is parsed, then each request goes back to the network queue
+ * with its own response, and a network dispatcher serves it as if it had received the response from the network: it is parsed, written to the
+ * cache and delivered. A request which is alone in its window, or the endpoint didn't answer, is sent on its own, and so are all the requests of
+ * a batch which failed.
+ * </p>
+ */
+public class KCRequestBatcher
+{
+	/** Default time requests are collected for a batch, in milliseconds. */
+	public static final long DEFAULT_WINDOW_MS = 10;
+
+	/** Default maximum number of requests in a batch. */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+	/**
+	 * The batch request: its result is the responses split from the response of the endpoint, one per request of the batch. Once delivered, they
+	 * serve the requests of the batch; if the batch fails, the requests are sent on their own.
+	 */
+	private class KCBatchRequest extends KCHttpRequest<List<KCHttpResponse>>
+	{
+		final List<KCHttpRequest<?>> mRequests;
+		final byte[] mBody;
+		final Priority mPriority;
+
+		KCBatchRequest(List<KCHttpRequest<?>> aRequests, byte[] aBody, Priority aPriority)
+		{
+			super(Method.POST, mEndpoint);
+			mRequests = aRequests;
+			mBody = aBody;
+			mPriority = aPriority;
+			setShouldCache(false);
+			markUnbatched();
+			setDeliveryExecutor(KCDeliveryExecutor.DIRECT);
+			setResponseParser(new KCHttpResponseParser()
+			{
+				@Override
+				public KCHttpResult<List<KCHttpResponse>> parseHttpResponse(KCHttpResponse aResponse)
+				{
+					List<KCHttpResponse> responses;
+					try
+					{
+						responses = mCodec.decode(aResponse, mRequests);
+					}
+					catch (KCParseError e)
+					{
+						return KCHttpResult.error(e);
+					}
+					if (responses == null || responses.size() != mRequests.size())
+					{
+						return KCHttpResult.error(new KCParseError("Batch response doesn't match its " + mRequests.size() + " requests"));
+					}
+					return KCHttpResult.success(responses, null);
+				}
+
+				@Override
+				public KCNetError parseHttpError(KCNetError aError)
+				{
+					return aError;
+				}
+			});
+		}
+
+		@Override
+		public Priority getPriority()
+		{
+			return mPriority;
+		}
+
+		@Override
+		public String getBodyContentType()
+		{
+			return mCodec.getBodyContentType();
+		}
+
+		@Override
+		public byte[] getBody()
+		{
+			return mBody;
+		}
+
+		/**
+		 * Delivered on the dispatcher which performed the batch, see {@link KCDeliveryExecutor#DIRECT}.
+		 */
+		@Override
+		protected void notifyResponse(KCHttpResponse aResponse, List<KCHttpResponse> aResult)
+		{
+			serve(mRequests, aResult);
+		}
+
+		/**
+		 * The requests of the batch are canceled one by one, the batch serves the others.
+		 */
+		@Override
+		public void cancel()
+		{
+		}
+
+		@Override
+		protected void notifyError(KCNetError aError)
+		{
+			KCLog.d("Batch of %d requests failed, sending them on their own: %s", mRequests.size(), aError.toString());
+			synchronized (mLock)
+			{
+				mFallbackCount += mRequests.size();
+			}
+			for (KCHttpRequest<?> request : mRequests)
+			{
+				sendAlone(request);
+			}
+		}
+	}
+
+	/**
+	 * Hands out the response split from a batch to its request, checked the way {@link KCNetworkBasic} checks the responses it receives. Used by
+	 * {@link KCRequestRunner} instead of the network for a request with a batch response.
+	 */
+	static class KCBatchItemNetwork implements KCNetwork
+	{
+		private final KCHttpResponse mResponse;
+
+		KCBatchItemNetwork(KCHttpResponse aResponse)
+		{
+			mResponse = aResponse;
+		}
+
+		@Override
+		public KCHttpResponse performRequest(KCHttpRequest<?> aRequest, KCDeliveryResponse aDelivery) throws KCNetError
+		{
+			if (mResponse.getHttpContent() == null)
+			{
+				mResponse.setContent(new KCHttpContent());
+			}
+			if (mResponse.getContent() == null)
+			{
+				mResponse.getHttpContent().setContent(new byte[0]);
+			}
+			aDelivery.postHeaders(aRequest, mResponse.getStatusLine(), mResponse.getHeaderGroup());
+			int statusCode = mResponse.getStatusCode();
+			if (statusCode == KCHttpStatus.HTTP_NOT_MODIFIED)
+			{
+				// Like a 304 received on its own: the data and the headers missing from the response come from the cache entry.
+				KCCache.KCEntry entry = aRequest.getCacheEntry();
+				if (entry != null)
+				{
+					entry.responseHeaders = KCHttpHeaderParser.mergeNotModifiedHeaders(entry.responseHeaders, mResponse.getHeaderGroup());
+					mResponse.getHttpContent().setContent(entry.data);
+					mResponse.setHeaders(entry.responseHeaders.getAllHeaders());
+				}
+				mResponse.setNotModified(true);
+				return mResponse;
+			}
+			if (statusCode == KCHttpStatus.HTTP_UNAUTHORIZED || statusCode == KCHttpStatus.HTTP_FORBIDDEN)
+			{
+				throw new KCAuthFailureError(mResponse);
+			}
+			if (statusCode < 200 || statusCode > 299)
+			{
+				throw new KCServerError(mResponse);
+			}
+			mResponse.setNotModified(false);
+			return mResponse;
+		}
+	}
+
+	private final KCRequestQueue mQueue;
+	private final String mEndpoint;
+	private final KCBatchCodec mCodec;
+
+	/** Guards the state below, notified when requests are collected. */
+	private final Object mLock = new Object();
+
+	/** Requests collected for the next batch, in the order they were taken from the network queue. */
+	private final ArrayList<KCHttpRequest<?>> mPending = new ArrayList<KCHttpRequest<?>>();
+
+	/** When the pending requests are sent, in {@link SystemClock#elapsedRealtime()} time. */
+	private long mDeadline;
+
+	private long mWindowMs = DEFAULT_WINDOW_MS;
+	private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private volatile KCRequestQueue.KCRequestFilter mFilter;
+
+	private long mBatchCount = 0;
+	private long mBatchedRequestCount = 0;
+	private long mFallbackCount = 0;
+
+	/** The thread sending the batches, started with the first request collected. */
+	private Thread mSender;
+
+	/**
+	 * Creates the batcher of a queue. A queue has at most one, the last one created.
+	 *
+	 * @param aQueue
+	 *            The queue whose requests are batched
+	 * @param aEndpoint
+	 *            URL of the batch endpoint
+	 * @param aCodec
+	 *            The codec of the endpoint
+	 */
+	public KCRequestBatcher(KCRequestQueue aQueue, String aEndpoint, KCBatchCodec aCodec)
+	{
+		mQueue = aQueue;
+		mEndpoint = aEndpoint;
+		mCodec = aCodec;
+		final String origin = originOf(aEndpoint);
+		mFilter = new KCRequestQueue.KCRequestFilter()
+		{
+			@Override
+			public boolean apply(KCHttpRequest<?> request)
+			{
+				return request.getMethod() == KCHttpRequest.Method.GET && request.getRangeStart() < 0 && origin != null
+						&& origin.equals(originOf(request.getUrl()));
+			}
+		};
+		aQueue.setBatcher(this);
+	}
+
+	/**
+	 * Creates the batcher of a queue, for an endpoint speaking {@link KCBatchCodecJson}.
+	 *
+	 * @param aQueue
+	 *            The queue whose requests are batched
+	 * @param aEndpoint
+	 *            URL of the batch endpoint
+	 */
+	public KCRequestBatcher(KCRequestQueue aQueue, String aEndpoint)
+	{
+		this(aQueue, aEndpoint, new KCBatchCodecJson());
+	}
+
+	/**
+	 * Sets how long requests are collected for a batch. A longer window makes larger batches, but delays the first request of each.
+	 *
+	 * @param aWindowMs
+	 *            Window in milliseconds
+	 */
+	public void setWindow(long aWindowMs)
+	{
+		synchronized (mLock)
+		{
+			mWindowMs = aWindowMs;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of requests in a batch; a batch is sent as soon as it is full.
+	 *
+	 * @param aMaxBatchSize
+	 *            Maximum batch size, at least 2
+	 */
+	public void setMaxBatchSize(int aMaxBatchSize)
+	{
+		if (aMaxBatchSize < 2)
+		{
+			throw new IllegalArgumentException("A batch needs at least 2 requests");
+		}
+		synchronized (mLock)
+		{
+			mMaxBatchSize = aMaxBatchSize;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets which requests are batched. The codec must be able to encode them and the endpoint to answer them.
+	 *
+	 * @param aFilter
+	 *            Applies to the requests to batch
+	 */
+	public void setBatchFilter(KCRequestQueue.KCRequestFilter aFilter)
+	{
+		mFilter = aFilter;
+	}
+
+	/**
+	 * @return the number of batches answered by the endpoint
+	 */
+	public long getBatchCount()
+	{
+		synchronized (mLock)
+		{
+			return mBatchCount;
+		}
+	}
+
+	/**
+	 * @return the number of requests served with a response split from a batch
+	 */
+	public long getBatchedRequestCount()
+	{
+		synchronized (mLock)
+		{
+			return mBatchedRequestCount;
+		}
+	}
+
+	/**
+	 * @return the number of collected requests sent on their own because their batch failed or didn't answer them
+	 */
+	public long getFallbackCount()
+	{
+		synchronized (mLock)
+		{
+			return mFallbackCount;
+		}
+	}
+
+	/**
+	 * @return the number of round trips saved: the requests served by batches, less the batches themselves
+	 */
+	public long getRoundTripsSaved()
+	{
+		synchronized (mLock)
+		{
+			return mBatchedRequestCount - mBatchCount;
+		}
+	}
+
+	/**
+	 * Called by the network dispatchers with each request they take. Collects the request if it can be batched.
+	 *
+	 * @return true if the request was collected, the dispatcher must not perform it
+	 */
+	boolean offer(KCHttpRequest<?> aRequest)
+	{
+		if (aRequest.isUnbatched() || aRequest.isCanceled() || !mFilter.apply(aRequest))
+		{
+			return false;
+		}
+		aRequest.addMarker("batch-collected");
+		synchronized (mLock)
+		{
+			if (mPending.isEmpty())
+			{
+				mDeadline = SystemClock.elapsedRealtime() + mWindowMs;
+			}
+			mPending.add(aRequest);
+			startSenderIfNeeded();
+			mLock.notifyAll();
+		}
+		return true;
+	}
+
+	private void startSenderIfNeeded()
+	{
+		if (mSender != null)
+		{
+			return;
+		}
+		mSender = new Thread("KCRequestBatcher")
+		{
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				sendLoop();
+			}
+		};
+		mSender.setDaemon(true);
+		mSender.start();
+	}
+
+	private void sendLoop()
+	{
+		while (true)
+		{
+			List<KCHttpRequest<?>> requests;
+			synchronized (mLock)
+			{
+				long delay = mPending.size() >= mMaxBatchSize ? 0 : mDeadline - SystemClock.elapsedRealtime();
+				if (mPending.isEmpty() || delay > 0)
+				{
+					try
+					{
+						mLock.wait(mPending.isEmpty() ? 0 : delay);
+					}
+					catch (InterruptedException e)
+					{
+						// Keep sending, the collected requests wait for it.
+					}
+					continue;
+				}
+				List<KCHttpRequest<?>> batch = mPending.subList(0, Math.min(mPending.size(), mMaxBatchSize));
+				requests = new ArrayList<KCHttpRequest<?>>(batch);
+				batch.clear();
+			}
+			send(requests);
+		}
+	}
+
+	/**
+	 * Sends requests in a batch, or on their own if there is only one.
+	 */
+	private void send(List<KCHttpRequest<?>> aRequests)
+	{
+		List<KCHttpRequest<?>> requests = new ArrayList<KCHttpRequest<?>>(aRequests.size());
+		List<KCHeaderGroup> headers = new ArrayList<KCHeaderGroup>(aRequests.size());
+		KCHttpRequest.Priority priority = KCHttpRequest.Priority.LOW;
+		for (KCHttpRequest<?> request : aRequests)
+		{
+			if (request.isCanceled())
+			{
+				// The network dispatcher finishes it.
+				sendAlone(request);
+				continue;
+			}
+			requests.add(request);
+			if (request.getPriority().compareTo(priority) > 0)
+			{
+				priority = request.getPriority();
+			}
+		}
+		if (requests.size() < 2)
+		{
+			for (KCHttpRequest<?> request : requests)
+			{
+				sendAlone(request);
+			}
+			return;
+		}
+
+		byte[] body;
+		try
+		{
+			for (KCHttpRequest<?> request : requests)
+			{
+				KCHeaderGroup requestHeaders = new KCHeaderGroup();
+				requestHeaders.addHeaders(request.getHeaders().getAllHeaders());
+				KCNetworkBasic.addCacheHeaders(requestHeaders, request.getCacheEntry());
+				headers.add(requestHeaders);
+			}
+			body = mCodec.encode(requests, headers);
+		}
+		catch (KCAuthFailureError e)
+		{
+			body = null;
+		}
+		catch (RuntimeException e)
+		{
+			KCLog.e("Unhandled exception %s encoding batch", e.toString());
+			body = null;
+		}
+		if (body == null)
+		{
+			synchronized (mLock)
+			{
+				mFallbackCount += requests.size();
+			}
+			for (KCHttpRequest<?> request : requests)
+			{
+				sendAlone(request);
+			}
+			return;
+		}
+
+		if (KCLog.DEBUG)
+		{
+			KCLog.v("Sending a batch of %d requests to %s", requests.size(), mEndpoint);
+		}
+		mQueue.add(new KCBatchRequest(requests, body, priority));
+	}
+
+	/**
+	 * Sends the requests of a batch back to the network queue with the responses split from it, for the network dispatchers to serve them.
+	 */
+	private void serve(List<KCHttpRequest<?>> aRequests, List<KCHttpResponse> aResponses)
+	{
+		int served = 0;
+		for (int i = 0; i < aRequests.size(); i++)
+		{
+			KCHttpRequest<?> request = aRequests.get(i);
+			KCHttpResponse response = aResponses.get(i);
+			if (response == null)
+			{
+				synchronized (mLock)
+				{
+					mFallbackCount++;
+				}
+				sendAlone(request);
+				continue;
+			}
+			request.setBatchResponse(response);
+			sendAlone(request);
+			served++;
+		}
+		synchronized (mLock)
+		{
+			mBatchCount++;
+			mBatchedRequestCount += served;
+		}
+	}
+
+	private void sendAlone(KCHttpRequest<?> aRequest)
+	{
+		aRequest.markUnbatched();
+		mQueue.addToNetworkQueue(aRequest);
+	}
+
+	/**
+	 * Returns the scheme, host and port of a URL, or null if it has none.
+	 */
+	private static String originOf(String aUrl)
+	{
+		try
+		{
+			URI uri = new URI(aUrl);
+			if (uri.getScheme() == null || uri.getHost() == null)
+			{
+				return null;
+			}
+			return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ":" + uri.getPort();
+		}
+		catch (URISyntaxException e)
+		{
+			return null;
+		}
+	}
+}
@@ -18,12 +18,18 @@ package com.kercer.kernet.http;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 
 import com.kercer.kercore.debug.KCLog;
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.error.KCAuthFailureError;
+import com.kercer.kernet.http.error.KCNetError;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +37,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -68,11 +75,23 @@ public class KCRequestQueue
 	 */
 	private final Set<KCHttpRequest<?>> mCurrentRequests = new HashSet<KCHttpRequest<?>>();
 
+	/**
+	 * Single-flight requests in flight, by {@link #singleFlightKey(KCHttpRequest)}. The first request of a list performs the network exchange, the
+	 * others wait for its response.
+	 */
+	private final Map<String, LinkedList<KCHttpRequest<?>>> mSingleFlightRequests = new HashMap<String, LinkedList<KCHttpRequest<?>>>();
+
+	/** Request headers which distinguish single-flight requests, besides method and URL. */
+	private volatile String[] mSingleFlightHeaders = new String[0];
+
+	/** Number of requests which shared the network exchange of a single-flight request in flight. */
+	private final AtomicLong mCollapsedRequestCount = new AtomicLong();
+
 	/** The cache triage queue. */
 	private final PriorityBlockingQueue<KCHttpRequest<?>> mCacheQueue = new PriorityBlockingQueue<KCHttpRequest<?>>();
 
 	/** The queue of requests that are actually going out to the network. */
-	private final PriorityBlockingQueue<KCHttpRequest<?>> mNetworkQueue = new PriorityBlockingQueue<KCHttpRequest<?>>();
+	private final KCNetworkQueue mNetworkQueue = new KCNetworkQueue();
 
 	/** Number of network request dispatcher threads to start. */
 	private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
@@ -83,12 +102,36 @@ public class KCRequestQueue
 	/** Network interface for performing requests. */
 	private final KCNetwork mNetwork;
 
+	/** Parsed results of cache entries, or null. */
+	private volatile KCParsedResultCache mParsedResultCache;
+
+	/** Cache of the received ranges of range requests, or null. */
+	private volatile KCCacheSparse mSparseCache;
+
+	/** Schedules the prefetch hints in the idle time of this queue, or null. */
+	private volatile KCPrefetcher mPrefetcher;
+
+	/** Collects the compatible network requests of this queue into batch requests, or null. */
+	private volatile KCRequestBatcher mBatcher;
+
+	/** Builds the cache keys of the requests, or null to use their URLs. */
+	private volatile KCCacheKeyBuilder mCacheKeyBuilder;
+
 	/** Response delivery mechanism. */
 	private final KCDelivery mDelivery;
 
 	/** The network dispatchers. */
 	private KCNetworkThread[] mDispatchers;
 
+	/** The network dispatchers reserved for requests of at least {@link #mReservedMinPriority}. */
+	private KCNetworkThread[] mReservedDispatchers = new KCNetworkThread[0];
+
+	/** Lowest priority served by the reserved dispatchers. */
+	private KCHttpRequest.Priority mReservedMinPriority = KCHttpRequest.Priority.HIGH;
+
+	/** Thread priority of the reserved dispatchers. */
+	private int mReservedThreadPriority = Process.THREAD_PRIORITY_DEFAULT;
+
 	/** The cache dispatcher. */
 	private KCCacheThread mCacheDispatcher;
 
@@ -159,6 +202,14 @@ public class KCRequestQueue
 			mDispatchers[i] = networkDispatcher;
 			networkDispatcher.start();
 		}
+
+		// Create the reserved lanes, so high priority requests are never stuck behind slow low priority ones.
+		for (int i = 0; i < mReservedDispatchers.length; i++)
+		{
+			KCNetworkThread networkDispatcher = new KCNetworkThread(mNetworkQueue, mNetwork, mCache, mDelivery, mReservedMinPriority, mReservedThreadPriority);
+			mReservedDispatchers[i] = networkDispatcher;
+			networkDispatcher.start();
+		}
 	}
 
 	/**
@@ -177,6 +228,59 @@ public class KCRequestQueue
 				mDispatchers[i].quit();
 			}
 		}
+		for (int i = 0; i < mReservedDispatchers.length; i++)
+		{
+			if (mReservedDispatchers[i] != null)
+			{
+				mReservedDispatchers[i].quit();
+			}
+		}
+	}
+
+	/**
+	 * Reserves network dispatchers for latency-critical requests. The reserved dispatchers only take requests of at least the given priority, while
+	 * the regular dispatchers keep taking any request, so a saturating low priority workload can not delay them. Takes effect on the next
+	 * {@link #start()}.
+	 *
+	 * @param aCount
+	 *            Number of reserved dispatchers, 0 to disable
+	 * @param aMinPriority
+	 *            Lowest priority served by the reserved dispatchers
+	 * @param aThreadPriority
+	 *            {@link Process} thread priority of the reserved dispatchers, e.g. {@link Process#THREAD_PRIORITY_DEFAULT}
+	 */
+	public void setReservedDispatchers(int aCount, KCHttpRequest.Priority aMinPriority, int aThreadPriority)
+	{
+		if (aCount < 0)
+		{
+			throw new IllegalArgumentException("Reserved dispatcher count may not be negative");
+		}
+		if (aMinPriority == null)
+		{
+			throw new IllegalArgumentException("Reserved priority may not be null");
+		}
+		for (int i = 0; i < mReservedDispatchers.length; i++)
+		{
+			if (mReservedDispatchers[i] != null)
+			{
+				mReservedDispatchers[i].quit();
+			}
+		}
+		mReservedDispatchers = new KCNetworkThread[aCount];
+		mReservedMinPriority = aMinPriority;
+		mReservedThreadPriority = aThreadPriority;
+	}
+
+	/**
+	 * Reserves network dispatchers for {@link KCHttpRequest.Priority#HIGH} and {@link KCHttpRequest.Priority#IMMEDIATE} requests, running at the
+	 * default thread priority.
+	 *
+	 * @param aCount
+	 *            Number of reserved dispatchers, 0 to disable
+	 */
+	public void setReservedDispatchers(int aCount)
+	{
+		setReservedDispatchers(aCount, KCHttpRequest.Priority.HIGH, Process.THREAD_PRIORITY_DEFAULT);
 	}
 
 	/**
@@ -195,6 +299,142 @@ public class KCRequestQueue
 		return mCache;
 	}
 
+	/**
+	 * Sets the in-memory cache of parsed results, consulted on cache hits before parsing the entry. Null, the default, disables it.
+	 *
+	 * @param parsedResultCache
+	 *            The parsed result cache, or null
+	 */
+	public void setParsedResultCache(KCParsedResultCache parsedResultCache)
+	{
+		mParsedResultCache = parsedResultCache;
+	}
+
+	/**
+	 * Gets the {@link KCParsedResultCache} instance being used, or null.
+	 */
+	public KCParsedResultCache getParsedResultCache()
+	{
+		return mParsedResultCache;
+	}
+
+	/**
+	 * Sets the builder of the cache keys of requests added afterwards, so equivalent URLs share a cache entry. By default, or with null, the URLs
+	 * are used as they are. Entries cached under the URLs are not found by their canonical keys: set the builder on a fresh cache, or expect the
+	 * existing entries to be fetched again.
+	 *
+	 * @param cacheKeyBuilder
+	 *            The cache key builder, or null
+	 */
+	public void setCacheKeyBuilder(KCCacheKeyBuilder cacheKeyBuilder)
+	{
+		mCacheKeyBuilder = cacheKeyBuilder;
+	}
+
+	/**
+	 * Gets the {@link KCCacheKeyBuilder} instance being used, or null.
+	 */
+	public KCCacheKeyBuilder getCacheKeyBuilder()
+	{
+		return mCacheKeyBuilder;
+	}
+
+	/**
+	 * Sets the cache of the byte ranges received by range requests, see {@link KCHttpRequest#setRange(long, long)}. Null, the default, sends range
+	 * requests to the network as they are. The cache must be initialized.
+	 *
+	 * @param sparseCache
+	 *            The sparse cache, or null
+	 */
+	public void setSparseCache(KCCacheSparse sparseCache)
+	{
+		mSparseCache = sparseCache;
+	}
+
+	/**
+	 * Gets the {@link KCCacheSparse} instance being used, or null.
+	 */
+	public KCCacheSparse getSparseCache()
+	{
+		return mSparseCache;
+	}
+
+	/**
+	 * Called by the {@link KCPrefetcher} created on this queue.
+	 */
+	void setPrefetcher(KCPrefetcher prefetcher)
+	{
+		mPrefetcher = prefetcher;
+	}
+
+	/**
+	 * Gets the {@link KCPrefetcher} created on this queue, or null.
+	 */
+	public KCPrefetcher getPrefetcher()
+	{
+		return mPrefetcher;
+	}
+
+	/**
+	 * Called by the {@link KCRequestBatcher} created on this queue.
+	 */
+	void setBatcher(KCRequestBatcher batcher)
+	{
+		mBatcher = batcher;
+	}
+
+	/**
+	 * Gets the {@link KCRequestBatcher} created on this queue, or null.
+	 */
+	public KCRequestBatcher getBatcher()
+	{
+		return mBatcher;
+	}
+
+	/**
+	 * Sends a request which already went through the cache dispatcher to the network dispatchers.
+	 */
+	void addToNetworkQueue(KCHttpRequest<?> request)
+	{
+		mNetworkQueue.add(request);
+	}
+
+	/**
+	 * Returns true if a request with the cache key is in flight.
+	 */
+	boolean isInFlight(String cacheKey)
+	{
+		synchronized (mWaitingRequests)
+		{
+			return mWaitingRequests.containsKey(cacheKey);
+		}
+	}
+
+	/**
+	 * Returns true if requests are staged behind the request in flight with the cache key.
+	 */
+	boolean hasWaitingRequests(String cacheKey)
+	{
+		synchronized (mWaitingRequests)
+		{
+			Queue<KCHttpRequest<?>> waitingRequests = mWaitingRequests.get(cacheKey);
+			return waitingRequests != null && !waitingRequests.isEmpty();
+		}
+	}
+
+	/**
+	 * Removes the cached responses with any of the tags, e.g. after a mutation the server handled outside this queue. Requests can do the same
+	 * when they succeed, see {@link KCHttpRequest#setInvalidatedCacheTags(String...)}. Blocks on disk I/O: call it off the main thread.
+	 *
+	 * @param tags
+	 *            Cache tags, see {@link KCHttpRequest#setCacheTags(String...)}
+	 * @return the number of entries removed
+	 */
+	public int invalidateCacheTags(String... tags)
+	{
+		return KCRequestRunner.invalidateCacheTags(mCache, tags);
+	}
+
 	/**
 	 * A simple predicate or filter interface for Requests, for use by {@link KCRequestQueue#cancelAll(KCRequestFilter)}.
 	 */
@@ -257,14 +497,30 @@ public class KCRequestQueue
 		{
 			mCurrentRequests.add(request);
 		}
+		KCPrefetcher prefetcher = mPrefetcher;
+		if (prefetcher != null)
+		{
+			prefetcher.onRequestAdded(request);
+		}
 
 		// Process requests in the order they are added.
 		request.setSequence(getSequenceNumber());
 		request.addMarker("add-to-queue");
 
-		// If the request is uncacheable, skip the cache queue and go straight to the network.
+		// Hash the body of a cacheable POST now: if it is unavailable, the request goes to the network uncached.
+		if (request.isCacheablePost())
+		{
+			request.getCacheKey();
+		}
+
+		// If the request is uncacheable, skip the cache queue and go straight to the network, unless an identical single-flight request is
+		// already in flight.
 		if (!request.shouldCache())
 		{
+			if (request.isSingleFlight() && joinSingleFlight(request))
+			{
+				return request;
+			}
 			mNetworkQueue.add(request);
 			return request;
 		}
@@ -313,6 +569,11 @@ public class KCRequestQueue
 		{
 			mCurrentRequests.remove(request);
 		}
+		KCPrefetcher prefetcher = mPrefetcher;
+		if (prefetcher != null)
+		{
+			prefetcher.onRequestFinished(request);
+		}
 		synchronized (mFinishedListeners)
 		{
 			for (KCRequestFinishedListener<T> listener : mFinishedListeners)
@@ -321,7 +582,14 @@ public class KCRequestQueue
 			}
 		}
 
-		if (request.shouldCache())
+		String singleFlightKey = request.getSingleFlightKey();
+		if (singleFlightKey != null)
+		{
+			releaseSingleFlight(request, singleFlightKey);
+		}
+
+		// A request served with a shared result was never in flight, the request which was releases the remaining waiters.
+		if (request.shouldCache() && !request.isResultShared())
 		{
 			synchronized (mWaitingRequests)
 			{
@@ -341,6 +609,411 @@ public class KCRequestQueue
 		}
 	}
 
+	/**
+	 * Delivers the final result of a request in flight to the waiting duplicates which can share it, so they don't each read the cache entry and
+	 * parse it again once the request finishes. Called by the dispatchers, after the response has been written to the cache.
+	 *
+	 * <p>
+	 * The result is shared when the parser of the request implements {@link KCHttpResultShareable} and a waiting request has a parser of the same
+	 * class, does not use {@link KCHttpRequest.CachePolicy#NETWORK_ONLY} and has the values of the headers the response varies on. Other waiting
+	 * requests are left staged and released to the cache queue by {@link #finish(KCHttpRequest)} as before.
+	 * </p>
+	 *
+	 * @param request
+	 *            The request in flight
+	 * @param response
+	 *            The response of the request
+	 * @param result
+	 *            The parsed result of the request
+	 */
+	void deliverToWaitingRequests(KCHttpRequest<?> request, KCHttpResponse response, KCHttpResult<?> result)
+	{
+		KCHttpResponseParser parser = request.getResponseParser();
+		if (!request.shouldCache() || !(parser instanceof KCHttpResultShareable) || result == null || !result.isSuccess() || result.intermediate)
+		{
+			return;
+		}
+
+		KCHeaderGroup requestHeaders = headersOf(request);
+		if (requestHeaders == null)
+		{
+			return;
+		}
+		KCHeaderGroup responseHeaders = response.getHeaderGroup();
+		KCHeaderGroup varyHeaders = KCHttpHeaderParser.parseVaryHeaders(responseHeaders, requestHeaders);
+
+		List<KCHttpRequest<?>> sharingRequests = null;
+		synchronized (mWaitingRequests)
+		{
+			Queue<KCHttpRequest<?>> waitingRequests = mWaitingRequests.get(request.getCacheKey());
+			if (waitingRequests == null)
+			{
+				return;
+			}
+			for (Iterator<KCHttpRequest<?>> it = waitingRequests.iterator(); it.hasNext();)
+			{
+				KCHttpRequest<?> waitingRequest = it.next();
+				KCHttpResponseParser waitingParser = waitingRequest.getResponseParser();
+				KCHeaderGroup waitingHeaders = headersOf(waitingRequest);
+				if (waitingParser != null && waitingParser.getClass() == parser.getClass()
+						&& waitingRequest.getCachePolicy() != KCHttpRequest.CachePolicy.NETWORK_ONLY && waitingHeaders != null
+						&& KCHttpHeaderParser.varyMatches(responseHeaders, varyHeaders, waitingHeaders))
+				{
+					it.remove();
+					waitingRequest.markResultShared();
+					if (sharingRequests == null)
+					{
+						sharingRequests = new ArrayList<KCHttpRequest<?>>(waitingRequests.size() + 1);
+					}
+					sharingRequests.add(waitingRequest);
+				}
+			}
+		}
+
+		if (sharingRequests == null)
+		{
+			return;
+		}
+		if (KCLog.DEBUG)
+		{
+			KCLog.v("Sharing result with %d waiting requests for cacheKey=%s.", sharingRequests.size(), request.getCacheKey());
+		}
+		for (int i = 0, size = sharingRequests.size(); i < size; i++)
+		{
+			KCHttpRequest<?> sharingRequest = sharingRequests.get(i);
+			sharingRequest.addMarker("shared-result");
+			mDelivery.postResponse(sharingRequest, response, result);
+		}
+	}
+
+	/**
+	 * Delivers the expired cache entry a request in flight was served after a network error to the waiting duplicates which accept it too, so they
+	 * don't each go to the network once the request finishes and wait for the same failure. Called by the network dispatcher before it delivers the
+	 * entry to the request, whose finish releases the remaining waiting requests.
+	 *
+	 * <p>
+	 * A waiting request accepts the entry when it does not use {@link KCHttpRequest.CachePolicy#NETWORK_ONLY}, has the values of the headers the
+	 * response varies on and its own max stale window on error covers the entry. It shares the result if it has a parser of the same class as the
+	 * request and that parser implements {@link KCHttpResultShareable}, otherwise it parses the entry itself. Other waiting requests are left
+	 * staged and released to the cache queue by {@link #finish(KCHttpRequest)}.
+	 * </p>
+	 *
+	 * @param request
+	 *            The request in flight
+	 * @param entry
+	 *            The expired cache entry of the request
+	 * @param response
+	 *            The response built for the entry
+	 * @param result
+	 *            The result the request was served
+	 */
+	void deliverStaleToWaitingRequests(KCHttpRequest<?> request, KCCache.KCEntry entry, KCHttpResponse response, KCHttpResult<?> result)
+	{
+		List<KCHttpRequest<?>> staleRequests = null;
+		synchronized (mWaitingRequests)
+		{
+			Queue<KCHttpRequest<?>> waitingRequests = mWaitingRequests.get(request.getCacheKey());
+			if (waitingRequests == null)
+			{
+				return;
+			}
+			for (Iterator<KCHttpRequest<?>> it = waitingRequests.iterator(); it.hasNext();)
+			{
+				KCHttpRequest<?> waitingRequest = it.next();
+				if (waitingRequest.getCachePolicy() != KCHttpRequest.CachePolicy.NETWORK_ONLY && KCCacheRunner.varyMatches(entry, waitingRequest)
+						&& KCRequestRunner.isStaleOnErrorAllowed(waitingRequest, entry))
+				{
+					it.remove();
+					waitingRequest.markResultShared();
+					if (staleRequests == null)
+					{
+						staleRequests = new ArrayList<KCHttpRequest<?>>(waitingRequests.size() + 1);
+					}
+					staleRequests.add(waitingRequest);
+				}
+			}
+		}
+
+		if (staleRequests == null)
+		{
+			return;
+		}
+		if (KCLog.DEBUG)
+		{
+			KCLog.v("Serving stale entry to %d waiting requests for cacheKey=%s.", staleRequests.size(), request.getCacheKey());
+		}
+		KCHttpResponseParser parser = request.getResponseParser();
+		for (int i = 0, size = staleRequests.size(); i < size; i++)
+		{
+			KCHttpRequest<?> staleRequest = staleRequests.get(i);
+			KCHttpResponseParser staleParser = staleRequest.getResponseParser();
+			KCHttpResult<?> staleResult = result;
+			if (staleParser == null)
+			{
+				staleResult = KCHttpResult.empty();
+			}
+			else if (!(parser instanceof KCHttpResultShareable) || staleParser.getClass() != parser.getClass())
+			{
+				try
+				{
+					staleResult = staleParser.parseHttpResponse(response);
+				}
+				catch (Exception e)
+				{
+					KCLog.e("Unable to parse stale cache entry for %s: %s", request.getCacheKey(), e.toString());
+					staleResult = null;
+				}
+			}
+			if (staleResult == null || !staleResult.isSuccess())
+			{
+				// Goes on its own, like a released waiting request.
+				mCacheQueue.add(staleRequest);
+				continue;
+			}
+			staleRequest.addMarker("network-error-stale-served");
+			mDelivery.postResponse(staleRequest, response, staleResult);
+		}
+	}
+
+	/**
+	 * Sets the request headers which distinguish single-flight requests besides method and URL, e.g. "Authorization" when the same URL returns
+	 * user-specific responses. Requests only share a network exchange if they have the same values for all these headers.
+	 *
+	 * @param headerNames
+	 *            Header names, compared case insensitively
+	 */
+	public void setSingleFlightHeaders(String... headerNames)
+	{
+		mSingleFlightHeaders = headerNames != null ? headerNames.clone() : new String[0];
+	}
+
+	/**
+	 * Returns the number of requests which did not go to the network because they shared the exchange of an identical single-flight request.
+	 */
+	public long getCollapsedRequestCount()
+	{
+		return mCollapsedRequestCount.get();
+	}
+
+	/**
+	 * Returns the headers of a request, or null if they are unavailable.
+	 */
+	private static KCHeaderGroup headersOf(KCHttpRequest<?> request)
+	{
+		try
+		{
+			return request.getHeaders();
+		}
+		catch (KCAuthFailureError e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the single-flight key of a request: its method, URL and single-flight header values. Returns null if the request is not idempotent or
+	 * its headers are unavailable, in which case it can't share a network exchange.
+	 */
+	private String singleFlightKey(KCHttpRequest<?> request)
+	{
+		int method = request.getMethod();
+		if (method != KCHttpRequest.Method.GET && method != KCHttpRequest.Method.HEAD && method != KCHttpRequest.Method.OPTIONS)
+		{
+			return null;
+		}
+
+		String url = request.getUrl();
+		StringBuilder key = new StringBuilder(url.length() + 16);
+		key.append(method).append(' ').append(url);
+		String[] headerNames = mSingleFlightHeaders;
+		if (headerNames.length > 0)
+		{
+			KCHeaderGroup headers;
+			try
+			{
+				headers = request.getHeaders();
+			}
+			catch (KCAuthFailureError e)
+			{
+				return null;
+			}
+			for (String headerName : headerNames)
+			{
+				KCHeader header = headers.getCondensedHeader(headerName);
+				key.append('\n').append(headerName).append(':');
+				if (header != null)
+				{
+					key.append(header.getValue());
+				}
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Adds a single-flight request to the group of its key.
+	 *
+	 * @return true if an identical request is in flight and the request waits for its response, false if the request has to go to the network
+	 */
+	private boolean joinSingleFlight(KCHttpRequest<?> request)
+	{
+		String singleFlightKey = singleFlightKey(request);
+		if (singleFlightKey == null)
+		{
+			return false;
+		}
+
+		synchronized (mSingleFlightRequests)
+		{
+			request.setSingleFlightKey(singleFlightKey);
+			LinkedList<KCHttpRequest<?>> requests = mSingleFlightRequests.get(singleFlightKey);
+			if (requests == null)
+			{
+				requests = new LinkedList<KCHttpRequest<?>>();
+				requests.add(request);
+				mSingleFlightRequests.put(singleFlightKey, requests);
+				return false;
+			}
+			requests.add(request);
+		}
+
+		mCollapsedRequestCount.incrementAndGet();
+		request.addMarker("single-flight-wait");
+		if (KCLog.DEBUG)
+		{
+			KCLog.v("Request for %s is in flight, sharing its response.", singleFlightKey);
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the group of a finished single-flight request. If the request finished without handing its response to the waiting requests, e.g.
+	 * because it was canceled, the next waiting request goes to the network in its place.
+	 */
+	private void releaseSingleFlight(KCHttpRequest<?> request, String singleFlightKey)
+	{
+		KCHttpRequest<?> nextRequest;
+		synchronized (mSingleFlightRequests)
+		{
+			LinkedList<KCHttpRequest<?>> requests = mSingleFlightRequests.get(singleFlightKey);
+			if (requests == null || requests.getFirst() != request)
+			{
+				return;
+			}
+			requests.removeFirst();
+			if (requests.isEmpty())
+			{
+				mSingleFlightRequests.remove(singleFlightKey);
+				return;
+			}
+			nextRequest = requests.getFirst();
+		}
+
+		nextRequest.addMarker("single-flight-promoted");
+		mNetworkQueue.add(nextRequest);
+	}
+
+	/**
+	 * Takes the requests waiting for a single-flight request in flight and ends its group, so later identical requests go to the network again.
+	 *
+	 * @return the waiting requests, or null if there are none
+	 */
+	private List<KCHttpRequest<?>> takeSingleFlightRequests(KCHttpRequest<?> request)
+	{
+		String singleFlightKey = request.getSingleFlightKey();
+		if (singleFlightKey == null)
+		{
+			return null;
+		}
+		synchronized (mSingleFlightRequests)
+		{
+			LinkedList<KCHttpRequest<?>> requests = mSingleFlightRequests.get(singleFlightKey);
+			if (requests == null || requests.getFirst() != request)
+			{
+				return null;
+			}
+			mSingleFlightRequests.remove(singleFlightKey);
+			requests.removeFirst();
+			return requests.isEmpty() ? null : requests;
+		}
+	}
+
+	/**
+	 * Delivers the response of a single-flight request to the identical requests waiting for it. Each waiting request gets the result of the
+	 * request if its parser is {@link KCHttpResultShareable} and of the same class, otherwise the response is parsed again with its own parser.
+	 * Called by the network dispatchers.
+	 *
+	 * @param request
+	 *            The request which performed the network exchange
+	 * @param response
+	 *            The response of the request
+	 * @param result
+	 *            The parsed result of the request
+	 */
+	void deliverToSingleFlightRequests(KCHttpRequest<?> request, KCHttpResponse response, KCHttpResult<?> result)
+	{
+		List<KCHttpRequest<?>> waitingRequests = takeSingleFlightRequests(request);
+		if (waitingRequests == null)
+		{
+			return;
+		}
+
+		KCHttpResponseParser parser = request.getResponseParser();
+		boolean shareable = parser instanceof KCHttpResultShareable && result != null && result.isSuccess() && !result.intermediate;
+		for (KCHttpRequest<?> waitingRequest : waitingRequests)
+		{
+			waitingRequest.addMarker("single-flight-response");
+			KCHttpResponseParser waitingParser = waitingRequest.getResponseParser();
+			try
+			{
+				KCHttpResult<?> waitingResult = KCHttpResult.empty();
+				if (shareable && waitingParser != null && waitingParser.getClass() == parser.getClass())
+				{
+					waitingResult = result;
+				}
+				else if (waitingParser != null)
+				{
+					waitingResult = waitingParser.parseHttpResponse(response);
+				}
+				mDelivery.postResponse(waitingRequest, response, waitingResult);
+			}
+			catch (Exception e)
+			{
+				mDelivery.postError(waitingRequest, new KCNetError(e));
+			}
+		}
+	}
+
+	/**
+	 * Delivers the error of a single-flight request to the identical requests waiting for it, each parsed by its own parser. Called by the network
+	 * dispatchers.
+	 *
+	 * @param request
+	 *            The request which performed the network exchange
+	 * @param error
+	 *            The error of the request, before parsing by its parser
+	 */
+	void deliverErrorToSingleFlightRequests(KCHttpRequest<?> request, KCNetError error)
+	{
+		List<KCHttpRequest<?>> waitingRequests = takeSingleFlightRequests(request);
+		if (waitingRequests == null)
+		{
+			return;
+		}
+
+		for (KCHttpRequest<?> waitingRequest : waitingRequests)
+		{
+			waitingRequest.addMarker("single-flight-error");
+			KCNetError waitingError = error;
+			KCHttpResponseParser waitingParser = waitingRequest.getResponseParser();
+			if (waitingParser != null)
+			{
+				waitingError = waitingParser.parseHttpError(error);
+			}
+			mDelivery.postError(waitingRequest, waitingError);
+		}
+	}
+
 	public <T> void addRequestFinishedListener(KCRequestFinishedListener<T> listener)
 	{
 		synchronized (mFinishedListeners)
@@ -8,9 +8,16 @@ import android.os.Looper;
 import android.os.SystemClock;
 
 import com.kercer.kercore.task.KCTaskExecutor;
+import com.kercer.kercore.debug.KCLog;
+import com.kercer.kernet.http.base.KCCacheControl;
+import com.kercer.kernet.http.base.KCHttpStatus;
 import com.kercer.kernet.http.base.KCProtocolVersion;
 import com.kercer.kernet.http.base.KCStatusLine;
 import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.error.KCNetworkError;
+import com.kercer.kernet.http.error.KCTimeoutError;
+
+import java.util.List;
 
 /**
  * A request tickle for single requests.
@@ -32,6 +39,9 @@ public class KCRequestRunner
 	/** Response delivery mechanism. */
 	private final KCDelivery mDelivery;
 
+	/** Largest number of missing parts of a range fetched one by one. */
+	private static final int MAX_RANGE_FETCHES = 8;
+
 	// private KCHttpResult<?> response;
 //	private NetError error;
 
@@ -124,10 +134,32 @@ public class KCRequestRunner
 
 			addTrafficStatsTag(request);
 
-			// Perform the network request.
-			networkResponse = mNetwork.performRequest(mRequest, mDelivery);
+			// Perform the network request, only for the missing parts of a range request with a sparse cache. A request sent in a batch has its
+			// response already.
+			KCCacheSparse sparseCache = mRequest.getRequestQueue() != null ? mRequest.getRequestQueue().getSparseCache() : null;
+			KCHttpResponse batchResponse = mRequest.takeBatchResponse();
+			if (batchResponse != null)
+			{
+				mRequest.addMarker("batch-response");
+				networkResponse = new KCRequestBatcher.KCBatchItemNetwork(batchResponse).performRequest(mRequest, mDelivery);
+			}
+			else if (mRequest.getRangeStart() >= 0 && sparseCache != null)
+			{
+				networkResponse = performRangeRequest(mRequest, sparseCache);
+			}
+			else
+			{
+				networkResponse = mNetwork.performRequest(mRequest, mDelivery);
+			}
 			mRequest.addMarker("network-http-complete");
 
+			// Measure the bandwidth the prefetcher schedules on.
+			KCPrefetcher prefetcher = mRequest.getRequestQueue() != null ? mRequest.getRequestQueue().getPrefetcher() : null;
+			if (prefetcher != null)
+			{
+				prefetcher.onNetworkResponse(networkResponse);
+			}
+
 			// If the server returned 304 AND we delivered a response already,
 			// we're done -- don't deliver a second identical response.
 			if (networkResponse.getNotModified() && mRequest.hasHadResponseDelivered())
@@ -140,19 +172,57 @@ public class KCRequestRunner
 			// Parse the response here on the worker thread.
 			KCHttpResponseParser httpResponseParser = mRequest.getResponseParser();
 			KCHttpResult<?> result = KCHttpResult.empty();
+			long parseStartNanos = System.nanoTime();
 			if (httpResponseParser != null)
 			{
 				result = httpResponseParser.parseHttpResponse(networkResponse);
 			}
+			long parseTimeNanos = System.nanoTime() - parseStartNanos;
 
 			mRequest.addMarker("network-parse-complete");
 
-			// Write to cache if applicable.
-			// TODO: Only update cache metadata instead of entire record for 304s.
+			KCRequestQueue requestQueue = mRequest.getRequestQueue();
+
+			// Write to cache if applicable. A 304 carries the cached data, only its metadata changed.
 			if (mCache != null && mRequest.shouldCache() && result.cacheEntry != null)
 			{
-				mCache.put(mRequest.getCacheKey(), result.cacheEntry);
-				mRequest.addMarker("network-cache-written");
+				if (mRequest.getCacheTags() != null)
+				{
+					result.cacheEntry.tags = mRequest.getCacheTags();
+				}
+				result.cacheEntry.varyHeaders = KCHttpHeaderParser.parseVaryHeaders(result.cacheEntry.responseHeaders, mRequest.getHeaders());
+				result.cacheEntry.staleIfErrorMs = Math.max(result.cacheEntry.staleIfErrorMs, mRequest.getMaxStaleOnErrorMs());
+				if (networkResponse.getNotModified() && mCache instanceof KCCacheMetadataUpdatable)
+				{
+					((KCCacheMetadataUpdatable) mCache).updateMetadata(mRequest.getCacheKey(), result.cacheEntry);
+					mRequest.addMarker("network-cache-metadata-written");
+				}
+				else
+				{
+					mCache.put(mRequest.getCacheKey(), result.cacheEntry);
+					mRequest.addMarker("network-cache-written");
+				}
+
+				// Keep the parsed result for the next cache hit.
+				KCParsedResultCache parsedResultCache = requestQueue != null ? requestQueue.getParsedResultCache() : null;
+				if (parsedResultCache != null)
+				{
+					parsedResultCache.put(mRequest.getCacheKey(), result.cacheEntry, httpResponseParser, result, parseTimeNanos);
+				}
+			}
+
+			// A successful mutation makes the responses it changes stale.
+			if (mCache != null && mRequest.getInvalidatedCacheTags() != null && result.isSuccess())
+			{
+				invalidateCacheTags(mCache, mRequest.getInvalidatedCacheTags());
+				mRequest.addMarker("network-cache-invalidated");
+			}
+
+			// Serve the duplicates waiting for this request.
+			if (requestQueue != null)
+			{
+				requestQueue.deliverToWaitingRequests(mRequest, networkResponse, result);
+				requestQueue.deliverToSingleFlightRequests(mRequest, networkResponse, result);
 			}
 
 			// Post the response back.
@@ -163,13 +233,18 @@ public class KCRequestRunner
 		{
 			networkResponse = netError.networkResponse;
 			netError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-			parseAndDeliverNetworkError(mRequest, netError);
+			deliverErrorToSingleFlightRequests(mRequest, netError);
+			if (!deliverStaleOnError(mRequest, netError))
+			{
+				parseAndDeliverNetworkError(mRequest, netError);
+			}
 		}
 		catch (Exception e)
 		{
 			// KCLog.e("Unhandled exception %s", e.toString());
 			KCNetError error = new KCNetError(e);
 			error.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+			deliverErrorToSingleFlightRequests(mRequest, error);
 			mDelivery.postError(mRequest, error);
 		}
 
@@ -202,6 +277,174 @@ public class KCRequestRunner
 //		return error;
 //	}
 
+	/**
+	 * Removes the entries of a cache with any of the tags. Only {@link KCCacheDisk}, directly or behind a {@link KCCacheWriteBehind}, indexes
+	 * tags: other caches are left as they are.
+	 *
+	 * @return the number of entries removed
+	 */
+	static int invalidateCacheTags(KCCache cache, String[] tags)
+	{
+		int removed = 0;
+		for (int i = 0; tags != null && i < tags.length; i++)
+		{
+			if (cache instanceof KCCacheDisk)
+			{
+				removed += ((KCCacheDisk) cache).removeByTag(tags[i]);
+			}
+			else if (cache instanceof KCCacheWriteBehind)
+			{
+				removed += ((KCCacheWriteBehind) cache).removeByTag(tags[i]);
+			}
+		}
+		return removed;
+	}
+
+	private void deliverErrorToSingleFlightRequests(KCHttpRequest<?> request, KCNetError aError)
+	{
+		KCRequestQueue requestQueue = request.getRequestQueue();
+		if (requestQueue != null)
+		{
+			requestQueue.deliverErrorToSingleFlightRequests(request, aError);
+		}
+	}
+
+	/**
+	 * Fetches the parts of the requested range missing from the sparse cache, then reads the range from it. With more than
+	 * {@link #MAX_RANGE_FETCHES} missing parts, the span from the first to the last one is fetched at once. If the resource changes meanwhile, the
+	 * parts received before are dropped and fetched again, once; if the range still can't be read from the cache, it is requested as is.
+	 *
+	 * @return a 206 response with the range
+	 */
+	private KCHttpResponse performRangeRequest(KCHttpRequest<?> request, KCCacheSparse sparseCache) throws KCNetError
+	{
+		String key = request.getCacheKey();
+		long start = request.getRangeStart();
+		long end = request.getRangeEnd();
+		try
+		{
+			for (int round = 0; round < 2; round++)
+			{
+				List<long[]> missing = sparseCache.getMissingRanges(key, start, end);
+				if (missing.isEmpty())
+				{
+					break;
+				}
+				if (missing.size() > MAX_RANGE_FETCHES)
+				{
+					long[] span = new long[] { missing.get(0)[0], missing.get(missing.size() - 1)[1] };
+					missing.clear();
+					missing.add(span);
+				}
+				for (long[] range : missing)
+				{
+					request.setFetchRange(range[0], range[1], sparseCache.getValidator(key));
+					KCHttpResponse response = mNetwork.performRequest(request, mDelivery);
+					if (!sparseCache.put(key, response))
+					{
+						// Not storable, e.g. too large for the cache.
+						request.addMarker("network-range-not-cached");
+						request.setFetchRange(-1, -1, null);
+						boolean whole = response.getStatusCode() == KCHttpStatus.HTTP_OK || (range[0] == start && range[1] == end);
+						return whole ? response : mNetwork.performRequest(request, mDelivery);
+					}
+					if (response.getStatusCode() == KCHttpStatus.HTTP_OK)
+					{
+						// The whole resource, nothing else to fetch.
+						break;
+					}
+				}
+			}
+		}
+		finally
+		{
+			request.setFetchRange(-1, -1, null);
+		}
+
+		KCHttpResponse response = sparseCache.getResponse(key, start, end);
+		if (response == null)
+		{
+			request.addMarker("network-range-not-cached");
+			return mNetwork.performRequest(request, mDelivery);
+		}
+		request.addMarker("network-range-cached");
+		return response;
+	}
+
+	/**
+	 * Delivers the expired cache entry of the request instead of the error if the request has not had a response delivered, the error is a
+	 * network error, a timeout or a server error, and the entry expired no longer ago than the longer of
+	 * {@link KCHttpRequest#getMaxStaleOnErrorMs()} and its stale-if-error directive.
+	 *
+	 * @return true if the cache entry was delivered
+	 */
+	private boolean deliverStaleOnError(KCHttpRequest<?> request, KCNetError aError)
+	{
+		KCCache.KCEntry entry = request.getCacheEntry();
+		if (entry == null || !request.shouldCache() || request.hasHadResponseDelivered())
+		{
+			return false;
+		}
+
+		boolean serverError = aError.networkResponse != null && aError.networkResponse.getStatusCode() >= KCHttpStatus.HTTP_INTERNAL_SERVER_ERROR;
+		if (!(aError instanceof KCNetworkError) && !(aError instanceof KCTimeoutError) && !serverError)
+		{
+			return false;
+		}
+
+		if (!isStaleOnErrorAllowed(request, entry))
+		{
+			return false;
+		}
+
+		KCHttpResponse cachedResponse = KCCacheRunner.responseForCacheEntry(entry);
+		KCHttpResult<?> result = KCHttpResult.empty();
+		try
+		{
+			KCHttpResponseParser parser = request.getResponseParser();
+			if (parser != null)
+			{
+				result = parser.parseHttpResponse(cachedResponse);
+			}
+		}
+		catch (Exception e)
+		{
+			KCLog.e("Unable to parse stale cache entry for %s: %s", request.getCacheKey(), e.toString());
+			return false;
+		}
+		if (result == null || !result.isSuccess())
+		{
+			return false;
+		}
+
+		// The duplicates waiting for this request would each go to the network and wait for the same failure.
+		KCRequestQueue requestQueue = request.getRequestQueue();
+		if (requestQueue != null)
+		{
+			requestQueue.deliverStaleToWaitingRequests(request, entry, cachedResponse, result);
+		}
+
+		request.addMarker("network-error-stale-served");
+		request.markDelivered();
+		mDelivery.postResponse(request, cachedResponse, result);
+		return true;
+	}
+
+	/**
+	 * Returns whether the cache entry expired no longer ago than the longer of {@link KCHttpRequest#getMaxStaleOnErrorMs()} of the request and the
+	 * stale-if-error directive of the entry.
+	 */
+	static boolean isStaleOnErrorAllowed(KCHttpRequest<?> request, KCCache.KCEntry entry)
+	{
+		long maxStaleMs = request.getMaxStaleOnErrorMs();
+		long staleIfError = KCCacheControl.parse(entry.responseHeaders.get("Cache-Control")).staleIfError;
+		if (staleIfError != KCCacheControl.UNSET)
+		{
+			maxStaleMs = Math.max(maxStaleMs, staleIfError * 1000);
+		}
+		return System.currentTimeMillis() - entry.ttl <= maxStaleMs;
+	}
+
 	private void parseAndDeliverNetworkError(KCHttpRequest<?> request, KCNetError aError)
 	{
 		KCHttpResponseParser parser = request.getResponseParser();
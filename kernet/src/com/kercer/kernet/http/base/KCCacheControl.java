@@ -0,0 +1,256 @@
+package com.kercer.kernet.http.base;
+
+/**
+ * The directives of a Cache-Control header value.
+ *
+ * {@link #parse(String)} scans the value once, matching the directive names in place and reading the delta-seconds arguments digit by digit, so it
+ * allocates nothing but the result; {@link #set(String)} reuses an instance and allocates nothing at all. Unknown directives and malformed
+ * arguments are ignored.
+ */
+public final class KCCacheControl
+{
+	/** Value of the delta-seconds directives which are absent or malformed. */
+	public static final long UNSET = -1;
+
+	/** Largest delta-seconds value, as recommended by RFC 7234 section 1.2.1. */
+	private static final long MAX_DELTA_SECONDS = Integer.MAX_VALUE;
+
+	public boolean noCache;
+	public boolean noStore;
+	public boolean noTransform;
+	public boolean mustRevalidate;
+	public boolean proxyRevalidate;
+	public boolean isPublic;
+	public boolean isPrivate;
+	public boolean immutable;
+	public boolean onlyIfCached;
+
+	/** max-age in seconds, or {@link #UNSET}. */
+	public long maxAge = UNSET;
+
+	/** s-maxage in seconds, or {@link #UNSET}. Only applies to shared caches, which this client cache is not. */
+	public long sMaxAge = UNSET;
+
+	/** max-stale in seconds, or {@link #UNSET}. A max-stale without argument is {@link #MAX_DELTA_SECONDS}. */
+	public long maxStale = UNSET;
+
+	/** min-fresh in seconds, or {@link #UNSET}. */
+	public long minFresh = UNSET;
+
+	/** stale-while-revalidate in seconds (RFC 5861), or {@link #UNSET}. */
+	public long staleWhileRevalidate = UNSET;
+
+	/** stale-if-error in seconds (RFC 5861), or {@link #UNSET}. */
+	public long staleIfError = UNSET;
+
+	/**
+	 * Parses a Cache-Control header value.
+	 *
+	 * @param aValue
+	 *            the header value, may be null
+	 * @return the directives, all unset if the value is null
+	 */
+	public static KCCacheControl parse(String aValue)
+	{
+		KCCacheControl cacheControl = new KCCacheControl();
+		cacheControl.set(aValue);
+		return cacheControl;
+	}
+
+	/**
+	 * Replaces the directives with those of a Cache-Control header value, so an instance can be reused.
+	 *
+	 * @param aValue
+	 *            the header value, may be null
+	 * @return this instance
+	 */
+	public KCCacheControl set(String aValue)
+	{
+		noCache = false;
+		noStore = false;
+		noTransform = false;
+		mustRevalidate = false;
+		proxyRevalidate = false;
+		isPublic = false;
+		isPrivate = false;
+		immutable = false;
+		onlyIfCached = false;
+		maxAge = UNSET;
+		sMaxAge = UNSET;
+		maxStale = UNSET;
+		minFresh = UNSET;
+		staleWhileRevalidate = UNSET;
+		staleIfError = UNSET;
+		if (aValue != null)
+		{
+			parseDirectives(aValue);
+		}
+		return this;
+	}
+
+	private void parseDirectives(String aValue)
+	{
+		final int length = aValue.length();
+		int pos = 0;
+		while (pos < length)
+		{
+			// Skip separators and whitespace before the directive name.
+			char c = aValue.charAt(pos);
+			if (c == ',' || c == ' ' || c == '\t')
+			{
+				pos++;
+				continue;
+			}
+
+			int nameStart = pos;
+			while (pos < length && (c = aValue.charAt(pos)) != '=' && c != ',' && c != ' ' && c != '\t')
+			{
+				pos++;
+			}
+			int nameLength = pos - nameStart;
+
+			// Skip whitespace up to an optional argument.
+			while (pos < length && ((c = aValue.charAt(pos)) == ' ' || c == '\t'))
+			{
+				pos++;
+			}
+
+			long seconds = UNSET;
+			boolean hasArgument = pos < length && aValue.charAt(pos) == '=';
+			if (hasArgument)
+			{
+				pos++;
+				while (pos < length && ((c = aValue.charAt(pos)) == ' ' || c == '\t'))
+				{
+					pos++;
+				}
+				boolean quoted = pos < length && aValue.charAt(pos) == '"';
+				if (quoted)
+				{
+					pos++;
+				}
+				int digitsStart = pos;
+				long n = 0;
+				while (pos < length && (c = aValue.charAt(pos)) >= '0' && c <= '9')
+				{
+					n = Math.min(n * 10 + (c - '0'), MAX_DELTA_SECONDS);
+					pos++;
+				}
+				if (pos > digitsStart)
+				{
+					seconds = n;
+				}
+				// Skip the rest of the argument, a non numeric or quoted one included.
+				if (quoted)
+				{
+					while (pos < length && aValue.charAt(pos) != '"')
+					{
+						pos++;
+					}
+				}
+				while (pos < length && aValue.charAt(pos) != ',')
+				{
+					if (!quoted && (c = aValue.charAt(pos)) != ' ' && c != '\t' && c != '"')
+					{
+						seconds = UNSET;
+					}
+					pos++;
+				}
+			}
+
+			applyDirective(aValue, nameStart, nameLength, hasArgument, seconds);
+		}
+	}
+
+	private void applyDirective(String aValue, int aStart, int aLength, boolean aHasArgument, long aSeconds)
+	{
+		switch (aLength)
+		{
+		case 6:
+			if (matches(aValue, aStart, aLength, "public"))
+			{
+				isPublic = true;
+			}
+			break;
+		case 7:
+			if (matches(aValue, aStart, aLength, "max-age"))
+			{
+				maxAge = aSeconds;
+			}
+			else if (matches(aValue, aStart, aLength, "private"))
+			{
+				isPrivate = true;
+			}
+			break;
+		case 8:
+			if (matches(aValue, aStart, aLength, "no-cache"))
+			{
+				noCache = true;
+			}
+			else if (matches(aValue, aStart, aLength, "no-store"))
+			{
+				noStore = true;
+			}
+			else if (matches(aValue, aStart, aLength, "s-maxage"))
+			{
+				sMaxAge = aSeconds;
+			}
+			break;
+		case 9:
+			if (matches(aValue, aStart, aLength, "immutable"))
+			{
+				immutable = true;
+			}
+			else if (matches(aValue, aStart, aLength, "max-stale"))
+			{
+				maxStale = aHasArgument ? aSeconds : MAX_DELTA_SECONDS;
+			}
+			else if (matches(aValue, aStart, aLength, "min-fresh"))
+			{
+				minFresh = aSeconds;
+			}
+			break;
+		case 12:
+			if (matches(aValue, aStart, aLength, "no-transform"))
+			{
+				noTransform = true;
+			}
+			break;
+		case 14:
+			if (matches(aValue, aStart, aLength, "stale-if-error"))
+			{
+				staleIfError = aSeconds;
+			}
+			else if (matches(aValue, aStart, aLength, "only-if-cached"))
+			{
+				onlyIfCached = true;
+			}
+			break;
+		case 15:
+			if (matches(aValue, aStart, aLength, "must-revalidate"))
+			{
+				mustRevalidate = true;
+			}
+			break;
+		case 16:
+			if (matches(aValue, aStart, aLength, "proxy-revalidate"))
+			{
+				proxyRevalidate = true;
+			}
+			break;
+		case 22:
+			if (matches(aValue, aStart, aLength, "stale-while-revalidate"))
+			{
+				staleWhileRevalidate = aSeconds;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static boolean matches(String aValue, int aStart, int aLength, String aDirective)
+	{
+		return aDirective.length() == aLength && aValue.regionMatches(true, aStart, aDirective, 0, aLength);
+	}
+}
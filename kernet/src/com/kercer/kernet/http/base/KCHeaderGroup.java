@@ -6,12 +6,30 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
+/**
+ * An ordered group of headers. Groups are not synchronized: a group may be read from several threads once nobody modifies it any more.
+ */
 public class KCHeaderGroup implements Cloneable
 {
 
 	/** The list of headers for this group, in the order in which they were added */
 	private List<KCHeader> headers;
 
+	/** Groups up to this size are always scanned, a scan of a few names beats hashing them all. */
+	private static final int SCAN_MAX_SIZE = 16;
+
+	/** Lookups scanning a larger group before it is indexed, so only groups searched over and over pay for the index. */
+	private static final int SCANS_BEFORE_INDEX = 32;
+
+	/**
+	 * Positions of the headers by case insensitive name, or null. Built once a large group has been searched often, extended by later adds and
+	 * dropped by removals. Volatile, so concurrent readers building it only ever see a complete index.
+	 */
+	private volatile KCIndex mIndex;
+
+	/** Lookups by name since the last modification, a hint for when to build the index; lost updates from racing readers don't matter. */
+	private int mScans;
+
 
 	public KCHeaderGroup()
 	{
@@ -34,6 +52,8 @@ public class KCHeaderGroup implements Cloneable
 	public void clear()
 	{
 		headers.clear();
+		mIndex = null;
+		mScans = 0;
 	}
 
 	/**
@@ -49,6 +69,11 @@ public class KCHeaderGroup implements Cloneable
 			return;
 		}
 		headers.add(header);
+		KCIndex index = mIndex;
+		if (index != null && !index.add(headers, headers.size() - 1))
+		{
+			mIndex = null;
+		}
 	}
 
 	public void addHeaders(KCHeader[] headers)
@@ -59,7 +84,7 @@ public class KCHeaderGroup implements Cloneable
 		}
 		for (int i = 0; i < headers.length; i++)
 		{
-			this.headers.add(headers[i]);
+			addHeader(headers[i]);
 		}
 	}
 
@@ -76,7 +101,15 @@ public class KCHeaderGroup implements Cloneable
 		{
 			return;
 		}
-		headers.remove(header);
+		int position = indexOf(header);
+		if (position < 0)
+		{
+			return;
+		}
+		headers.remove(position);
+		// Positions after it have moved, rebuild when needed.
+		mIndex = null;
+		mScans = 0;
 	}
 
 	/**
@@ -92,16 +125,53 @@ public class KCHeaderGroup implements Cloneable
 		{
 			return;
 		}
-		for (int i = 0; i < this.headers.size(); i++)
+		int position = first(header.getName());
+		if (position < 0)
 		{
-			KCHeader current = (KCHeader) this.headers.get(i);
-			if (current.getName().equalsIgnoreCase(header.getName()))
+			addHeader(header);
+			return;
+		}
+		// Same name, so the index is unchanged.
+		this.headers.set(position, header);
+	}
+
+	/**
+	 * Replaces the headers with the names of the given ones. Each name of the given headers replaces all the headers of that name, which keeps the
+	 * position of its first header; names that are not given are kept.
+	 *
+	 * @param aHeaders
+	 *            the new headers
+	 */
+	public void updateHeaders(KCHeader[] aHeaders)
+	{
+		if (aHeaders == null)
+		{
+			return;
+		}
+		for (int i = 0; i < aHeaders.length; i++)
+		{
+			KCHeader header = aHeaders[i];
+			if (header == null)
+			{
+				continue;
+			}
+			boolean replaced = false;
+			for (int j = 0; j < i && !replaced; j++)
+			{
+				replaced = aHeaders[j] != null && KCHeaderName.equals(aHeaders[j].getName(), header.getName());
+			}
+			if (replaced)
 			{
-				this.headers.set(i, header);
-				return;
+				addHeader(header);
+				continue;
 			}
+			KCHeader[] current = getHeaders(header.getName());
+			for (int j = 1; j < current.length; j++)
+			{
+				removeHeader(current[j]);
+			}
+			updateHeader(header);
 		}
-		this.headers.add(header);
 	}
 
 	/**
@@ -167,18 +237,23 @@ public class KCHeaderGroup implements Cloneable
 	 */
 	public KCHeader[] getHeaders(String name)
 	{
-		ArrayList<KCHeader> headersFound = new ArrayList<KCHeader>();
-
-		for (int i = 0; i < headers.size(); i++)
+		int position = first(name);
+		if (position < 0)
 		{
-			KCHeader header = (KCHeader) headers.get(i);
-			if (header.getName().equalsIgnoreCase(name))
-			{
-				headersFound.add(header);
-			}
+			return new KCHeader[0];
 		}
-
-		return (KCHeader[]) headersFound.toArray(new KCHeader[headersFound.size()]);
+		int count = 0;
+		for (int i = position; i >= 0; i = next(i))
+		{
+			count++;
+		}
+		KCHeader[] array = new KCHeader[count];
+		count = 0;
+		for (int i = position; i >= 0; i = next(i))
+		{
+			array[count++] = headers.get(i);
+		}
+		return array;
 	}
 
 
@@ -213,15 +288,8 @@ public class KCHeaderGroup implements Cloneable
 	 */
 	public KCHeader getFirstHeader(String name)
 	{
-		for (int i = 0; i < headers.size(); i++)
-		{
-			KCHeader header = (KCHeader) headers.get(i);
-			if (header.getName().equalsIgnoreCase(name))
-			{
-				return header;
-			}
-		}
-		return null;
+		int position = first(name);
+		return position >= 0 ? headers.get(position) : null;
 	}
 
 	/**
@@ -236,17 +304,16 @@ public class KCHeaderGroup implements Cloneable
 	 */
 	public KCHeader getLastHeader(String name)
 	{
-		// start at the end of the list and work backwards
-		for (int i = headers.size() - 1; i >= 0; i--)
+		int position = first(name);
+		if (position < 0)
 		{
-			KCHeader header = (KCHeader) headers.get(i);
-			if (header.getName().equalsIgnoreCase(name))
-			{
-				return header;
-			}
+			return null;
 		}
-
-		return null;
+		for (int next = next(position); next >= 0; next = next(next))
+		{
+			position = next;
+		}
+		return headers.get(position);
 	}
 
 	/**
@@ -271,16 +338,7 @@ public class KCHeaderGroup implements Cloneable
 	 */
 	public boolean containsHeader(String name)
 	{
-		for (int i = 0; i < headers.size(); i++)
-		{
-			KCHeader header = (KCHeader) headers.get(i);
-			if (header.getName().equalsIgnoreCase(name))
-			{
-				return true;
-			}
-		}
-
-		return false;
+		return first(name) >= 0;
 	}
 
 	/**
@@ -299,9 +357,164 @@ public class KCHeaderGroup implements Cloneable
 	{
 		KCHeaderGroup clone = (KCHeaderGroup) super.clone();
 		clone.headers = new ArrayList<KCHeader>(this.headers);
+		clone.mIndex = null;
 		return clone;
 	}
 
+	/**
+	 * Returns the position of the given header instance in the list, or -1.
+	 */
+	private int indexOf(KCHeader aHeader)
+	{
+		for (int i = 0, size = headers.size(); i < size; i++)
+		{
+			if (headers.get(i) == aHeader)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the position of the first header with the given name, or -1. Scans small or rarely searched groups, and indexes the others.
+	 */
+	private int first(String aName)
+	{
+		KCIndex index = mIndex;
+		if (index == null)
+		{
+			int size = headers.size();
+			if (size <= SCAN_MAX_SIZE || mScans++ < SCANS_BEFORE_INDEX)
+			{
+				for (int i = 0; i < size; i++)
+				{
+					if (KCHeaderName.equals(headers.get(i).getName(), aName))
+					{
+						return i;
+					}
+				}
+				return -1;
+			}
+			index = new KCIndex(size);
+			for (int i = 0; i < size; i++)
+			{
+				index.add(headers, i);
+			}
+			// Only published once complete.
+			mIndex = index;
+		}
+		return index.first(headers, aName);
+	}
+
+	/**
+	 * Returns the position of the next header with the same name as the one at the given position, or -1.
+	 */
+	private int next(int aPosition)
+	{
+		KCIndex index = mIndex;
+		if (index != null)
+		{
+			return index.mNext[aPosition];
+		}
+		String name = headers.get(aPosition).getName();
+		for (int i = aPosition + 1, size = headers.size(); i < size; i++)
+		{
+			if (KCHeaderName.equals(headers.get(i).getName(), name))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Open addressing table from the case insensitive hash of a name to the position of its first header, with the later headers of the same name
+	 * chained by position. Needs no allocation besides its arrays, and no lower case copies of the names.
+	 */
+	private static final class KCIndex
+	{
+		/** Position + 1 of the first header of a name, 0 for a free slot. At most half full. */
+		final int[] mSlots;
+
+		/** {@link KCHeaderName#hash(String)} of the name of the header at each position. */
+		final int[] mHashes;
+
+		/** Position of the next header with the same name, or -1. */
+		final int[] mNext;
+
+		/** Position of the last header with the same name as the first header at each position. */
+		final int[] mLast;
+
+		KCIndex(int aSize)
+		{
+			int capacity = 8;
+			while (capacity < aSize * 2 + 8)
+			{
+				capacity <<= 1;
+			}
+			mSlots = new int[capacity];
+			mHashes = new int[capacity / 2];
+			mNext = new int[capacity / 2];
+			mLast = new int[capacity / 2];
+		}
+
+		/**
+		 * Indexes the header at the given position, after all the positions before it.
+		 *
+		 * @return false if the index is full
+		 */
+		boolean add(List<KCHeader> aHeaders, int aPosition)
+		{
+			if (aPosition >= mHashes.length)
+			{
+				return false;
+			}
+			String name = aHeaders.get(aPosition).getName();
+			int hash = KCHeaderName.hash(name);
+			mHashes[aPosition] = hash;
+			mNext[aPosition] = -1;
+			int mask = mSlots.length - 1;
+			int i = hash & mask;
+			int slot;
+			while ((slot = mSlots[i]) != 0)
+			{
+				int first = slot - 1;
+				if (mHashes[first] == hash && KCHeaderName.equals(aHeaders.get(first).getName(), name))
+				{
+					mNext[mLast[first]] = aPosition;
+					mLast[first] = aPosition;
+					return true;
+				}
+				i = (i + 1) & mask;
+			}
+			mSlots[i] = aPosition + 1;
+			mLast[aPosition] = aPosition;
+			return true;
+		}
+
+		/**
+		 * @return the position of the first header with the given name, or -1
+		 */
+		int first(List<KCHeader> aHeaders, String aName)
+		{
+			int hash = KCHeaderName.hash(aName);
+			int mask = mSlots.length - 1;
+			int i = hash & mask;
+			int slot;
+			while ((slot = mSlots[i]) != 0)
+			{
+				int first = slot - 1;
+				if (mHashes[first] == hash && KCHeaderName.equals(aHeaders.get(first).getName(), aName))
+				{
+					return first;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+	}
+
 
 	public static KCHeaderGroup emptyHeaderGroup()
 	{
@@ -0,0 +1,61 @@
+package com.kercer.kernet.http.base;
+
+/**
+ * Case insensitive header name hashing and comparison, without lower case copies of the names.
+ */
+final class KCHeaderName
+{
+	private KCHeaderName()
+	{
+	}
+
+	/**
+	 * Case insensitive hash of a header name, equal for all spellings of the same name.
+	 *
+	 * @param aName
+	 *            the header name
+	 * @return the hash
+	 */
+	static int hash(String aName)
+	{
+		int h = 0;
+		for (int i = 0, length = aName.length(); i < length; i++)
+		{
+			h = 31 * h + lowerCase(aName.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Compares two header names ignoring case.
+	 *
+	 * @return true if the names are equal but for case
+	 */
+	static boolean equals(String aName1, String aName2)
+	{
+		int length = aName1.length();
+		if (length != aName2.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < length; i++)
+		{
+			char c1 = aName1.charAt(i);
+			char c2 = aName2.charAt(i);
+			if (c1 != c2 && lowerCase(c1) != lowerCase(c2))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char lowerCase(char aChar)
+	{
+		if (aChar < 0x80)
+		{
+			return aChar >= 'A' && aChar <= 'Z' ? (char) (aChar + ('a' - 'A')) : aChar;
+		}
+		return Character.toLowerCase(Character.toUpperCase(aChar));
+	}
+}
@@ -0,0 +1,213 @@
+package com.kercer.kernet.http.base;
+
+import com.kercer.kercore.util.KCUtilDate;
+
+import java.util.Date;
+
+/**
+ * Fast parsing and formatting of HTTP dates.
+ *
+ * The preferred RFC 1123 format ("Sun, 06 Nov 1994 08:49:37 GMT") is parsed and formatted by hand without a date formatter, the obsolete formats
+ * fall back to {@link KCUtilDate}. Formatted values are remembered in a small cache, as revalidations keep formatting the same Last-Modified dates.
+ */
+public final class KCHttpDate
+{
+	private static final String[] DAYS = { "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed" };
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	/** Length of an RFC 1123 date. */
+	private static final int RFC1123_LENGTH = 29;
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/** Result of {@link #parseRfc1123(String)} for values in another format. */
+	private static final long INVALID = Long.MIN_VALUE;
+
+	/** Number of recently formatted dates kept. */
+	private static final int FORMAT_CACHE_SIZE = 8;
+
+	/** Recently formatted dates, in seconds since the epoch, and their formatted values. */
+	private static final long[] sFormatCacheSeconds = new long[FORMAT_CACHE_SIZE];
+	private static final String[] sFormatCacheValues = new String[FORMAT_CACHE_SIZE];
+	private static int sFormatCacheNext = 0;
+
+	private KCHttpDate()
+	{
+	}
+
+	/**
+	 * Parses an HTTP date.
+	 *
+	 * @param aValue
+	 *            date in RFC 1123, RFC 1036 or asctime format
+	 * @return milliseconds since the epoch, or 0 if the date can't be parsed
+	 */
+	public static long parse(String aValue)
+	{
+		if (aValue == null)
+		{
+			return 0;
+		}
+		long millis = parseRfc1123(aValue);
+		if (millis != INVALID)
+		{
+			return millis;
+		}
+
+		try
+		{
+			Date date = KCUtilDate.parseDate(aValue);
+			return date != null ? date.getTime() : 0;
+		}
+		catch (RuntimeException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Formats a date in RFC 1123 format.
+	 *
+	 * @param aMillis
+	 *            milliseconds since the epoch
+	 * @return the formatted date
+	 */
+	public static String format(long aMillis)
+	{
+		long seconds = floorDiv(aMillis, 1000);
+		synchronized (sFormatCacheSeconds)
+		{
+			for (int i = 0; i < FORMAT_CACHE_SIZE; i++)
+			{
+				if (sFormatCacheValues[i] != null && sFormatCacheSeconds[i] == seconds)
+				{
+					return sFormatCacheValues[i];
+				}
+			}
+		}
+
+		String value = formatRfc1123(seconds);
+		synchronized (sFormatCacheSeconds)
+		{
+			sFormatCacheSeconds[sFormatCacheNext] = seconds;
+			sFormatCacheValues[sFormatCacheNext] = value;
+			sFormatCacheNext = (sFormatCacheNext + 1) % FORMAT_CACHE_SIZE;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses "EEE, dd MMM yyyy HH:mm:ss GMT" in place.
+	 *
+	 * @return milliseconds since the epoch, or {@link #INVALID} if the value is not in that format
+	 */
+	private static long parseRfc1123(String aValue)
+	{
+		if (aValue.length() != RFC1123_LENGTH || aValue.charAt(3) != ',' || aValue.charAt(4) != ' ' || aValue.charAt(7) != ' '
+				|| aValue.charAt(11) != ' ' || aValue.charAt(16) != ' ' || aValue.charAt(19) != ':' || aValue.charAt(22) != ':'
+				|| aValue.charAt(25) != ' ' || !aValue.regionMatches(26, "GMT", 0, 3))
+		{
+			return INVALID;
+		}
+
+		int day = digits(aValue, 5, 2);
+		int month = month(aValue, 8);
+		int year = digits(aValue, 12, 4);
+		int hour = digits(aValue, 17, 2);
+		int minute = digits(aValue, 20, 2);
+		int second = digits(aValue, 23, 2);
+		if (day < 1 || day > 31 || month < 0 || year < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+		{
+			return INVALID;
+		}
+
+		long days = daysFromCivil(year, month + 1, day);
+		return days * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L;
+	}
+
+	private static String formatRfc1123(long aSeconds)
+	{
+		long days = floorDiv(aSeconds, 24 * 60 * 60);
+		int secondOfDay = (int) (aSeconds - days * 24 * 60 * 60);
+
+		// Civil date from days since the epoch, see daysFromCivil().
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		StringBuilder builder = new StringBuilder(RFC1123_LENGTH);
+		builder.append(DAYS[(int) (((days % 7) + 7) % 7)]).append(", ");
+		appendTwoDigits(builder, day);
+		builder.append(' ').append(MONTHS[month - 1]).append(' ');
+		builder.append(year);
+		builder.append(' ');
+		appendTwoDigits(builder, secondOfDay / 3600);
+		builder.append(':');
+		appendTwoDigits(builder, secondOfDay / 60 % 60);
+		builder.append(':');
+		appendTwoDigits(builder, secondOfDay % 60);
+		builder.append(" GMT");
+		return builder.toString();
+	}
+
+	/**
+	 * Days since 1970-01-01 of a proleptic Gregorian date (H. Hinnant's days_from_civil).
+	 */
+	private static long daysFromCivil(long aYear, int aMonth, int aDay)
+	{
+		long y = aMonth <= 2 ? aYear - 1 : aYear;
+		long era = floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (aMonth > 2 ? aMonth - 3 : aMonth + 9) + 2) / 5 + aDay - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static int digits(String aValue, int aStart, int aCount)
+	{
+		int n = 0;
+		for (int i = aStart; i < aStart + aCount; i++)
+		{
+			char c = aValue.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				return -1;
+			}
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	private static int month(String aValue, int aStart)
+	{
+		for (int i = 0; i < MONTHS.length; i++)
+		{
+			if (aValue.regionMatches(true, aStart, MONTHS[i], 0, 3))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void appendTwoDigits(StringBuilder aBuilder, int aValue)
+	{
+		aBuilder.append((char) ('0' + aValue / 10)).append((char) ('0' + aValue % 10));
+	}
+
+	private static long floorDiv(long aX, long aY)
+	{
+		long q = aX / aY;
+		if ((aX % aY != 0) && ((aX < 0) != (aY < 0)))
+		{
+			q--;
+		}
+		return q;
+	}
+}
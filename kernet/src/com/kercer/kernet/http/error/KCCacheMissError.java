@@ -0,0 +1,15 @@
+package com.kercer.kernet.http.error;
+
+/**
+ * Error indicating that a request restricted to the cache found no cached response.
+ */
+@SuppressWarnings("serial")
+public class KCCacheMissError extends KCNetError {
+    public KCCacheMissError() {
+        super();
+    }
+
+    public KCCacheMissError(String exceptionMessage) {
+        super(exceptionMessage);
+    }
+}
@@ -23,6 +23,7 @@ import com.kercer.kernet.http.KCHttpResponse;
 import com.kercer.kernet.http.KCHttpResponseParser;
 import com.kercer.kernet.http.KCHttpResult;
 import com.kercer.kernet.http.KCHttpResult.KCHttpResultListener;
+import com.kercer.kernet.http.KCHttpResultShareable;
 import com.kercer.kernet.http.error.KCNetError;
 
 import java.io.UnsupportedEncodingException;
@@ -94,29 +95,33 @@ public class KCStringRequest extends KCHttpRequest<String>
 
     private void parserResponse()
     {
-    	this.setResponseParser(new KCHttpResponseParser()
-		{
+    	this.setResponseParser(new KCStringResponseParser());
+    }
 
-			@Override
-			public KCHttpResult<String> parseHttpResponse(KCHttpResponse response)
+	/**
+	 * Decodes the body in the charset of the response. Strings are immutable, so the result is shared with duplicate requests.
+	 */
+	private static class KCStringResponseParser implements KCHttpResponseParser, KCHttpResultShareable
+	{
+		@Override
+		public KCHttpResult<String> parseHttpResponse(KCHttpResponse response)
+		{
+			String parsed;
+			try
 			{
-				String parsed;
-				try
-				{
-					parsed = new String(response.getContent(), KCHttpHeaderParser.parseCharset(response.getHeaderGroup()));
-				}
-				catch (UnsupportedEncodingException e)
-				{
-					parsed = new String(response.getContent());
-				}
-				return KCHttpResult.success(parsed, KCHttpHeaderParser.parseCacheHeaders(response));
+				parsed = new String(response.getContent(), KCHttpHeaderParser.parseCharset(response.getHeaderGroup()));
 			}
-
-			@Override
-			public KCNetError parseHttpError(KCNetError aError)
+			catch (UnsupportedEncodingException e)
 			{
-				return aError;
+				parsed = new String(response.getContent());
 			}
-		});
-    }
+			return KCHttpResult.success(parsed, KCHttpHeaderParser.parseCacheHeaders(response));
+		}
+
+		@Override
+		public KCNetError parseHttpError(KCNetError aError)
+		{
+			return aError;
+		}
+	}
 }
@@ -879,7 +879,8 @@ public class KCURI
     private void parseQuery(String aKey, String aValue)
     {
         aKey = (aKey != null && !KCUtilText.isEmpty(aKey)) ? aKey : null;
-        aValue = (aValue != null && !KCUtilText.isEmpty(aValue)) ? aValue : null;
+        // An empty value is kept after a name: "r=" and "r" may mean different things to a server.
+        aValue = (aValue != null && (aKey != null || !KCUtilText.isEmpty(aValue))) ? aValue : null;
         if (aKey != null || aValue != null)
         {
             mQueries.add(new KCNameValuePair(aKey, aValue));
@@ -0,0 +1,213 @@
+package com.kercer.kernet.http;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Clears a disk cache through its trash, and removes its entries by key prefix and by tag, packed in segments and in files alike.
+ */
+public class KCCacheDiskClearTest
+{
+	private static final int FILES = 500;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void clearMovesTheDirectoryToTheTrash() throws Exception
+	{
+		File root = new File(mFolder.getRoot(), "cache");
+		KCCacheDisk cache = newCache(root);
+		for (int i = 0; i < FILES; i++)
+		{
+			cache.put("http://test/file/" + i, newEntry(i, 20 * 1024, null));
+		}
+		cache.put("http://test/packed", newEntry(0, 100, null));
+
+		cache.clear();
+		// The files are still in the trash, the background thread barely started deleting them.
+		File[] trash = listTrash(root);
+		assertEquals(1, trash.length);
+		assertTrue(trash[0].list().length > 0);
+		assertEquals(0, root.list().length);
+		assertNull(cache.get("http://test/file/0"));
+		assertNull(cache.get("http://test/packed"));
+
+		// The cleared cache takes new entries at once.
+		cache.put("http://test/packed", newEntry(1, 100, null));
+		assertArrayEquals(newEntry(1, 100, null).data, cache.get("http://test/packed").data);
+
+		waitForThread("KCCacheDisk-trash");
+		assertEquals(0, listTrash(root).length);
+		assertNull(newCache(root).get("http://test/file/0"));
+	}
+
+	@Test
+	public void leftoverTrashIsEmptiedOnInitialize() throws Exception
+	{
+		File root = new File(mFolder.getRoot(), "cache");
+		// The trash of a clear interrupted by the process dying.
+		File trash = new File(mFolder.getRoot(), "cache.trash-1234");
+		File directory = new File(trash, "ab");
+		assertTrue(directory.mkdirs());
+		FileOutputStream os = new FileOutputStream(new File(directory, "abcdef"));
+		os.write(new byte[1024]);
+		os.close();
+		// Not the trash of this cache.
+		File other = new File(mFolder.getRoot(), "other.trash-1234");
+		assertTrue(other.mkdirs());
+
+		newCache(root);
+		waitForThread("KCCacheDisk-trash");
+		assertFalse(trash.exists());
+		assertTrue(other.exists());
+	}
+
+	@Test
+	public void removeByPrefixSurvivesAReload() throws Exception
+	{
+		File root = new File(mFolder.getRoot(), "cache");
+		KCCacheDisk cache = newCache(root);
+		putUserEntries(cache);
+
+		assertEquals(4, cache.removeByPrefix("http://test/user/1/"));
+		assertUserEntries(cache, false, true);
+		waitForThread("KCCacheDisk-janitor");
+		assertUserEntries(newCache(root), false, true);
+	}
+
+	@Test
+	public void removeByTagSurvivesAReload() throws Exception
+	{
+		File root = new File(mFolder.getRoot(), "cache");
+		KCCacheDisk cache = newCache(root);
+		putUserEntries(cache);
+
+		assertEquals(4, cache.removeByTag("user:1"));
+		assertEquals(0, cache.removeByTag("user:1"));
+		assertUserEntries(cache, false, true);
+		waitForThread("KCCacheDisk-janitor");
+		KCCacheDisk reloaded = newCache(root);
+		assertUserEntries(reloaded, false, true);
+
+		// The tags of the entries left are read back from their headers.
+		assertEquals(4, reloaded.removeByTag("user:2"));
+		// The removal left the first segment mostly garbage: the janitor of the reloaded cache compacts it, and must be done before the next load
+		// like the janitor of a process which is gone.
+		waitForThread("KCCacheDisk-janitor");
+		assertUserEntries(newCache(root), false, false);
+	}
+
+	/**
+	 * Puts a packed and a file entry under two paths of two users, tagged with their user, and an untagged public entry.
+	 */
+	private static void putUserEntries(KCCacheDisk aCache)
+	{
+		for (int user = 1; user <= 2; user++)
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				aCache.put(userKey(user, i, false), newEntry(user * 10 + i, 100, "user:" + user));
+				aCache.put(userKey(user, i, true), newEntry(user * 10 + i, 20 * 1024, "user:" + user));
+			}
+		}
+		aCache.put("http://test/public", newEntry(99, 100, null));
+	}
+
+	private static void assertUserEntries(KCCacheDisk aCache, boolean aUser1, boolean aUser2)
+	{
+		for (int user = 1; user <= 2; user++)
+		{
+			boolean present = user == 1 ? aUser1 : aUser2;
+			for (int i = 0; i < 2; i++)
+			{
+				for (int large = 0; large < 2; large++)
+				{
+					String key = userKey(user, i, large == 1);
+					KCCache.KCEntry entry = aCache.get(key);
+					if (!present)
+					{
+						assertNull(key, entry);
+						continue;
+					}
+					assertNotNull(key, entry);
+					assertArrayEquals(key, newEntry(user * 10 + i, large == 1 ? 20 * 1024 : 100, null).data, entry.data);
+				}
+			}
+		}
+		assertNotNull(aCache.get("http://test/public"));
+	}
+
+	private static String userKey(int aUser, int aIndex, boolean aLarge)
+	{
+		return "http://test/user/" + aUser + "/" + (aLarge ? "photo/" : "profile/") + aIndex;
+	}
+
+	private static KCCacheDisk newCache(File aRoot) throws InterruptedException
+	{
+		KCCacheDisk cache = new KCCacheDisk(aRoot, 64 * 1024 * 1024);
+		cache.initialize();
+		cache.awaitLoaded();
+		return cache;
+	}
+
+	private static KCCache.KCEntry newEntry(int aValue, int aLength, String aTag)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[aLength];
+		Arrays.fill(entry.data, (byte) aValue);
+		entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000;
+		entry.tags = aTag != null ? new String[] { aTag } : null;
+		return entry;
+	}
+
+	private File[] listTrash(final File aRoot)
+	{
+		return mFolder.getRoot().listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(File aFile)
+			{
+				return aFile.getName().startsWith(aRoot.getName() + ".trash-");
+			}
+		});
+	}
+
+	/**
+	 * Waits until no thread with a name is running, e.g. the trash or the janitor of a disk cache.
+	 */
+	private static void waitForThread(String aName) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (isThreadRunning(aName))
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean isThreadRunning(String aName)
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (aName.equals(thread.getName()) && thread.isAlive())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
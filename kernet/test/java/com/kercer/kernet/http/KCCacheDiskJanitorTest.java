@@ -0,0 +1,235 @@
+package com.kercer.kernet.http;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the janitor of a disk cache: while entries are put, read and removed from several threads, while puts keep the cache over its maximum
+ * size, and on entries it must keep past their expiry.
+ */
+public class KCCacheDiskJanitorTest
+{
+	private static final long MAX_SIZE = 256 * 1024;
+	private static final int THREADS = 4;
+	private static final long RUN_MS = 1500;
+	private static final int KEYS = 200;
+	private static final int PUTS = 3000;
+
+	/**
+	 * Bound of the slowest put while the janitor evicts. Filesystem noise alone makes a put take up to 20 ms now and then, with or without
+	 * eviction.
+	 */
+	private static final long MAX_PUT_NANOS = 50 * 1000000L;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void concurrentPutsAndGetsDuringEviction() throws Throwable
+	{
+		final KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), MAX_SIZE);
+		cache.initialize();
+		cache.awaitLoaded();
+
+		final long deadline = System.currentTimeMillis() + RUN_MS;
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		final int[] reads = new int[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++)
+		{
+			final Random random = new Random(t);
+			Thread thread = new Thread("worker-" + t)
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while (System.currentTimeMillis() < deadline)
+						{
+							String key = "http://test/" + random.nextInt(KEYS);
+							int op = random.nextInt(10);
+							if (op < 4)
+							{
+								// A third of the entries are hard-expired without validators, for the janitor to purge.
+								cache.put(key, newEntry(random.nextInt(256), random.nextInt(3) == 0));
+							}
+							else if (op < 9)
+							{
+								KCCache.KCEntry entry = cache.get(key);
+								if (entry != null)
+								{
+									checkEntry(key, entry);
+									synchronized (reads)
+									{
+										reads[0]++;
+									}
+								}
+							}
+							else
+							{
+								cache.remove(key);
+							}
+						}
+					}
+					catch (Throwable e)
+					{
+						synchronized (failures)
+						{
+							failures.add(e);
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		if (!failures.isEmpty())
+		{
+			throw failures.get(0);
+		}
+		System.out.println(reads[0] + " intact reads during eviction, " + cache.getSize() + " bytes left");
+		assertTrue(reads[0] > 0);
+
+		waitForJanitor();
+		assertTrue("size " + cache.getSize(), cache.getSize() <= MAX_SIZE);
+	}
+
+	@Test
+	public void putsDontWaitForEvictionOverTheHighWatermark() throws Exception
+	{
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), MAX_SIZE);
+		cache.initialize();
+		cache.awaitLoaded();
+
+		// Entries too large for segments, so evicting them deletes their files, each pass tens of them.
+		byte[] data = new byte[20 * 1024];
+		long maxNanos = 0;
+		long totalNanos = 0;
+		int timedPuts = 0;
+		int putsOverHighWatermark = 0;
+		for (int i = 0; i < PUTS; i++)
+		{
+			KCCache.KCEntry entry = new KCCache.KCEntry();
+			entry.data = data;
+			entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000;
+			boolean overHighWatermark = cache.getSize() > MAX_SIZE;
+			long start = System.nanoTime();
+			cache.put("http://test/fill/" + i, entry);
+			long nanos = System.nanoTime() - start;
+			if (overHighWatermark)
+			{
+				putsOverHighWatermark++;
+			}
+			// Timed from the first eviction on, past the warm up.
+			if (putsOverHighWatermark > 0)
+			{
+				maxNanos = Math.max(maxNanos, nanos);
+				totalNanos += nanos;
+				timedPuts++;
+			}
+		}
+		waitForJanitor();
+
+		System.out.println(timedPuts + " puts during eviction, " + putsOverHighWatermark + " over the high watermark: slowest " + maxNanos / 1000
+				+ " us, mean " + totalNanos / timedPuts / 1000 + " us");
+		assertTrue(putsOverHighWatermark > 0);
+		// Evicting inline deleted the files of a whole pass under the lock of the put which went over the high watermark.
+		assertTrue("slowest put " + maxNanos / 1000 + " us", maxNanos < MAX_PUT_NANOS);
+		assertTrue("size " + cache.getSize(), cache.getSize() <= MAX_SIZE);
+	}
+
+	@Test
+	public void expiredPurgeKeepsEntriesWithinTheirStaleIfErrorWindow() throws Exception
+	{
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), MAX_SIZE);
+		cache.initialize();
+		cache.awaitLoaded();
+		KCCache.KCEntry staleIfError = newEntry(1, true);
+		staleIfError.staleIfErrorMs = 60 * 60 * 1000;
+		cache.put("http://test/stale-if-error", staleIfError);
+		cache.put("http://test/expired", newEntry(2, true));
+		waitForJanitor();
+
+		// A cache opened on the directory reads the window from the entry header, its first janitor pass purges the expired entries.
+		KCCacheDisk reopened = new KCCacheDisk(mFolder.getRoot(), MAX_SIZE);
+		reopened.initialize();
+		reopened.awaitLoaded();
+		waitForJanitor();
+		assertNull(reopened.get("http://test/expired"));
+		KCCache.KCEntry entry = reopened.get("http://test/stale-if-error");
+		assertNotNull(entry);
+		assertEquals(staleIfError.staleIfErrorMs, entry.staleIfErrorMs);
+		checkEntry("http://test/stale-if-error", entry);
+	}
+
+	/**
+	 * Returns an entry whose data is filled with one value, its length derived from it, so mixed up or truncated reads show.
+	 */
+	private static KCCache.KCEntry newEntry(int aValue, boolean aExpired)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[lengthOf(aValue)];
+		Arrays.fill(entry.data, (byte) aValue);
+		long now = System.currentTimeMillis();
+		entry.ttl = entry.softTtl = aExpired ? now - 1000 : now + 60000;
+		return entry;
+	}
+
+	private static int lengthOf(int aValue)
+	{
+		// From a few bytes, packed into segments, to more than the segment entry limit, written to files.
+		return 1 + aValue * 97;
+	}
+
+	private static void checkEntry(String aKey, KCCache.KCEntry aEntry)
+	{
+		assertTrue(aKey, aEntry.data.length > 0);
+		int value = aEntry.data[0] & 0xff;
+		assertEquals(aKey, lengthOf(value), aEntry.data.length);
+		for (byte b : aEntry.data)
+		{
+			assertEquals(aKey, (byte) value, b);
+		}
+	}
+
+	/**
+	 * Waits until no janitor thread is running.
+	 */
+	private static void waitForJanitor() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (isJanitorRunning())
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean isJanitorRunning()
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if ("KCCacheDisk-janitor".equals(thread.getName()) && thread.isAlive())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,166 @@
+package com.kercer.kernet.http;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Shares a disk cache directory with another process, a JVM running {@link #main(String[])}, and checks each process sees the entries of the
+ * other.
+ */
+public class KCCacheDiskMultiProcessTest
+{
+	private static final int KEYS = 200;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void processesSeeEachOthersEntries() throws Exception
+	{
+		File root = new File(mFolder.getRoot(), "cache");
+		KCCacheDisk cache = newCache(root);
+
+		// Both processes write at the same time, their records interleave in the journal.
+		Process child = startChild("write", root);
+		for (int i = 0; i < KEYS; i++)
+		{
+			cache.put("parent/" + i, newEntry(i));
+			if (i % 4 == 0)
+			{
+				cache.remove("parent/" + i);
+			}
+		}
+		assertChildSucceeds(child);
+
+		for (int i = 0; i < KEYS; i++)
+		{
+			assertEntry(cache, "parent/" + i, i);
+			assertEntry(cache, "child/" + i, i);
+		}
+		assertChildSucceeds(startChild("verify", root));
+	}
+
+	@Test
+	public void secondSharedCacheOfAProcessIsRefused() throws Exception
+	{
+		File root = new File(mFolder.getRoot(), "cache");
+		KCCacheDisk cache = newCache(root);
+		try
+		{
+			new KCCacheDisk(root).setMultiProcess(true);
+			fail();
+		}
+		catch (IllegalStateException expected)
+		{
+		}
+
+		// Once the first stops sharing the directory, it is free.
+		cache.setMultiProcess(false);
+		new KCCacheDisk(root).setMultiProcess(true);
+	}
+
+	/**
+	 * Runs in the other process: "write" puts and removes its entries, "verify" checks those of both processes.
+	 */
+	public static void main(String[] aArgs) throws Exception
+	{
+		KCCacheDisk cache = newCache(new File(aArgs[1]));
+		if (aArgs[0].equals("write"))
+		{
+			for (int i = 0; i < KEYS; i++)
+			{
+				cache.put("child/" + i, newEntry(i));
+				if (i % 4 == 0)
+				{
+					cache.remove("child/" + i);
+				}
+			}
+		}
+		else
+		{
+			for (int i = 0; i < KEYS; i++)
+			{
+				assertEntry(cache, "parent/" + i, i);
+				assertEntry(cache, "child/" + i, i);
+			}
+		}
+		System.out.println("done");
+	}
+
+	private static KCCacheDisk newCache(File aRoot) throws InterruptedException
+	{
+		KCCacheDisk cache = new KCCacheDisk(aRoot);
+		cache.setMultiProcess(true);
+		cache.initialize();
+		cache.awaitLoaded();
+		return cache;
+	}
+
+	private static Process startChild(String aMode, File aRoot) throws Exception
+	{
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), KCCacheDiskMultiProcessTest.class.getName(),
+				aMode, aRoot.getAbsolutePath());
+		builder.redirectErrorStream(true);
+		return builder.start();
+	}
+
+	private static void assertChildSucceeds(Process aChild) throws Exception
+	{
+		StringBuilder output = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(aChild.getInputStream(), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				output.append(line).append('\n');
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		assertTrue("child timed out", aChild.waitFor(60, TimeUnit.SECONDS));
+		assertEquals(output.toString(), 0, aChild.exitValue());
+		assertTrue(output.toString(), output.toString().endsWith("done\n"));
+	}
+
+	private static KCCache.KCEntry newEntry(int aValue)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[64 + aValue];
+		Arrays.fill(entry.data, (byte) aValue);
+		entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000;
+		return entry;
+	}
+
+	/**
+	 * Checks an entry is intact, or removed for every fourth key.
+	 */
+	private static void assertEntry(KCCache aCache, String aKey, int aValue)
+	{
+		KCCache.KCEntry entry = aCache.get(aKey);
+		if (aValue % 4 == 0)
+		{
+			assertNull(aKey, entry);
+			return;
+		}
+		assertNotNull(aKey, entry);
+		byte[] expected = newEntry(aValue).data;
+		assertTrue(aKey, Arrays.equals(expected, entry.data));
+	}
+}
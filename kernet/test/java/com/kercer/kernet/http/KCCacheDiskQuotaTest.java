@@ -0,0 +1,158 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a disk cache of several gigabytes, its media entries sparse files so the test doesn't write them, with a quota for media.
+ */
+public class KCCacheDiskQuotaTest
+{
+	private static final long GB = 1024L * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void entriesLargerThanAnArrayAreAccountedAndStreamed() throws Exception
+	{
+		long fileLength = 0;
+		for (int i = 0; i < 3; i++)
+		{
+			fileLength += writeSparseEntry("http://test/video/" + i, "video/mp4", 3 * GB);
+		}
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), 16 * GB);
+		cache.initialize();
+		cache.awaitLoaded();
+
+		assertTrue(fileLength > Integer.MAX_VALUE);
+		assertEquals(fileLength, cache.getSize());
+		assertEquals(fileLength, cache.getSize(KCCacheContentClass.MEDIA));
+
+		// Too large for a byte array, only streamed.
+		assertNull(cache.get("http://test/video/0"));
+		KCCacheDisk.KCStreamedEntry entry = cache.getStream("http://test/video/0");
+		assertNotNull(entry);
+		try
+		{
+			assertEquals(3 * GB, entry.length);
+			assertEquals(0, entry.data.read());
+		}
+		finally
+		{
+			entry.data.close();
+		}
+	}
+
+	@Test
+	public void eachClassIsEvictedWithinItsOwnQuota() throws Exception
+	{
+		for (int i = 0; i < 4; i++)
+		{
+			writeSparseEntry("http://test/video/" + i, "video/mp4", 3 * GB);
+		}
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), 64 * 1024);
+		cache.setContentClassQuota(KCCacheContentClass.MEDIA, 8 * GB);
+		cache.initialize();
+		cache.awaitLoaded();
+		waitForJanitor();
+
+		// 12GB of media over an 8GB quota, evicted below the low water mark; the shared pool doesn't count them.
+		long media = cache.getSize(KCCacheContentClass.MEDIA);
+		System.out.println((media / GB) + " GB of media left of 12 GB, with an 8 GB quota");
+		assertTrue("media " + media, media <= 8 * GB * 0.8);
+		assertTrue("media " + media, media >= 6 * GB);
+
+		// API responses over the 64KB of the shared pool evict each other, not media.
+		for (int i = 0; i < 20; i++)
+		{
+			KCCache.KCEntry entry = newEntry("application/json");
+			entry.data = new byte[8 * 1024];
+			cache.put("http://test/api/" + i, entry);
+		}
+		waitForJanitor();
+		long api = cache.getSize(KCCacheContentClass.API);
+		assertTrue("api " + api, api <= 64 * 1024);
+		assertTrue("api " + api, api > 0);
+		assertEquals(media, cache.getSize(KCCacheContentClass.MEDIA));
+		assertEquals(media + api, cache.getSize());
+	}
+
+	/**
+	 * Writes the file of an entry with the given data length as a sparse file, the data reading as zeros.
+	 *
+	 * @return the length of the file
+	 */
+	private long writeSparseEntry(String aKey, String aContentType, long aLength) throws IOException
+	{
+		File file = new KCCacheFiles(mFolder.getRoot()).getFileForKey(aKey);
+		assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+		FileOutputStream os = new FileOutputStream(file);
+		try
+		{
+			assertTrue(new KCCacheHeader(aKey, newEntry(aContentType)).writeHeader(os));
+		}
+		finally
+		{
+			os.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(raf.length() + aLength);
+			return raf.length();
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static KCCache.KCEntry newEntry(String aContentType)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000;
+		entry.responseHeaders = new KCHeaderGroup();
+		entry.responseHeaders.addHeader(new KCHeader("Content-Type", aContentType));
+		return entry;
+	}
+
+	/**
+	 * Waits until no janitor thread is running.
+	 */
+	private static void waitForJanitor() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (isJanitorRunning())
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean isJanitorRunning()
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if ("KCCacheDisk-janitor".equals(thread.getName()) && thread.isAlive())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,92 @@
+package com.kercer.kernet.http;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays traces against {@link KCCacheEvictionTinyLfu} and {@link KCCacheEvictionLru} with the {@link KCCacheEvictionSimulator}, and checks the
+ * frequency sketch forgets old popularity.
+ */
+public class KCCacheEvictionTinyLfuTest
+{
+	private static final int ENTRY_SIZE = 1000;
+	private static final long MAX_SIZE = 100 * ENTRY_SIZE;
+	private static final int HOT_KEYS = 50;
+
+	@Test
+	public void tinyLfuKeepsTheHotEntriesThroughAScan() throws Exception
+	{
+		// Every lookup of a hot entry is followed by two entries seen once, e.g. images scrolled past: between two lookups of a hot entry there are
+		// more distinct keys than the cache holds.
+		StringBuilder trace = new StringBuilder("# key size\n");
+		int scanKey = 0;
+		for (int i = 0; i < 20000; i++)
+		{
+			trace.append("http://test/hot/").append(i % HOT_KEYS).append(' ').append(ENTRY_SIZE).append('\n');
+			for (int j = 0; j < 2; j++)
+			{
+				trace.append("http://test/scan/").append(scanKey++).append(' ').append(ENTRY_SIZE).append('\n');
+			}
+		}
+
+		KCCacheEvictionSimulator lru = new KCCacheEvictionSimulator(new KCCacheEvictionLru(), MAX_SIZE);
+		KCCacheEvictionSimulator tinyLfu = new KCCacheEvictionSimulator(new KCCacheEvictionTinyLfu(256), MAX_SIZE);
+		assertEquals(60000, lru.replay(new StringReader(trace.toString())));
+		assertEquals(60000, tinyLfu.replay(new StringReader(trace.toString())));
+
+		System.out.println("hit ratio of a scan polluted trace: " + lru.getHitRatio() + " with LRU, " + tinyLfu.getHitRatio() + " with TinyLFU");
+		assertEquals(0, lru.getHitCount());
+		// At best every hot lookup hits, a third of the lookups.
+		assertTrue("hit ratio " + tinyLfu.getHitRatio(), tinyLfu.getHitRatio() > 0.3);
+		assertTrue(tinyLfu.getByteHitRatio() > lru.getByteHitRatio());
+	}
+
+	@Test
+	public void largeColdCandidateIsRejectedAgainstHotVictims()
+	{
+		KCCacheEvictionSimulator simulator = new KCCacheEvictionSimulator(new KCCacheEvictionTinyLfu(256), MAX_SIZE);
+		int hotKeys = 99;
+		for (int round = 0; round < 5; round++)
+		{
+			for (int i = 0; i < hotKeys; i++)
+			{
+				assertEquals(round > 0, simulator.access("http://test/hot/" + i, ENTRY_SIZE));
+			}
+		}
+
+		// Looked up once more than each hot entry, but twenty times their size: less popular per byte, it never gets in.
+		for (int i = 0; i < 6; i++)
+		{
+			assertFalse(simulator.access("http://test/large", 20 * ENTRY_SIZE));
+		}
+		for (int i = 0; i < hotKeys; i++)
+		{
+			assertTrue("hot " + i, simulator.access("http://test/hot/" + i, ENTRY_SIZE));
+		}
+	}
+
+	@Test
+	public void sketchHalvesItsCountersAfterASample()
+	{
+		KCCacheEvictionTinyLfu.KCFrequencySketch sketch = new KCCacheEvictionTinyLfu.KCFrequencySketch(1024);
+		for (int i = 0; i < 20; i++)
+		{
+			sketch.increment("http://test/popular");
+		}
+		// 4 bit counters.
+		assertEquals(15, sketch.frequency("http://test/popular"));
+
+		// The sample of a sketch for 1024 entries is 10240 additions, the popular key counted 15 of them.
+		for (int i = 0; i < 10240 - 15; i++)
+		{
+			sketch.increment("http://test/other/" + i);
+		}
+		int frequency = sketch.frequency("http://test/popular");
+		assertTrue("frequency " + frequency, frequency >= 7 && frequency <= 8);
+	}
+}
@@ -0,0 +1,329 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes and reads cache headers in the v2 format, with its dictionary of common headers, and loads entry files of the v1 format.
+ */
+public class KCCacheHeaderTest
+{
+	private static final int CACHE_MAGIC = 0x20150307;
+	private static final int CACHE_MAGIC_V1 = 0x20150306;
+	private static final String KEY = "http://example.com/api/items?page=1";
+	private static final int ENTRIES = 5000;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void headerRoundTrips() throws Exception
+	{
+		KCCache.KCEntry entry = newEntry();
+		entry.tags = new String[] { "user:42", "items" };
+		entry.varyHeaders = new KCHeaderGroup();
+		entry.varyHeaders.addHeader(new KCHeader("Accept-Language", "fr-CH"));
+		entry.staleIfErrorMs = 86400000;
+
+		KCCacheHeader header = roundTrip(new KCCacheHeader(KEY, entry));
+		assertEquals(KEY, header.key);
+		assertEquals(entry.etag, header.etag);
+		assertEquals(entry.serverDate, header.serverDate);
+		assertEquals(entry.lastModified, header.lastModified);
+		assertEquals(entry.ttl, header.ttl);
+		assertEquals(entry.softTtl, header.softTtl);
+		assertArrayEquals(entry.tags, header.tags);
+		assertEquals(entry.staleIfErrorMs, header.staleIfErrorMs);
+		assertHeadersEqual(entry.varyHeaders, header.varyHeaders);
+		assertHeadersEqual(entry.responseHeaders, header.getResponseHeaders());
+		assertEquals(KCCacheContentClass.fromContentType("application/json; charset=utf-8"), header.getContentClass());
+
+		// Without the optional fields.
+		entry = newEntry();
+		entry.etag = null;
+		header = roundTrip(new KCCacheHeader(KEY, entry));
+		assertNull(header.etag);
+		assertNull(header.tags);
+		assertNull(header.varyHeaders);
+		assertEquals(0, header.staleIfErrorMs);
+		assertHeadersEqual(entry.responseHeaders, header.getResponseHeaders());
+	}
+
+	@Test
+	public void dictionaryIndexesAreExact() throws Exception
+	{
+		int index = KCCacheHeaderDictionary.indexOfName("Cache-Control");
+		assertTrue(index >= 0);
+		assertEquals("Cache-Control", KCCacheHeaderDictionary.name(index));
+		index = KCCacheHeaderDictionary.indexOfValue("gzip");
+		assertTrue(index >= 0);
+		assertEquals("gzip", KCCacheHeaderDictionary.value(index));
+		assertEquals(-1, KCCacheHeaderDictionary.indexOfName("CACHE-CONTROL"));
+		assertEquals(-1, KCCacheHeaderDictionary.indexOfValue("GZIP"));
+		assertNull(KCCacheHeaderDictionary.name(-1));
+		assertNull(KCCacheHeaderDictionary.value(10000));
+
+		// Names and values out of the dictionary are stored as text, and keep their case.
+		KCHeaderGroup headers = new KCHeaderGroup();
+		headers.addHeader(new KCHeader("cache-control", "GZIP"));
+		headers.addHeader(new KCHeader("X-Custom", "gzip"));
+		assertHeadersEqual(headers, KCCacheHeader.decodeHeaders(new ByteArrayInputStream(KCCacheHeader.encodeHeaders(headers))));
+
+		// A dictionary index out of range, written by a later version, is rejected.
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		KCCacheStreams.writeVarint(encoded, 1);
+		KCCacheStreams.writeVarint(encoded, (10000L << 1) | 1);
+		KCCacheStreams.writeVarint(encoded, (0L << 1) | 1);
+		try
+		{
+			KCCacheHeader.decodeHeaders(new ByteArrayInputStream(encoded.toByteArray()));
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+	}
+
+	@Test
+	public void flippedByteIsRejectedAndTheEntryDropped() throws Exception
+	{
+		KCCacheDisk cache = newCache();
+		KCCache.KCEntry entry = newEntry();
+		entry.data = new byte[32 * 1024];
+		cache.put(KEY, entry);
+		File file = new KCCacheFiles(mFolder.getRoot()).getFileForKey(KEY);
+		assertTrue(file.exists());
+
+		// The first character of the ETag, after the magic, the flags, the key and the ETag length: still a valid string, only the CRC tells.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			long offset = 4 + 1 + 1 + KEY.length() + 1;
+			raf.seek(offset);
+			int b = raf.read();
+			assertEquals('"', b);
+			raf.seek(offset);
+			raf.write('\'');
+		}
+		finally
+		{
+			raf.close();
+		}
+		try
+		{
+			readHeader(file);
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+
+		assertNull(newCache().get(KEY));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void loadsEntriesOfTheFirstFormat() throws Exception
+	{
+		KCCache.KCEntry entry = newEntry();
+		entry.data = new byte[32 * 1024];
+		Arrays.fill(entry.data, (byte) 7);
+		File file = new KCCacheFiles(mFolder.getRoot()).getFileForKey(KEY);
+		assertTrue(file.getParentFile().mkdirs());
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			writeHeaderV1(os, KEY, entry);
+			os.write(entry.data);
+		}
+		finally
+		{
+			os.close();
+		}
+
+		KCCacheDisk cache = newCache();
+		KCCache.KCEntry loaded = cache.get(KEY);
+		assertNotNull(loaded);
+		assertEquals(entry.etag, loaded.etag);
+		assertEquals(entry.serverDate, loaded.serverDate);
+		assertEquals(entry.lastModified, loaded.lastModified);
+		assertEquals(entry.ttl, loaded.ttl);
+		assertEquals(entry.softTtl, loaded.softTtl);
+		assertHeadersEqual(entry.responseHeaders, loaded.responseHeaders);
+		assertArrayEquals(entry.data, loaded.data);
+
+		// Written again, the entry moves to the current format.
+		cache.put(KEY, loaded);
+		assertEquals(CACHE_MAGIC, readMagic(file));
+		assertArrayEquals(entry.data, newCache().get(KEY).data);
+	}
+
+	/**
+	 * Compares the header bytes per entry and the time to read the headers of a cache with both formats.
+	 */
+	@Test
+	public void currentFormatIsSmallerThanTheFirst() throws Exception
+	{
+		KCCache.KCEntry entry = newEntry();
+		ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+		ByteArrayOutputStream v2 = new ByteArrayOutputStream();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			String key = KEY + "&item=" + i;
+			writeHeaderV1(v1, key, entry);
+			assertTrue(new KCCacheHeader(key, entry).writeHeader(v2));
+		}
+		byte[] v1Bytes = v1.toByteArray();
+		byte[] v2Bytes = v2.toByteArray();
+
+		long v1Nanos = Long.MAX_VALUE;
+		long v2Nanos = Long.MAX_VALUE;
+		for (int run = 0; run < 5; run++)
+		{
+			v1Nanos = Math.min(v1Nanos, timeReadHeaders(v1Bytes));
+			v2Nanos = Math.min(v2Nanos, timeReadHeaders(v2Bytes));
+		}
+
+		System.out.println("header bytes per entry with " + entry.responseHeaders.getAllHeaders().length + " response headers: "
+				+ v1Bytes.length / ENTRIES + " in v1, " + v2Bytes.length / ENTRIES + " in v2; reading " + ENTRIES + " headers: " + v1Nanos / 1000
+				+ " us in v1, " + v2Nanos / 1000 + " us in v2");
+		assertTrue(v2Bytes.length * 2 < v1Bytes.length);
+	}
+
+	private KCCacheDisk newCache() throws InterruptedException
+	{
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), 16 * 1024 * 1024);
+		cache.initialize();
+		cache.awaitLoaded();
+		return cache;
+	}
+
+	/**
+	 * Returns an entry with the headers of a typical API response.
+	 */
+	private static KCCache.KCEntry newEntry()
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[100];
+		entry.etag = "\"5d8c72a5edda8d6a\"";
+		entry.serverDate = 784111777000L;
+		entry.lastModified = 784025377000L;
+		entry.ttl = 784112077000L;
+		entry.softTtl = 784111837000L;
+		entry.responseHeaders = new KCHeaderGroup();
+		entry.responseHeaders.addHeader(new KCHeader("Date", "Sun, 06 Nov 1994 08:49:37 GMT"));
+		entry.responseHeaders.addHeader(new KCHeader("Content-Type", "application/json; charset=utf-8"));
+		entry.responseHeaders.addHeader(new KCHeader("Cache-Control", "max-age=300"));
+		entry.responseHeaders.addHeader(new KCHeader("ETag", entry.etag));
+		entry.responseHeaders.addHeader(new KCHeader("Last-Modified", "Sat, 05 Nov 1994 08:49:37 GMT"));
+		entry.responseHeaders.addHeader(new KCHeader("Vary", "Accept-Encoding"));
+		entry.responseHeaders.addHeader(new KCHeader("Content-Encoding", "gzip"));
+		entry.responseHeaders.addHeader(new KCHeader("Server", "nginx"));
+		entry.responseHeaders.addHeader(new KCHeader("X-Content-Type-Options", "nosniff"));
+		entry.responseHeaders.addHeader(new KCHeader("Access-Control-Allow-Origin", "*"));
+		return entry;
+	}
+
+	/**
+	 * Writes a header in the first format: strings and numbers of fixed width, then the response headers as a string map.
+	 */
+	private static void writeHeaderV1(OutputStream aOs, String aKey, KCCache.KCEntry aEntry) throws IOException
+	{
+		KCCacheStreams.writeInt(aOs, CACHE_MAGIC_V1);
+		KCCacheStreams.writeString(aOs, aKey);
+		KCCacheStreams.writeString(aOs, aEntry.etag == null ? "" : aEntry.etag);
+		KCCacheStreams.writeLong(aOs, aEntry.serverDate);
+		KCCacheStreams.writeLong(aOs, aEntry.lastModified);
+		KCCacheStreams.writeLong(aOs, aEntry.ttl);
+		KCCacheStreams.writeLong(aOs, aEntry.softTtl);
+		KCHeader[] headers = aEntry.responseHeaders.getAllHeaders();
+		KCCacheStreams.writeInt(aOs, headers.length);
+		for (KCHeader header : headers)
+		{
+			KCCacheStreams.writeString(aOs, header.getName());
+			KCCacheStreams.writeString(aOs, header.getValue());
+		}
+	}
+
+	private static KCCacheHeader roundTrip(KCCacheHeader aHeader) throws IOException
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		assertTrue(aHeader.writeHeader(os));
+		ByteArrayInputStream is = new ByteArrayInputStream(os.toByteArray());
+		KCCacheHeader header = KCCacheHeader.readHeader(is);
+		assertEquals(0, is.available());
+		return header;
+	}
+
+	private static long timeReadHeaders(byte[] aHeaders) throws IOException
+	{
+		ByteArrayInputStream is = new ByteArrayInputStream(aHeaders);
+		long start = System.nanoTime();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			KCCacheHeader.readHeader(is);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static KCCacheHeader readHeader(File aFile) throws IOException
+	{
+		FileInputStream is = new FileInputStream(aFile);
+		try
+		{
+			return KCCacheHeader.readHeader(is);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	private static int readMagic(File aFile) throws IOException
+	{
+		FileInputStream is = new FileInputStream(aFile);
+		try
+		{
+			return KCCacheStreams.readInt(is);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	private static void assertHeadersEqual(KCHeaderGroup aExpected, KCHeaderGroup aActual)
+	{
+		KCHeader[] expected = aExpected.getAllHeaders();
+		KCHeader[] actual = aActual.getAllHeaders();
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(expected[i].getName(), actual[i].getName());
+			assertEquals(expected[i].getValue(), actual[i].getValue());
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.kercer.kernet.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the URLs which {@link KCCacheKeyBuilder#canonicalize(String)} considers equivalent, and the parts of a URL it keeps.
+ */
+public class KCCacheKeyBuilderTest
+{
+	@Test
+	public void schemeAndHostAreLowerCased()
+	{
+		KCCacheKeyBuilder builder = new KCCacheKeyBuilder();
+		assertEquals("http://example.com/Path", builder.canonicalize("HTTP://Example.COM/Path"));
+		assertEquals(builder.canonicalize("http://example.com/a"), builder.canonicalize("Http://EXAMPLE.com/a"));
+	}
+
+	@Test
+	public void defaultPortsAreStripped()
+	{
+		KCCacheKeyBuilder builder = new KCCacheKeyBuilder();
+		assertEquals("http://example.com/a", builder.canonicalize("http://example.com:80/a"));
+		assertEquals("https://example.com/a", builder.canonicalize("https://example.com:443/a"));
+		assertEquals("http://example.com:8080/a", builder.canonicalize("http://example.com:8080/a"));
+		assertEquals("https://example.com:80/a", builder.canonicalize("https://example.com:80/a"));
+	}
+
+	@Test
+	public void fragmentIsRemoved()
+	{
+		KCCacheKeyBuilder builder = new KCCacheKeyBuilder();
+		assertEquals("http://example.com/a?x=1", builder.canonicalize("http://example.com/a?x=1#top"));
+		assertEquals("http://example.com/a", builder.canonicalize("http://example.com/a#top"));
+	}
+
+	@Test
+	public void queryIsSortedByName()
+	{
+		KCCacheKeyBuilder builder = new KCCacheKeyBuilder();
+		// Parameters of the same name keep their order.
+		assertEquals("http://example.com/a?a=1&b=2&b=1", builder.canonicalize("http://example.com/a?b=2&a=1&b=1"));
+		assertEquals(builder.canonicalize("http://example.com/a?x=1&y=2"), builder.canonicalize("http://example.com/a?y=2&x=1"));
+
+		builder.setSortQuery(false);
+		assertEquals("http://example.com/a?b=2&a=1", builder.canonicalize("http://example.com/a?b=2&a=1"));
+	}
+
+	@Test
+	public void ignoredParamsAreStripped()
+	{
+		KCCacheKeyBuilder builder = new KCCacheKeyBuilder().ignoreParams("utm_*", "fbclid");
+		assertEquals("http://example.com/a?id=3", builder.canonicalize("http://example.com/a?utm_source=news&id=3&utm_medium=mail&fbclid=x"));
+		assertEquals("http://example.com/a", builder.canonicalize("http://example.com/a?utm_campaign=spring"));
+		// Only the names starting with the prefix.
+		assertEquals("http://example.com/a?utm=1", builder.canonicalize("http://example.com/a?utm=1"));
+	}
+
+	@Test
+	public void emptyValuesKeepTheirEqualsSign()
+	{
+		KCCacheKeyBuilder builder = new KCCacheKeyBuilder();
+		assertEquals("http://example.com/a?r=", builder.canonicalize("http://example.com/a?r="));
+		assertEquals("http://example.com/a?r", builder.canonicalize("http://example.com/a?r"));
+		assertEquals("http://example.com/a?a&r=", builder.canonicalize("http://example.com/a?r=&a"));
+	}
+
+	@Test
+	public void relativeUrlsAreKept()
+	{
+		KCCacheKeyBuilder builder = new KCCacheKeyBuilder();
+		assertEquals("/a?b=2&a=1#top", builder.canonicalize("/a?b=2&a=1#top"));
+		assertNull(builder.canonicalize(null));
+	}
+}
@@ -0,0 +1,263 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.error.KCCacheMissError;
+import com.kercer.kernet.http.error.KCNetworkError;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Caches the first response of a local server, then stops it, and checks what each {@link KCHttpRequest.CachePolicy} and the stale windows on
+ * error deliver.
+ */
+public class KCCachePolicyTest
+{
+	private static final int DUPLICATES = 4;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+
+	/** The Cache-Control of the responses of the server. */
+	private volatile String mCacheControl;
+
+	/** Holds the failing responses of "/held" until the duplicates are queued. */
+	private final CountDownLatch mRelease = new CountDownLatch(1);
+	private final CountDownLatch mReceived = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		// The body tells the responses apart.
+		mServer.handle("/item", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				aExchange.getResponseHeaders().add("Cache-Control", mCacheControl);
+				KCTestServer.respond(aExchange, 200, ("item" + mServer.getRequestCount()).getBytes("UTF-8"));
+			}
+		});
+		// Answers once, then fails after the release.
+		mServer.handle("/held", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				if (mServer.getRequestCount() == 1)
+				{
+					aExchange.getResponseHeaders().add("Cache-Control", mCacheControl);
+					KCTestServer.respond(aExchange, 200, "held".getBytes("UTF-8"));
+					return;
+				}
+				mReceived.countDown();
+				try
+				{
+					mRelease.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				KCTestServer.respond(aExchange, 503, null);
+			}
+		});
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), new KCNetworkBasic(new KCHttpStackDefault()), 2, new KCDeliveryExecutor(
+				KCDeliveryExecutor.DIRECT));
+		mQueue.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		mRelease.countDown();
+		mQueue.stop();
+		mServer.stop();
+	}
+
+	@Test
+	public void defaultServesStaleWithinMaxStale() throws Exception
+	{
+		mCacheControl = "max-age=0";
+		cacheAndStopServer(60000);
+
+		assertDelivered("item1", true, add(newRequest(KCHttpRequest.CachePolicy.DEFAULT, 60000)));
+	}
+
+	@Test
+	public void defaultServesStaleWithinStaleIfError() throws Exception
+	{
+		mCacheControl = "max-age=0, stale-if-error=60";
+		cacheAndStopServer(0);
+
+		assertDelivered("item1", true, add(newRequest(KCHttpRequest.CachePolicy.DEFAULT, 0)));
+	}
+
+	@Test
+	public void defaultFailsPastMaxStale() throws Exception
+	{
+		mCacheControl = "max-age=0";
+		cacheAndStopServer(50);
+		Thread.sleep(100);
+
+		assertError(KCNetworkError.class, add(newRequest(KCHttpRequest.CachePolicy.DEFAULT, 50)));
+	}
+
+	@Test
+	public void defaultFailsPastStaleIfError() throws Exception
+	{
+		mCacheControl = "max-age=0, stale-if-error=60";
+		cacheAndStopServer(0);
+		// Expired a day ago.
+		KCTestRequest request = newRequest(KCHttpRequest.CachePolicy.DEFAULT, 0);
+		KCCache.KCEntry entry = mQueue.getCache().get(request.getCacheKey());
+		entry.ttl = entry.softTtl = System.currentTimeMillis() - 24 * 60 * 60 * 1000L;
+		mQueue.getCache().put(request.getCacheKey(), entry);
+
+		assertError(KCNetworkError.class, add(request));
+	}
+
+	@Test
+	public void cacheOnlyServesHitsAndFailsOnMisses() throws Exception
+	{
+		mCacheControl = "max-age=0";
+		cacheAndStopServer(0);
+
+		// Even expired.
+		assertDelivered("item1", true, add(newRequest(KCHttpRequest.CachePolicy.CACHE_ONLY, 0)));
+
+		KCTestRequest miss = new KCTestRequest(mServer.url("/item/other"), new KCTestRequest.KCCountingParser());
+		miss.setCachePolicy(KCHttpRequest.CachePolicy.CACHE_ONLY);
+		assertError(KCCacheMissError.class, add(miss));
+		assertEquals(1, mServer.getRequestCount());
+	}
+
+	@Test
+	public void networkOnlyIgnoresTheCache() throws Exception
+	{
+		mCacheControl = "max-age=60";
+		cacheAndStopServer(60000);
+
+		// Neither the fresh entry nor the stale window on error.
+		assertError(KCNetworkError.class, add(newRequest(KCHttpRequest.CachePolicy.NETWORK_ONLY, 60000)));
+		assertDelivered("item1", true, add(newRequest(KCHttpRequest.CachePolicy.DEFAULT, 0)));
+	}
+
+	@Test
+	public void cacheThenNetworkDeliversTheCacheThenTheNetwork() throws Exception
+	{
+		mCacheControl = "max-age=60";
+		assertDelivered("item1", false, add(newRequest(KCHttpRequest.CachePolicy.DEFAULT, 0)));
+
+		KCTestRequest request = add(newRequest(KCHttpRequest.CachePolicy.CACHE_THEN_NETWORK, 0));
+		assertDelivered("item1", true, request);
+		assertDelivered("item2", false, request);
+		assertEquals(2, mServer.getRequestCount());
+		assertDelivered("item2", true, add(newRequest(KCHttpRequest.CachePolicy.DEFAULT, 0)));
+	}
+
+	@Test
+	public void duplicatesOfAFailingRequestShareTheStaleEntry() throws Exception
+	{
+		mCacheControl = "max-age=0";
+		String url = mServer.url("/held");
+		KCTestRequest.KCShareableCountingParser parser = new KCTestRequest.KCShareableCountingParser();
+		KCTestRequest first = add(newRequest(url, parser, 60000));
+		assertDelivered("held", false, first);
+		// Finished after its delivery: until then the next request would wait behind it.
+		long deadline = System.currentTimeMillis() + 10000;
+		while (mQueue.isInFlight(first.getCacheKey()))
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+		KCTestRequest primary = add(newRequest(url, parser, 60000));
+		assertTrue(mReceived.await(10, TimeUnit.SECONDS));
+		List<KCTestRequest> duplicates = new ArrayList<KCTestRequest>();
+		for (int i = 0; i < DUPLICATES; i++)
+		{
+			duplicates.add(add(newRequest(url, parser, 60000)));
+		}
+		// A duplicate with a parser of its own parses the entry itself.
+		KCTestRequest.KCCountingParser otherParser = new KCTestRequest.KCCountingParser();
+		duplicates.add(add(newRequest(url, otherParser, 60000)));
+		mRelease.countDown();
+
+		assertDelivered("held", true, primary);
+		for (KCTestRequest duplicate : duplicates)
+		{
+			assertDelivered("held", true, duplicate);
+		}
+		// Without the stale entry, each duplicate would have gone to the server once the primary request failed.
+		assertEquals(2, mServer.getRequestCount());
+		assertEquals(2, parser.mParseCount.get());
+		assertEquals(1, otherParser.mParseCount.get());
+	}
+
+	/**
+	 * Caches the first response for "/item", then stops the server.
+	 */
+	private void cacheAndStopServer(long aMaxStaleOnErrorMs) throws InterruptedException
+	{
+		assertDelivered("item1", false, add(newRequest(KCHttpRequest.CachePolicy.DEFAULT, aMaxStaleOnErrorMs)));
+		mServer.stop();
+	}
+
+	private KCTestRequest newRequest(KCHttpRequest.CachePolicy aCachePolicy, long aMaxStaleOnErrorMs)
+	{
+		KCTestRequest request = newRequest(mServer.url("/item"), new KCTestRequest.KCCountingParser(), aMaxStaleOnErrorMs);
+		request.setCachePolicy(aCachePolicy);
+		return request;
+	}
+
+	private static KCTestRequest newRequest(String aUrl, KCTestRequest.KCCountingParser aParser, long aMaxStaleOnErrorMs)
+	{
+		KCTestRequest request = new KCTestRequest(aUrl, aParser);
+		request.setMaxStaleOnErrorMs(aMaxStaleOnErrorMs);
+		return request;
+	}
+
+	private KCTestRequest add(KCTestRequest aRequest)
+	{
+		mQueue.add(aRequest);
+		return aRequest;
+	}
+
+	private static void assertDelivered(String aResult, boolean aFromCache, KCTestRequest aRequest) throws InterruptedException
+	{
+		KCTestRequest.KCDelivered delivered = aRequest.awaitDelivery();
+		assertNotNull(delivered);
+		assertNull(String.valueOf(delivered.error), delivered.error);
+		assertEquals(aResult, delivered.result);
+		assertEquals(aFromCache, delivered.fromCache);
+	}
+
+	private static void assertError(Class<?> aErrorClass, KCTestRequest aRequest) throws InterruptedException
+	{
+		KCTestRequest.KCDelivered delivered = aRequest.awaitDelivery();
+		assertNotNull(delivered);
+		assertTrue(String.valueOf(delivered), aErrorClass.isInstance(delivered.error));
+		assertFalse(delivered.fromCache);
+	}
+}
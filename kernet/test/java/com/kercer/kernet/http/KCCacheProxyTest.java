@@ -0,0 +1,225 @@
+package com.kercer.kernet.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays a stream of a local origin through the proxy, and checks the requests it refuses.
+ */
+public class KCCacheProxyTest
+{
+	private static final int LENGTH = 100 * 1024;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mOrigin;
+	private KCCacheProxy mProxy;
+	private final byte[] mStream = new byte[LENGTH];
+
+	@Before
+	public void setUp() throws Exception
+	{
+		for (int i = 0; i < LENGTH; i++)
+		{
+			mStream[i] = (byte) (i % 251);
+		}
+		mOrigin = new KCTestServer();
+		mOrigin.handle("/video", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				aExchange.getResponseHeaders().add("Content-Type", "video/mp4");
+				aExchange.getResponseHeaders().add("ETag", "\"v1\"");
+				long[] range = KCCacheProxy.parseRange(aExchange.getRequestHeaders().getFirst("Range"));
+				if (range == null)
+				{
+					KCTestServer.respond(aExchange, 200, mStream);
+					return;
+				}
+				int end = range[1] >= 0 ? (int) Math.min(range[1], LENGTH - 1) : LENGTH - 1;
+				aExchange.getResponseHeaders().add("Content-Range", "bytes " + range[0] + "-" + end + "/" + LENGTH);
+				KCTestServer.respond(aExchange, 206, Arrays.copyOfRange(mStream, (int) range[0], end + 1));
+			}
+		});
+
+		KCCacheSparse cache = new KCCacheSparse(mFolder.getRoot(), 1024 * 1024);
+		cache.initialize();
+		mProxy = new KCCacheProxy(new KCNetworkBasic(new KCHttpStackDefault()), cache);
+		mProxy.setChunkSize(16 * 1024);
+		// Only what the player requests reaches the origin, so the requests can be counted.
+		mProxy.setReadAheadBytes(0);
+		mProxy.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		mProxy.stop();
+		mOrigin.stop();
+	}
+
+	@Test
+	public void playsAStreamAgainFromTheCache() throws Exception
+	{
+		String proxyUrl = mProxy.getProxyUrl(mOrigin.url("/video"));
+		assertTrue(proxyUrl, proxyUrl.startsWith("http://127.0.0.1:" + mProxy.getPort() + "/"));
+
+		HttpURLConnection connection = open(proxyUrl, null);
+		assertEquals(200, connection.getResponseCode());
+		assertArrayEquals(mStream, readBody(connection));
+		int originRequests = mOrigin.getRequestCount();
+		assertTrue(originRequests > 0);
+
+		// Seeking back reads the cache.
+		connection = open(proxyUrl, "bytes=1000-1999");
+		assertEquals(206, connection.getResponseCode());
+		assertEquals("bytes 1000-1999/" + LENGTH, connection.getHeaderField("Content-Range"));
+		assertArrayEquals(Arrays.copyOfRange(mStream, 1000, 2000), readBody(connection));
+		assertEquals(originRequests, mOrigin.getRequestCount());
+		assertEquals(LENGTH, mProxy.getFetchedBytes());
+	}
+
+	@Test
+	public void refusesRequestsWithoutTheToken() throws Exception
+	{
+		String proxyUrl = mProxy.getProxyUrl(mOrigin.url("/video"));
+		String base = "http://127.0.0.1:" + mProxy.getPort() + "/";
+		String target = proxyUrl.substring(base.length());
+		String token = target.substring(0, target.indexOf('/'));
+		assertTrue(token, token.length() >= 32);
+
+		// Without a token, with another one, and with the token of a previous start.
+		assertEquals(403, open(base + target.substring(token.length() + 1), null).getResponseCode());
+		assertEquals(403, open(base + token.replace(token.charAt(0), token.charAt(0) == 'a' ? 'b' : 'a') + target.substring(token.length()), null)
+				.getResponseCode());
+		mProxy.stop();
+		mProxy.start();
+		assertEquals(403, open(proxyUrl.replace(":" + getPort(proxyUrl) + "/", ":" + mProxy.getPort() + "/"), null).getResponseCode());
+		assertEquals(0, mOrigin.getRequestCount());
+	}
+
+	@Test
+	public void refusesOriginsNotAllowed() throws Exception
+	{
+		mProxy.setAllowedHosts("example.com");
+		assertEquals(403, open(mProxy.getProxyUrl(mOrigin.url("/video")), null).getResponseCode());
+		assertEquals(0, mOrigin.getRequestCount());
+
+		mProxy.setAllowedHosts("127.0.0.1");
+		assertEquals(200, open(mProxy.getProxyUrl(mOrigin.url("/video")), null).getResponseCode());
+	}
+
+	@Test
+	public void getHostIgnoresUserInfoAndPort()
+	{
+		assertEquals("example.com", KCCacheProxy.getHost("http://Example.COM:8080/a"));
+		assertEquals("example.com", KCCacheProxy.getHost("https://evil.com@example.com/a@b"));
+		assertEquals("example.com", KCCacheProxy.getHost("http://example.com\\@evil.com/"));
+		assertEquals("[::1]", KCCacheProxy.getHost("http://[::1]:80/"));
+		assertNull(KCCacheProxy.getHost("http:///a"));
+	}
+
+	@Test
+	public void closesConnectionsWithAnOversizedHead() throws Exception
+	{
+		String proxyUrl = mProxy.getProxyUrl(mOrigin.url("/video"));
+		StringBuilder head = new StringBuilder("GET " + proxyUrl.substring(proxyUrl.indexOf('/', 7)) + " HTTP/1.1\r\n");
+		char[] value = new char[1000];
+		Arrays.fill(value, 'x');
+		for (int i = 0; i < 40; i++)
+		{
+			head.append("X-Filler-").append(i).append(": ").append(value).append("\r\n");
+		}
+		head.append("\r\n");
+
+		Socket socket = new Socket("127.0.0.1", mProxy.getPort());
+		try
+		{
+			socket.setSoTimeout(10000);
+			OutputStream out = socket.getOutputStream();
+			out.write(head.toString().getBytes("ISO-8859-1"));
+			out.flush();
+			String response;
+			try
+			{
+				response = new String(readAll(socket.getInputStream()), "ISO-8859-1");
+			}
+			catch (IOException e)
+			{
+				// Reset by the proxy.
+				response = "";
+			}
+			assertFalse(response, response.startsWith("HTTP/1.1 200"));
+		}
+		finally
+		{
+			socket.close();
+		}
+		assertEquals(0, mOrigin.getRequestCount());
+	}
+
+	private static HttpURLConnection open(String aUrl, String aRange) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(aUrl).openConnection();
+		connection.setConnectTimeout(10000);
+		connection.setReadTimeout(10000);
+		if (aRange != null)
+		{
+			connection.setRequestProperty("Range", aRange);
+		}
+		return connection;
+	}
+
+	private static int getPort(String aUrl) throws IOException
+	{
+		return new URL(aUrl).getPort();
+	}
+
+	private static byte[] readBody(HttpURLConnection aConnection) throws IOException
+	{
+		InputStream in = aConnection.getInputStream();
+		try
+		{
+			return readAll(in);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream aIn) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = aIn.read(buffer)) != -1)
+		{
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,265 @@
+package com.kercer.kernet.http;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KCCacheSegmentsTest
+{
+	private static final int COMPACTED_KEYS = 2000;
+	private static final int BENCHMARK_KEYS = 50000;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void readRecordsReturnsTheRecordsOfASegment() throws Exception
+	{
+		KCCacheSegments segments = newSegments();
+		List<KCCacheSegments.KCSegmentRecord> records = segments.readRecords(1);
+		assertEquals(2, records.size());
+		assertEquals("a", records.get(0).key);
+		assertEquals("b", records.get(1).key);
+	}
+
+	@Test
+	public void readRecordsRejectsACorruptLengthWithoutAllocatingIt() throws Exception
+	{
+		newSegments();
+		RandomAccessFile file = new RandomAccessFile(new File(new File(mFolder.getRoot(), KCCacheSegments.DIRECTORY), "1"), "rw");
+		try
+		{
+			// The little-endian payload length of the first record, after its magic.
+			file.seek(4);
+			file.write(new byte[] { (byte) 0xf0, (byte) 0xff, (byte) 0xff, 0x7f });
+		}
+		finally
+		{
+			file.close();
+		}
+		try
+		{
+			new KCCacheSegments(mFolder.getRoot()).readRecords(1);
+			fail();
+		}
+		catch (IOException expected)
+		{
+		}
+	}
+
+	@Test
+	public void compactedSegmentsKeepEveryLiveEntry() throws Exception
+	{
+		KCCacheDisk cache = newCache();
+		// About two segments of 1 KB entries.
+		for (int i = 0; i < COMPACTED_KEYS; i++)
+		{
+			cache.put(key(i), newEntry(i, 1024, 1));
+		}
+		waitForJanitor();
+		assertTrue(segmentFile(1).exists());
+
+		// The first segment's records are superseded, the second's removed by tombstones: the janitor compacts the sealed segments.
+		for (int i = 0; i < COMPACTED_KEYS / 2; i++)
+		{
+			cache.put(key(i), newEntry(i, 1024, 2));
+		}
+		for (int i = COMPACTED_KEYS / 2; i < COMPACTED_KEYS * 3 / 4; i++)
+		{
+			cache.remove(key(i));
+		}
+		waitForJanitor();
+		assertFalse(segmentFile(1).exists());
+		assertLiveEntries(cache);
+
+		assertLiveEntries(newCache());
+	}
+
+	@Test
+	public void largeEntriesGetAFileInTheirFanOutDirectory() throws Exception
+	{
+		KCCacheDisk cache = newCache();
+		cache.put(key(0), newEntry(0, 1024, 1));
+		long segmentsLength = directoryLength(new File(mFolder.getRoot(), KCCacheSegments.DIRECTORY));
+		cache.put(key(1), newEntry(1, 32 * 1024, 1));
+		assertEquals(segmentsLength, directoryLength(new File(mFolder.getRoot(), KCCacheSegments.DIRECTORY)));
+
+		// Named by the MD5 of the key, in the subdirectory named by its first two characters.
+		String filename = KCCacheFiles.getFilenameForKey(key(1));
+		assertEquals(32, filename.length());
+		File file = new File(new File(mFolder.getRoot(), filename.substring(0, 2)), filename);
+		assertTrue(file.exists());
+		assertTrue(file.length() > 32 * 1024);
+
+		KCCacheDisk reloaded = newCache();
+		assertArrayEquals(newEntry(0, 1024, 1).data, reloaded.get(key(0)).data);
+		assertArrayEquals(newEntry(1, 32 * 1024, 1).data, reloaded.get(key(1)).data);
+	}
+
+	/**
+	 * Puts and reads small entries like API responses, and reports the throughput and the disk footprint.
+	 */
+	@Test
+	public void smallEntriesThroughputAndFootprint() throws Exception
+	{
+		KCCacheDisk cache = newCache();
+		byte[] data = new byte[512];
+		long start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_KEYS; i++)
+		{
+			KCCache.KCEntry entry = newEntry(i, 0, 1);
+			entry.data = data;
+			cache.put(key(i), entry);
+		}
+		long putNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_KEYS; i++)
+		{
+			assertNotNull(cache.get(key(i)));
+		}
+		long getNanos = System.nanoTime() - start;
+		waitForJanitor();
+
+		int[] files = new int[1];
+		long footprint = directoryLength(mFolder.getRoot(), files);
+		long dataLength = (long) BENCHMARK_KEYS * data.length;
+		System.out.println(BENCHMARK_KEYS + " entries of " + data.length + " bytes: " + BENCHMARK_KEYS * 1000000000L / putNanos + " puts/s, "
+				+ BENCHMARK_KEYS * 1000000000L / getNanos + " gets/s, " + footprint / 1024 + " KB in " + files[0] + " files for " + dataLength / 1024
+				+ " KB of data");
+		// A file per entry would take a 4 KB block each, 8 times the data.
+		assertTrue("footprint " + footprint, footprint < 2 * dataLength);
+		assertTrue("files " + files[0], files[0] < 100);
+	}
+
+	private KCCacheDisk newCache() throws InterruptedException
+	{
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), 256 * 1024 * 1024);
+		cache.initialize();
+		cache.awaitLoaded();
+		return cache;
+	}
+
+	private File segmentFile(int aId)
+	{
+		return new File(new File(mFolder.getRoot(), KCCacheSegments.DIRECTORY), Integer.toString(aId));
+	}
+
+	/**
+	 * Checks the entries left by {@link #compactedSegmentsKeepEveryLiveEntry()}.
+	 */
+	private static void assertLiveEntries(KCCacheDisk aCache)
+	{
+		for (int i = 0; i < COMPACTED_KEYS; i++)
+		{
+			KCCache.KCEntry entry = aCache.get(key(i));
+			if (i >= COMPACTED_KEYS / 2 && i < COMPACTED_KEYS * 3 / 4)
+			{
+				assertNull(key(i), entry);
+				continue;
+			}
+			assertNotNull(key(i), entry);
+			int version = i < COMPACTED_KEYS / 2 ? 2 : 1;
+			assertEquals(key(i), "\"v" + version + "\"", entry.etag);
+			assertArrayEquals(key(i), newEntry(i, 1024, version).data, entry.data);
+		}
+	}
+
+	private static String key(int aIndex)
+	{
+		return "http://test/api/" + aIndex;
+	}
+
+	private static KCCache.KCEntry newEntry(int aIndex, int aLength, int aVersion)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[aLength];
+		Arrays.fill(entry.data, (byte) (aIndex * 31 + aVersion));
+		entry.etag = "\"v" + aVersion + "\"";
+		entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000;
+		return entry;
+	}
+
+	private static long directoryLength(File aDirectory)
+	{
+		return directoryLength(aDirectory, new int[1]);
+	}
+
+	/**
+	 * Returns the total length of the files under a directory, and adds their number to the given count.
+	 */
+	private static long directoryLength(File aDirectory, int[] aFiles)
+	{
+		long length = 0;
+		File[] files = aDirectory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+		{
+			if (files[i].isDirectory())
+			{
+				length += directoryLength(files[i], aFiles);
+			}
+			else
+			{
+				length += files[i].length();
+				aFiles[0]++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Waits until no janitor thread is running.
+	 */
+	private static void waitForJanitor() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (isJanitorRunning())
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean isJanitorRunning()
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if ("KCCacheDisk-janitor".equals(thread.getName()) && thread.isAlive())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private KCCacheSegments newSegments() throws IOException
+	{
+		KCCacheSegments segments = new KCCacheSegments(mFolder.getRoot());
+		segments.appendEntry(newHeader("a"), new byte[100]);
+		segments.appendEntry(newHeader("b"), new byte[100]);
+		segments.forget();
+		return segments;
+	}
+
+	private static KCCacheHeader newHeader(String aKey)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[100];
+		entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000;
+		return new KCCacheHeader(aKey, entry);
+	}
+}
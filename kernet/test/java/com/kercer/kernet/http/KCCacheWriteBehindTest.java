@@ -0,0 +1,360 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpCompleteListener;
+import com.kercer.kernet.http.request.KCStringRequest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KCCacheWriteBehindTest
+{
+	/** Time a put takes on the slow cache, like a write to slow flash. */
+	private static final long SLOW_PUT_MS = 20;
+
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable aCommand)
+		{
+			aCommand.run();
+		}
+	};
+
+	private KCRequestQueue mQueue;
+
+	@After
+	public void tearDown()
+	{
+		if (mQueue != null)
+		{
+			mQueue.stop();
+		}
+	}
+
+	@Test
+	public void readsFindQueuedEntries() throws Exception
+	{
+		MemoryCache memory = new MemoryCache(SLOW_PUT_MS);
+		KCCacheWriteBehind cache = new KCCacheWriteBehind(memory);
+		cache.put("a", newEntry(10));
+		assertNotNull(cache.get("a"));
+		cache.flush();
+		assertNotNull(memory.get("a"));
+		assertEquals(0, cache.getPendingBytes());
+	}
+
+	@Test
+	public void removedEntriesAreNeverWrittenBack() throws Exception
+	{
+		final MemoryCache memory = new MemoryCache(0);
+		final KCCacheWriteBehind cache = new KCCacheWriteBehind(memory);
+		for (int i = 0; i < 20000; i++)
+		{
+			String key = "key" + (i % 16);
+			cache.put(key, newEntry(16));
+			if (i % 3 == 0)
+			{
+				cache.remove(key);
+			}
+			else if (i % 3 == 1)
+			{
+				cache.clear();
+			}
+		}
+		cache.flush();
+		// Every key was removed or cleared after its last put but one: 19999 % 3 == 1, cleared.
+		for (int i = 0; i < 16; i++)
+		{
+			assertNull("key" + i, memory.get("key" + i));
+		}
+	}
+
+	/**
+	 * Has the writer choose an entry while another thread holds the write lock, then removes the entry before the writer gets the lock. Whichever
+	 * of the writer and the removal gets the lock first, the entry must end up removed.
+	 */
+	@Test
+	public void removalBetweenChoosingAndWritingWins() throws Exception
+	{
+		final BlockingRemoveCache memory = new BlockingRemoveCache();
+		final KCCacheWriteBehind cache = new KCCacheWriteBehind(memory);
+		Set<Thread> before = Thread.getAllStackTraces().keySet();
+		Thread writer = null;
+		for (int i = 0; i < 40; i++)
+		{
+			memory.mRelease = new CountDownLatch(1);
+			memory.mRemoving = new CountDownLatch(1);
+			Thread holder = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					cache.remove("block");
+				}
+			};
+			holder.start();
+			assertTrue(memory.mRemoving.await(10, TimeUnit.SECONDS));
+
+			cache.put("x", newEntry(8));
+			if (writer == null)
+			{
+				writer = findThread("KCCacheWriteBehind", before);
+			}
+			waitUntilBlocked(writer);
+
+			Thread remover = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					cache.remove("x");
+				}
+			};
+			remover.start();
+			waitUntilBlocked(remover);
+
+			memory.mRelease.countDown();
+			holder.join();
+			remover.join();
+			cache.flush();
+			assertNull("iteration " + i, memory.get("x"));
+		}
+	}
+
+	@Test
+	public void replacedEntriesAreWrittenInTheirLatestVersion() throws Exception
+	{
+		MemoryCache memory = new MemoryCache(1);
+		KCCacheWriteBehind cache = new KCCacheWriteBehind(memory);
+		for (int i = 0; i < 200; i++)
+		{
+			KCCache.KCEntry entry = newEntry(8);
+			entry.etag = Integer.toString(i);
+			cache.put("key" + (i % 4), entry);
+		}
+		cache.flush();
+		for (int i = 0; i < 4; i++)
+		{
+			assertEquals(Integer.toString(196 + i), memory.get("key" + i).etag);
+		}
+	}
+
+	@Test
+	public void metadataUpdateOfAQueuedEntryIsQueuedAfterIt() throws Exception
+	{
+		MemoryCache memory = new MemoryCache(SLOW_PUT_MS);
+		KCCacheWriteBehind cache = new KCCacheWriteBehind(memory);
+		cache.put("a", newEntry(8));
+		KCCache.KCEntry updated = newEntry(8);
+		updated.etag = "updated";
+		cache.updateMetadata("a", updated);
+		cache.flush();
+		assertEquals("updated", memory.get("a").etag);
+	}
+
+	/**
+	 * Delivery latency of cacheable responses from a cache taking {@link #SLOW_PUT_MS} per write, with and without write-behind.
+	 */
+	@Test
+	public void writeBehindTakesCacheWritesOffTheDeliveryPath() throws Exception
+	{
+		long direct = meanDeliveryLatency(new MemoryCache(SLOW_PUT_MS));
+		mQueue.stop();
+		KCCacheWriteBehind writeBehind = new KCCacheWriteBehind(new MemoryCache(SLOW_PUT_MS));
+		long behind = meanDeliveryLatency(writeBehind);
+		writeBehind.flush();
+		System.out.println("mean delivery latency with a " + SLOW_PUT_MS + " ms cache write: " + direct + " us direct, " + behind
+				+ " us with write-behind");
+		assertTrue(direct >= SLOW_PUT_MS * 1000);
+		assertTrue(behind < direct / 2);
+	}
+
+	/**
+	 * Runs cacheable requests one after the other and returns their mean latency from adding to delivery, in microseconds.
+	 */
+	private long meanDeliveryLatency(KCCache aCache) throws Exception
+	{
+		KCNetwork network = new KCNetwork()
+		{
+			@Override
+			public KCHttpResponse performRequest(KCHttpRequest<?> request, KCDeliveryResponse aDelivery) throws KCNetError
+			{
+				KCHttpResponse response = new KCHttpResponse(new KCProtocolVersion("HTTP", 1, 1), 200, "OK");
+				response.addHeader("Cache-Control", "max-age=60");
+				KCHttpContent content = new KCHttpContent();
+				content.setContent(new byte[1024]);
+				response.setContent(content);
+				return response;
+			}
+		};
+		mQueue = new KCRequestQueue(aCache, network, 1, new KCDeliveryExecutor(DIRECT));
+		mQueue.start();
+
+		int requests = 30;
+		long total = 0;
+		for (int i = 0; i < requests; i++)
+		{
+			final CountDownLatch delivered = new CountDownLatch(1);
+			KCStringRequest request = new KCStringRequest("http://test/" + i, null, new KCHttpCompleteListener()
+			{
+				@Override
+				public void onHttpComplete(KCHttpRequest<?> request, KCHttpResponse response)
+				{
+					delivered.countDown();
+				}
+			});
+			long start = System.nanoTime();
+			mQueue.add(request);
+			assertTrue(delivered.await(10, TimeUnit.SECONDS));
+			total += System.nanoTime() - start;
+		}
+		return TimeUnit.NANOSECONDS.toMicros(total / requests);
+	}
+
+	/**
+	 * Finds a thread with the given name which isn't one of the given ones.
+	 */
+	private static Thread findThread(String aName, Set<Thread> aExcluded)
+	{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (aName.equals(thread.getName()) && !aExcluded.contains(thread))
+			{
+				return thread;
+			}
+		}
+		throw new AssertionError("No thread " + aName);
+	}
+
+	private static void waitUntilBlocked(Thread aThread) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (aThread.getState() != Thread.State.BLOCKED)
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	private static KCCache.KCEntry newEntry(int aSize)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[aSize];
+		entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000;
+		return entry;
+	}
+
+	/**
+	 * An in-memory cache where removing "block" waits for {@link #mRelease}.
+	 */
+	private static class BlockingRemoveCache extends MemoryCache
+	{
+		volatile CountDownLatch mRemoving;
+		volatile CountDownLatch mRelease;
+
+		BlockingRemoveCache()
+		{
+			super(0);
+		}
+
+		@Override
+		public void remove(String key)
+		{
+			if ("block".equals(key))
+			{
+				mRemoving.countDown();
+				try
+				{
+					mRelease.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			super.remove(key);
+		}
+	}
+
+	/**
+	 * An in-memory cache whose writes take a while.
+	 */
+	private static class MemoryCache implements KCCacheMetadataUpdatable
+	{
+		private final HashMap<String, KCEntry> mEntries = new HashMap<String, KCEntry>();
+		private final long mPutMs;
+
+		MemoryCache(long aPutMs)
+		{
+			mPutMs = aPutMs;
+		}
+
+		@Override
+		public synchronized KCEntry get(String key)
+		{
+			return mEntries.get(key);
+		}
+
+		@Override
+		public void put(String key, KCEntry entry)
+		{
+			if (mPutMs > 0)
+			{
+				try
+				{
+					Thread.sleep(mPutMs);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this)
+			{
+				mEntries.put(key, entry);
+			}
+		}
+
+		@Override
+		public synchronized void updateMetadata(String key, KCEntry entry)
+		{
+			mEntries.put(key, entry);
+		}
+
+		@Override
+		public void initialize()
+		{
+		}
+
+		@Override
+		public synchronized void invalidate(String key, boolean fullExpire)
+		{
+		}
+
+		@Override
+		public synchronized void remove(String key)
+		{
+			mEntries.remove(key);
+		}
+
+		@Override
+		public synchronized void clear()
+		{
+			mEntries.clear();
+		}
+	}
+}
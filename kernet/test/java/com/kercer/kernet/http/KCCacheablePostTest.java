@@ -0,0 +1,229 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.error.KCAuthFailureError;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Caches POST queries keyed by their body, see {@link KCHttpRequest#setCacheablePost(boolean)}, and removes cached responses by tag when a
+ * mutation succeeds, see {@link KCHttpRequest#setInvalidatedCacheTags(String...)}.
+ */
+public class KCCacheablePostTest
+{
+	/**
+	 * A request with a string body, which counts the calls to {@link #getBody()}.
+	 */
+	static class KCBodyRequest extends KCTestRequest
+	{
+		final AtomicInteger mBodyReads = new AtomicInteger();
+		private final String mBody;
+
+		KCBodyRequest(int aMethod, String aUrl, String aBody)
+		{
+			super(aMethod, aUrl, new KCTestRequest.KCCountingParser());
+			mBody = aBody;
+		}
+
+		@Override
+		public byte[] getBody() throws KCAuthFailureError
+		{
+			mBodyReads.incrementAndGet();
+			try
+			{
+				return mBody.getBytes("UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new AssertionError(e);
+			}
+		}
+	}
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+
+	/** The status of the responses to mutations. */
+	private volatile int mMutationStatus = 200;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		// Answers a query with its body.
+		mServer.handle("/query", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				String body = new String(KCTestServer.readBody(aExchange), "UTF-8");
+				aExchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				KCTestServer.respond(aExchange, 200, ("answer " + body).getBytes("UTF-8"));
+			}
+		});
+		mServer.handle("/item", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				KCTestServer.readBody(aExchange);
+				if (!"GET".equals(aExchange.getRequestMethod()))
+				{
+					KCTestServer.respond(aExchange, mMutationStatus, "mutated".getBytes("UTF-8"));
+					return;
+				}
+				aExchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				KCTestServer.respond(aExchange, 200, "item".getBytes("UTF-8"));
+			}
+		});
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), new KCNetworkBasic(new KCHttpStackDefault()), 2, new KCDeliveryExecutor(
+				KCDeliveryExecutor.DIRECT));
+		mQueue.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		mQueue.stop();
+		mServer.stop();
+	}
+
+	@Test
+	public void postsWithEqualBodiesShareAnEntry() throws Exception
+	{
+		assertDelivered("answer {q1}", false, addQuery("{q1}"));
+		assertDelivered("answer {q1}", true, addQuery("{q1}"));
+		assertEquals(1, mServer.getRequestCount());
+
+		assertDelivered("answer {q2}", false, addQuery("{q2}"));
+		assertDelivered("answer {q2}", true, addQuery("{q2}"));
+		assertEquals(2, mServer.getRequestCount());
+		assertFalse(newQuery("{q1}").getCacheKey().equals(newQuery("{q2}").getCacheKey()));
+	}
+
+	@Test
+	public void bodyIsReadOncePerRequest() throws Exception
+	{
+		// Hashed for the cache key, then sent.
+		KCBodyRequest request = addQuery("{q1}");
+		assertDelivered("answer {q1}", false, request);
+		assertEquals(1, request.mBodyReads.get());
+
+		// Hashed for the cache key, then served from the cache.
+		request = addQuery("{q1}");
+		assertDelivered("answer {q1}", true, request);
+		assertEquals(1, request.mBodyReads.get());
+
+		request = newQuery("{q1}");
+		request.getCacheKey();
+		request.getCacheKey();
+		assertEquals(1, request.mBodyReads.get());
+	}
+
+	@Test
+	public void successfulMutationsInvalidateTheirTags() throws Exception
+	{
+		int[] methods = { KCHttpRequest.Method.PUT, KCHttpRequest.Method.DELETE, KCHttpRequest.Method.PATCH };
+		for (int method : methods)
+		{
+			KCTestRequest item = cacheItem("items");
+			KCTestRequest other = cacheItem("others");
+			KCBodyRequest mutation = new KCBodyRequest(method, mServer.url("/item"), "{}");
+			mutation.setInvalidatedCacheTags("items");
+			mQueue.add(mutation);
+			assertDelivered("mutated", false, mutation);
+
+			assertNull("method " + method, mQueue.getCache().get(item.getCacheKey()));
+			assertNotNull("method " + method, mQueue.getCache().get(other.getCacheKey()));
+		}
+	}
+
+	@Test
+	public void failedMutationsLeaveTheirTags() throws Exception
+	{
+		KCTestRequest item = cacheItem("items");
+		mMutationStatus = 409;
+		KCBodyRequest mutation = new KCBodyRequest(KCHttpRequest.Method.PUT, mServer.url("/item"), "{}");
+		mutation.setInvalidatedCacheTags("items");
+		mQueue.add(mutation);
+		KCTestRequest.KCDelivered delivered = mutation.awaitDelivery();
+		assertNotNull(delivered);
+		assertNotNull(delivered.error);
+
+		assertNotNull(mQueue.getCache().get(item.getCacheKey()));
+	}
+
+	@Test
+	public void onlyOptedInPostsAreCached()
+	{
+		String url = mServer.url("/query");
+		assertFalse(new KCBodyRequest(KCHttpRequest.Method.POST, url, "{}").shouldCache());
+		assertTrue(newQuery("{}").shouldCache());
+
+		// Mutations never are, even opted in.
+		int[] methods = { KCHttpRequest.Method.PUT, KCHttpRequest.Method.DELETE, KCHttpRequest.Method.PATCH };
+		for (int method : methods)
+		{
+			KCBodyRequest request = new KCBodyRequest(method, url, "{}");
+			assertFalse(request.shouldCache());
+			request.setCacheablePost(true);
+			assertFalse("method " + method, request.shouldCache());
+			assertFalse(request.isCacheablePost());
+		}
+	}
+
+	/**
+	 * Caches the response of a GET for "/item" with a query parameter, tagged with a cache tag.
+	 */
+	private KCTestRequest cacheItem(String aTag) throws InterruptedException
+	{
+		KCTestRequest request = new KCTestRequest(mServer.url("/item?tag=" + aTag), new KCTestRequest.KCCountingParser());
+		request.setCacheTags(aTag);
+		mQueue.add(request);
+		KCTestRequest.KCDelivered delivered = request.awaitDelivery();
+		assertNotNull(delivered);
+		assertNotNull(mQueue.getCache().get(request.getCacheKey()));
+		return request;
+	}
+
+	private KCBodyRequest newQuery(String aBody)
+	{
+		KCBodyRequest request = new KCBodyRequest(KCHttpRequest.Method.POST, mServer.url("/query"), aBody);
+		request.setCacheablePost(true);
+		return request;
+	}
+
+	private KCBodyRequest addQuery(String aBody)
+	{
+		KCBodyRequest request = newQuery(aBody);
+		mQueue.add(request);
+		return request;
+	}
+
+	private static void assertDelivered(String aResult, boolean aFromCache, KCTestRequest aRequest) throws InterruptedException
+	{
+		KCTestRequest.KCDelivered delivered = aRequest.awaitDelivery();
+		assertNotNull(delivered);
+		assertNull(String.valueOf(delivered.error), delivered.error);
+		assertEquals(aResult, delivered.result);
+		assertEquals(aFromCache, delivered.fromCache);
+	}
+}
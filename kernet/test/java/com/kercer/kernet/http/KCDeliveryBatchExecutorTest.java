@@ -0,0 +1,190 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpCompleteListener;
+import com.kercer.kernet.http.request.KCStringRequest;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the messages posted to a busy target thread for a burst of deliveries, with and without batching.
+ */
+public class KCDeliveryBatchExecutorTest
+{
+	private static final int REQUESTS = 50;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	/** Stands in for the main thread, counting the messages posted to it. */
+	private final ExecutorService mMainThread = Executors.newSingleThreadExecutor();
+	private final AtomicInteger mMessages = new AtomicInteger();
+	private final Executor mMain = new Executor()
+	{
+		@Override
+		public void execute(Runnable aCommand)
+		{
+			mMessages.incrementAndGet();
+			mMainThread.execute(aCommand);
+		}
+	};
+
+	private KCRequestQueue mQueue;
+
+	@After
+	public void tearDown()
+	{
+		if (mQueue != null)
+		{
+			mQueue.stop();
+		}
+		mMainThread.shutdownNow();
+	}
+
+	@Test
+	public void tasksRunInOrder() throws Exception
+	{
+		KCDeliveryBatchExecutor executor = new KCDeliveryBatchExecutor(mMain);
+		final List<Integer> order = new ArrayList<Integer>();
+		CountDownLatch busy = blockMainThread();
+		for (int i = 0; i < 10; i++)
+		{
+			final int index = i;
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					order.add(index);
+				}
+			});
+		}
+		busy.countDown();
+		drainMainThread();
+
+		assertEquals(10, order.size());
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals(i, order.get(i).intValue());
+		}
+		assertEquals(1, executor.getBatchCount());
+		assertEquals(10, executor.getTaskCount());
+	}
+
+	@Test
+	public void burstWithoutBatchingPostsOneMessagePerDelivery() throws Exception
+	{
+		int messages = deliverBurst(mMain);
+		System.out.println("messages for " + REQUESTS + " deliveries without batching: " + messages);
+		assertEquals(REQUESTS, messages);
+	}
+
+	@Test
+	public void burstWithBatchingPostsOneMessage() throws Exception
+	{
+		KCDeliveryBatchExecutor executor = new KCDeliveryBatchExecutor(mMain);
+		int messages = deliverBurst(executor);
+		System.out.println("messages for " + REQUESTS + " deliveries with batching: " + messages);
+		assertEquals(1, messages);
+		assertEquals(1, executor.getBatchCount());
+		assertEquals(REQUESTS, executor.getTaskCount());
+	}
+
+	/**
+	 * Completes {@link #REQUESTS} requests while the main thread is busy and returns the number of messages posted to it for their delivery.
+	 */
+	private int deliverBurst(Executor aDelivery) throws Exception
+	{
+		final CountDownLatch performed = new CountDownLatch(REQUESTS);
+		KCNetwork network = new KCNetwork()
+		{
+			@Override
+			public KCHttpResponse performRequest(KCHttpRequest<?> request, KCDeliveryResponse aDelivery) throws KCNetError
+			{
+				KCHttpResponse response = new KCHttpResponse(new KCProtocolVersion("HTTP", 1, 1), 200, "OK");
+				KCHttpContent content = new KCHttpContent();
+				content.setContent(new byte[0]);
+				response.setContent(content);
+				performed.countDown();
+				return response;
+			}
+		};
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), network, 4, new KCDeliveryExecutor(aDelivery));
+		mQueue.start();
+
+		CountDownLatch busy = blockMainThread();
+		int before = mMessages.get();
+		final CountDownLatch delivered = new CountDownLatch(REQUESTS);
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			KCStringRequest request = new KCStringRequest("http://test/" + i, null, new KCHttpCompleteListener()
+			{
+				@Override
+				public void onHttpComplete(KCHttpRequest<?> request, KCHttpResponse response)
+				{
+					delivered.countDown();
+				}
+			});
+			request.setShouldCache(false);
+			mQueue.add(request);
+		}
+		assertTrue(performed.await(10, TimeUnit.SECONDS));
+		// Give the dispatchers time to post the last deliveries.
+		Thread.sleep(200);
+		busy.countDown();
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+		return mMessages.get() - before;
+	}
+
+	/**
+	 * Keeps the main thread busy until the returned latch is released.
+	 */
+	private CountDownLatch blockMainThread()
+	{
+		final CountDownLatch busy = new CountDownLatch(1);
+		mMainThread.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					busy.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		return busy;
+	}
+
+	private void drainMainThread() throws Exception
+	{
+		mMainThread.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+			}
+		}).get(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,212 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCHttpDate;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-response cost of {@link KCHttpHeaderParser#parseCacheHeaders(KCHttpResponse)} and of formatting If-Modified-Since, against the split and
+ * date formatter code they replaced. Run with -prof gc to see the allocation per response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KCHttpHeaderParserBenchmark
+{
+	private static final String RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>()
+	{
+		@Override
+		protected SimpleDateFormat initialValue()
+		{
+			SimpleDateFormat format = new SimpleDateFormat(RFC1123, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+
+	private KCHttpResponse mResponse;
+
+	private long mLastModified;
+
+	@Setup
+	public void setUp()
+	{
+		mResponse = new KCHttpResponse(new KCProtocolVersion("HTTP", 1, 1), 200, "OK");
+		mResponse.addHeader("Date", "Sun, 06 Nov 1994 08:49:37 GMT");
+		mResponse.addHeader("Content-Type", "application/json; charset=utf-8");
+		mResponse.addHeader("Cache-Control", "public, max-age=300, stale-while-revalidate=60, stale-if-error=86400");
+		mResponse.addHeader("Expires", "Sun, 06 Nov 1994 08:54:37 GMT");
+		mResponse.addHeader("Last-Modified", "Sat, 05 Nov 1994 08:49:37 GMT");
+		mResponse.addHeader("ETag", "\"5d8c72a5edda8d6a\"");
+		mResponse.addHeader("Vary", "Accept-Encoding");
+		KCHttpContent content = new KCHttpContent();
+		content.setContent(new byte[0]);
+		mResponse.setContent(content);
+		mLastModified = 784025377000L;
+	}
+
+	@Benchmark
+	public KCCache.KCEntry parseCacheHeaders()
+	{
+		return KCHttpHeaderParser.parseCacheHeaders(mResponse);
+	}
+
+	@Benchmark
+	public KCCache.KCEntry parseCacheHeadersBefore()
+	{
+		return legacyParseCacheHeaders(mResponse);
+	}
+
+	@Benchmark
+	public String formatIfModifiedSince()
+	{
+		return KCHttpDate.format(mLastModified);
+	}
+
+	@Benchmark
+	public String formatIfModifiedSinceBefore()
+	{
+		return FORMAT.get().format(new Date(mLastModified));
+	}
+
+	/**
+	 * The parser before the single pass Cache-Control and RFC 1123 date parsers.
+	 */
+	private static KCCache.KCEntry legacyParseCacheHeaders(KCHttpResponse aResponse)
+	{
+		long now = System.currentTimeMillis();
+		KCHeaderGroup headers = aResponse.getHeaderGroup();
+		long serverDate = 0;
+		long lastModified = 0;
+		long serverExpires = 0;
+		long softExpire = 0;
+		long finalExpire = 0;
+		long maxAge = 0;
+		long staleWhileRevalidate = 0;
+		boolean hasCacheControl = false;
+		boolean mustRevalidate = false;
+		String headerValue;
+
+		headerValue = headers.get("Date");
+		if (headerValue != null)
+		{
+			serverDate = legacyParseDate(headerValue);
+		}
+
+		headerValue = headers.get("Cache-Control");
+		if (headerValue != null)
+		{
+			hasCacheControl = true;
+			String[] tokens = headerValue.split(",");
+			for (int i = 0; i < tokens.length; i++)
+			{
+				String token = tokens[i].trim();
+				if (token.equals("no-cache") || token.equals("no-store"))
+				{
+					return null;
+				}
+				else if (token.startsWith("max-age="))
+				{
+					try
+					{
+						maxAge = Long.parseLong(token.substring(8));
+					}
+					catch (Exception e)
+					{
+					}
+				}
+				else if (token.startsWith("stale-while-revalidate="))
+				{
+					try
+					{
+						staleWhileRevalidate = Long.parseLong(token.substring(23));
+					}
+					catch (Exception e)
+					{
+					}
+				}
+				else if (token.equals("must-revalidate") || token.equals("proxy-revalidate"))
+				{
+					mustRevalidate = true;
+				}
+			}
+		}
+
+		headerValue = headers.get("Expires");
+		if (headerValue != null)
+		{
+			serverExpires = legacyParseDate(headerValue);
+		}
+
+		headerValue = headers.get("Last-Modified");
+		if (headerValue != null)
+		{
+			lastModified = legacyParseDate(headerValue);
+		}
+
+		if (hasCacheControl)
+		{
+			softExpire = now + maxAge * 1000;
+			finalExpire = mustRevalidate ? softExpire : softExpire + staleWhileRevalidate * 1000;
+		}
+		else if (serverDate > 0 && serverExpires >= serverDate)
+		{
+			softExpire = now + (serverExpires - serverDate);
+			finalExpire = softExpire;
+		}
+
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = aResponse.getContent();
+		entry.etag = headers.get("ETag");
+		entry.softTtl = softExpire;
+		entry.ttl = finalExpire;
+		entry.serverDate = serverDate;
+		entry.lastModified = lastModified;
+		entry.responseHeaders = headers;
+		return entry;
+	}
+
+	private static long legacyParseDate(String aValue)
+	{
+		try
+		{
+			return FORMAT.get().parse(aValue).getTime();
+		}
+		catch (ParseException e)
+		{
+			return 0;
+		}
+	}
+
+	public static void main(String[] aArgs) throws RunnerException
+	{
+		new Runner(new OptionsBuilder().include(KCHttpHeaderParserBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+	}
+}
@@ -0,0 +1,184 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCHttpDate;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpCompleteListener;
+import com.kercer.kernet.http.request.KCStringRequest;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KCHttpHeaderParserTest
+{
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable aCommand)
+		{
+			aCommand.run();
+		}
+	};
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCRequestQueue mQueue;
+
+	@After
+	public void tearDown()
+	{
+		if (mQueue != null)
+		{
+			mQueue.stop();
+		}
+	}
+
+	@Test
+	public void parsesCacheHeaders()
+	{
+		long now = System.currentTimeMillis();
+		KCHttpResponse response = newResponse("public, max-age=300, stale-while-revalidate=60");
+		response.addHeader("Date", "Sun, 06 Nov 1994 08:49:37 GMT");
+		response.addHeader("Last-Modified", "Sat, 05 Nov 1994 08:49:37 GMT");
+		response.addHeader("ETag", "\"abc\"");
+
+		KCCache.KCEntry entry = KCHttpHeaderParser.parseCacheHeaders(response);
+		assertEquals(784111777000L, entry.serverDate);
+		assertEquals(784025377000L, entry.lastModified);
+		assertEquals("\"abc\"", entry.etag);
+		assertTrue(entry.softTtl >= now + 300 * 1000 && entry.softTtl < now + 301 * 1000);
+		assertEquals(entry.softTtl + 60 * 1000, entry.ttl);
+	}
+
+	@Test
+	public void reusedParserStateDoesNotLeak()
+	{
+		assertNull(KCHttpHeaderParser.parseCacheHeaders(newResponse("no-store")));
+		KCCache.KCEntry entry = KCHttpHeaderParser.parseCacheHeaders(newResponse("max-age=10, must-revalidate"));
+		assertEquals(entry.softTtl, entry.ttl);
+		entry = KCHttpHeaderParser.parseCacheHeaders(newResponse("max-age=10, stale-while-revalidate=5"));
+		assertEquals(entry.softTtl + 5000, entry.ttl);
+	}
+
+	@Test
+	public void datesRoundTrip()
+	{
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", KCHttpDate.format(784111777000L));
+		assertEquals(784111777000L, KCHttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+	}
+
+	@Test
+	public void varyMatchesTheStoredRequestHeaders()
+	{
+		KCHeaderGroup responseHeaders = headers("Vary", "Accept-Language");
+		KCHeaderGroup varyHeaders = KCHttpHeaderParser.parseVaryHeaders(responseHeaders, headers("Accept-Language", "fr", "Accept", "*/*"));
+		assertTrue(KCHttpHeaderParser.varyMatches(responseHeaders, varyHeaders, headers("Accept-Language", "fr")));
+		// The headers the response does not vary on don't matter.
+		assertTrue(KCHttpHeaderParser.varyMatches(responseHeaders, varyHeaders, headers("Accept-Language", "fr", "Accept", "text/html")));
+		assertFalse(KCHttpHeaderParser.varyMatches(responseHeaders, varyHeaders, headers("Accept-Language", "de")));
+		assertFalse(KCHttpHeaderParser.varyMatches(responseHeaders, varyHeaders, headers()));
+
+		// Without a Vary header any request matches.
+		assertTrue(KCHttpHeaderParser.varyMatches(headers("Cache-Control", "max-age=60"), null, headers("Accept-Language", "de")));
+	}
+
+	@Test
+	public void varyStarNeverMatches()
+	{
+		KCHeaderGroup responseHeaders = headers("Vary", "*");
+		KCHeaderGroup varyHeaders = KCHttpHeaderParser.parseVaryHeaders(responseHeaders, headers("Accept-Language", "fr"));
+		assertFalse(KCHttpHeaderParser.varyMatches(responseHeaders, varyHeaders, headers("Accept-Language", "fr")));
+		assertFalse(KCHttpHeaderParser.varyMatches(responseHeaders, varyHeaders, headers()));
+	}
+
+	@Test
+	public void cacheThenNetworkSkipsFreshImmutableEntries() throws Exception
+	{
+		assertEquals(0, cacheThenNetworkFetches("max-age=300, immutable"));
+	}
+
+	@Test
+	public void cacheThenNetworkRefreshesMutableEntries() throws Exception
+	{
+		assertEquals(1, cacheThenNetworkFetches("max-age=300"));
+	}
+
+	/**
+	 * Requests a fresh cached response with the {@link KCHttpRequest.CachePolicy#CACHE_THEN_NETWORK} policy and returns the number of network
+	 * fetches it made.
+	 */
+	private int cacheThenNetworkFetches(String aCacheControl) throws Exception
+	{
+		final AtomicInteger fetches = new AtomicInteger();
+		final CountDownLatch fetched = new CountDownLatch(1);
+		KCNetwork network = new KCNetwork()
+		{
+			@Override
+			public KCHttpResponse performRequest(KCHttpRequest<?> request, KCDeliveryResponse aDelivery) throws KCNetError
+			{
+				fetches.incrementAndGet();
+				fetched.countDown();
+				return newResponse("max-age=300");
+			}
+		};
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot());
+		mQueue = new KCRequestQueue(cache, network, 1, new KCDeliveryExecutor(DIRECT));
+
+		final CountDownLatch delivered = new CountDownLatch(1);
+		KCStringRequest request = new KCStringRequest("http://test/immutable", null, new KCHttpCompleteListener()
+		{
+			@Override
+			public void onHttpComplete(KCHttpRequest<?> request, KCHttpResponse response)
+			{
+				delivered.countDown();
+			}
+		});
+		request.setCachePolicy(KCHttpRequest.CachePolicy.CACHE_THEN_NETWORK);
+
+		cache.initialize();
+		KCCache.KCEntry entry = KCHttpHeaderParser.parseCacheHeaders(newResponse(aCacheControl));
+		cache.put(request.getCacheKey(), entry);
+
+		mQueue.start();
+		mQueue.add(request);
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+		fetched.await(500, TimeUnit.MILLISECONDS);
+		return fetches.get();
+	}
+
+	private static KCHeaderGroup headers(String... aNamesAndValues)
+	{
+		KCHeaderGroup headers = new KCHeaderGroup();
+		for (int i = 0; i < aNamesAndValues.length; i += 2)
+		{
+			headers.addHeader(new KCHeader(aNamesAndValues[i], aNamesAndValues[i + 1]));
+		}
+		return headers;
+	}
+
+	private static KCHttpResponse newResponse(String aCacheControl)
+	{
+		KCHttpResponse response = new KCHttpResponse(new KCProtocolVersion("HTTP", 1, 1), 200, "OK");
+		response.addHeader("Cache-Control", aCacheControl);
+		KCHttpContent content = new KCHttpContent();
+		content.setContent("body".getBytes());
+		response.setContent(content);
+		return response;
+	}
+}
@@ -0,0 +1,185 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.error.KCCacheMissError;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the results of {@link KCParsedResultCache} are only returned for the version of the entry they were parsed from, and the cache
+ * dispatcher drops the results of removed entries.
+ */
+public class KCParsedResultCacheTest
+{
+	private static final String KEY = "http://example.com/item";
+	private static final long PARSE_TIME_NANOS = 5 * 1000000L;
+
+	/** Another shareable parser class, whose results are kept apart. */
+	static class KCOtherParser extends KCTestRequest.KCShareableCountingParser
+	{
+	}
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void resultIsReturnedForTheSameVersionOnly()
+	{
+		KCParsedResultCache cache = new KCParsedResultCache();
+		KCHttpResponseParser parser = new KCTestRequest.KCShareableCountingParser();
+		String value = "parsed";
+
+		KCCache.KCEntry entry = newEntry();
+		cache.put(KEY, entry, parser, KCHttpResult.success(value, entry), PARSE_TIME_NANOS);
+		KCHttpResult<?> result = cache.get(KEY, newEntry(), parser);
+		assertNotNull(result);
+		assertSame(value, result.result);
+
+		KCCache.KCEntry changed = newEntry();
+		changed.etag = "\"v2\"";
+		assertChanged(cache, parser, changed);
+		changed = newEntry();
+		changed.serverDate++;
+		assertChanged(cache, parser, changed);
+		changed = newEntry();
+		changed.lastModified++;
+		assertChanged(cache, parser, changed);
+		changed = newEntry();
+		changed.ttl++;
+		assertChanged(cache, parser, changed);
+		changed = newEntry();
+		changed.softTtl++;
+		assertChanged(cache, parser, changed);
+		changed = newEntry();
+		changed.data = new byte[entry.data.length + 1];
+		assertChanged(cache, parser, changed);
+	}
+
+	@Test
+	public void countsHitsMissesAndParseTimeSaved()
+	{
+		KCParsedResultCache cache = new KCParsedResultCache();
+		KCHttpResponseParser parser = new KCTestRequest.KCShareableCountingParser();
+		KCCache.KCEntry entry = newEntry();
+
+		assertNull(cache.get(KEY, entry, parser));
+		cache.put(KEY, entry, parser, KCHttpResult.success("parsed", entry), PARSE_TIME_NANOS);
+		assertNotNull(cache.get(KEY, entry, parser));
+		assertNotNull(cache.get(KEY, entry, parser));
+		assertNotNull(cache.get(KEY, entry, parser));
+
+		// Results of parsers which are not shareable are neither stored nor counted.
+		KCHttpResponseParser notShareable = new KCTestRequest.KCCountingParser();
+		cache.put(KEY, entry, notShareable, KCHttpResult.success("parsed", entry), PARSE_TIME_NANOS);
+		assertNull(cache.get(KEY, entry, notShareable));
+
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.75f, cache.getHitRatio(), 0.001f);
+		assertEquals(15, cache.getParseTimeSavedMs());
+	}
+
+	@Test
+	public void removeDropsTheResultsOfEveryParser()
+	{
+		KCParsedResultCache cache = new KCParsedResultCache();
+		KCHttpResponseParser parser = new KCTestRequest.KCShareableCountingParser();
+		KCHttpResponseParser otherParser = new KCOtherParser();
+		KCCache.KCEntry entry = newEntry();
+		cache.put(KEY, entry, parser, KCHttpResult.success("parsed", entry), PARSE_TIME_NANOS);
+		cache.put(KEY, entry, otherParser, KCHttpResult.success("other", entry), PARSE_TIME_NANOS);
+		cache.put(KEY + "/other", entry, parser, KCHttpResult.success("kept", entry), PARSE_TIME_NANOS);
+		assertEquals("other", cache.get(KEY, entry, otherParser).result);
+
+		cache.remove(KEY);
+		assertNull(cache.get(KEY, entry, parser));
+		assertNull(cache.get(KEY, entry, otherParser));
+		assertEquals("kept", cache.get(KEY + "/other", entry, parser).result);
+	}
+
+	@Test
+	public void dispatcherSkipsParsingAndDropsResultsOfRemovedEntries() throws Exception
+	{
+		KCTestServer server = new KCTestServer();
+		server.handle("/item", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				aExchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				KCTestServer.respond(aExchange, 200, "item".getBytes("UTF-8"));
+			}
+		});
+		KCCacheDisk diskCache = new KCCacheDisk(mFolder.getRoot());
+		KCRequestQueue queue = new KCRequestQueue(diskCache, new KCNetworkBasic(new KCHttpStackDefault()), 1, new KCDeliveryExecutor(
+				KCDeliveryExecutor.DIRECT));
+		KCParsedResultCache parsedResultCache = new KCParsedResultCache();
+		queue.setParsedResultCache(parsedResultCache);
+		queue.start();
+		try
+		{
+			String url = server.url("/item");
+			KCTestRequest.KCShareableCountingParser parser = new KCTestRequest.KCShareableCountingParser();
+			for (int i = 0; i < 3; i++)
+			{
+				KCTestRequest request = new KCTestRequest(url, parser);
+				queue.add(request);
+				KCTestRequest.KCDelivered delivered = request.awaitDelivery();
+				assertNotNull(delivered);
+				assertEquals("item", delivered.result);
+				assertEquals(i > 0, delivered.fromCache);
+			}
+			// Parsed once from the network, the cache hits reused the result.
+			assertEquals(1, parser.mParseCount.get());
+			assertEquals(1, server.getRequestCount());
+			assertEquals(2, parsedResultCache.getHitCount());
+
+			KCCache.KCEntry entry = diskCache.get(url);
+			diskCache.remove(url);
+			KCTestRequest request = new KCTestRequest(url, parser);
+			request.setCachePolicy(KCHttpRequest.CachePolicy.CACHE_ONLY);
+			queue.add(request);
+			KCTestRequest.KCDelivered delivered = request.awaitDelivery();
+			assertNotNull(delivered);
+			assertTrue(String.valueOf(delivered.error), delivered.error instanceof KCCacheMissError);
+			// Even were the same version of the entry put back, its result is parsed again.
+			assertNull(parsedResultCache.get(url, entry, parser));
+		}
+		finally
+		{
+			queue.stop();
+			server.stop();
+		}
+	}
+
+	private static void assertChanged(KCParsedResultCache aCache, KCHttpResponseParser aParser, KCCache.KCEntry aChanged)
+	{
+		assertNull(aCache.get(KEY, aChanged, aParser));
+		// The result of the old version is dropped.
+		KCCache.KCEntry entry = newEntry();
+		assertNull(aCache.get(KEY, entry, aParser));
+		aCache.put(KEY, entry, aParser, KCHttpResult.success("parsed", entry), PARSE_TIME_NANOS);
+	}
+
+	private static KCCache.KCEntry newEntry()
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[100];
+		entry.etag = "\"v1\"";
+		entry.serverDate = 1000;
+		entry.lastModified = 500;
+		entry.ttl = entry.softTtl = 60000;
+		return entry;
+	}
+}
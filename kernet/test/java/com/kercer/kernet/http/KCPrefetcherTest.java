@@ -0,0 +1,289 @@
+package com.kercer.kernet.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prefetches from a local server with a {@link KCPrefetcher}, and checks when hints run, what they yield to and what they fetch at all.
+ */
+public class KCPrefetcherTest
+{
+	private static final long IDLE_DELAY_MS = 50;
+	private static final int NETWORK_THREADS = 4;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+	private KCPrefetcher mPrefetcher;
+
+	/** The paths requested from the server, in order. */
+	private final List<String> mPaths = Collections.synchronizedList(new ArrayList<String>());
+
+	/** When the server received the last request, in {@link System#nanoTime()} time. */
+	private volatile long mLastRequestNanos;
+
+	/** Holds the responses for "/slow" until released. */
+	private final CountDownLatch mRelease = new CountDownLatch(1);
+	private final Semaphore mSlowReceived = new Semaphore(0);
+
+	/** Counts the deliveries of the queue, to the main thread in an application. */
+	private final AtomicInteger mDeliveryCount = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		mServer.handle("/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				String path = aExchange.getRequestURI().getPath();
+				mLastRequestNanos = System.nanoTime();
+				mPaths.add(path);
+				if (path.startsWith("/slow"))
+				{
+					mSlowReceived.release();
+					try
+					{
+						mRelease.await(10, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+				aExchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				KCTestServer.respond(aExchange, 200, path.getBytes("UTF-8"));
+			}
+		});
+		Executor countingExecutor = new Executor()
+		{
+			@Override
+			public void execute(Runnable aCommand)
+			{
+				mDeliveryCount.incrementAndGet();
+				aCommand.run();
+			}
+		};
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), new KCNetworkBasic(new KCHttpStackDefault()), NETWORK_THREADS,
+				new KCDeliveryExecutor(countingExecutor));
+		mQueue.start();
+		mPrefetcher = new KCPrefetcher(mQueue);
+		mPrefetcher.setIdleDelay(IDLE_DELAY_MS);
+	}
+
+	@After
+	public void tearDown()
+	{
+		mRelease.countDown();
+		mPrefetcher.clear();
+		mQueue.stop();
+		mServer.stop();
+	}
+
+	@Test
+	public void hintsWaitForTheIdleDelay() throws Exception
+	{
+		long idleDelayMs = 500;
+		mPrefetcher.setIdleDelay(idleDelayMs);
+		assertDelivered(add("/item/app"));
+		long idleSinceNanos = System.nanoTime();
+
+		mPrefetcher.prefetch(mServer.url("/item/hint"));
+		awaitPrefetchedCount(1);
+		long waitedMs = (mLastRequestNanos - idleSinceNanos) / 1000000;
+		System.out.println("prefetch sent " + waitedMs + " ms after the last request, idle delay " + idleDelayMs + " ms");
+		assertTrue("waited " + waitedMs, waitedMs >= idleDelayMs);
+		assertEquals(2, mPaths.size());
+	}
+
+	@Test
+	public void prefetchesAreCanceledAndQueuedAgainAtTheTrafficThreshold() throws Exception
+	{
+		mPrefetcher.prefetch(mServer.url("/slow/hint"));
+		assertTrue(mSlowReceived.tryAcquire(10, TimeUnit.SECONDS));
+		assertEquals(0, mPrefetcher.getHintCount());
+
+		// Below the threshold of 2 requests of the application in flight, the prefetch goes on.
+		KCTestRequest first = add("/slow/app/1");
+		assertTrue(mSlowReceived.tryAcquire(10, TimeUnit.SECONDS));
+		assertEquals(0, mPrefetcher.getHintCount());
+		KCTestRequest second = add("/slow/app/2");
+		assertEquals(1, mPrefetcher.getHintCount());
+
+		mRelease.countDown();
+		assertDelivered(first);
+		assertDelivered(second);
+		// The response was on its way: cached all the same, and the hint queued again is skipped once the application is idle.
+		awaitPrefetchedCount(1);
+		awaitNoHints();
+		Thread.sleep(200);
+		assertEquals(1, count("/slow/hint"));
+		assertEquals(1, mPrefetcher.getPrefetchedCount());
+	}
+
+	@Test
+	public void queuedPrefetchesAreCanceledAndFetchedOnceIdle() throws Exception
+	{
+		// One prefetch more than network threads: the last one waits in the queue.
+		mPrefetcher.setMaxPrefetches(NETWORK_THREADS + 1);
+		for (int i = 0; i <= NETWORK_THREADS; i++)
+		{
+			mPrefetcher.prefetch(mServer.url("/slow/hint/" + i));
+		}
+		assertTrue(mSlowReceived.tryAcquire(NETWORK_THREADS, 10, TimeUnit.SECONDS));
+		awaitNoHints();
+
+		KCTestRequest first = add("/item/app/1");
+		KCTestRequest second = add("/item/app/2");
+		assertEquals(NETWORK_THREADS + 1, mPrefetcher.getHintCount());
+
+		mRelease.countDown();
+		assertDelivered(first);
+		assertDelivered(second);
+		// The responses on their way were cached, the queued prefetch never reached the server and is fetched once the application is idle.
+		awaitPrefetchedCount(NETWORK_THREADS + 1);
+		awaitNoHints();
+		Thread.sleep(200);
+		for (int i = 0; i <= NETWORK_THREADS; i++)
+		{
+			assertEquals("hint " + i, 1, count("/slow/hint/" + i));
+		}
+		assertEquals(NETWORK_THREADS + 1, mPrefetcher.getPrefetchedCount());
+	}
+
+	@Test
+	public void prefetchAwaitedByTheApplicationIsNotCanceled() throws Exception
+	{
+		mPrefetcher.setCancelThreshold(1);
+		mPrefetcher.prefetch(mServer.url("/slow/hint"));
+		assertTrue(mSlowReceived.tryAcquire(10, TimeUnit.SECONDS));
+
+		// Waits for the prefetch in flight rather than cancel it.
+		KCTestRequest request = add("/slow/hint");
+		assertEquals(0, mPrefetcher.getHintCount());
+		mRelease.countDown();
+		KCTestRequest.KCDelivered delivered = assertDelivered(request);
+		assertTrue(delivered.fromCache);
+		assertEquals(1, count("/slow/hint"));
+		assertEquals(1, mPrefetcher.getHitCount());
+	}
+
+	@Test
+	public void hintsForCachedOrInFlightKeysAreSkipped() throws Exception
+	{
+		// Cached by the application.
+		assertDelivered(add("/item/cached"));
+		mPrefetcher.prefetch(mServer.url("/item/cached"));
+		// Prefetched already.
+		mPrefetcher.prefetch(mServer.url("/item/prefetched"));
+		awaitPrefetchedCount(1);
+		mPrefetcher.prefetch(mServer.url("/item/prefetched"));
+		// In flight for the application.
+		KCTestRequest inFlight = add("/slow/app");
+		assertTrue(mSlowReceived.tryAcquire(10, TimeUnit.SECONDS));
+		mPrefetcher.prefetch(mServer.url("/slow/app"));
+		mRelease.countDown();
+		assertDelivered(inFlight);
+
+		awaitNoHints();
+		// The scheduler may just have taken the last hint.
+		Thread.sleep(200);
+		assertEquals(1, count("/item/cached"));
+		assertEquals(1, count("/item/prefetched"));
+		assertEquals(1, count("/slow/app"));
+		assertEquals(1, mPrefetcher.getPrefetchedCount());
+	}
+
+	@Test
+	public void prefetchesAreNotDelivered() throws Exception
+	{
+		mPrefetcher.prefetch(mServer.url("/item/hint"));
+		awaitPrefetchedCount(1);
+		assertEquals(1, count("/item/hint"));
+		assertEquals(0, mDeliveryCount.get());
+
+		assertDelivered(add("/item/app"));
+		assertTrue(mDeliveryCount.get() > 0);
+	}
+
+	@Test
+	public void hitRateCountsRequestsServedFromPrefetchedEntries() throws Exception
+	{
+		mPrefetcher.prefetch(mServer.url("/item/used"));
+		mPrefetcher.prefetch(mServer.url("/item/unused"));
+		awaitPrefetchedCount(2);
+		assertEquals(0, mPrefetcher.getHitRate(), 0);
+
+		KCTestRequest.KCDelivered delivered = assertDelivered(add("/item/used"));
+		assertTrue(delivered.fromCache);
+		// A prefetched entry counts once.
+		assertTrue(assertDelivered(add("/item/used")).fromCache);
+		assertEquals(1, mPrefetcher.getHitCount());
+		assertEquals(0.5f, mPrefetcher.getHitRate(), 0.001f);
+		assertEquals(2, mPaths.size());
+	}
+
+	private KCTestRequest add(String aPath)
+	{
+		KCTestRequest request = new KCTestRequest(mServer.url(aPath), new KCTestRequest.KCCountingParser());
+		mQueue.add(request);
+		return request;
+	}
+
+	private int count(String aPath)
+	{
+		return Collections.frequency(new ArrayList<String>(mPaths), aPath);
+	}
+
+	private static KCTestRequest.KCDelivered assertDelivered(KCTestRequest aRequest) throws InterruptedException
+	{
+		KCTestRequest.KCDelivered delivered = aRequest.awaitDelivery();
+		assertNotNull(delivered);
+		assertEquals(String.valueOf(delivered.error), null, delivered.error);
+		return delivered;
+	}
+
+	private void awaitPrefetchedCount(long aCount) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (mPrefetcher.getPrefetchedCount() < aCount)
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private void awaitNoHints() throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (mPrefetcher.getHintCount() > 0)
+		{
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCStatusLine;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpListener;
+import com.kercer.kernet.http.request.KCStringRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests byte ranges of a resource from a local server supporting them, through a sparse cache, and checks which ranges reach the server.
+ */
+public class KCRangeRequestTest
+{
+	private static final int LENGTH = 1000;
+
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable aCommand)
+		{
+			aCommand.run();
+		}
+	};
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+
+	/** The Range headers received, "full" for a request answered with the whole resource. */
+	private final List<String> mReceivedRanges = Collections.synchronizedList(new ArrayList<String>());
+
+	private volatile String mEtag = "\"v1\"";
+	private volatile int mVersion = 1;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		mServer.handle("/video", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				byte[] resource = resource(mVersion);
+				aExchange.getResponseHeaders().add("Content-Type", "application/octet-stream; charset=ISO-8859-1");
+				aExchange.getResponseHeaders().add("ETag", mEtag);
+				aExchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+				String range = aExchange.getRequestHeaders().getFirst("Range");
+				String ifRange = aExchange.getRequestHeaders().getFirst("If-Range");
+				if (range == null || (ifRange != null && !ifRange.equals(mEtag)))
+				{
+					mReceivedRanges.add("full");
+					KCTestServer.respond(aExchange, 200, resource);
+					return;
+				}
+				mReceivedRanges.add(range);
+				String[] bounds = range.substring("bytes=".length()).split("-", -1);
+				int start = Integer.parseInt(bounds[0]);
+				int end = bounds[1].length() > 0 ? Math.min(Integer.parseInt(bounds[1]), LENGTH - 1) : LENGTH - 1;
+				aExchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + LENGTH);
+				KCTestServer.respond(aExchange, 206, Arrays.copyOfRange(resource, start, end + 1));
+			}
+		});
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (mQueue != null)
+		{
+			mQueue.stop();
+		}
+		mServer.stop();
+	}
+
+	@Test
+	public void cachedRangeMakesNoRequest() throws Exception
+	{
+		startQueue();
+		assertRange(0, 99);
+		assertRange(10, 49);
+		assertEquals(Arrays.asList("bytes=0-99"), mReceivedRanges);
+	}
+
+	@Test
+	public void overlappingRangeFetchesOnlyTheGap() throws Exception
+	{
+		startQueue();
+		assertRange(0, 99);
+		assertRange(200, 299);
+		assertRange(50, 249);
+		assertEquals(Arrays.asList("bytes=0-99", "bytes=200-299", "bytes=100-199"), mReceivedRanges);
+	}
+
+	@Test
+	public void openEndedRangeReadsTheTail() throws Exception
+	{
+		startQueue();
+		assertRange(900, -1);
+		assertRange(950, -1);
+		assertEquals(Arrays.asList("bytes=900-"), mReceivedRanges);
+	}
+
+	@Test
+	public void changedResourceReplacesTheCachedRanges() throws Exception
+	{
+		startQueue();
+		assertRange(0, 99);
+
+		mVersion = 2;
+		mEtag = "\"v2\"";
+		// The If-Range of the missing part doesn't match, the server sends the whole new resource.
+		assertRange(50, 149);
+		assertRange(500, 599);
+		assertEquals(Arrays.asList("bytes=0-99", "full"), mReceivedRanges);
+	}
+
+	@Test
+	public void rangesSurviveReopeningTheCache() throws Exception
+	{
+		startQueue();
+		assertRange(0, 99);
+		mQueue.stop();
+
+		startQueue();
+		assertRange(20, 79);
+		assertEquals(Arrays.asList("bytes=0-99"), mReceivedRanges);
+	}
+
+	private void startQueue()
+	{
+		mQueue = new KCRequestQueue(new KCCacheDisk(new File(mFolder.getRoot(), "disk")), new KCNetworkBasic(new KCHttpStackDefault()), 1,
+				new KCDeliveryExecutor(DIRECT));
+		KCCacheSparse sparseCache = new KCCacheSparse(new File(mFolder.getRoot(), "sparse"), 1024 * 1024);
+		sparseCache.initialize();
+		mQueue.setSparseCache(sparseCache);
+		mQueue.start();
+	}
+
+	/**
+	 * Requests a range and checks its bytes.
+	 */
+	private void assertRange(int aStart, int aEnd) throws Exception
+	{
+		final LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+		KCStringRequest request = new KCStringRequest(mServer.url("/video"), new KCHttpResult.KCHttpResultListener<String>()
+		{
+			@Override
+			public void onHttpResult(KCHttpResponse aResponse, String aResult)
+			{
+				results.add(aResult);
+			}
+		}, new KCHttpListener()
+		{
+			@Override
+			public void onHttpError(KCNetError error)
+			{
+				results.add(error);
+			}
+
+			@Override
+			public void onResponseHeaders(KCStatusLine aStatusLine, KCHeaderGroup aHeaderGroup)
+			{
+			}
+
+			@Override
+			public void onHttpComplete(KCHttpRequest<?> request, KCHttpResponse response)
+			{
+			}
+		});
+		request.setRange(aStart, aEnd);
+		mQueue.add(request);
+		Object result = results.poll(10, TimeUnit.SECONDS);
+		assertNotNull(result);
+		assertTrue(String.valueOf(result), result instanceof String);
+		int end = aEnd >= 0 ? aEnd : LENGTH - 1;
+		assertArrayEquals(Arrays.copyOfRange(resource(mVersion), aStart, end + 1), ((String) result).getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * Returns the bytes of a version of the resource, each version different at every offset.
+	 */
+	private static byte[] resource(int aVersion)
+	{
+		byte[] resource = new byte[LENGTH];
+		for (int i = 0; i < LENGTH; i++)
+		{
+			resource[i] = (byte) ((i + aVersion) % 251);
+		}
+		return resource;
+	}
+}
@@ -0,0 +1,247 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.base.KCStatusLine;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpListener;
+import com.kercer.kernet.http.request.KCStringRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Batches requests to a local server standing in for a batch endpoint, which also answers the requests sent on their own.
+ */
+public class KCRequestBatcherTest
+{
+	private static final int REQUESTS = 5;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+	private KCRequestBatcher mBatcher;
+
+	private final AtomicInteger mBatchCount = new AtomicInteger();
+	private final AtomicInteger mAloneCount = new AtomicInteger();
+
+	/** The status of the batch endpoint's responses. */
+	private volatile int mBatchStatus = 200;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		mServer.handle("/batch", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				mBatchCount.incrementAndGet();
+				if (mBatchStatus != 200)
+				{
+					KCTestServer.respond(aExchange, mBatchStatus, null);
+					return;
+				}
+				try
+				{
+					JSONArray requests = new JSONObject(new String(KCTestServer.readBody(aExchange), "UTF-8")).getJSONArray("requests");
+					JSONArray responses = new JSONArray();
+					for (int i = 0; i < requests.length(); i++)
+					{
+						String path = requests.getJSONObject(i).getString("url");
+						if (path.endsWith("/unanswered"))
+						{
+							responses.put(JSONObject.NULL);
+							continue;
+						}
+						JSONObject headers = new JSONObject();
+						headers.put("Cache-Control", "max-age=60");
+						headers.put("Content-Type", "text/plain; charset=UTF-8");
+						JSONObject response = new JSONObject();
+						response.put("status", 200);
+						response.put("headers", headers);
+						response.put("body", "batched " + path);
+						responses.put(response);
+					}
+					JSONObject batch = new JSONObject();
+					batch.put("responses", responses);
+					aExchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+					KCTestServer.respond(aExchange, 200, batch.toString().getBytes("UTF-8"));
+				}
+				catch (JSONException e)
+				{
+					KCTestServer.respond(aExchange, 400, null);
+				}
+			}
+		});
+		mServer.handle("/item/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				mAloneCount.incrementAndGet();
+				aExchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+				KCTestServer.respond(aExchange, 200, ("alone " + aExchange.getRequestURI().getPath()).getBytes("UTF-8"));
+			}
+		});
+
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), new KCNetworkBasic(new KCHttpStackDefault()), 2, new KCDeliveryExecutor(
+				KCDeliveryExecutor.DIRECT));
+		mBatcher = new KCRequestBatcher(mQueue, mServer.url("/batch"));
+		// Long enough to collect all the requests of a test in one batch.
+		mBatcher.setWindow(200);
+		mQueue.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		mQueue.stop();
+		mServer.stop();
+	}
+
+	@Test
+	public void requestsShareOneRoundTrip() throws Exception
+	{
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			paths.add("/item/" + i);
+		}
+		Map<String, Object> results = request(paths);
+
+		for (String path : paths)
+		{
+			assertEquals("batched " + path, results.get(path));
+			// Served like a network response, so cached as well.
+			assertNotNull(path, mQueue.getCache().get(mServer.url(path)));
+		}
+		assertEquals(1, mBatchCount.get());
+		assertEquals(0, mAloneCount.get());
+		assertEquals(1, mBatcher.getBatchCount());
+		assertEquals(REQUESTS, mBatcher.getBatchedRequestCount());
+		assertEquals(REQUESTS - 1, mBatcher.getRoundTripsSaved());
+	}
+
+	@Test
+	public void unansweredRequestIsSentAlone() throws Exception
+	{
+		List<String> paths = new ArrayList<String>();
+		paths.add("/item/0");
+		paths.add("/item/unanswered");
+		paths.add("/item/2");
+		Map<String, Object> results = request(paths);
+
+		assertEquals("batched /item/0", results.get("/item/0"));
+		assertEquals("alone /item/unanswered", results.get("/item/unanswered"));
+		assertEquals("batched /item/2", results.get("/item/2"));
+		assertEquals(1, mAloneCount.get());
+		assertEquals(1, mBatcher.getFallbackCount());
+	}
+
+	@Test
+	public void failedBatchSendsItsRequestsAlone() throws Exception
+	{
+		mBatchStatus = 503;
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			paths.add("/item/" + i);
+		}
+		Map<String, Object> results = request(paths);
+
+		for (String path : paths)
+		{
+			assertEquals("alone " + path, results.get(path));
+		}
+		assertEquals(REQUESTS, mAloneCount.get());
+		assertEquals(REQUESTS, mBatcher.getFallbackCount());
+		assertEquals(0, mBatcher.getBatchedRequestCount());
+	}
+
+	/**
+	 * Adds a request for each path at once, and returns their results by path once all are delivered. Checks no result is delivered from within
+	 * the parsing of the batch response.
+	 */
+	private Map<String, Object> request(List<String> aPaths) throws Exception
+	{
+		final LinkedBlockingQueue<Object[]> delivered = new LinkedBlockingQueue<Object[]>();
+		for (final String path : aPaths)
+		{
+			KCStringRequest request = new KCStringRequest(mServer.url(path), new KCHttpResult.KCHttpResultListener<String>()
+			{
+				@Override
+				public void onHttpResult(KCHttpResponse aResponse, String aResult)
+				{
+					delivered.add(new Object[] { path, aResult, parsingBatch() });
+				}
+			}, new KCHttpListener()
+			{
+				@Override
+				public void onHttpError(KCNetError error)
+				{
+					delivered.add(new Object[] { path, error, parsingBatch() });
+				}
+
+				@Override
+				public void onResponseHeaders(KCStatusLine aStatusLine, KCHeaderGroup aHeaderGroup)
+				{
+				}
+
+				@Override
+				public void onHttpComplete(KCHttpRequest<?> request, KCHttpResponse response)
+				{
+				}
+			});
+			mQueue.add(request);
+		}
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (int i = 0; i < aPaths.size(); i++)
+		{
+			Object[] result = delivered.poll(10, TimeUnit.SECONDS);
+			assertNotNull(result);
+			assertNull("delivered while parsing the batch", result[2]);
+			results.put((String) result[0], result[1]);
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the frame of the batch response parser on the current stack, or null.
+	 */
+	private static String parsingBatch()
+	{
+		for (StackTraceElement frame : new Throwable().getStackTrace())
+		{
+			if (frame.getClassName().startsWith(KCRequestBatcher.class.getName()) && frame.getMethodName().equals("parseHttpResponse"))
+			{
+				return frame.toString();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,158 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHttpContent;
+import com.kercer.kernet.http.base.KCProtocolVersion;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpCompleteListener;
+import com.kercer.kernet.http.request.KCStringRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency of a high priority request while low priority requests saturate the network dispatchers, with and without reserved
+ * dispatchers.
+ */
+public class KCReservedDispatcherTest
+{
+	private static final long LOW_REQUEST_MS = 400;
+	private static final long HIGH_REQUEST_MS = 10;
+
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable aCommand)
+		{
+			aCommand.run();
+		}
+	};
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCRequestQueue mQueue;
+
+	@Before
+	public void setUp()
+	{
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), new SleepingNetwork(), 2, new KCDeliveryExecutor(DIRECT));
+	}
+
+	@After
+	public void tearDown()
+	{
+		mQueue.stop();
+	}
+
+	@Test
+	public void highPriorityWaitsForLowPriorityWithoutReservation() throws Exception
+	{
+		mQueue.start();
+		long latency = measureHighPriorityLatency();
+		System.out.println("high priority latency without reserved dispatchers: " + latency + " ms");
+		assertTrue("latency " + latency, latency >= LOW_REQUEST_MS / 2);
+	}
+
+	@Test
+	public void reservedDispatcherServesHighPriorityImmediately() throws Exception
+	{
+		mQueue.setReservedDispatchers(1);
+		mQueue.start();
+		long latency = measureHighPriorityLatency();
+		System.out.println("high priority latency with a reserved dispatcher: " + latency + " ms");
+		assertTrue("latency " + latency, latency < LOW_REQUEST_MS / 2);
+	}
+
+	@Test
+	public void reservedDispatcherSkipsLowPriority() throws Exception
+	{
+		mQueue.setReservedDispatchers(1);
+		mQueue.start();
+		CountDownLatch done = new CountDownLatch(3);
+		long start = System.nanoTime();
+		for (int i = 0; i < 3; i++)
+		{
+			mQueue.add(newRequest("http://test/low/" + i, KCHttpRequest.Priority.LOW, done));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		// Two regular dispatchers take two rounds; with the reserved one taking low priority requests too, it would take one.
+		assertTrue("elapsed " + elapsed, elapsed >= 2 * LOW_REQUEST_MS - 50);
+	}
+
+	/**
+	 * Saturates the regular dispatchers with low priority requests and returns the time from adding a high priority request to its completion.
+	 */
+	private long measureHighPriorityLatency() throws InterruptedException
+	{
+		CountDownLatch lowDone = new CountDownLatch(8);
+		for (int i = 0; i < 8; i++)
+		{
+			mQueue.add(newRequest("http://test/low/" + i, KCHttpRequest.Priority.LOW, lowDone));
+		}
+		// Let the dispatchers pick up the first low priority requests.
+		Thread.sleep(LOW_REQUEST_MS / 4);
+
+		CountDownLatch highDone = new CountDownLatch(1);
+		long start = System.nanoTime();
+		mQueue.add(newRequest("http://test/high", KCHttpRequest.Priority.HIGH, highDone));
+		assertTrue(highDone.await(10, TimeUnit.SECONDS));
+		long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(lowDone.await(10, TimeUnit.SECONDS));
+		return latency;
+	}
+
+	private static KCHttpRequest<String> newRequest(String aUrl, final KCHttpRequest.Priority aPriority, final CountDownLatch aDone)
+	{
+		KCStringRequest request = new KCStringRequest(aUrl, null, new KCHttpCompleteListener()
+		{
+			@Override
+			public void onHttpComplete(KCHttpRequest<?> request, KCHttpResponse response)
+			{
+				aDone.countDown();
+			}
+		})
+		{
+			@Override
+			public Priority getPriority()
+			{
+				return aPriority;
+			}
+		};
+		request.setShouldCache(false);
+		return request;
+	}
+
+	/**
+	 * Answers every request with an empty body, taking longer for low priority requests.
+	 */
+	private static class SleepingNetwork implements KCNetwork
+	{
+		@Override
+		public KCHttpResponse performRequest(KCHttpRequest<?> request, KCDeliveryResponse aDelivery) throws KCNetError
+		{
+			try
+			{
+				Thread.sleep(request.getPriority() == KCHttpRequest.Priority.LOW ? LOW_REQUEST_MS : HIGH_REQUEST_MS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			KCHttpResponse response = new KCHttpResponse(new KCProtocolVersion("HTTP", 1, 1), 200, "OK");
+			KCHttpContent content = new KCHttpContent();
+			content.setContent(new byte[0]);
+			response.setContent(content);
+			return response;
+		}
+	}
+}
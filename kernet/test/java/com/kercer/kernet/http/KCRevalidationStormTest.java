@@ -0,0 +1,174 @@
+package com.kercer.kernet.http;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Revalidates every entry of a disk cache at once, as after a long time offline, and counts the bytes written to the cache directory by
+ * {@link KCCacheDisk#updateMetadata(String, KCCache.KCEntry)} against {@link KCCacheDisk#put(String, KCCache.KCEntry)} of the same entries.
+ */
+public class KCRevalidationStormTest
+{
+	private static final int ENTRIES = 20;
+	private static final int LARGE_ENTRY = 1024 * 1024;
+	private static final int SMALL_ENTRY = 8 * 1024;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@Test
+	public void fileEntriesOnlyWriteTheirHeader() throws Exception
+	{
+		KCCacheDisk cache = newCache();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			cache.put(key(i), newEntry(i, LARGE_ENTRY, 1));
+		}
+
+		Map<String, long[]> before = snapshot();
+		long start = System.nanoTime();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			cache.updateMetadata(key(i), newEntry(i, LARGE_ENTRY, 2));
+		}
+		long updateMs = (System.nanoTime() - start) / 1000000;
+		long updateBytes = bytesWrittenSince(before);
+
+		before = snapshot();
+		start = System.nanoTime();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			cache.put(key(i), newEntry(i, LARGE_ENTRY, 3));
+		}
+		long putMs = (System.nanoTime() - start) / 1000000;
+		long putBytes = bytesWrittenSince(before);
+
+		System.out.println("revalidating " + ENTRIES + " entries of " + (LARGE_ENTRY / 1024) + " KB: " + updateBytes + " bytes in " + updateMs
+				+ " ms with updateMetadata, " + putBytes + " bytes in " + putMs + " ms with put");
+		assertTrue("updateMetadata wrote " + updateBytes, updateBytes < ENTRIES * 4096);
+		assertTrue("put wrote " + putBytes, putBytes >= (long) ENTRIES * LARGE_ENTRY);
+
+		// The sidecars survive a restart and the data is intact.
+		KCCacheDisk reloaded = newCache();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			KCCache.KCEntry entry = reloaded.get(key(i));
+			assertEquals("\"v3\"", entry.etag);
+			assertArrayEquals(newEntry(i, LARGE_ENTRY, 3).data, entry.data);
+		}
+	}
+
+	/**
+	 * Entries packed into segments have no sidecar: a revalidation appends a new record, data included, which is at most the 16 KB of the
+	 * largest packed entry.
+	 */
+	@Test
+	public void segmentEntriesAppendTheirWholeRecord() throws Exception
+	{
+		KCCacheDisk cache = newCache();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			cache.put(key(i), newEntry(i, SMALL_ENTRY, 1));
+		}
+
+		Map<String, long[]> before = snapshot();
+		for (int i = 0; i < ENTRIES; i++)
+		{
+			cache.updateMetadata(key(i), newEntry(i, SMALL_ENTRY, 2));
+		}
+		long updateBytes = bytesWrittenSince(before);
+
+		System.out.println("revalidating " + ENTRIES + " packed entries of " + (SMALL_ENTRY / 1024) + " KB: " + updateBytes + " bytes");
+		assertTrue("updateMetadata wrote " + updateBytes, updateBytes >= ENTRIES * SMALL_ENTRY);
+		assertTrue("updateMetadata wrote " + updateBytes, updateBytes < ENTRIES * (SMALL_ENTRY + 4096));
+	}
+
+	private KCCacheDisk newCache() throws InterruptedException
+	{
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot(), 4L * ENTRIES * LARGE_ENTRY);
+		cache.initialize();
+		cache.awaitLoaded();
+		return cache;
+	}
+
+	private static String key(int aIndex)
+	{
+		return "http://example.com/large/" + aIndex;
+	}
+
+	/**
+	 * Returns an entry with data depending on its index, and headers on its version.
+	 */
+	private static KCCache.KCEntry newEntry(int aIndex, int aLength, int aVersion)
+	{
+		KCCache.KCEntry entry = new KCCache.KCEntry();
+		entry.data = new byte[aLength];
+		Arrays.fill(entry.data, (byte) aIndex);
+		entry.etag = "\"v" + aVersion + "\"";
+		entry.serverDate = aVersion * 1000L;
+		entry.ttl = entry.softTtl = System.currentTimeMillis() + 60000 * aVersion;
+		return entry;
+	}
+
+	/**
+	 * Returns the identity, length and modification time of the files in the cache directory, by path.
+	 */
+	private Map<String, long[]> snapshot() throws IOException
+	{
+		final Map<String, long[]> files = new HashMap<String, long[]>();
+		Files.walkFileTree(mFolder.getRoot().toPath(), new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttributes)
+			{
+				long identity = aAttributes.fileKey() != null ? aAttributes.fileKey().hashCode() : 0;
+				files.put(aFile.toString(), new long[] { identity, aAttributes.size(), aAttributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) });
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * Counts the bytes written to the cache directory since a snapshot: the whole length of the new and rewritten files, the growth of the files
+	 * appended to.
+	 */
+	private long bytesWrittenSince(Map<String, long[]> aBefore) throws IOException
+	{
+		long written = 0;
+		for (Map.Entry<String, long[]> file : snapshot().entrySet())
+		{
+			long[] now = file.getValue();
+			long[] then = aBefore.get(file.getKey());
+			if (then == null || then[0] != now[0])
+			{
+				written += now[1];
+			}
+			else if (now[1] > then[1])
+			{
+				written += now[1] - then[1];
+			}
+			else if (now[2] != then[2])
+			{
+				written += now[1];
+			}
+		}
+		return written;
+	}
+}
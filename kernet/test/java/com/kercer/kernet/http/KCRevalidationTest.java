@@ -0,0 +1,204 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.base.KCHeader;
+import com.kercer.kernet.http.base.KCHeaderGroup;
+import com.kercer.kernet.http.error.KCNetError;
+import com.kercer.kernet.http.listener.KCHttpListener;
+import com.kercer.kernet.http.request.KCStringRequest;
+import com.kercer.kernet.http.base.KCStatusLine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Revalidates a cached response against a local server answering 304 Not Modified, and checks the stored headers.
+ */
+public class KCRevalidationTest
+{
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable aCommand)
+		{
+			aCommand.run();
+		}
+	};
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+	private volatile int mNotModifiedCount;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		mServer.handle("/item", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				// max-age=0: every request revalidates.
+				aExchange.getResponseHeaders().add("Cache-Control", "max-age=0");
+				aExchange.getResponseHeaders().add("ETag", "\"v1\"");
+				aExchange.getResponseHeaders().add("X-Revalidation", Integer.toString(mNotModifiedCount));
+				if ("\"v1\"".equals(aExchange.getRequestHeaders().getFirst("If-None-Match")))
+				{
+					mNotModifiedCount++;
+					KCTestServer.respond(aExchange, 304, null);
+					return;
+				}
+				aExchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+				KCTestServer.respond(aExchange, 200, "cached body".getBytes("UTF-8"));
+			}
+		});
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (mQueue != null)
+		{
+			mQueue.stop();
+		}
+		mServer.stop();
+	}
+
+	@Test
+	public void notModifiedReplacesHeadersInsteadOfAppending() throws Exception
+	{
+		KCCacheDisk cache = new KCCacheDisk(mFolder.getRoot());
+		String key = revalidate(cache, 4);
+		KCCache.KCEntry entry = cache.get(key);
+		assertHeadersReplaced(entry.responseHeaders);
+
+		// And so are the headers stored on disk.
+		KCCacheDisk reloaded = new KCCacheDisk(mFolder.getRoot());
+		reloaded.initialize();
+		assertHeadersReplaced(reloaded.get(key).responseHeaders);
+	}
+
+	@Test
+	public void cacheWithoutMetadataUpdatesGetsTheWholeEntry() throws Exception
+	{
+		final KCCacheDisk disk = new KCCacheDisk(mFolder.getRoot());
+		KCCache cache = new KCCache()
+		{
+			@Override
+			public KCEntry get(String key)
+			{
+				return disk.get(key);
+			}
+
+			@Override
+			public void put(String key, KCEntry entry)
+			{
+				disk.put(key, entry);
+			}
+
+			@Override
+			public void initialize()
+			{
+				disk.initialize();
+			}
+
+			@Override
+			public void invalidate(String key, boolean fullExpire)
+			{
+				disk.invalidate(key, fullExpire);
+			}
+
+			@Override
+			public void remove(String key)
+			{
+				disk.remove(key);
+			}
+
+			@Override
+			public void clear()
+			{
+				disk.clear();
+			}
+		};
+		String key = revalidate(cache, 3);
+		KCCache.KCEntry entry = cache.get(key);
+		assertEquals("cached body", new String(entry.data, "UTF-8"));
+		assertHeadersReplaced(entry.responseHeaders);
+	}
+
+	private void assertHeadersReplaced(KCHeaderGroup aHeaders)
+	{
+		assertEquals(1, aHeaders.getHeaders("Cache-Control").length);
+		assertEquals(1, aHeaders.getHeaders("ETag").length);
+		KCHeader[] revalidation = aHeaders.getHeaders("X-Revalidation");
+		assertEquals(1, revalidation.length);
+		assertEquals(Integer.toString(mNotModifiedCount - 1), revalidation[0].getValue());
+		// The 304 has no body headers, those of the stored response stay.
+		assertEquals("text/plain; charset=UTF-8", aHeaders.get("Content-Type"));
+	}
+
+	/**
+	 * Requests the item the given number of times, one after the other, and returns its cache key.
+	 */
+	private String revalidate(KCCache aCache, int aTimes) throws Exception
+	{
+		mQueue = new KCRequestQueue(aCache, new KCNetworkBasic(new KCHttpStackDefault()), 1, new KCDeliveryExecutor(DIRECT));
+		mQueue.start();
+		String key = null;
+		for (int i = 0; i < aTimes; i++)
+		{
+			final LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+			KCStringRequest request = new KCStringRequest(mServer.url("/item"), new KCHttpResult.KCHttpResultListener<String>()
+			{
+				@Override
+				public void onHttpResult(KCHttpResponse aResponse, String aResult)
+				{
+					results.add(aResult);
+				}
+			}, new KCHttpListener()
+			{
+				@Override
+				public void onHttpError(KCNetError error)
+				{
+					results.add(error);
+				}
+
+				@Override
+				public void onResponseHeaders(KCStatusLine aStatusLine, KCHeaderGroup aHeaderGroup)
+				{
+				}
+
+				@Override
+				public void onHttpComplete(KCHttpRequest<?> request, KCHttpResponse response)
+				{
+				}
+			});
+			key = request.getCacheKey();
+			mQueue.add(request);
+			Object result = results.poll(10, TimeUnit.SECONDS);
+			assertNotNull(result);
+			assertEquals("cached body", result);
+			// A max-age=0 entry is fresh until the clock moves on, the next request must come later to revalidate.
+			Thread.sleep(2);
+		}
+		assertEquals(aTimes - 1, mNotModifiedCount);
+		assertTrue(mServer.getRequestCount() >= aTimes);
+		return key;
+	}
+}
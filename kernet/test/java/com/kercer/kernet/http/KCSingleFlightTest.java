@@ -0,0 +1,150 @@
+package com.kercer.kernet.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Adds identical uncacheable single-flight requests from several threads at once, and checks one request reaches the local server and its
+ * outcome reaches all of them.
+ */
+public class KCSingleFlightTest
+{
+	private static final int REQUESTS = 8;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+
+	/** Holds the response of the server until all the requests are added. */
+	private final CountDownLatch mRelease = new CountDownLatch(1);
+
+	private volatile int mStatus = 200;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		mServer.handle("/item", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				try
+				{
+					mRelease.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				KCTestServer.respond(aExchange, mStatus, mStatus == 200 ? "item".getBytes("UTF-8") : null);
+			}
+		});
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), new KCNetworkBasic(new KCHttpStackDefault()), 4, new KCDeliveryExecutor(
+				KCDeliveryExecutor.DIRECT));
+		mQueue.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		mQueue.stop();
+		mServer.stop();
+	}
+
+	@Test
+	public void identicalRequestsShareOneExchange() throws Exception
+	{
+		KCTestRequest.KCShareableCountingParser parser = new KCTestRequest.KCShareableCountingParser();
+		List<KCTestRequest> requests = addConcurrently(parser);
+
+		for (KCTestRequest request : requests)
+		{
+			KCTestRequest.KCDelivered delivered = request.awaitDelivery();
+			assertNotNull(delivered);
+			assertEquals("item", delivered.result);
+			assertNull(request.pollDelivery());
+		}
+		assertEquals(1, mServer.getRequestCount());
+		assertEquals(1, parser.mParseCount.get());
+		assertEquals(REQUESTS - 1, mQueue.getCollapsedRequestCount());
+	}
+
+	@Test
+	public void errorReachesEveryRequest() throws Exception
+	{
+		mStatus = 503;
+		List<KCTestRequest> requests = addConcurrently(new KCTestRequest.KCShareableCountingParser());
+
+		for (KCTestRequest request : requests)
+		{
+			KCTestRequest.KCDelivered delivered = request.awaitDelivery();
+			assertNotNull(delivered);
+			assertNotNull(delivered.error);
+			assertEquals(503, delivered.error.networkResponse.getStatusCode());
+		}
+		assertEquals(1, mServer.getRequestCount());
+		assertEquals(REQUESTS - 1, mQueue.getCollapsedRequestCount());
+	}
+
+	/**
+	 * Adds the requests from a thread each, all at once, and lets the server answer once they are added.
+	 */
+	private List<KCTestRequest> addConcurrently(KCTestRequest.KCCountingParser aParser) throws InterruptedException
+	{
+		final List<KCTestRequest> requests = new ArrayList<KCTestRequest>();
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			KCTestRequest request = new KCTestRequest(mServer.url("/item"), aParser);
+			request.setShouldCache(false);
+			request.setSingleFlight(true);
+			requests.add(request);
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch added = new CountDownLatch(REQUESTS);
+		for (final KCTestRequest request : requests)
+		{
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						mQueue.add(request);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					added.countDown();
+				}
+			}.start();
+		}
+		start.countDown();
+		assertTrue(added.await(10, TimeUnit.SECONDS));
+		mRelease.countDown();
+		return requests;
+	}
+}
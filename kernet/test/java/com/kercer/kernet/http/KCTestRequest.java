@@ -0,0 +1,117 @@
+package com.kercer.kernet.http;
+
+import com.kercer.kernet.http.error.KCNetError;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A request for a string which records what is delivered to it, and counts the parses of its parser.
+ */
+class KCTestRequest extends KCHttpRequest<String>
+{
+	/**
+	 * A result or an error delivered to a request.
+	 */
+	static class KCDelivered
+	{
+		final String result;
+		final KCNetError error;
+		/** Whether the result was read from the cache, rather than received from the network. */
+		final boolean fromCache;
+
+		KCDelivered(String aResult, KCNetError aError, boolean aFromCache)
+		{
+			result = aResult;
+			error = aError;
+			fromCache = aFromCache;
+		}
+
+		@Override
+		public String toString()
+		{
+			return error != null ? String.valueOf(error) : result + (fromCache ? " (cache)" : "");
+		}
+	}
+
+	/**
+	 * Decodes the body as UTF-8 and counts its parses. Its results are not shared with duplicate requests.
+	 */
+	static class KCCountingParser implements KCHttpResponseParser
+	{
+		final AtomicInteger mParseCount = new AtomicInteger();
+
+		@Override
+		public KCHttpResult<?> parseHttpResponse(KCHttpResponse aResponse)
+		{
+			mParseCount.incrementAndGet();
+			try
+			{
+				return KCHttpResult.success(new String(aResponse.getContent(), "UTF-8"), KCHttpHeaderParser.parseCacheHeaders(aResponse));
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override
+		public KCNetError parseHttpError(KCNetError aError)
+		{
+			return aError;
+		}
+	}
+
+	/**
+	 * A {@link KCCountingParser} whose results are shared with duplicate requests.
+	 */
+	static class KCShareableCountingParser extends KCCountingParser implements KCHttpResultShareable
+	{
+	}
+
+	private final LinkedBlockingQueue<KCDelivered> mDelivered = new LinkedBlockingQueue<KCDelivered>();
+
+	KCTestRequest(String aUrl, KCCountingParser aParser)
+	{
+		this(Method.GET, aUrl, aParser);
+	}
+
+	KCTestRequest(int aMethod, String aUrl, KCCountingParser aParser)
+	{
+		super(aMethod, aUrl);
+		setResponseParser(aParser);
+	}
+
+	@Override
+	protected void notifyResponse(KCHttpResponse aResponse, String aResult)
+	{
+		super.notifyResponse(aResponse, aResult);
+		boolean fromCache = aResponse != null && "cache response".equals(aResponse.getStatusLine().getReasonPhrase());
+		mDelivered.add(new KCDelivered(aResult, null, fromCache));
+	}
+
+	@Override
+	protected void notifyError(KCNetError aError)
+	{
+		super.notifyError(aError);
+		mDelivered.add(new KCDelivered(null, aError, false));
+	}
+
+	/**
+	 * Waits for the next delivery to this request, or returns null after 10 seconds.
+	 */
+	KCDelivered awaitDelivery() throws InterruptedException
+	{
+		return mDelivered.poll(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns the next delivery to this request if there already is one, or null.
+	 */
+	KCDelivered pollDelivery()
+	{
+		return mDelivered.poll();
+	}
+}
@@ -0,0 +1,104 @@
+package com.kercer.kernet.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP server for tests, on a free port of the loopback interface. Counts the requests it answers.
+ */
+class KCTestServer
+{
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+	private final AtomicInteger mRequestCount = new AtomicInteger();
+
+	KCTestServer() throws IOException
+	{
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mServer.setExecutor(mExecutor);
+		mServer.start();
+	}
+
+	/**
+	 * Answers the requests for paths starting with the given prefix.
+	 */
+	void handle(String aPathPrefix, final HttpHandler aHandler)
+	{
+		mServer.createContext(aPathPrefix, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				mRequestCount.incrementAndGet();
+				try
+				{
+					aHandler.handle(aExchange);
+				}
+				finally
+				{
+					aExchange.close();
+				}
+			}
+		});
+	}
+
+	String url(String aPath)
+	{
+		return "http://127.0.0.1:" + getPort() + aPath;
+	}
+
+	int getPort()
+	{
+		return mServer.getAddress().getPort();
+	}
+
+	int getRequestCount()
+	{
+		return mRequestCount.get();
+	}
+
+	void stop()
+	{
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Sends a response with the given status and body, or without body for a null one.
+	 */
+	static void respond(HttpExchange aExchange, int aStatus, byte[] aBody) throws IOException
+	{
+		if (aBody == null)
+		{
+			aExchange.sendResponseHeaders(aStatus, -1);
+			return;
+		}
+		aExchange.sendResponseHeaders(aStatus, aBody.length);
+		OutputStream out = aExchange.getResponseBody();
+		out.write(aBody);
+		out.close();
+	}
+
+	static byte[] readBody(HttpExchange aExchange) throws IOException
+	{
+		InputStream in = aExchange.getRequestBody();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) != -1)
+		{
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+}
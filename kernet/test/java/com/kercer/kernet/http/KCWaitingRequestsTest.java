@@ -0,0 +1,140 @@
+package com.kercer.kernet.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queues duplicates of a request in flight to a local server, and checks how the result of the request reaches them.
+ */
+public class KCWaitingRequestsTest
+{
+	private static final int REQUESTS = 5;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private KCTestServer mServer;
+	private KCRequestQueue mQueue;
+
+	/** Holds the response of the server until the duplicates are queued. */
+	private final CountDownLatch mRelease = new CountDownLatch(1);
+	private final CountDownLatch mReceived = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws Exception
+	{
+		mServer = new KCTestServer();
+		mServer.handle("/item", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange aExchange) throws IOException
+			{
+				mReceived.countDown();
+				try
+				{
+					mRelease.await(10, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				aExchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				KCTestServer.respond(aExchange, 200, "item".getBytes("UTF-8"));
+			}
+		});
+		mQueue = new KCRequestQueue(new KCCacheDisk(mFolder.getRoot()), new KCNetworkBasic(new KCHttpStackDefault()), 2, new KCDeliveryExecutor(
+				KCDeliveryExecutor.DIRECT));
+		mQueue.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		mQueue.stop();
+		mServer.stop();
+	}
+
+	@Test
+	public void duplicatesShareTheParsedResult() throws Exception
+	{
+		KCTestRequest.KCShareableCountingParser parser = new KCTestRequest.KCShareableCountingParser();
+		List<KCTestRequest> requests = addDuplicates(parser);
+
+		String shared = null;
+		for (KCTestRequest request : requests)
+		{
+			KCTestRequest.KCDelivered delivered = request.awaitDelivery();
+			assertNotNull(delivered);
+			assertEquals("item", delivered.result);
+			assertFalse(delivered.fromCache);
+			if (shared == null)
+			{
+				shared = delivered.result;
+			}
+			assertSame(shared, delivered.result);
+		}
+		for (int i = 1; i < REQUESTS; i++)
+		{
+			assertTrue(requests.get(i).isResultShared());
+		}
+		assertEquals(1, parser.mParseCount.get());
+		assertEquals(1, mServer.getRequestCount());
+	}
+
+	@Test
+	public void duplicatesWithANonShareableParserParseAgain() throws Exception
+	{
+		KCTestRequest.KCCountingParser parser = new KCTestRequest.KCCountingParser();
+		List<KCTestRequest> requests = addDuplicates(parser);
+
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			KCTestRequest.KCDelivered delivered = requests.get(i).awaitDelivery();
+			assertNotNull(delivered);
+			assertEquals("item", delivered.result);
+			// The duplicates read the entry the first request cached.
+			assertEquals(i > 0, delivered.fromCache);
+			assertFalse(requests.get(i).isResultShared());
+		}
+		assertEquals(REQUESTS, parser.mParseCount.get());
+		assertEquals(1, mServer.getRequestCount());
+	}
+
+	/**
+	 * Adds a request, then its duplicates once the server holds the first one.
+	 */
+	private List<KCTestRequest> addDuplicates(KCTestRequest.KCCountingParser aParser) throws InterruptedException
+	{
+		List<KCTestRequest> requests = new ArrayList<KCTestRequest>();
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			KCTestRequest request = new KCTestRequest(mServer.url("/item"), aParser);
+			requests.add(request);
+			mQueue.add(request);
+			if (i == 0)
+			{
+				assertTrue(mReceived.await(10, TimeUnit.SECONDS));
+			}
+		}
+		mRelease.countDown();
+		return requests;
+	}
+}
@@ -0,0 +1,51 @@
+package com.kercer.kernet.http.base;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KCCacheControlTest
+{
+	@Test
+	public void parsesDirectives()
+	{
+		KCCacheControl cacheControl = KCCacheControl.parse("public, Max-Age=300 , s-maxage=\"600\", stale-while-revalidate=60, stale-if-error=86400, immutable");
+		assertTrue(cacheControl.isPublic);
+		assertTrue(cacheControl.immutable);
+		assertEquals(300, cacheControl.maxAge);
+		assertEquals(600, cacheControl.sMaxAge);
+		assertEquals(60, cacheControl.staleWhileRevalidate);
+		assertEquals(86400, cacheControl.staleIfError);
+		assertFalse(cacheControl.noStore);
+	}
+
+	@Test
+	public void ignoresMalformedArguments()
+	{
+		KCCacheControl cacheControl = KCCacheControl.parse("max-age=12abc, stale-if-error=, no-store, max-stale");
+		assertEquals(KCCacheControl.UNSET, cacheControl.maxAge);
+		assertEquals(KCCacheControl.UNSET, cacheControl.staleIfError);
+		assertTrue(cacheControl.noStore);
+		assertEquals(Integer.MAX_VALUE, cacheControl.maxStale);
+	}
+
+	@Test
+	public void setResetsTheDirectivesOfTheLastValue()
+	{
+		KCCacheControl cacheControl = new KCCacheControl();
+		assertSame(cacheControl, cacheControl.set("no-cache, max-age=5, immutable"));
+		assertTrue(cacheControl.noCache);
+
+		cacheControl.set("must-revalidate");
+		assertFalse(cacheControl.noCache);
+		assertFalse(cacheControl.immutable);
+		assertTrue(cacheControl.mustRevalidate);
+		assertEquals(KCCacheControl.UNSET, cacheControl.maxAge);
+
+		cacheControl.set(null);
+		assertFalse(cacheControl.mustRevalidate);
+	}
+}
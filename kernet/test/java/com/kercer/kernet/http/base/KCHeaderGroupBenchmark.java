@@ -0,0 +1,128 @@
+package com.kercer.kernet.http.base;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header lookups as the cache and network code does them: build the group of a response and look up its caching headers once, or look up the
+ * headers of a cached response again and again. Compares KCHeaderGroup against the plain equalsIgnoreCase scan it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KCHeaderGroupBenchmark
+{
+	private static final String[] LOOKUPS = { "Cache-Control", "Expires", "Date", "ETag", "Last-Modified", "Vary", "Content-Type", "Age" };
+
+	private static final String[] NAMES = { "Date", "Server", "Content-Type", "Content-Length", "Connection", "Cache-Control", "ETag",
+			"Last-Modified", "Vary", "Access-Control-Allow-Origin", "Strict-Transport-Security", "X-Content-Type-Options", "X-Frame-Options",
+			"X-Request-Id", "Via" };
+
+	/** Number of response headers. */
+	@Param({ "8", "15", "40" })
+	public int mSize;
+
+	private KCHeader[] mHeaders;
+
+	/** A group searched many times, as a cached response. */
+	private KCHeaderGroup mSearched;
+
+	@Setup
+	public void setUp()
+	{
+		mHeaders = new KCHeader[mSize];
+		for (int i = 0; i < mSize; i++)
+		{
+			mHeaders[i] = new KCHeader(i < NAMES.length ? NAMES[i] : "X-Extra-" + i, "value" + i);
+		}
+		mSearched = new KCHeaderGroup();
+		mSearched.addHeaders(mHeaders);
+		for (int i = 0; i < 64; i++)
+		{
+			mSearched.get("Date");
+		}
+	}
+
+	@Benchmark
+	public void repeatedLookups(Blackhole aBlackhole)
+	{
+		for (int i = 0; i < LOOKUPS.length; i++)
+		{
+			aBlackhole.consume(mSearched.get(LOOKUPS[i]));
+		}
+	}
+
+	@Benchmark
+	public void repeatedLookupsLinearScan(Blackhole aBlackhole)
+	{
+		KCHeader[] all = mHeaders;
+		for (int i = 0; i < LOOKUPS.length; i++)
+		{
+			String value = null;
+			for (int j = 0; j < all.length; j++)
+			{
+				if (all[j].getName().equalsIgnoreCase(LOOKUPS[i]))
+				{
+					value = all[j].getValue();
+					break;
+				}
+			}
+			aBlackhole.consume(value);
+		}
+	}
+
+	@Benchmark
+	public void responseLookups(Blackhole aBlackhole)
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		group.addHeaders(mHeaders);
+		for (int i = 0; i < LOOKUPS.length; i++)
+		{
+			aBlackhole.consume(group.get(LOOKUPS[i]));
+		}
+	}
+
+	@Benchmark
+	public void responseLookupsLinearScan(Blackhole aBlackhole)
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		group.addHeaders(mHeaders);
+		KCHeader[] all = group.getAllHeaders();
+		for (int i = 0; i < LOOKUPS.length; i++)
+		{
+			String value = null;
+			for (int j = 0; j < all.length; j++)
+			{
+				if (all[j].getName().equalsIgnoreCase(LOOKUPS[i]))
+				{
+					value = all[j].getValue();
+					break;
+				}
+			}
+			aBlackhole.consume(value);
+		}
+	}
+
+	public static void main(String[] aArgs) throws RunnerException
+	{
+		new Runner(new OptionsBuilder().include(KCHeaderGroupBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,215 @@
+package com.kercer.kernet.http.base;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KCHeaderGroupTest
+{
+	@Test
+	public void lookupIgnoresCase()
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		group.addHeader(new KCHeader("Content-Type", "text/plain"));
+		group.addHeader(new KCHeader("X-Custom", "1"));
+
+		assertEquals("text/plain", group.get("content-type"));
+		assertEquals("1", group.get("x-CUSTOM"));
+		assertTrue(group.containsHeader("CONTENT-TYPE"));
+		assertFalse(group.containsHeader("ETag"));
+	}
+
+	@Test
+	public void indexFollowsModifications()
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		KCHeader first = new KCHeader("Set-Cookie", "a=1");
+		KCHeader second = new KCHeader("Set-Cookie", "b=2");
+		group.addHeader(first);
+		assertSame(first, group.getFirstHeader("set-cookie"));
+
+		group.addHeader(second);
+		assertSame(second, group.getLastHeader("set-cookie"));
+		assertEquals("a=1, b=2", group.getCondensedHeader("Set-Cookie").getValue());
+
+		group.removeHeader(first);
+		assertSame(second, group.getFirstHeader("set-cookie"));
+		assertEquals(1, group.size());
+
+		group.removeHeader(second);
+		assertNull(group.getFirstHeader("set-cookie"));
+		assertEquals(0, group.size());
+	}
+
+	@Test
+	public void removeTakesTheSameInstanceFromListAndIndex()
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		KCHeader first = new KCHeader("Via", "1.1 a");
+		KCHeader second = new KCHeader("Via", "1.1 a");
+		group.addHeader(first);
+		group.addHeader(second);
+		group.getFirstHeader("Via");
+
+		group.removeHeader(second);
+		assertArrayEquals(new KCHeader[] { first }, group.getAllHeaders());
+		assertArrayEquals(new KCHeader[] { first }, group.getHeaders("via"));
+
+		// Removing a header that isn't in the group changes nothing.
+		group.removeHeader(new KCHeader("Via", "1.1 a"));
+		assertArrayEquals(new KCHeader[] { first }, group.getAllHeaders());
+		assertArrayEquals(new KCHeader[] { first }, group.getHeaders("via"));
+	}
+
+	@Test
+	public void updateReplacesFirstOrAdds()
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		group.addHeader(new KCHeader("ETag", "\"1\""));
+		group.addHeader(new KCHeader("Date", "x"));
+
+		// Not looked up yet, so the index is built by the update.
+		group.updateHeader(new KCHeader("etag", "\"2\""));
+		assertEquals(2, group.size());
+		assertEquals("\"2\"", group.get("ETag"));
+		assertEquals("\"2\"", group.getAllHeaders()[0].getValue());
+
+		group.updateHeader(new KCHeader("Age", "5"));
+		assertEquals(3, group.size());
+		assertEquals("5", group.get("age"));
+	}
+
+	@Test
+	public void updateHeadersReplacesEachGivenName()
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		group.addHeader(new KCHeader("Cache-Control", "max-age=0"));
+		group.addHeader(new KCHeader("Warning", "110 - \"stale\""));
+		group.addHeader(new KCHeader("Content-Type", "text/plain"));
+		group.addHeader(new KCHeader("Warning", "199 - \"misc\""));
+
+		group.updateHeaders(new KCHeader[] { new KCHeader("cache-control", "max-age=60"), new KCHeader("Warning", "214 - \"a\""),
+				new KCHeader("WARNING", "214 - \"b\""), new KCHeader("Date", "x") });
+
+		assertEquals(5, group.size());
+		assertEquals("max-age=60", group.getAllHeaders()[0].getValue());
+		KCHeader[] warnings = group.getHeaders("Warning");
+		assertEquals(2, warnings.length);
+		assertEquals("214 - \"a\"", warnings[0].getValue());
+		assertEquals("214 - \"b\"", warnings[1].getValue());
+		assertEquals("text/plain", group.get("Content-Type"));
+		assertEquals("x", group.get("Date"));
+	}
+
+	@Test
+	public void cloneAndCopyHaveTheirOwnIndex() throws Exception
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		group.addHeader(new KCHeader("Age", "1"));
+		group.get("Age");
+
+		KCHeaderGroup clone = (KCHeaderGroup) group.clone();
+		clone.updateHeader(new KCHeader("Age", "2"));
+		KCHeaderGroup copy = group.copy();
+		copy.addHeader(new KCHeader("Vary", "Accept"));
+
+		assertEquals("1", group.get("Age"));
+		assertFalse(group.containsHeader("Vary"));
+		assertEquals("2", clone.get("Age"));
+		assertTrue(copy.containsHeader("vary"));
+	}
+
+	@Test
+	public void largeGroupStaysConsistentOnceIndexed()
+	{
+		KCHeaderGroup group = new KCHeaderGroup();
+		for (int i = 0; i < 40; i++)
+		{
+			group.addHeader(new KCHeader("X-Header-" + i, Integer.toString(i)));
+		}
+		// Enough lookups to have the group indexed.
+		for (int round = 0; round < 3; round++)
+		{
+			for (int i = 0; i < 40; i++)
+			{
+				assertEquals(Integer.toString(i), group.get("x-header-" + i));
+			}
+		}
+
+		KCHeader extra = new KCHeader("X-HEADER-7", "again");
+		group.addHeader(extra);
+		assertEquals(2, group.getHeaders("x-header-7").length);
+		assertSame(extra, group.getLastHeader("X-Header-7"));
+
+		group.removeHeader(group.getFirstHeader("x-header-3"));
+		assertNull(group.get("X-Header-3"));
+		assertEquals("39", group.get("X-Header-39"));
+		group.updateHeader(new KCHeader("x-header-7", "updated"));
+		assertEquals("updated", group.get("X-Header-7"));
+		assertSame(extra, group.getLastHeader("X-Header-7"));
+		for (int i = 0; i < 200; i++)
+		{
+			group.addHeader(new KCHeader("X-Added-" + i, Integer.toString(i)));
+			assertEquals(Integer.toString(i), group.get("x-added-" + i));
+		}
+		assertEquals("39", group.get("X-Header-39"));
+	}
+
+	@Test
+	public void concurrentReadersOfAnUnindexedGroup() throws Exception
+	{
+		final int threads = 8;
+		for (int round = 0; round < 200; round++)
+		{
+			final KCHeaderGroup group = new KCHeaderGroup();
+			for (int i = 0; i < 40; i++)
+			{
+				group.addHeader(new KCHeader("X-Header-" + i, Integer.toString(i)));
+			}
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threads);
+			final AtomicInteger failures = new AtomicInteger();
+			for (int t = 0; t < threads; t++)
+			{
+				new Thread()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							start.await();
+							for (int i = 0; i < 40; i++)
+							{
+								if (!Integer.toString(i).equals(group.get("x-header-" + i)))
+								{
+									failures.incrementAndGet();
+								}
+							}
+						}
+						catch (Throwable e)
+						{
+							failures.incrementAndGet();
+						}
+						finally
+						{
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+			start.countDown();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(0, failures.get());
+		}
+	}
+}
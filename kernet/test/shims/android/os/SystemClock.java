@@ -0,0 +1,38 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android clock, which the mockable android.jar stubs to 0.
+ */
+public final class SystemClock
+{
+	private static final long START = System.nanoTime();
+
+	/** Uptime the clock starts at, like a device up for an hour, so intervals measured from 0 have passed. */
+	private static final long BOOT_UPTIME_MS = 60 * 60 * 1000;
+
+	private SystemClock()
+	{
+	}
+
+	public static long elapsedRealtime()
+	{
+		return (System.nanoTime() - START) / 1000000 + BOOT_UPTIME_MS;
+	}
+
+	public static long uptimeMillis()
+	{
+		return elapsedRealtime();
+	}
+
+	public static void sleep(long aMs)
+	{
+		try
+		{
+			Thread.sleep(aMs);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}